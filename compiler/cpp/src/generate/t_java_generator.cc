@@ -130,11 +130,14 @@ public:
 
   void generate_service_interface (t_service* tservice);
   void generate_service_async_interface(t_service* tservice);
+  void generate_service_async_handler_interface(t_service* tservice);
   void generate_service_helpers   (t_service* tservice);
   void generate_service_client    (t_service* tservice);
   void generate_service_async_client(t_service* tservice);
   void generate_service_server    (t_service* tservice);
   void generate_process_function  (t_service* tservice, t_function* tfunction);
+  void generate_service_async_server   (t_service* tservice);
+  void generate_process_async_function (t_service* tservice, t_function* tfunction);
 
   void generate_java_union(t_struct* tstruct);
   void generate_union_constructor(ofstream& out, t_struct* tstruct);
@@ -254,6 +257,7 @@ public:
   std::string declare_field(t_field* tfield, bool init=false);
   std::string function_signature(t_function* tfunction, std::string prefix="");
   std::string function_signature_async(t_function* tfunction, bool use_base_method = false, std::string prefix="");
+  std::string function_signature_async_handler(t_function* tfunction);
   std::string argument_list(t_struct* tstruct, bool include_types = true);
   std::string async_function_call_arglist(t_function* tfunc, bool use_base_method = true, bool include_types = true);
   std::string async_argument_list(t_function* tfunct, t_struct* tstruct, t_type* ttype, bool include_types=false);
@@ -274,6 +278,20 @@ public:
       ttype->is_enum();
   }
 
+  bool is_cached_string(t_field* tfield) {
+    t_type* ttype = tfield->get_type();
+    if (tfield->annotations_.find("java.string_cache") != tfield->annotations_.end()) {
+      return true;
+    }
+    while (ttype->is_typedef()) {
+      if (ttype->annotations_.find("java.string_cache") != ttype->annotations_.end()) {
+        return true;
+      }
+      ttype = ((t_typedef*)ttype)->get_type();
+    }
+    return ttype->annotations_.find("java.string_cache") != ttype->annotations_.end();
+  }
+
   std::string constant_name(std::string name);
 
  private:
@@ -2202,9 +2220,11 @@ void t_java_generator::generate_service(t_service* tservice) {
   // Generate the three main parts of the service
   generate_service_interface(tservice);
   generate_service_async_interface(tservice);
+  generate_service_async_handler_interface(tservice);
   generate_service_client(tservice);
   generate_service_async_client(tservice);
   generate_service_server(tservice);
+  generate_service_async_server(tservice);
   generate_service_helpers(tservice);
 
   indent_down();
@@ -2259,6 +2279,31 @@ void t_java_generator::generate_service_async_interface(t_service* tservice) {
   f_service_ << indent() << "}" << endl << endl;
 }
 
+/**
+ * Generates the interface of handlers served by AsyncProcessor, whose
+ * methods answer through a callback that takes the method's result.
+ *
+ * @param tservice The service to generate a handler interface for
+ */
+void t_java_generator::generate_service_async_handler_interface(t_service* tservice) {
+  string extends = "";
+  string extends_iface = "";
+  if (tservice->get_extends() != NULL) {
+    extends = type_name(tservice->get_extends());
+    extends_iface = " extends " + extends + ".AsyncHandler";
+  }
+
+  f_service_ << indent() << "public interface AsyncHandler" << extends_iface << " {" << endl << endl;
+  indent_up();
+  vector<t_function*> functions = tservice->get_functions();
+  vector<t_function*>::iterator f_iter;
+  for (f_iter = functions.begin(); f_iter != functions.end(); ++f_iter) {
+    indent(f_service_) << "public " << function_signature_async_handler(*f_iter) << " throws org.apache.thrift.TException;" << endl << endl;
+  }
+  indent_down();
+  f_service_ << indent() << "}" << endl << endl;
+}
+
 /**
  * Generates structs for all the service args and return types
  *
@@ -2543,7 +2588,7 @@ void t_java_generator::generate_service_async_client(t_service* tservice) {
       indent() << "if (getState() != org.apache.thrift.async.TAsyncMethodCall.State.RESPONSE_READ) {" << endl <<
       indent() << "  throw new IllegalStateException(\"Method call not finished!\");" << endl <<
       indent() << "}" << endl <<
-      indent() << "org.apache.thrift.transport.TMemoryInputTransport memoryTransport = new org.apache.thrift.transport.TMemoryInputTransport(getFrameBuffer().array());" << endl <<
+      indent() << "org.apache.thrift.transport.TByteBuffer memoryTransport = new org.apache.thrift.transport.TByteBuffer(getFrameBuffer().duplicate());" << endl <<
       indent() << "org.apache.thrift.protocol.TProtocol prot = client.getProtocolFactory().getProtocol(memoryTransport);" << endl;
     if (!(*f_iter)->is_oneway()) {
       indent(f_service_);
@@ -2620,6 +2665,144 @@ void t_java_generator::generate_service_server(t_service* tservice) {
   indent(f_service_) << "}" << endl << endl;
 }
 
+/**
+ * Generates a service server definition for handlers implementing AsyncHandler.
+ *
+ * @param tservice The service to generate a server for.
+ */
+void t_java_generator::generate_service_async_server(t_service* tservice) {
+  vector<t_function*> functions = tservice->get_functions();
+  vector<t_function*>::iterator f_iter;
+
+  // Extends stuff
+  string extends = "";
+  string extends_processor = "";
+  if (tservice->get_extends() == NULL) {
+    extends_processor = "org.apache.thrift.TBaseAsyncProcessor<I>";
+  } else {
+    extends = type_name(tservice->get_extends());
+    extends_processor = extends + ".AsyncProcessor<I>";
+  }
+
+  string map_type = "Map<String, org.apache.thrift.AsyncProcessFunction<I, ? extends org.apache.thrift.TBase<?, ?>, ?>>";
+
+  // Generate the header portion
+  indent(f_service_) <<
+    "public static class AsyncProcessor<I extends AsyncHandler> extends " << extends_processor << " {" << endl;
+  indent_up();
+
+  indent(f_service_) << "public AsyncProcessor(I iface) {" << endl;
+  indent(f_service_) << "  super(iface, getProcessMap(new HashMap<String, org.apache.thrift.AsyncProcessFunction<I, ? extends org.apache.thrift.TBase<?, ?>, ?>>()));" << endl;
+  indent(f_service_) << "}" << endl << endl;
+
+  indent(f_service_) << "protected AsyncProcessor(I iface, " << map_type << " processMap) {" << endl;
+  indent(f_service_) << "  super(iface, getProcessMap(processMap));" << endl;
+  indent(f_service_) << "}" << endl << endl;
+
+  indent(f_service_) << "private static <I extends AsyncHandler> " << map_type << " getProcessMap(" << map_type << " processMap) {" << endl;
+  indent_up();
+  for (f_iter = functions.begin(); f_iter != functions.end(); ++f_iter) {
+    indent(f_service_) << "processMap.put(\"" << (*f_iter)->get_name() << "\", new " << (*f_iter)->get_name() << "());" << endl;
+  }
+  indent(f_service_) << "return processMap;" << endl;
+  indent_down();
+  indent(f_service_) << "}" << endl << endl;
+
+  // Generate the process subfunctions
+  for (f_iter = functions.begin(); f_iter != functions.end(); ++f_iter) {
+    generate_process_async_function(tservice, *f_iter);
+  }
+
+  indent_down();
+  indent(f_service_) << "}" << endl << endl;
+}
+
+/**
+ * Generates a process function definition for an AsyncHandler.
+ *
+ * @param tfunction The function to write a dispatcher for
+ */
+void t_java_generator::generate_process_async_function(t_service* tservice,
+                                                       t_function* tfunction) {
+  (void) tservice;
+  string argsname = tfunction->get_name() + "_args";
+  string resultname = tfunction->get_name() + "_result";
+  t_type* ret_type = tfunction->get_returntype();
+  string ret_name = ret_type->is_void() ? "Void" : type_name(ret_type, true);
+
+  // Open class
+  indent(f_service_) <<
+    "public static class " << tfunction->get_name() << "<I extends AsyncHandler> extends org.apache.thrift.AsyncProcessFunction<I, " << argsname << ", " << ret_name << "> {" << endl;
+  indent_up();
+
+  indent(f_service_) << "public " << tfunction->get_name() << "() {" << endl;
+  indent(f_service_) << "  super(\"" << tfunction->get_name() << "\");" << endl;
+  indent(f_service_) << "}" << endl << endl;
+
+  indent(f_service_) << "public " << argsname << " getEmptyArgsInstance() {" << endl;
+  indent(f_service_) << "  return new " << argsname << "();" << endl;
+  indent(f_service_) << "}" << endl << endl;
+
+  indent(f_service_) << "public boolean isOneway() {" << endl;
+  indent(f_service_) << "  return " << (tfunction->is_oneway() ? "true" : "false") << ";" << endl;
+  indent(f_service_) << "}" << endl << endl;
+
+  // Start the handler
+  indent(f_service_) << "public void start(I iface, " << argsname << " args, org.apache.thrift.async.AsyncMethodCallback<" << ret_name << "> resultHandler) throws org.apache.thrift.TException {" << endl;
+  indent_up();
+  t_struct* arg_struct = tfunction->get_arglist();
+  const std::vector<t_field*>& fields = arg_struct->get_members();
+  vector<t_field*>::const_iterator f_iter;
+  f_service_ << indent() << "iface." << tfunction->get_name() << "(";
+  for (f_iter = fields.begin(); f_iter != fields.end(); ++f_iter) {
+    f_service_ << "args." << (*f_iter)->get_name() << ", ";
+  }
+  f_service_ << "resultHandler);" << endl;
+  indent_down();
+  indent(f_service_) << "}" << endl << endl;
+
+  // Result struct for a successful call
+  indent(f_service_) << "public org.apache.thrift.TBase<?, ?> getResult(" << ret_name << " response) {" << endl;
+  indent_up();
+  if (tfunction->is_oneway()) {
+    indent(f_service_) << "return null;" << endl;
+  } else {
+    indent(f_service_) << resultname << " result = new " << resultname << "();" << endl;
+    if (!ret_type->is_void()) {
+      indent(f_service_) << "result.success = response;" << endl;
+      if (!type_can_be_null(ret_type)) {
+        indent(f_service_) << "result.set" << get_cap_name("success") << get_cap_name("isSet") << "(true);" << endl;
+      }
+    }
+    indent(f_service_) << "return result;" << endl;
+  }
+  indent_down();
+  indent(f_service_) << "}" << endl << endl;
+
+  // Result struct for a declared exception
+  indent(f_service_) << "public org.apache.thrift.TBase<?, ?> getExceptionResult(Exception exception) {" << endl;
+  indent_up();
+  const std::vector<t_field*>& xceptions = tfunction->get_xceptions()->get_members();
+  vector<t_field*>::const_iterator x_iter;
+  if (!tfunction->is_oneway()) {
+    for (x_iter = xceptions.begin(); x_iter != xceptions.end(); ++x_iter) {
+      string xname = type_name((*x_iter)->get_type(), false, false);
+      indent(f_service_) << "if (exception instanceof " << xname << ") {" << endl;
+      indent(f_service_) << "  " << resultname << " result = new " << resultname << "();" << endl;
+      indent(f_service_) << "  result." << (*x_iter)->get_name() << " = (" << xname << ") exception;" << endl;
+      indent(f_service_) << "  return result;" << endl;
+      indent(f_service_) << "}" << endl;
+    }
+  }
+  indent(f_service_) << "return null;" << endl;
+  indent_down();
+  indent(f_service_) << "}" << endl;
+
+  // Close class
+  indent_down();
+  f_service_ << indent() << "}" << endl << endl;
+}
+
 /**
  * Generates a struct and helpers for a function.
  *
@@ -2784,6 +2967,8 @@ void t_java_generator::generate_deserialize_field(ofstream& out,
       case t_base_type::TYPE_STRING:
         if (((t_base_type*)type)->is_binary()) {
           out << "readBinary();";
+        } else if (is_cached_string(tfield)) {
+          out << "readCachedString();";
         } else {
           out << "readString();";
         }
@@ -3349,6 +3534,26 @@ string t_java_generator::function_signature_async(t_function* tfunction, bool us
   return result;
 }
 
+/**
+ * Renders a function signature of the form
+ * 'void name(args, AsyncMethodCallback<Result> resultHandler)'
+ *
+ * @params tfunction Function definition
+ * @return String of rendered function definition
+ */
+string t_java_generator::function_signature_async_handler(t_function* tfunction) {
+  t_type* ret_type = tfunction->get_returntype();
+  string ret_name = ret_type->is_void() ? "Void" : type_name(ret_type, true);
+
+  string arglist = "";
+  if (tfunction->get_arglist()->get_members().size() > 0) {
+    arglist = argument_list(tfunction->get_arglist()) + ", ";
+  }
+  arglist += "org.apache.thrift.async.AsyncMethodCallback<" + ret_name + "> resultHandler";
+
+  return "void " + tfunction->get_name() + "(" + arglist + ")";
+}
+
 string t_java_generator::async_function_call_arglist(t_function* tfunc, bool use_base_method, bool include_types) {
   std::string arglist = "";
   if (tfunc->get_arglist()->get_members().size() > 0) {
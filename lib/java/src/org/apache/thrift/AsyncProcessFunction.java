@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The asynchronous counterpart of ProcessFunction. The handler is started
+ * with a callback, and the response is written when the handler calls it.
+ *
+ * @param <I> the handler interface
+ * @param <T> the method's argument struct
+ * @param <R> the method's return type, Void for void methods
+ */
+public abstract class AsyncProcessFunction<I, T extends TBase<?, ?>, R> {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsyncProcessFunction.class.getName());
+
+  private final String methodName;
+
+  public AsyncProcessFunction(String methodName) {
+    this.methodName = methodName;
+  }
+
+  /**
+   * Read the arguments of a call and start the handler on them. done is
+   * called once the response has been written to oprot.
+   */
+  public final void process(final int seqid, TProtocol iprot, final TProtocol oprot, I iface,
+      final AsyncMethodCallback<Void> done) throws TException {
+    T args = getEmptyArgsInstance();
+    try {
+      args.read(iprot);
+    } catch (TProtocolException e) {
+      iprot.readMessageEnd();
+      TApplicationException x = new TApplicationException(TApplicationException.PROTOCOL_ERROR, e.getMessage());
+      writeException(oprot, seqid, x);
+      done.onComplete(null);
+      return;
+    }
+    iprot.readMessageEnd();
+
+    AsyncMethodCallback<R> resultHandler = new AsyncMethodCallback<R>() {
+      // handlers must answer once, but make sure a second answer can't
+      // corrupt the connection
+      private final AtomicBoolean answered = new AtomicBoolean(false);
+
+      public void onComplete(R response) {
+        if (!answered.compareAndSet(false, true)) {
+          LOGGER.warn("Ignoring second answer to a call of " + getMethodName());
+          return;
+        }
+        if (isOneway()) {
+          return;
+        }
+        try {
+          answer(getResult(response), null);
+        } catch (RuntimeException e) {
+          answer(null, e);
+        }
+      }
+
+      public void onError(Exception exception) {
+        if (!answered.compareAndSet(false, true)) {
+          LOGGER.warn("Ignoring second answer to a call of " + getMethodName(), exception);
+          return;
+        }
+        if (isOneway()) {
+          LOGGER.warn("Oneway call of " + getMethodName() + " failed", exception);
+          return;
+        }
+        answer(getExceptionResult(exception), exception);
+      }
+
+      /**
+       * Write the result struct back, or an INTERNAL_ERROR if there is none.
+       */
+      private void answer(TBase<?, ?> result, Exception exception) {
+        try {
+          if (result != null) {
+            writeReply(oprot, seqid, result);
+          } else {
+            LOGGER.error("Internal error processing " + getMethodName(), exception);
+            TApplicationException x = new TApplicationException(TApplicationException.INTERNAL_ERROR,
+                "Internal error processing " + getMethodName());
+            writeException(oprot, seqid, x);
+          }
+        } catch (TException e) {
+          done.onError(e);
+          return;
+        }
+        done.onComplete(null);
+      }
+    };
+
+    try {
+      start(iface, args, resultHandler);
+    } catch (Exception e) {
+      resultHandler.onError(e);
+    }
+
+    if (isOneway()) {
+      // nothing to wait for, but only let the connection move on once the
+      // handler has been started: done may hand the frame the arguments
+      // were read from back to a buffer pool
+      done.onComplete(null);
+    }
+  }
+
+  private void writeReply(TProtocol oprot, int seqid, TBase<?, ?> result) throws TException {
+    oprot.writeMessageBegin(new TMessage(getMethodName(), TMessageType.REPLY, seqid));
+    result.write(oprot);
+    oprot.writeMessageEnd();
+    oprot.getTransport().flush();
+  }
+
+  private void writeException(TProtocol oprot, int seqid, TApplicationException x) throws TException {
+    oprot.writeMessageBegin(new TMessage(getMethodName(), TMessageType.EXCEPTION, seqid));
+    x.write(oprot);
+    oprot.writeMessageEnd();
+    oprot.getTransport().flush();
+  }
+
+  /**
+   * Call the handler. It answers through the resultHandler, from any thread,
+   * including for oneway methods.
+   *
+   * Binary arguments may share the memory of the request frame, which a
+   * server with a buffer pool reuses once the call is done: after the
+   * resultHandler has been answered, or for oneway methods once start()
+   * returns. Handlers that use them past that point must copy them.
+   */
+  public abstract void start(I iface, T args, AsyncMethodCallback<R> resultHandler) throws TException;
+
+  /**
+   * The result struct for a successful call, or null for oneway methods.
+   */
+  public abstract TBase<?, ?> getResult(R response);
+
+  /**
+   * The result struct for a call that failed with one of the method's
+   * declared exceptions, or null if the exception wasn't declared.
+   */
+  public abstract TBase<?, ?> getExceptionResult(Exception exception);
+
+  public abstract boolean isOneway();
+
+  public abstract T getEmptyArgsInstance();
+
+  public String getMethodName() {
+    return methodName;
+  }
+}
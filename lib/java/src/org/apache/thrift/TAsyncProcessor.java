@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.protocol.TProtocol;
+
+/**
+ * A processor whose requests may complete after process() has returned, so
+ * handlers that wait on other services don't have to hold on to a server
+ * thread while they do. The nonblocking servers recognize it and write the
+ * response once the request has completed.
+ */
+public interface TAsyncProcessor {
+  /**
+   * Read a request from in and start processing it. Once the response has
+   * been written to out, which may happen on another thread, done's
+   * onComplete() is called, or its onError() if processing failed and the
+   * connection should be closed. done is called exactly once, unless this
+   * method throws.
+   */
+  public void process(TProtocol in, TProtocol out, AsyncMethodCallback<Void> done) throws TException;
+}
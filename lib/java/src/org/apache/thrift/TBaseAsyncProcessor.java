@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+
+/**
+ * The base of generated AsyncProcessors, which dispatch requests to handlers
+ * implementing a service's AsyncHandler. Servers that don't know about
+ * TAsyncProcessor can use it as a plain TProcessor, in which case the
+ * calling thread waits for every call to complete.
+ */
+public abstract class TBaseAsyncProcessor<I> implements TAsyncProcessor, TProcessor {
+  private final I iface;
+  private final Map<String, AsyncProcessFunction<I, ? extends TBase<?, ?>, ?>> processMap;
+
+  protected TBaseAsyncProcessor(I iface, Map<String, AsyncProcessFunction<I, ? extends TBase<?, ?>, ?>> processFunctionMap) {
+    this.iface = iface;
+    this.processMap = processFunctionMap;
+  }
+
+  public Map<String, AsyncProcessFunction<I, ? extends TBase<?, ?>, ?>> getProcessMapView() {
+    return Collections.unmodifiableMap(processMap);
+  }
+
+  public void process(TProtocol in, TProtocol out, AsyncMethodCallback<Void> done) throws TException {
+    TMessage msg = in.readMessageBegin();
+    AsyncProcessFunction<I, ? extends TBase<?, ?>, ?> fn = processMap.get(msg.name);
+    if (fn == null) {
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+      TApplicationException x = new TApplicationException(TApplicationException.UNKNOWN_METHOD, "Invalid method name: '"+msg.name+"'");
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.EXCEPTION, msg.seqid));
+      x.write(out);
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      done.onComplete(null);
+      return;
+    }
+    fn.process(msg.seqid, in, out, iface, done);
+  }
+
+  public boolean process(TProtocol in, TProtocol out) throws TException {
+    final CountDownLatch completed = new CountDownLatch(1);
+    final Exception[] failure = new Exception[1];
+    process(in, out, new AsyncMethodCallback<Void>() {
+      public void onComplete(Void response) {
+        completed.countDown();
+      }
+
+      public void onError(Exception exception) {
+        failure[0] = exception;
+        completed.countDown();
+      }
+    });
+
+    try {
+      completed.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TException("Interrupted while waiting for a call to complete", e);
+    }
+    if (failure[0] instanceof TException) {
+      throw (TException) failure[0];
+    } else if (failure[0] != null) {
+      throw new TException(failure[0]);
+    }
+    return true;
+  }
+}
@@ -42,4 +42,24 @@ public class TByteArrayOutputStream extends ByteArrayOutputStream {
   public int len() {
     return count;
   }
+
+  /**
+   * Grow the buffer, if need be, so that len more bytes fit in it after the
+   * ones written so far.
+   */
+  public void reserve(int len) {
+    if (count + len > buf.length) {
+      byte[] newBuf = new byte[Math.max(buf.length << 1, count + len)];
+      System.arraycopy(buf, 0, newBuf, 0, count);
+      buf = newBuf;
+    }
+  }
+
+  /**
+   * Count len bytes, put into get() after the ones written so far, as
+   * written. There must be room for them, see reserve().
+   */
+  public void commit(int len) {
+    count += len;
+  }
 }
@@ -28,6 +28,7 @@ import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.protocol.TProtocolUtil;
 import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TByteBuffer;
 import org.apache.thrift.transport.TMemoryInputTransport;
 
 /**
@@ -38,6 +39,8 @@ import org.apache.thrift.transport.TMemoryInputTransport;
 public class TDeserializer {
   private final TProtocol protocol_;
   private final TMemoryInputTransport trans_;
+  private final TProtocol bufferProtocol_;
+  private final TByteBuffer bufferTrans_;
 
   /**
    * Create a new TDeserializer that uses the TBinaryProtocol by default.
@@ -55,6 +58,8 @@ public class TDeserializer {
   public TDeserializer(TProtocolFactory protocolFactory) {
     trans_ = new TMemoryInputTransport();
     protocol_ = protocolFactory.getProtocol(trans_);
+    bufferTrans_ = new TByteBuffer();
+    bufferProtocol_ = protocolFactory.getProtocol(bufferTrans_);
   }
 
   /**
@@ -73,6 +78,24 @@ public class TDeserializer {
     }
   }
 
+  /**
+   * Deserialize the Thrift object from the remaining bytes of a ByteBuffer,
+   * which may be a heap or a direct buffer. The buffer's position is left
+   * untouched.
+   *
+   * @param base The object to read into
+   * @param buffer The buffer to read from
+   */
+  public void deserialize(TBase base, ByteBuffer buffer) throws TException {
+    try {
+      bufferTrans_.reset(buffer.duplicate());
+      base.read(bufferProtocol_);
+    } finally {
+      bufferTrans_.clear();
+      bufferProtocol_.reset();
+    }
+  }
+
   /**
    * Deserialize the Thrift object from a Java string, using a specified
    * character set for decoding.
@@ -69,6 +69,8 @@ public abstract class TAsyncMethodCall<T> {
   private ByteBuffer sizeBuffer;
   private final byte[] sizeBufferArray = new byte[4];
   private ByteBuffer frameBuffer;
+  // the frame size and the frame, for writing the request in one go
+  private ByteBuffer[] requestBuffers;
 
   private long startTime = System.currentTimeMillis();
 
@@ -125,6 +127,7 @@ public abstract class TAsyncMethodCall<T> {
 
     TFramedTransport.encodeFrameSize(length, sizeBufferArray);
     sizeBuffer = ByteBuffer.wrap(sizeBufferArray);
+    requestBuffers = new ByteBuffer[] { sizeBuffer, frameBuffer };
   }
 
   /**
@@ -181,7 +184,7 @@ public abstract class TAsyncMethodCall<T> {
           doConnecting(key);
           break;
         case WRITING_REQUEST_SIZE:
-          doWritingRequestSize();
+          doWritingRequestSize(key);
           break;
         case WRITING_REQUEST_BODY:
           doWritingRequestBody(key);
@@ -214,6 +217,8 @@ public abstract class TAsyncMethodCall<T> {
       throw new IOException("Read call frame failed");
     }
     if (frameBuffer.remaining() == 0) {
+      // leave the frame ready to be read by getFrameBuffer() callers
+      frameBuffer.flip();
       cleanUpAndFireCallback(key);
     }
   }
@@ -242,22 +247,31 @@ public abstract class TAsyncMethodCall<T> {
       throw new IOException("Write call frame failed");
     }
     if (frameBuffer.remaining() == 0) {
-      if (isOneway) {
-        cleanUpAndFireCallback(key);
-      } else {
-        state = State.READING_RESPONSE_SIZE;
-        sizeBuffer.rewind();  // Prepare to read incoming frame size
-        key.interestOps(SelectionKey.OP_READ);
-      }
+      requestWritten(key);
     }
   }
 
-  private void doWritingRequestSize() throws IOException {
-    if (transport.write(sizeBuffer) < 0) {
+  private void requestWritten(SelectionKey key) {
+    if (isOneway) {
+      cleanUpAndFireCallback(key);
+    } else {
+      state = State.READING_RESPONSE_SIZE;
+      sizeBuffer.rewind();  // Prepare to read incoming frame size
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  private void doWritingRequestSize(SelectionKey key) throws IOException {
+    // write the frame along with its size, so that small requests go out in a
+    // single system call.
+    if (transport.write(requestBuffers) < 0) {
       throw new IOException("Write call frame size failed");
     }
     if (sizeBuffer.remaining() == 0) {
       state = State.WRITING_REQUEST_BODY;
+      if (frameBuffer.remaining() == 0) {
+        requestWritten(key);
+      }
     }
   }
 
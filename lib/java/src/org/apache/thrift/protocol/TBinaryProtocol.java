@@ -19,8 +19,8 @@
 
 package org.apache.thrift.protocol;
 
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.apache.thrift.TException;
 import org.apache.thrift.transport.TTransport;
@@ -31,6 +31,7 @@ import org.apache.thrift.transport.TTransport;
  */
 public class TBinaryProtocol extends TProtocol {
   private static final TStruct ANONYMOUS_STRUCT = new TStruct();
+  private static final Charset UTF8 = Charset.forName("UTF-8");
 
   protected static final int VERSION_MASK = 0xffff0000;
   protected static final int VERSION_1 = 0x80010000;
@@ -41,6 +42,16 @@ public class TBinaryProtocol extends TProtocol {
   protected int readLength_;
   protected boolean checkReadLength_ = false;
 
+  /**
+   * Where reads get their descriptors from, or null to allocate new ones.
+   */
+  private TDescriptorCache descriptors_ = null;
+
+  /**
+   * Cache every string read goes through, if any.
+   */
+  protected TStringCache stringCache_ = null;
+
   /**
    * Factory
    */
@@ -48,6 +59,8 @@ public class TBinaryProtocol extends TProtocol {
     protected boolean strictRead_ = false;
     protected boolean strictWrite_ = true;
     protected int readLength_;
+    protected boolean reuseDescriptors_ = false;
+    protected TStringCache stringCache_ = null;
 
     public Factory() {
       this(false, true);
@@ -63,11 +76,32 @@ public class TBinaryProtocol extends TProtocol {
       readLength_ = readLength;
     }
 
+    /**
+     * @param reuseDescriptors whether the protocols made reuse their
+     *        descriptors, see TBinaryProtocol.setReuseDescriptors()
+     */
+    public Factory(boolean strictRead, boolean strictWrite, int readLength, boolean reuseDescriptors) {
+      this(strictRead, strictWrite, readLength);
+      reuseDescriptors_ = reuseDescriptors;
+    }
+
+    /**
+     * @param stringCache the cache the protocols made read strings through,
+     *        see TBinaryProtocol.setStringCache(); may be null
+     */
+    public Factory(boolean strictRead, boolean strictWrite, int readLength, boolean reuseDescriptors,
+        TStringCache stringCache) {
+      this(strictRead, strictWrite, readLength, reuseDescriptors);
+      stringCache_ = stringCache;
+    }
+
     public TProtocol getProtocol(TTransport trans) {
       TBinaryProtocol proto = new TBinaryProtocol(trans, strictRead_, strictWrite_);
       if (readLength_ != 0) {
         proto.setReadLength(readLength_);
       }
+      proto.setReuseDescriptors(reuseDescriptors_);
+      proto.setStringCache(stringCache_);
       return proto;
     }
   }
@@ -143,51 +177,90 @@ public class TBinaryProtocol extends TProtocol {
 
   private byte [] bout = new byte[1];
   public void writeByte(byte b) throws TException {
+    if (trans_.reserveWriteBuffer(1)) {
+      trans_.getWriteBuffer()[trans_.getWriteBufferPosition()] = b;
+      trans_.commitWriteBuffer(1);
+      return;
+    }
     bout[0] = b;
     trans_.write(bout, 0, 1);
   }
 
   private byte[] i16out = new byte[2];
   public void writeI16(short i16) throws TException {
-    i16out[0] = (byte)(0xff & (i16 >> 8));
-    i16out[1] = (byte)(0xff & (i16));
+    if (trans_.reserveWriteBuffer(2)) {
+      putI16(i16, trans_.getWriteBuffer(), trans_.getWriteBufferPosition());
+      trans_.commitWriteBuffer(2);
+      return;
+    }
+    putI16(i16, i16out, 0);
     trans_.write(i16out, 0, 2);
   }
 
   private byte[] i32out = new byte[4];
   public void writeI32(int i32) throws TException {
-    i32out[0] = (byte)(0xff & (i32 >> 24));
-    i32out[1] = (byte)(0xff & (i32 >> 16));
-    i32out[2] = (byte)(0xff & (i32 >> 8));
-    i32out[3] = (byte)(0xff & (i32));
+    if (trans_.reserveWriteBuffer(4)) {
+      putI32(i32, trans_.getWriteBuffer(), trans_.getWriteBufferPosition());
+      trans_.commitWriteBuffer(4);
+      return;
+    }
+    putI32(i32, i32out, 0);
     trans_.write(i32out, 0, 4);
   }
 
   private byte[] i64out = new byte[8];
   public void writeI64(long i64) throws TException {
-    i64out[0] = (byte)(0xff & (i64 >> 56));
-    i64out[1] = (byte)(0xff & (i64 >> 48));
-    i64out[2] = (byte)(0xff & (i64 >> 40));
-    i64out[3] = (byte)(0xff & (i64 >> 32));
-    i64out[4] = (byte)(0xff & (i64 >> 24));
-    i64out[5] = (byte)(0xff & (i64 >> 16));
-    i64out[6] = (byte)(0xff & (i64 >> 8));
-    i64out[7] = (byte)(0xff & (i64));
+    if (trans_.reserveWriteBuffer(8)) {
+      putI64(i64, trans_.getWriteBuffer(), trans_.getWriteBufferPosition());
+      trans_.commitWriteBuffer(8);
+      return;
+    }
+    putI64(i64, i64out, 0);
     trans_.write(i64out, 0, 8);
   }
 
+  private static void putI16(short i16, byte[] buf, int off) {
+    buf[off] = (byte)(0xff & (i16 >> 8));
+    buf[off + 1] = (byte)(0xff & (i16));
+  }
+
+  private static void putI32(int i32, byte[] buf, int off) {
+    buf[off] = (byte)(0xff & (i32 >> 24));
+    buf[off + 1] = (byte)(0xff & (i32 >> 16));
+    buf[off + 2] = (byte)(0xff & (i32 >> 8));
+    buf[off + 3] = (byte)(0xff & (i32));
+  }
+
+  private static void putI64(long i64, byte[] buf, int off) {
+    buf[off] = (byte)(0xff & (i64 >> 56));
+    buf[off + 1] = (byte)(0xff & (i64 >> 48));
+    buf[off + 2] = (byte)(0xff & (i64 >> 40));
+    buf[off + 3] = (byte)(0xff & (i64 >> 32));
+    buf[off + 4] = (byte)(0xff & (i64 >> 24));
+    buf[off + 5] = (byte)(0xff & (i64 >> 16));
+    buf[off + 6] = (byte)(0xff & (i64 >> 8));
+    buf[off + 7] = (byte)(0xff & (i64));
+  }
+
   public void writeDouble(double dub) throws TException {
     writeI64(Double.doubleToLongBits(dub));
   }
 
   public void writeString(String str) throws TException {
-    try {
-      byte[] dat = str.getBytes("UTF-8");
-      writeI32(dat.length);
-      trans_.write(dat, 0, dat.length);
-    } catch (UnsupportedEncodingException uex) {
-      throw new TException("JVM DOES NOT SUPPORT UTF-8");
+    int chars = str.length();
+    if (chars <= TUtf8Codec.MAX_INLINE_LENGTH
+        && trans_.reserveWriteBuffer(4 + chars * TUtf8Codec.MAX_BYTES_PER_CHAR)) {
+      // encode after room for the size, then go back and fill the size in
+      byte[] buf = trans_.getWriteBuffer();
+      int pos = trans_.getWriteBufferPosition();
+      int length = TUtf8Codec.encode(str, buf, pos + 4) - (pos + 4);
+      putI32(length, buf, pos);
+      trans_.commitWriteBuffer(4 + length);
+      return;
     }
+    byte[] dat = TUtf8Codec.encode(str);
+    writeI32(dat.length);
+    trans_.write(dat, 0, dat.length);
   }
 
   public void writeBinary(ByteBuffer bin) throws TException {
@@ -227,24 +300,36 @@ public class TBinaryProtocol extends TProtocol {
   public TField readFieldBegin() throws TException {
     byte type = readByte();
     short id = type == TType.STOP ? 0 : readI16();
+    if (descriptors_ != null) {
+      return descriptors_.field(type, id);
+    }
     return new TField("", type, id);
   }
 
   public void readFieldEnd() {}
 
   public TMap readMapBegin() throws TException {
+    if (descriptors_ != null) {
+      return descriptors_.map(readByte(), readByte(), readI32());
+    }
     return new TMap(readByte(), readByte(), readI32());
   }
 
   public void readMapEnd() {}
 
   public TList readListBegin() throws TException {
+    if (descriptors_ != null) {
+      return descriptors_.list(readByte(), readI32());
+    }
     return new TList(readByte(), readI32());
   }
 
   public void readListEnd() {}
 
   public TSet readSetBegin() throws TException {
+    if (descriptors_ != null) {
+      return descriptors_.set(readByte(), readI32());
+    }
     return new TSet(readByte(), readI32());
   }
 
@@ -261,6 +346,10 @@ public class TBinaryProtocol extends TProtocol {
       trans_.consumeBuffer(1);
       return b;
     }
+    ByteBuffer bb = byteBufferWithRemaining(1);
+    if (bb != null) {
+      return bb.get();
+    }
     readAll(bin, 0, 1);
     return bin[0];
   }
@@ -269,11 +358,14 @@ public class TBinaryProtocol extends TProtocol {
   public short readI16() throws TException {
     byte[] buf = i16rd;
     int off = 0;
+    ByteBuffer bb;
 
     if (trans_.getBytesRemainingInBuffer() >= 2) {
       buf = trans_.getBuffer();
       off = trans_.getBufferPosition();
       trans_.consumeBuffer(2);
+    } else if ((bb = byteBufferWithRemaining(2)) != null) {
+      return (short)(((bb.get() & 0xff) << 8) | (bb.get() & 0xff));
     } else {
       readAll(i16rd, 0, 2);
     }
@@ -288,11 +380,18 @@ public class TBinaryProtocol extends TProtocol {
   public int readI32() throws TException {
     byte[] buf = i32rd;
     int off = 0;
+    ByteBuffer bb;
 
     if (trans_.getBytesRemainingInBuffer() >= 4) {
       buf = trans_.getBuffer();
       off = trans_.getBufferPosition();
       trans_.consumeBuffer(4);
+    } else if ((bb = byteBufferWithRemaining(4)) != null) {
+      return
+        ((bb.get() & 0xff) << 24) |
+        ((bb.get() & 0xff) << 16) |
+        ((bb.get() & 0xff) <<  8) |
+        ((bb.get() & 0xff));
     } else {
       readAll(i32rd, 0, 4);
     }
@@ -307,11 +406,22 @@ public class TBinaryProtocol extends TProtocol {
   public long readI64() throws TException {
     byte[] buf = i64rd;
     int off = 0;
+    ByteBuffer bb;
 
     if (trans_.getBytesRemainingInBuffer() >= 8) {
       buf = trans_.getBuffer();
       off = trans_.getBufferPosition();
       trans_.consumeBuffer(8);
+    } else if ((bb = byteBufferWithRemaining(8)) != null) {
+      return
+        ((long)(bb.get() & 0xff) << 56) |
+        ((long)(bb.get() & 0xff) << 48) |
+        ((long)(bb.get() & 0xff) << 40) |
+        ((long)(bb.get() & 0xff) << 32) |
+        ((long)(bb.get() & 0xff) << 24) |
+        ((long)(bb.get() & 0xff) << 16) |
+        ((long)(bb.get() & 0xff) <<  8) |
+        ((long)(bb.get() & 0xff));
     } else {
       readAll(i64rd, 0, 8);
     }
@@ -332,30 +442,44 @@ public class TBinaryProtocol extends TProtocol {
   }
 
   public String readString() throws TException {
+    return readString(stringCache_);
+  }
+
+  @Override
+  public String readCachedString() throws TException {
+    return readString(stringCache_ != null ? stringCache_ : TStringCache.getDefault());
+  }
+
+  private String readString(TStringCache cache) throws TException {
     int size = readI32();
 
     if (trans_.getBytesRemainingInBuffer() >= size) {
-      try {
-        String s = new String(trans_.getBuffer(), trans_.getBufferPosition(), size, "UTF-8");
-        trans_.consumeBuffer(size);
-        return s;
-      } catch (UnsupportedEncodingException e) {
-        throw new TException("JVM DOES NOT SUPPORT UTF-8");
-      }
+      byte[] buf = trans_.getBuffer();
+      int pos = trans_.getBufferPosition();
+      String s = cache == null ? TUtf8Codec.decode(buf, pos, size) : cache.get(buf, pos, size);
+      trans_.consumeBuffer(size);
+      return s;
+    }
+
+    ByteBuffer bb = byteBufferWithRemaining(size);
+    if (bb != null) {
+      return cache == null ? UTF8.decode(sliceOf(bb, size)).toString() : cache.get(bb, size);
     }
 
-    return readStringBody(size);
+    if (cache == null) {
+      return readStringBody(size);
+    }
+    checkReadLength(size);
+    byte[] buf = new byte[size];
+    trans_.readAll(buf, 0, size);
+    return cache.get(buf, 0, size);
   }
 
   public String readStringBody(int size) throws TException {
-    try {
-      checkReadLength(size);
-      byte[] buf = new byte[size];
-      trans_.readAll(buf, 0, size);
-      return new String(buf, "UTF-8");
-    } catch (UnsupportedEncodingException uex) {
-      throw new TException("JVM DOES NOT SUPPORT UTF-8");
-    }
+    checkReadLength(size);
+    byte[] buf = new byte[size];
+    trans_.readAll(buf, 0, size);
+    return TUtf8Codec.decode(buf, 0, size);
   }
 
   public ByteBuffer readBinary() throws TException {
@@ -368,11 +492,36 @@ public class TBinaryProtocol extends TProtocol {
       return bb;
     }
 
+    ByteBuffer direct = byteBufferWithRemaining(size);
+    if (direct != null) {
+      return sliceOf(direct, size);
+    }
+
     byte[] buf = new byte[size];
     trans_.readAll(buf, 0, size);
     return ByteBuffer.wrap(buf);
   }
 
+  /**
+   * The transport's ByteBuffer, if it has one with at least len unread bytes
+   * in it. Only consulted once the byte[] fast path has failed, so in practice
+   * this is how direct buffers get read without copying.
+   */
+  private ByteBuffer byteBufferWithRemaining(int len) {
+    ByteBuffer bb = trans_.getByteBuffer();
+    return (bb != null && len >= 0 && bb.remaining() >= len) ? bb : null;
+  }
+
+  /**
+   * Consume the next len bytes of bb, returning them as a buffer of their own.
+   */
+  private ByteBuffer sliceOf(ByteBuffer bb, int len) {
+    ByteBuffer slice = bb.slice();
+    slice.limit(len);
+    bb.position(bb.position() + len);
+    return slice;
+  }
+
   private int readAll(byte[] buf, int off, int len) throws TException {
     checkReadLength(len);
     return trans_.readAll(buf, off, len);
@@ -383,6 +532,26 @@ public class TBinaryProtocol extends TProtocol {
     checkReadLength_ = true;
   }
 
+  /**
+   * Have reads hand out the TField, TMap, TList and TSet instances they
+   * handed out before for the same contents, instead of allocating new ones.
+   * Deserializing structs of the same shape over and over then allocates
+   * nothing for their descriptors. The descriptors are immutable as ever, so
+   * callers may hold on to them.
+   */
+  public void setReuseDescriptors(boolean reuseDescriptors) {
+    descriptors_ = reuseDescriptors ? new TDescriptorCache() : null;
+  }
+
+  /**
+   * Read every string through stringCache, so that values seen before come
+   * back as the String already decoded for them. null turns this off; fields
+   * annotated with java.string_cache then use the default cache.
+   */
+  public void setStringCache(TStringCache stringCache) {
+    stringCache_ = stringCache;
+  }
+
   protected void checkReadLength(int length) throws TException {
     if (length < 0) {
       throw new TException("Negative length: " + length);
@@ -20,8 +20,8 @@
 
 package org.apache.thrift.protocol;
 
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.apache.thrift.ShortStack;
 import org.apache.thrift.TException;
@@ -38,6 +38,8 @@ import org.apache.thrift.transport.TTransport;
  */
 public class TCompactProtocol extends TProtocol {
 
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
   private final static TStruct ANONYMOUS_STRUCT = new TStruct("");
   private final static TField TSTOP = new TField("", TType.STOP, (short)0);
 
@@ -62,10 +64,35 @@ public class TCompactProtocol extends TProtocol {
    * TProtocolFactory that produces TCompactProtocols.
    */
   public static class Factory implements TProtocolFactory {
-    public Factory() {}
+    private final boolean reuseDescriptors_;
+    private final TStringCache stringCache_;
+
+    public Factory() {
+      this(false);
+    }
+
+    /**
+     * @param reuseDescriptors whether the protocols made reuse their
+     *        descriptors, see TCompactProtocol.setReuseDescriptors()
+     */
+    public Factory(boolean reuseDescriptors) {
+      this(reuseDescriptors, null);
+    }
+
+    /**
+     * @param stringCache the cache the protocols made read strings through,
+     *        see TCompactProtocol.setStringCache(); may be null
+     */
+    public Factory(boolean reuseDescriptors, TStringCache stringCache) {
+      reuseDescriptors_ = reuseDescriptors;
+      stringCache_ = stringCache;
+    }
 
     public TProtocol getProtocol(TTransport trans) {
-      return new TCompactProtocol(trans);
+      TCompactProtocol proto = new TCompactProtocol(trans);
+      proto.setReuseDescriptors(reuseDescriptors_);
+      proto.setStringCache(stringCache_);
+      return proto;
     }
   }
 
@@ -113,6 +140,16 @@ public class TCompactProtocol extends TProtocol {
    */
   private Boolean boolValue_ = null;
 
+  /**
+   * Where reads get their descriptors from, or null to allocate new ones.
+   */
+  private TDescriptorCache descriptors_ = null;
+
+  /**
+   * Cache every string read goes through, if any.
+   */
+  private TStringCache stringCache_ = null;
+
   /**
    * Create a TCompactProtocol.
    *
@@ -128,6 +165,24 @@ public class TCompactProtocol extends TProtocol {
     lastFieldId_ = 0;
   }
 
+  /**
+   * Have reads hand out the TField, TMap, TList and TSet instances they
+   * handed out before for the same contents, instead of allocating new ones.
+   * The descriptors are immutable as ever, so callers may hold on to them.
+   */
+  public void setReuseDescriptors(boolean reuseDescriptors) {
+    descriptors_ = reuseDescriptors ? new TDescriptorCache() : null;
+  }
+
+  /**
+   * Read every string through stringCache, so that values seen before come
+   * back as the String already decoded for them. null turns this off; fields
+   * annotated with java.string_cache then use the default cache.
+   */
+  public void setStringCache(TStringCache stringCache) {
+    stringCache_ = stringCache;
+  }
+
   //
   // Public Writing methods.
   //
@@ -284,22 +339,36 @@ public class TCompactProtocol extends TProtocol {
   /**
    * Write a double to the wire as 8 bytes.
    */ 
+  private byte[] doubleOut = new byte[8];
   public void writeDouble(double dub) throws TException {
-    byte[] data = new byte[]{0, 0, 0, 0, 0, 0, 0, 0};
-    fixedLongToBytes(Double.doubleToLongBits(dub), data, 0);
-    trans_.write(data);
+    if (trans_.reserveWriteBuffer(8)) {
+      fixedLongToBytes(Double.doubleToLongBits(dub), trans_.getWriteBuffer(), trans_.getWriteBufferPosition());
+      trans_.commitWriteBuffer(8);
+      return;
+    }
+    fixedLongToBytes(Double.doubleToLongBits(dub), doubleOut, 0);
+    trans_.write(doubleOut, 0, 8);
   }
 
   /**
    * Write a string to the wire with a varint size preceding.
    */
   public void writeString(String str) throws TException {
-    try {
-      byte[] bytes = str.getBytes("UTF-8");
-      writeBinary(bytes, 0, bytes.length);
-    } catch (UnsupportedEncodingException e) {
-      throw new TException("UTF-8 not supported!");
+    int chars = str.length();
+    if (chars <= TUtf8Codec.MAX_INLINE_LENGTH
+        && trans_.reserveWriteBuffer(1 + chars * TUtf8Codec.MAX_BYTES_PER_CHAR)) {
+      // short enough that the size is a one byte varint whatever the
+      // encoding comes to (at most 32 * 3 bytes), so encode after it and
+      // then fill it in
+      byte[] buf = trans_.getWriteBuffer();
+      int pos = trans_.getWriteBufferPosition();
+      int length = TUtf8Codec.encode(str, buf, pos + 1) - (pos + 1);
+      buf[pos] = (byte)length;
+      trans_.commitWriteBuffer(1 + length);
+      return;
     }
+    byte[] bytes = TUtf8Codec.encode(str);
+    writeBinary(bytes, 0, bytes.length);
   }
 
   /**
@@ -345,24 +414,15 @@ public class TCompactProtocol extends TProtocol {
 
   /**
    * Write an i32 as a varint. Results in 1-5 bytes on the wire.
-   * TODO: make a permanent buffer like writeVarint64?
    */
   byte[] i32buf = new byte[5];
   private void writeVarint32(int n) throws TException {
-    int idx = 0;
-    while (true) {
-      if ((n & ~0x7F) == 0) {
-        i32buf[idx++] = (byte)n;
-        // writeByteDirect((byte)n);
-        break;
-        // return;
-      } else {
-        i32buf[idx++] = (byte)((n & 0x7F) | 0x80);
-        // writeByteDirect((byte)((n & 0x7F) | 0x80));
-        n >>>= 7;
-      }
+    if (trans_.reserveWriteBuffer(5)) {
+      int pos = trans_.getWriteBufferPosition();
+      trans_.commitWriteBuffer(varint32ToBytes(n, trans_.getWriteBuffer(), pos) - pos);
+      return;
     }
-    trans_.write(i32buf, 0, idx);
+    trans_.write(i32buf, 0, varint32ToBytes(n, i32buf, 0));
   }
 
   /**
@@ -370,17 +430,40 @@ public class TCompactProtocol extends TProtocol {
    */
   byte[] varint64out = new byte[10];
   private void writeVarint64(long n) throws TException {
-    int idx = 0;
-    while (true) {
-      if ((n & ~0x7FL) == 0) {
-        varint64out[idx++] = (byte)n;
-        break;
-      } else {
-        varint64out[idx++] = ((byte)((n & 0x7F) | 0x80));
-        n >>>= 7;
-      }
+    if (trans_.reserveWriteBuffer(10)) {
+      int pos = trans_.getWriteBufferPosition();
+      trans_.commitWriteBuffer(varint64ToBytes(n, trans_.getWriteBuffer(), pos) - pos);
+      return;
+    }
+    trans_.write(varint64out, 0, varint64ToBytes(n, varint64out, 0));
+  }
+
+  /**
+   * Encode an i32 as a varint into buf starting at off.
+   *
+   * @return the index just past the last byte written
+   */
+  private static int varint32ToBytes(int n, byte[] buf, int off) {
+    while ((n & ~0x7F) != 0) {
+      buf[off++] = (byte)((n & 0x7F) | 0x80);
+      n >>>= 7;
+    }
+    buf[off++] = (byte)n;
+    return off;
+  }
+
+  /**
+   * Encode an i64 as a varint into buf starting at off.
+   *
+   * @return the index just past the last byte written
+   */
+  private static int varint64ToBytes(long n, byte[] buf, int off) {
+    while ((n & ~0x7FL) != 0) {
+      buf[off++] = (byte)((n & 0x7F) | 0x80);
+      n >>>= 7;
     }
-    trans_.write(varint64out, 0, idx);
+    buf[off++] = (byte)n;
+    return off;
   }
 
   /**
@@ -420,6 +503,11 @@ public class TCompactProtocol extends TProtocol {
    */
   private byte[] byteDirectBuffer = new byte[1];
   private void writeByteDirect(byte b) throws TException {
+    if (trans_.reserveWriteBuffer(1)) {
+      trans_.getWriteBuffer()[trans_.getWriteBufferPosition()] = b;
+      trans_.commitWriteBuffer(1);
+      return;
+    }
     byteDirectBuffer[0] = b;
     trans_.write(byteDirectBuffer);
   }
@@ -497,7 +585,12 @@ public class TCompactProtocol extends TProtocol {
       fieldId = (short)(lastFieldId_ + modifier);
     }
 
-    TField field = new TField("", getTType((byte)(type & 0x0f)), fieldId);
+    TField field;
+    if (descriptors_ != null) {
+      field = descriptors_.field(getTType((byte)(type & 0x0f)), fieldId);
+    } else {
+      field = new TField("", getTType((byte)(type & 0x0f)), fieldId);
+    }
 
     // if this happens to be a boolean field, the value is encoded in the type
     if (isBoolType(type)) {
@@ -518,6 +611,9 @@ public class TCompactProtocol extends TProtocol {
   public TMap readMapBegin() throws TException {
     int size = readVarint32();
     byte keyAndValueType = size == 0 ? 0 : readByte();
+    if (descriptors_ != null) {
+      return descriptors_.map(getTType((byte)(keyAndValueType >> 4)), getTType((byte)(keyAndValueType & 0xf)), size);
+    }
     return new TMap(getTType((byte)(keyAndValueType >> 4)), getTType((byte)(keyAndValueType & 0xf)), size);
   }
 
@@ -534,6 +630,9 @@ public class TCompactProtocol extends TProtocol {
       size = readVarint32();
     }
     byte type = getTType(size_and_type);
+    if (descriptors_ != null) {
+      return descriptors_.list(type, size);
+    }
     return new TList(type, size);
   }
 
@@ -544,6 +643,10 @@ public class TCompactProtocol extends TProtocol {
    * true size.
    */
   public TSet readSetBegin() throws TException {
+    if (descriptors_ != null) {
+      TList list = readListBegin();
+      return descriptors_.set(list.elemType, list.size);
+    }
     return new TSet(readListBegin());
   }
 
@@ -567,9 +670,12 @@ public class TCompactProtocol extends TProtocol {
    */
   public byte readByte() throws TException {
     byte b;
+    ByteBuffer bb;
     if (trans_.getBytesRemainingInBuffer() > 0) {
       b = trans_.getBuffer()[trans_.getBufferPosition()];
       trans_.consumeBuffer(1);
+    } else if ((bb = byteBufferWithRemaining(1)) != null) {
+      b = bb.get();
     } else {
       trans_.readAll(byteRawBuf, 0, 1);
       b = byteRawBuf[0];
@@ -611,22 +717,35 @@ public class TCompactProtocol extends TProtocol {
    * Reads a byte[] (via readBinary), and then UTF-8 decodes it.
    */
   public String readString() throws TException {
+    return readString(stringCache_);
+  }
+
+  @Override
+  public String readCachedString() throws TException {
+    return readString(stringCache_ != null ? stringCache_ : TStringCache.getDefault());
+  }
+
+  private String readString(TStringCache cache) throws TException {
     int length = readVarint32();
 
     if (length == 0) {
       return "";
     }
 
-    try {
-      if (trans_.getBytesRemainingInBuffer() >= length) {
-        String str = new String(trans_.getBuffer(), trans_.getBufferPosition(), length, "UTF-8");
-        trans_.consumeBuffer(length);
-        return str;
-      } else {
-        return new String(readBinary(length), "UTF-8");
-      }
-    } catch (UnsupportedEncodingException e) {
-      throw new TException("UTF-8 not supported!");
+    if (trans_.getBytesRemainingInBuffer() >= length) {
+      byte[] buf = trans_.getBuffer();
+      int pos = trans_.getBufferPosition();
+      String str = cache == null ? TUtf8Codec.decode(buf, pos, length) : cache.get(buf, pos, length);
+      trans_.consumeBuffer(length);
+      return str;
+    }
+    ByteBuffer bb = byteBufferWithRemaining(length);
+    if (bb != null) {
+      return cache == null ? UTF8.decode(sliceOf(bb, length)).toString() : cache.get(bb, length);
+    } else if (cache == null) {
+      return TUtf8Codec.decode(readBinary(length), 0, length);
+    } else {
+      return cache.get(readBinary(length), 0, length);
     }
   }
 
@@ -637,6 +756,11 @@ public class TCompactProtocol extends TProtocol {
     int length = readVarint32();
     if (length == 0) return ByteBuffer.wrap(new byte[0]);
 
+    ByteBuffer bb = trans_.getBytesRemainingInBuffer() < 0 ? byteBufferWithRemaining(length) : null;
+    if (bb != null) {
+      return sliceOf(bb, length);
+    }
+
     byte[] buf = new byte[length];
     trans_.readAll(buf, 0, length);
     return ByteBuffer.wrap(buf);
@@ -727,6 +851,26 @@ public class TCompactProtocol extends TProtocol {
     return result;
   }
 
+  /**
+   * The transport's ByteBuffer, if it has one with at least len unread bytes
+   * in it. This is how direct buffers, which have no byte[] for the fast
+   * paths above, get read without copying.
+   */
+  private ByteBuffer byteBufferWithRemaining(int len) {
+    ByteBuffer bb = trans_.getByteBuffer();
+    return (bb != null && len >= 0 && bb.remaining() >= len) ? bb : null;
+  }
+
+  /**
+   * Consume the next len bytes of bb, returning them as a buffer of their own.
+   */
+  private ByteBuffer sliceOf(ByteBuffer bb, int len) {
+    ByteBuffer slice = bb.slice();
+    slice.limit(len);
+    bb.position(bb.position() + len);
+    return slice;
+  }
+
   //
   // encoding helpers
   //
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.protocol;
+
+/**
+ * The descriptors handed out by a protocol that reuses its descriptors. They
+ * are immutable like any others, but looked up by what they describe, so
+ * reading data of the same shape again hands out the same instances instead
+ * of allocating new ones. Each kind is kept in a small table indexed by a
+ * hash of its contents; a miss replaces whatever was in its slot.
+ *
+ * TMessages aren't cached, since every one carries a new seqid.
+ *
+ * Not thread safe, like the protocol it belongs to.
+ */
+final class TDescriptorCache {
+  // sizes of the tables, powers of two
+  private static final int FIELD_SLOTS = 256;
+  private static final int CONTAINER_SLOTS = 64;
+
+  private static final TField STOP = new TField("", TType.STOP, (short)0);
+
+  private final TField[] fields_ = new TField[FIELD_SLOTS];
+  private final TList[] lists_ = new TList[CONTAINER_SLOTS];
+  private final TSet[] sets_ = new TSet[CONTAINER_SLOTS];
+  private final TMap[] maps_ = new TMap[CONTAINER_SLOTS];
+
+  TField field(byte type, short id) {
+    if (type == TType.STOP) {
+      // ends every struct, so it's kept out of the way of real fields
+      return STOP;
+    }
+    // ids are mostly small and consecutive, so they get a slot each
+    int slot = (id + type * 17) & (FIELD_SLOTS - 1);
+    TField field = fields_[slot];
+    if (field == null || field.type != type || field.id != id) {
+      field = new TField("", type, id);
+      fields_[slot] = field;
+    }
+    return field;
+  }
+
+  TList list(byte elemType, int size) {
+    int slot = (size * 31 + elemType) & (CONTAINER_SLOTS - 1);
+    TList list = lists_[slot];
+    if (list == null || list.elemType != elemType || list.size != size) {
+      list = new TList(elemType, size);
+      lists_[slot] = list;
+    }
+    return list;
+  }
+
+  TSet set(byte elemType, int size) {
+    int slot = (size * 31 + elemType) & (CONTAINER_SLOTS - 1);
+    TSet set = sets_[slot];
+    if (set == null || set.elemType != elemType || set.size != size) {
+      set = new TSet(elemType, size);
+      sets_[slot] = set;
+    }
+    return set;
+  }
+
+  TMap map(byte keyType, byte valueType, int size) {
+    int slot = (size * 31 + keyType * 7 + valueType) & (CONTAINER_SLOTS - 1);
+    TMap map = maps_[slot];
+    if (map == null || map.keyType != keyType || map.valueType != valueType || map.size != size) {
+      map = new TMap(keyType, valueType, size);
+      maps_[slot] = map;
+    }
+    return map;
+  }
+}
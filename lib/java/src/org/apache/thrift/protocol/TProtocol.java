@@ -145,6 +145,16 @@ public abstract class TProtocol {
 
   public abstract String readString() throws TException;
 
+  /**
+   * Read a string whose values are expected to repeat a lot, such as a field
+   * annotated with java.string_cache. Equal values come back as the same
+   * String, shared through the default TStringCache unless the protocol has
+   * a cache of its own.
+   */
+  public String readCachedString() throws TException {
+    return TStringCache.getDefault().intern(readString());
+  }
+
   public abstract ByteBuffer readBinary() throws TException;
 
   /**
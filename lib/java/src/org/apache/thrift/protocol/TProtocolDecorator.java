@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.scheme.IScheme;
+
+/**
+ * A protocol that passes every call on to another protocol. Subclasses
+ * override the calls they want to observe or change, and call through to
+ * super for the rest.
+ */
+public abstract class TProtocolDecorator extends TProtocol {
+  private final TProtocol concreteProtocol;
+
+  protected TProtocolDecorator(TProtocol protocol) {
+    super(protocol.getTransport());
+    concreteProtocol = protocol;
+  }
+
+  public void writeMessageBegin(TMessage message) throws TException {
+    concreteProtocol.writeMessageBegin(message);
+  }
+
+  public void writeMessageEnd() throws TException {
+    concreteProtocol.writeMessageEnd();
+  }
+
+  public void writeStructBegin(TStruct struct) throws TException {
+    concreteProtocol.writeStructBegin(struct);
+  }
+
+  public void writeStructEnd() throws TException {
+    concreteProtocol.writeStructEnd();
+  }
+
+  public void writeFieldBegin(TField field) throws TException {
+    concreteProtocol.writeFieldBegin(field);
+  }
+
+  public void writeFieldEnd() throws TException {
+    concreteProtocol.writeFieldEnd();
+  }
+
+  public void writeFieldStop() throws TException {
+    concreteProtocol.writeFieldStop();
+  }
+
+  public void writeMapBegin(TMap map) throws TException {
+    concreteProtocol.writeMapBegin(map);
+  }
+
+  public void writeMapEnd() throws TException {
+    concreteProtocol.writeMapEnd();
+  }
+
+  public void writeListBegin(TList list) throws TException {
+    concreteProtocol.writeListBegin(list);
+  }
+
+  public void writeListEnd() throws TException {
+    concreteProtocol.writeListEnd();
+  }
+
+  public void writeSetBegin(TSet set) throws TException {
+    concreteProtocol.writeSetBegin(set);
+  }
+
+  public void writeSetEnd() throws TException {
+    concreteProtocol.writeSetEnd();
+  }
+
+  public void writeBool(boolean b) throws TException {
+    concreteProtocol.writeBool(b);
+  }
+
+  public void writeByte(byte b) throws TException {
+    concreteProtocol.writeByte(b);
+  }
+
+  public void writeI16(short i16) throws TException {
+    concreteProtocol.writeI16(i16);
+  }
+
+  public void writeI32(int i32) throws TException {
+    concreteProtocol.writeI32(i32);
+  }
+
+  public void writeI64(long i64) throws TException {
+    concreteProtocol.writeI64(i64);
+  }
+
+  public void writeDouble(double dub) throws TException {
+    concreteProtocol.writeDouble(dub);
+  }
+
+  public void writeString(String str) throws TException {
+    concreteProtocol.writeString(str);
+  }
+
+  public void writeBinary(ByteBuffer buf) throws TException {
+    concreteProtocol.writeBinary(buf);
+  }
+
+  public TMessage readMessageBegin() throws TException {
+    return concreteProtocol.readMessageBegin();
+  }
+
+  public void readMessageEnd() throws TException {
+    concreteProtocol.readMessageEnd();
+  }
+
+  public TStruct readStructBegin() throws TException {
+    return concreteProtocol.readStructBegin();
+  }
+
+  public void readStructEnd() throws TException {
+    concreteProtocol.readStructEnd();
+  }
+
+  public TField readFieldBegin() throws TException {
+    return concreteProtocol.readFieldBegin();
+  }
+
+  public void readFieldEnd() throws TException {
+    concreteProtocol.readFieldEnd();
+  }
+
+  public TMap readMapBegin() throws TException {
+    return concreteProtocol.readMapBegin();
+  }
+
+  public void readMapEnd() throws TException {
+    concreteProtocol.readMapEnd();
+  }
+
+  public TList readListBegin() throws TException {
+    return concreteProtocol.readListBegin();
+  }
+
+  public void readListEnd() throws TException {
+    concreteProtocol.readListEnd();
+  }
+
+  public TSet readSetBegin() throws TException {
+    return concreteProtocol.readSetBegin();
+  }
+
+  public void readSetEnd() throws TException {
+    concreteProtocol.readSetEnd();
+  }
+
+  public boolean readBool() throws TException {
+    return concreteProtocol.readBool();
+  }
+
+  public byte readByte() throws TException {
+    return concreteProtocol.readByte();
+  }
+
+  public short readI16() throws TException {
+    return concreteProtocol.readI16();
+  }
+
+  public int readI32() throws TException {
+    return concreteProtocol.readI32();
+  }
+
+  public long readI64() throws TException {
+    return concreteProtocol.readI64();
+  }
+
+  public double readDouble() throws TException {
+    return concreteProtocol.readDouble();
+  }
+
+  public String readString() throws TException {
+    return concreteProtocol.readString();
+  }
+
+  public String readCachedString() throws TException {
+    return concreteProtocol.readCachedString();
+  }
+
+  public ByteBuffer readBinary() throws TException {
+    return concreteProtocol.readBinary();
+  }
+
+  @Override
+  public void reset() {
+    concreteProtocol.reset();
+  }
+
+  // raw, as declared by TProtocol
+  @Override
+  @SuppressWarnings("rawtypes")
+  public Class<? extends IScheme> getScheme() {
+    return concreteProtocol.getScheme();
+  }
+}
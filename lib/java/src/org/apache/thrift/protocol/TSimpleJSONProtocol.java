@@ -212,12 +212,8 @@ public class TSimpleJSONProtocol extends TProtocol {
   }
 
   public void _writeStringData(String s) throws TException {
-    try {
-      byte[] b = s.getBytes("UTF-8");
-      trans_.write(b);
-    } catch (UnsupportedEncodingException uex) {
-      throw new TException("JVM DOES NOT SUPPORT UTF-8");
-    }
+    byte[] b = TUtf8Codec.encode(s);
+    trans_.write(b);
   }
 
   public void writeI64(long i64) throws TException {
@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded cache of decoded strings, keyed on their UTF-8 bytes. A string
+ * value that keeps coming back over the wire (a country code, a host name,
+ * an enum-like tag) is decoded once and the same String is handed out from
+ * then on, so a hit costs neither the decoding nor the allocation, and
+ * structs that are kept around share one copy of each value.
+ *
+ * The cache is a fixed-size table in which each byte sequence has exactly one
+ * slot, and a miss simply replaces whatever was in it. There are no locks:
+ * entries are immutable, so a reader sees either a whole entry or nothing,
+ * and two threads racing to fill a slot cost at most a later miss. Strings
+ * longer than maxLength bytes are never cached, which together with the
+ * capacity bounds the memory the cache holds.
+ *
+ * Protocols use a cache for every string they read once one is set on them
+ * (see TBinaryProtocol.setStringCache() and TCompactProtocol.setStringCache()),
+ * and for fields annotated with java.string_cache in the IDL even when not,
+ * through the shared default cache.
+ */
+public class TStringCache {
+  public static final int DEFAULT_CAPACITY = 4096;
+  public static final int DEFAULT_MAX_LENGTH = 64;
+
+  private static final TStringCache DEFAULT = new TStringCache();
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final class Entry {
+    final byte[] bytes;
+    final int hash;
+    final String value;
+
+    Entry(byte[] bytes, int hash, String value) {
+      this.bytes = bytes;
+      this.hash = hash;
+      this.value = value;
+    }
+  }
+
+  // not volatile: Entry's fields are final, so a racing reader can only see
+  // a fully built entry or an older one.
+  private final Entry[] entries;
+  private final int mask;
+  private final int maxLength;
+
+  private final StripedCounter hits = new StripedCounter();
+  private final StripedCounter misses = new StripedCounter();
+
+  /**
+   * Create a cache of DEFAULT_CAPACITY strings of up to DEFAULT_MAX_LENGTH
+   * bytes.
+   */
+  public TStringCache() {
+    this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+  }
+
+  /**
+   * @param capacity The number of slots. Rounded up to a power of two.
+   * @param maxLength The longest string, in UTF-8 bytes, that is cached.
+   */
+  public TStringCache(int capacity, int maxLength) {
+    if (capacity <= 0 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("Need 0 < capacity <= 2^30");
+    }
+    if (maxLength < 0) {
+      throw new IllegalArgumentException("maxLength must be non-negative");
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.entries = new Entry[size];
+    this.mask = size - 1;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * The cache shared by fields annotated with java.string_cache, when the
+   * protocol reading them has no cache of its own.
+   */
+  public static TStringCache getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Decode len bytes of UTF-8 starting at off, returning the cached String
+   * for them if there is one.
+   */
+  public String get(byte[] buf, int off, int len) {
+    if (len > maxLength) {
+      return TUtf8Codec.decode(buf, off, len);
+    }
+
+    int hash = hash(buf, off, len);
+    int slot = hash & mask;
+    Entry entry = entries[slot];
+    if (entry != null && entry.hash == hash && matches(entry.bytes, buf, off, len)) {
+      hits.increment();
+      return entry.value;
+    }
+
+    misses.increment();
+    byte[] bytes = new byte[len];
+    System.arraycopy(buf, off, bytes, 0, len);
+    String value = TUtf8Codec.decode(bytes, 0, len);
+    entries[slot] = new Entry(bytes, hash, value);
+    return value;
+  }
+
+  /**
+   * Decode the next len bytes of UTF-8 in buf, returning the cached String
+   * for them if there is one, and advance buf's position past them. The
+   * bytes are looked up where they are, so a hit copies nothing out of the
+   * buffer, which may be direct.
+   */
+  public String get(ByteBuffer buf, int len) {
+    int off = buf.position();
+    if (len > maxLength) {
+      ByteBuffer slice = buf.slice();
+      slice.limit(len);
+      buf.position(off + len);
+      return UTF8.decode(slice).toString();
+    }
+
+    int hash = hash(buf, off, len);
+    int slot = hash & mask;
+    Entry entry = entries[slot];
+    if (entry != null && entry.hash == hash && matches(entry.bytes, buf, off, len)) {
+      buf.position(off + len);
+      hits.increment();
+      return entry.value;
+    }
+
+    misses.increment();
+    byte[] bytes = new byte[len];
+    buf.get(bytes);
+    String value = TUtf8Codec.decode(bytes, 0, len);
+    entries[slot] = new Entry(bytes, hash, value);
+    return value;
+  }
+
+  /**
+   * Return the cached String equal to str, caching str if there is none.
+   * For protocols that only get at strings once they are decoded.
+   */
+  public String intern(String str) {
+    if (str.length() > maxLength) {
+      return str;
+    }
+    byte[] bytes = TUtf8Codec.encode(str);
+    if (bytes.length > maxLength) {
+      return str;
+    }
+
+    int hash = hash(bytes, 0, bytes.length);
+    int slot = hash & mask;
+    Entry entry = entries[slot];
+    if (entry != null && entry.hash == hash && matches(entry.bytes, bytes, 0, bytes.length)) {
+      hits.increment();
+      return entry.value;
+    }
+
+    misses.increment();
+    entries[slot] = new Entry(bytes, hash, str);
+    return str;
+  }
+
+  /**
+   * Number of lookups answered from the cache.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Number of lookups of cacheable strings that weren't in the cache.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Fraction of lookups of cacheable strings answered from the cache, or 0
+   * if there haven't been any.
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double)h / total;
+  }
+
+  /**
+   * A count spread over a few slots on separate cache lines, each thread
+   * counting in its own, so that the threads sharing a cache (all of them,
+   * for the default one) don't contend on a single counter.
+   */
+  private static final class StripedCounter {
+    private static final int STRIPES = 16;
+    // longs per slot; 64 bytes apart puts every slot on its own cache line
+    private static final int PAD = 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * PAD);
+
+    void increment() {
+      int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+      counts.incrementAndGet(stripe * PAD);
+    }
+
+    long get() {
+      long total = 0;
+      for (int i = 0; i < STRIPES; i++) {
+        total += counts.get(i * PAD);
+      }
+      return total;
+    }
+  }
+
+  private static int hash(byte[] buf, int off, int len) {
+    int h = len;
+    for (int i = off, end = off + len; i < end; i++) {
+      h = 31 * h + buf[i];
+    }
+    // spread the high bits down, since only the low ones pick the slot
+    return h ^ (h >>> 16);
+  }
+
+  // same as above, so that the byte[] and ByteBuffer paths share entries
+  private static int hash(ByteBuffer buf, int off, int len) {
+    int h = len;
+    for (int i = off, end = off + len; i < end; i++) {
+      h = 31 * h + buf.get(i);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean matches(byte[] bytes, byte[] buf, int off, int len) {
+    if (bytes.length != len) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (bytes[i] != buf[off + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matches(byte[] bytes, ByteBuffer buf, int off, int len) {
+    if (bytes.length != len) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (bytes[i] != buf.get(off + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.protocol;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * UTF-8 encoding and decoding of short Strings, for the protocols.
+ *
+ * String.getBytes("UTF-8") and new String(bytes, "UTF-8") look the charset up
+ * and set up a coder on every call, which is most of the cost for the short
+ * identifiers that make up most strings on the wire. Those are encoded here
+ * straight into the caller's buffer in one pass, and an all-ASCII one is
+ * decoded by copying its bytes. Decoding anything else is left to the JDK,
+ * whose decoder is as fast as a hand-written one and handles malformed input.
+ *
+ * Past MAX_INLINE_LENGTH the JDK takes over entirely, since newer JDKs check
+ * and copy ASCII with vector instructions and beat a byte at a time loop by a
+ * wide margin once there are enough bytes.
+ *
+ * Encoded output matches the JDK's: unpaired surrogates encode as '?'.
+ */
+final class TUtf8Codec {
+
+  /**
+   * Longest string, in chars to encode or bytes to decode, that is handled
+   * here rather than by the JDK.
+   */
+  static final int MAX_INLINE_LENGTH = 32;
+
+  /**
+   * Most bytes a single char can encode to. A surrogate pair takes four
+   * bytes, but that's two chars.
+   */
+  static final int MAX_BYTES_PER_CHAR = 3;
+
+  private TUtf8Codec() {}
+
+  /**
+   * The number of bytes encode() will produce for str.
+   */
+  static int encodedLength(String str) {
+    int len = str.length();
+    int n = len;
+    for (int i = 0; i < len; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        continue;
+      }
+      if (c < 0x800) {
+        n += 1;
+      } else if (!isSurrogate(c)) {
+        n += 2;
+      } else if (isHighSurrogate(c) && i + 1 < len && isLowSurrogate(str.charAt(i + 1))) {
+        // four bytes for the pair
+        n += 2;
+        i++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Encode str into dst starting at off. dst must have room for
+   * encodedLength(str) bytes, or for MAX_BYTES_PER_CHAR bytes per char when
+   * the length isn't known up front.
+   *
+   * @return the index just past the last byte written
+   */
+  static int encode(String str, byte[] dst, int off) {
+    int len = str.length();
+    int i = 0;
+    for (char c; i < len && (c = str.charAt(i)) < 0x80; i++) {
+      dst[off++] = (byte)c;
+    }
+    for (; i < len; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        dst[off++] = (byte)c;
+      } else if (c < 0x800) {
+        dst[off++] = (byte)(0xc0 | (c >> 6));
+        dst[off++] = (byte)(0x80 | (c & 0x3f));
+      } else if (!isSurrogate(c)) {
+        dst[off++] = (byte)(0xe0 | (c >> 12));
+        dst[off++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+        dst[off++] = (byte)(0x80 | (c & 0x3f));
+      } else if (isHighSurrogate(c) && i + 1 < len && isLowSurrogate(str.charAt(i + 1))) {
+        int cp = 0x10000 + ((c - 0xd800) << 10) + (str.charAt(++i) - 0xdc00);
+        dst[off++] = (byte)(0xf0 | (cp >> 18));
+        dst[off++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+        dst[off++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+        dst[off++] = (byte)(0x80 | (cp & 0x3f));
+      } else {
+        dst[off++] = '?';
+      }
+    }
+    return off;
+  }
+
+  /**
+   * Encode str into a new array.
+   */
+  static byte[] encode(String str) {
+    if (str.length() > MAX_INLINE_LENGTH) {
+      try {
+        return str.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException("JVM DOES NOT SUPPORT UTF-8");
+      }
+    }
+    byte[] bytes = new byte[encodedLength(str)];
+    encode(str, bytes, 0);
+    return bytes;
+  }
+
+  /**
+   * Decode len bytes of UTF-8 from src starting at off.
+   */
+  static String decode(byte[] src, int off, int len) {
+    if (len <= MAX_INLINE_LENGTH) {
+      int end = off + len;
+      int bits = 0;
+      for (int i = off; i < end; i++) {
+        bits |= src[i];
+      }
+      if (bits >= 0) {
+        // ASCII bytes are their own char values, so they can be copied as is
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+          chars[i] = (char)src[off + i];
+        }
+        return new String(chars);
+      }
+    }
+    try {
+      return new String(src, off, len, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("JVM DOES NOT SUPPORT UTF-8");
+    }
+  }
+
+  private static boolean isSurrogate(char c) {
+    return c >= 0xd800 && c <= 0xdfff;
+  }
+
+  private static boolean isHighSurrogate(char c) {
+    return c >= 0xd800 && c <= 0xdbff;
+  }
+
+  private static boolean isLowSurrogate(char c) {
+    return c >= 0xdc00 && c <= 0xdfff;
+  }
+}
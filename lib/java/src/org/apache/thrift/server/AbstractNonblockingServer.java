@@ -24,17 +24,34 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TAsyncProcessor;
 import org.apache.thrift.TByteArrayOutputStream;
 import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
 import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TByteBuffer;
 import org.apache.thrift.transport.TFramedTransport;
 import org.apache.thrift.transport.TIOStreamTransport;
-import org.apache.thrift.transport.TMemoryInputTransport;
 import org.apache.thrift.transport.TNonblockingServerTransport;
+import org.apache.thrift.transport.TNonblockingSocket;
 import org.apache.thrift.transport.TNonblockingTransport;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
@@ -50,28 +67,433 @@ public abstract class AbstractNonblockingServer extends TServer {
 
   public static abstract class AbstractNonblockingServerArgs<T extends AbstractNonblockingServerArgs<T>> extends AbstractServerArgs<T> {
     public long maxReadBufferBytes = Long.MAX_VALUE;
+    private long maxBufferBytesPerConnection = Long.MAX_VALUE;
+    private ByteBufferPool bufferPool = null;
+    private int pipelineDepth = 1;
+    private int idleTimeoutVal = 0;
+    private TimeUnit idleTimeoutUnit = TimeUnit.SECONDS;
+    private int readTimeoutVal = 0;
+    private TimeUnit readTimeoutUnit = TimeUnit.SECONDS;
+    private int queueDelayTargetVal = 0;
+    private TimeUnit queueDelayTargetUnit = TimeUnit.MILLISECONDS;
+    private int maxQueueDelayVal = 0;
+    private TimeUnit maxQueueDelayUnit = TimeUnit.MILLISECONDS;
+    private int stallThresholdVal = 0;
+    private TimeUnit stallThresholdUnit = TimeUnit.MILLISECONDS;
 
     public AbstractNonblockingServerArgs(TNonblockingServerTransport transport) {
       super(transport);
       transportFactory(new TFramedTransport.Factory());
     }
+
+    /**
+     * Recycle frame read buffers through the given pool instead of allocating
+     * a new buffer for every request. Note that a processor may hand out
+     * ByteBuffers that share the frame's memory (e.g. from
+     * TBinaryProtocol.readBinary()), so handlers used with a pool must not
+     * hold on to binary arguments after they return. For a TAsyncProcessor
+     * the frame is released once the handler has answered, or for oneway
+     * methods once it has been started, so asynchronous handlers that keep
+     * using binary arguments past that point must copy them.
+     */
+    public T bufferPool(ByteBufferPool bufferPool) {
+      this.bufferPool = bufferPool;
+      return self();
+    }
+
+    public ByteBufferPool getBufferPool() {
+      return bufferPool;
+    }
+
+    /**
+     * The number of requests a single connection may have outstanding at
+     * once. With a depth greater than 1, the server keeps reading frames off a
+     * connection while earlier ones are being processed, and requests from the
+     * same connection may be processed concurrently. Responses are still
+     * written in the order the requests arrived, unless the server supports
+     * and has been asked for out of order responses. The default of 1
+     * disables pipelining.
+     */
+    public T pipelineDepth(int pipelineDepth) {
+      this.pipelineDepth = pipelineDepth;
+      return self();
+    }
+
+    public int getPipelineDepth() {
+      return pipelineDepth;
+    }
+
+    /**
+     * The most memory a single connection may hold in request frames and
+     * responses at once. A pipelined connection that reaches it stops reading
+     * until some of its requests have been answered, and a frame bigger than
+     * this closes the connection. The default is no limit beyond
+     * maxReadBufferBytes.
+     */
+    public T maxBufferBytesPerConnection(long maxBufferBytesPerConnection) {
+      this.maxBufferBytesPerConnection = maxBufferBytesPerConnection;
+      return self();
+    }
+
+    public long getMaxBufferBytesPerConnection() {
+      return maxBufferBytesPerConnection;
+    }
+
+    public int getIdleTimeoutVal() {
+      return idleTimeoutVal;
+    }
+
+    /**
+     * Close connections that have been waiting for their next request for
+     * this long. A connection the server is still working for, or that is
+     * still sending a request, isn't idle. The default of 0 keeps idle
+     * connections open for good.
+     */
+    public T idleTimeoutVal(int idleTimeoutVal) {
+      this.idleTimeoutVal = idleTimeoutVal;
+      return self();
+    }
+
+    public TimeUnit getIdleTimeoutUnit() {
+      return idleTimeoutUnit;
+    }
+
+    public T idleTimeoutUnit(TimeUnit idleTimeoutUnit) {
+      this.idleTimeoutUnit = idleTimeoutUnit;
+      return self();
+    }
+
+    public int getReadTimeoutVal() {
+      return readTimeoutVal;
+    }
+
+    /**
+     * Close connections that take longer than this to send a whole frame,
+     * counting from its first byte. The default of 0 waits for as long as it
+     * takes.
+     */
+    public T readTimeoutVal(int readTimeoutVal) {
+      this.readTimeoutVal = readTimeoutVal;
+      return self();
+    }
+
+    public TimeUnit getReadTimeoutUnit() {
+      return readTimeoutUnit;
+    }
+
+    public T readTimeoutUnit(TimeUnit readTimeoutUnit) {
+      this.readTimeoutUnit = readTimeoutUnit;
+      return self();
+    }
+
+    public int getQueueDelayTargetVal() {
+      return queueDelayTargetVal;
+    }
+
+    /**
+     * How long requests may typically wait for a worker thread. Once even the
+     * shortest wait over a 100 ms interval exceeds this, the queue is taken
+     * to be overloaded, and requests that waited more than twice as long are
+     * answered with a TApplicationException instead of being processed,
+     * until the queue has drained. Short bursts are never shed. The default
+     * of 0 disables this. Has no effect on servers without worker threads.
+     */
+    public T queueDelayTargetVal(int queueDelayTargetVal) {
+      this.queueDelayTargetVal = queueDelayTargetVal;
+      return self();
+    }
+
+    public TimeUnit getQueueDelayTargetUnit() {
+      return queueDelayTargetUnit;
+    }
+
+    public T queueDelayTargetUnit(TimeUnit queueDelayTargetUnit) {
+      this.queueDelayTargetUnit = queueDelayTargetUnit;
+      return self();
+    }
+
+    public int getMaxQueueDelayVal() {
+      return maxQueueDelayVal;
+    }
+
+    /**
+     * Answer requests that waited longer than this for a worker thread with a
+     * TApplicationException instead of processing them, since their clients
+     * have likely timed out already. The default of 0 processes every request
+     * however long it waited. Has no effect on servers without worker
+     * threads.
+     */
+    public T maxQueueDelayVal(int maxQueueDelayVal) {
+      this.maxQueueDelayVal = maxQueueDelayVal;
+      return self();
+    }
+
+    public TimeUnit getMaxQueueDelayUnit() {
+      return maxQueueDelayUnit;
+    }
+
+    public T maxQueueDelayUnit(TimeUnit maxQueueDelayUnit) {
+      this.maxQueueDelayUnit = maxQueueDelayUnit;
+      return self();
+    }
+
+    public int getStallThresholdVal() {
+      return stallThresholdVal;
+    }
+
+    /**
+     * Watch the select threads, and report any that has been busy handling a
+     * single pass through its select loop for longer than this, e.g. because
+     * a handler running on it blocked. Every connection on a select thread
+     * waits while it's stalled. A stall is logged once, with the stuck
+     * thread's stack and the connection it was serving, and can be looked up
+     * through getLastSelectorStall(). The default of 0 disables the watchdog.
+     */
+    public T stallThresholdVal(int stallThresholdVal) {
+      this.stallThresholdVal = stallThresholdVal;
+      return self();
+    }
+
+    public TimeUnit getStallThresholdUnit() {
+      return stallThresholdUnit;
+    }
+
+    public T stallThresholdUnit(TimeUnit stallThresholdUnit) {
+      this.stallThresholdUnit = stallThresholdUnit;
+      return self();
+    }
   }
 
+  // how often the select threads look for timed out connections, and how many
+  // ticks their timer wheels have
+  private static final long TIMEOUT_TICK_MILLIS = 100;
+  private static final int TIMEOUT_WHEEL_SIZE = 512;
+
+  // the interval over which the queue delay target is checked
+  private static final long QUEUE_DELAY_INTERVAL_MILLIS = 100;
+
+  // how often drain() checks on the connections left, and how often it logs
+  // how many there are
+  private static final long DRAIN_POLL_MILLIS = 50;
+  private static final long DRAIN_REPORT_MILLIS = 1000;
+
   /**
    * The maximum amount of memory we will allocate to client IO buffers at a
    * time. Without this limit, the server will gladly allocate client buffers
-   * right into an out of memory exception, rather than waiting.
+   * right into an out of memory exception, rather than waiting. Both request
+   * frames and responses waiting to be written count towards it, but only
+   * reading is held back when it is reached.
    */
   private final long MAX_READ_BUFFER_BYTES;
 
   /**
-   * How many bytes are currently allocated to read buffers.
+   * The maximum amount of memory a single connection may hold in IO buffers.
+   */
+  private final long MAX_BUFFER_BYTES_PER_CONNECTION;
+
+  /**
+   * How many bytes are currently allocated to read and response buffers.
+   */
+  private final AtomicLong bufferBytesAllocated = new AtomicLong(0);
+
+  /**
+   * Connections that have read the size of their next frame but are waiting
+   * for memory to read the frame itself, first come first served. Guarded by
+   * its own lock.
+   */
+  private final LinkedList<FrameBuffer> memoryWaiters = new LinkedList<FrameBuffer>();
+
+  /**
+   * The size of memoryWaiters, readable without taking the lock.
+   */
+  private volatile int memoryWaiterCount = 0;
+
+  /**
+   * How many times a connection had to stop reading because the server was
+   * out of buffer memory, or because the connection was over its own limit.
+   */
+  private final AtomicLong throttledCount = new AtomicLong(0);
+  private final AtomicLong connectionThrottledCount = new AtomicLong(0);
+
+  /**
+   * Where frame read buffers come from and go back to. May be null, in which
+   * case every frame gets a freshly allocated buffer.
+   */
+  private final ByteBufferPool bufferPool;
+
+  /**
+   * How many requests a connection may have outstanding at once.
+   */
+  private final int pipelineDepth;
+
+  /**
+   * How long a connection may sit idle, and how long it may take to send a
+   * frame, in milliseconds. 0 means no limit.
+   */
+  private final long idleTimeoutMillis;
+  private final long readTimeoutMillis;
+
+  /**
+   * Decides which queued requests are turned away, or null if they're all
+   * processed.
+   */
+  private final QueueDelayController queueDelayController;
+
+  /**
+   * How long a select thread may be busy with one pass through its loop
+   * before it's reported as stalled, or 0 if nobody is watching.
+   */
+  private final long stallThresholdNanos;
+
+  /**
+   * Watches the select threads for stalls while the server is serving, or
+   * null if stallThresholdNanos is 0.
+   */
+  private StallWatchdog stallWatchdog;
+
+  /**
+   * Stalls detected so far, and the most recent one.
    */
-  private final AtomicLong readBufferBytesAllocated = new AtomicLong(0);
+  private final AtomicLong selectorStallCount = new AtomicLong(0);
+  private volatile SelectorStall lastSelectorStall = null;
 
-  public AbstractNonblockingServer(AbstractNonblockingServerArgs args) {
+  /**
+   * Whether the server is being drained: it takes no new connections, and
+   * closes each open one as soon as it's idle.
+   */
+  private volatile boolean draining_ = false;
+
+  public AbstractNonblockingServer(AbstractNonblockingServerArgs<?> args) {
     super(args);
+    if (args.pipelineDepth <= 0) {
+      throw new IllegalArgumentException("pipelineDepth must be positive.");
+    }
+    if (args.maxBufferBytesPerConnection <= 0) {
+      throw new IllegalArgumentException("maxBufferBytesPerConnection must be positive.");
+    }
+    if (args.idleTimeoutVal < 0 || args.readTimeoutVal < 0) {
+      throw new IllegalArgumentException("Timeouts must be non-negative.");
+    }
+    if (args.queueDelayTargetVal < 0 || args.maxQueueDelayVal < 0) {
+      throw new IllegalArgumentException("Queue delays must be non-negative.");
+    }
+    if (args.stallThresholdVal < 0) {
+      throw new IllegalArgumentException("stallThresholdVal must be non-negative.");
+    }
     MAX_READ_BUFFER_BYTES = args.maxReadBufferBytes;
+    MAX_BUFFER_BYTES_PER_CONNECTION = args.maxBufferBytesPerConnection;
+    bufferPool = args.bufferPool;
+    pipelineDepth = args.pipelineDepth;
+    idleTimeoutMillis = args.idleTimeoutUnit.toMillis(args.idleTimeoutVal);
+    readTimeoutMillis = args.readTimeoutUnit.toMillis(args.readTimeoutVal);
+    stallThresholdNanos = args.stallThresholdUnit.toNanos(args.stallThresholdVal);
+    if (args.queueDelayTargetVal > 0 || args.maxQueueDelayVal > 0) {
+      queueDelayController = new QueueDelayController(
+          args.queueDelayTargetUnit.toNanos(args.queueDelayTargetVal),
+          TimeUnit.MILLISECONDS.toNanos(QUEUE_DELAY_INTERVAL_MILLIS),
+          args.maxQueueDelayUnit.toNanos(args.maxQueueDelayVal));
+    } else {
+      queueDelayController = null;
+    }
+  }
+
+  /**
+   * The pool frame read buffers are recycled through, or null if frame buffers
+   * are not pooled.
+   */
+  public ByteBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * Number of bytes currently held in request frames and responses, across
+   * all connections.
+   */
+  public long getBufferBytesAllocated() {
+    return bufferBytesAllocated.get();
+  }
+
+  /**
+   * Number of connections currently waiting for buffer memory to free up
+   * before they read their next frame.
+   */
+  public int getMemoryWaiterCount() {
+    return memoryWaiterCount;
+  }
+
+  /**
+   * Number of times a connection had to wait for buffer memory because the
+   * server had maxReadBufferBytes in use.
+   */
+  public long getThrottledCount() {
+    return throttledCount.get();
+  }
+
+  /**
+   * Number of times a connection had to wait for some of its own requests to
+   * be answered because it had maxBufferBytesPerConnection in use.
+   */
+  public long getConnectionThrottledCount() {
+    return connectionThrottledCount.get();
+  }
+
+  /**
+   * Take bytes out of the server-wide budget, if they are available.
+   */
+  private boolean tryAllocateBufferBytes(long bytes) {
+    while (true) {
+      long allocated = bufferBytesAllocated.get();
+      if (allocated > MAX_READ_BUFFER_BYTES - bytes) {
+        return false;
+      }
+      if (bufferBytesAllocated.compareAndSet(allocated, allocated + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Give bytes back to the server-wide budget, and let waiting connections
+   * have them.
+   */
+  private void freeBufferBytes(long bytes) {
+    bufferBytesAllocated.addAndGet(-bytes);
+    if (memoryWaiterCount > 0) {
+      grantWaitingFrames();
+    }
+  }
+
+  /**
+   * Hand memory to the connections waiting for it, in the order they started
+   * waiting. Stops at the first one that doesn't fit, so that a connection
+   * waiting for a big frame isn't overtaken forever by smaller ones.
+   */
+  private void grantWaitingFrames() {
+    List<FrameBuffer> granted = null;
+    synchronized (memoryWaiters) {
+      while (!memoryWaiters.isEmpty()) {
+        FrameBuffer waiter = memoryWaiters.getFirst();
+        if (!tryAllocateBufferBytes(waiter.pendingFrameSize_)) {
+          break;
+        }
+        memoryWaiters.removeFirst();
+        waiter.waitingForMemory_ = false;
+        waiter.memoryGranted_ = true;
+        if (granted == null) {
+          granted = new ArrayList<FrameBuffer>();
+        }
+        granted.add(waiter);
+      }
+      memoryWaiterCount = memoryWaiters.size();
+    }
+    if (granted != null) {
+      // the select threads take it from here. this always goes through their
+      // queues, even from a select thread, since we may be in the middle of
+      // handling the very connection we're resuming.
+      for (FrameBuffer waiter : granted) {
+        waiter.selectThread_.requestSelectInterestChange(waiter);
+      }
+    }
   }
 
   /**
@@ -90,15 +512,93 @@ public abstract class AbstractNonblockingServer extends TServer {
 
     setServing(true);
 
+    if (stallThresholdNanos > 0) {
+      stallWatchdog = new StallWatchdog();
+      stallWatchdog.start();
+    }
+
     // this will block while we serve
     waitForShutdown();
 
+    if (stallWatchdog != null) {
+      stallWatchdog.shutdown();
+    }
+
     setServing(false);
 
     // do a little cleanup
     stopListening();
   }
 
+  /**
+   * Shut the server down without cutting off any call in flight. The server
+   * stops accepting connections and closes the idle ones right away. Every
+   * other connection is closed as soon as it is idle, once the request it is
+   * reading has been processed and all its responses have been written. Once
+   * no connections are left, or the timeout has passed, the server is
+   * stopped as by stop(). Blocks until then, logging how many connections
+   * are left every second.
+   *
+   * @return true if every connection was closed before the timeout
+   */
+  public boolean drain(long timeout, TimeUnit unit) {
+    long startNanos = System.nanoTime();
+    long deadlineNanos = startNanos + unit.toNanos(timeout);
+    draining_ = true;
+    stopListening();
+    LOGGER.info("Draining " + getOpenConnectionCount() + " connections");
+
+    int left;
+    long nextReportNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(DRAIN_REPORT_MILLIS);
+    while ((left = getOpenConnectionCount()) > 0) {
+      long nowNanos = System.nanoTime();
+      if (nowNanos >= deadlineNanos) {
+        LOGGER.warn("Gave up draining with " + left + " connections left");
+        break;
+      }
+      if (nowNanos >= nextReportNanos) {
+        LOGGER.info("Draining, " + left + " connections left");
+        nextReportNanos += TimeUnit.MILLISECONDS.toNanos(DRAIN_REPORT_MILLIS);
+      }
+      // the select threads look for idle connections each time they wake up
+      for (AbstractSelectThread thread : getSelectThreads()) {
+        thread.wakeupSelector();
+      }
+      try {
+        Thread.sleep(Math.min(DRAIN_POLL_MILLIS, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - nowNanos) + 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOGGER.warn("Interrupted while draining, with " + left + " connections left");
+        break;
+      }
+    }
+    if (left == 0) {
+      LOGGER.info("Drained all connections in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+    }
+    stop();
+    return left == 0;
+  }
+
+  /**
+   * Whether drain() has been called.
+   */
+  public boolean isDraining() {
+    return draining_;
+  }
+
+  /**
+   * Number of connections the server has open, summed over all select
+   * threads. While draining, this is how many are left.
+   */
+  public int getOpenConnectionCount() {
+    int total = 0;
+    for (AbstractSelectThread thread : getSelectThreads()) {
+      total += thread.getConnectionCount();
+    }
+    return total;
+  }
+
   /**
    * Starts any threads required for serving.
    * 
@@ -146,77 +646,491 @@ public abstract class AbstractNonblockingServer extends TServer {
   protected abstract boolean requestInvoke(FrameBuffer frameBuffer);
 
   /**
-   * An abstract thread that handles selecting on a set of transports and
-   * {@link FrameBuffer FrameBuffers} associated with selected keys
-   * corresponding to requests.
+   * Whether the method name of every request should be read as soon as its
+   * frame is complete, see FrameBuffer.getReadMethodName(). By default only
+   * the event listener needs them.
    */
-  protected abstract class AbstractSelectThread extends Thread {
-    protected final Selector selector;
+  protected boolean needsMethodNames() {
+    return eventListener_ != null;
+  }
+
+  /**
+   * Create the FrameBuffer that will manage a newly accepted connection.
+   */
+  protected FrameBuffer createFrameBuffer(final TNonblockingTransport trans,
+      final SelectionKey selectionKey,
+      final AbstractSelectThread selectThread) {
+    if (pipelineDepth > 1) {
+      return new PipelinedFrameBuffer(trans, selectionKey, selectThread, true);
+    }
+    return new FrameBuffer(trans, selectionKey, selectThread);
+  }
 
-    // List of FrameBuffers that want to change their selection interests.
-    protected final Set<FrameBuffer> selectInterestChanges = new HashSet<FrameBuffer>();
+  /**
+   * The threads running select loops for this server. Used to report selector
+   * loop metrics.
+   */
+  protected Collection<? extends AbstractSelectThread> getSelectThreads() {
+    return Collections.<AbstractSelectThread>emptyList();
+  }
 
-    public AbstractSelectThread() throws IOException {
-      this.selector = SelectorProvider.provider().openSelector();
+  /**
+   * Number of times the select threads were woken up by other threads to
+   * handle finished responses, summed over all select threads.
+   */
+  public long getSelectorWakeupCount() {
+    long total = 0;
+    for (AbstractSelectThread thread : getSelectThreads()) {
+      total += thread.getWakeupCount();
     }
+    return total;
+  }
 
-    /**
-     * If the selector is blocked, wake it up.
-     */
-    public void wakeupSelector() {
-      selector.wakeup();
+  /**
+   * Number of finished responses that didn't have to wake a select thread up,
+   * because a wakeup was already pending, summed over all select threads.
+   */
+  public long getSuppressedSelectorWakeupCount() {
+    long total = 0;
+    for (AbstractSelectThread thread : getSelectThreads()) {
+      total += thread.getSuppressedWakeupCount();
     }
+    return total;
+  }
 
-    /**
-     * Add FrameBuffer to the list of select interest changes and wake up the
-     * selector if it's blocked. When the select() call exits, it'll give the
-     * FrameBuffer a chance to change its interests.
-     */
-    public void requestSelectInterestChange(FrameBuffer frameBuffer) {
-      synchronized (selectInterestChanges) {
-        selectInterestChanges.add(frameBuffer);
-      }
-      // wakeup the selector, if it's currently blocked.
-      selector.wakeup();
+  /**
+   * Number of passes through the select loop, summed over all select threads.
+   */
+  public long getSelectLoopCount() {
+    long total = 0;
+    for (AbstractSelectThread thread : getSelectThreads()) {
+      total += thread.getSelectLoopCount();
     }
+    return total;
+  }
 
-    /**
-     * Check to see if there are any FrameBuffers that have switched their
-     * interest type from read to write or vice versa.
-     */
-    protected void processInterestChanges() {
-      synchronized (selectInterestChanges) {
-        for (FrameBuffer fb : selectInterestChanges) {
-          fb.changeSelectInterests();
-        }
-        selectInterestChanges.clear();
-      }
+  /**
+   * Number of select interest changes handled by the select loops, summed over
+   * all select threads.
+   */
+  public long getSelectInterestChangeCount() {
+    long total = 0;
+    for (AbstractSelectThread thread : getSelectThreads()) {
+      total += thread.getInterestChangeCount();
     }
+    return total;
+  }
 
-    /**
-     * Do the work required to read from a readable client. If the frame is
-     * fully read, then invoke the method call.
-     */
-    protected void handleRead(SelectionKey key) {
-      FrameBuffer buffer = (FrameBuffer) key.attachment();
-      if (!buffer.read()) {
-        cleanupSelectionKey(key);
-        return;
-      }
+  /**
+   * Number of requests that were answered with an error instead of being
+   * processed, because they waited too long for a worker thread.
+   */
+  public long getShedInvocationCount() {
+    return queueDelayController == null ? 0 : queueDelayController.getShedCount();
+  }
 
-      // if the buffer's frame read is complete, invoke the method.
-      if (buffer.isFrameFullyRead()) {
-        if (!requestInvoke(buffer)) {
-          cleanupSelectionKey(key);
-        }
-      }
+  /**
+   * Whether requests are currently waiting for worker threads for longer
+   * than the queue delay target.
+   */
+  public boolean isQueueOverloaded() {
+    return queueDelayController != null && queueDelayController.isOverloaded();
+  }
+
+  /**
+   * The shorter of the idle and read timeouts that are enabled.
+   */
+  private long shortestTimeoutMillis() {
+    if (idleTimeoutMillis > 0 && (readTimeoutMillis == 0 || idleTimeoutMillis < readTimeoutMillis)) {
+      return idleTimeoutMillis;
     }
+    return readTimeoutMillis;
+  }
 
-    /**
+  /**
+   * Number of connections closed for having been idle too long, summed over
+   * all select threads.
+   */
+  public long getIdleTimeoutCount() {
+    long total = 0;
+    for (AbstractSelectThread thread : getSelectThreads()) {
+      total += thread.getIdleTimeoutCount();
+    }
+    return total;
+  }
+
+  /**
+   * Number of connections closed for taking too long to send a frame, summed
+   * over all select threads.
+   */
+  public long getReadTimeoutCount() {
+    long total = 0;
+    for (AbstractSelectThread thread : getSelectThreads()) {
+      total += thread.getReadTimeoutCount();
+    }
+    return total;
+  }
+
+  /**
+   * Number of ready keys returned by select, summed over all select threads.
+   * Divided by getSelectLoopCount(), this gives how much work each pass
+   * through the select loops found on average.
+   */
+  public long getReadyKeyCount() {
+    long total = 0;
+    for (AbstractSelectThread thread : getSelectThreads()) {
+      total += thread.getReadyKeyCount();
+    }
+    return total;
+  }
+
+  /**
+   * How long the select threads were busy between returning from one select
+   * and entering the next, over all passes through their loops.
+   */
+  public LatencyHistogram getSelectLoopTimes() {
+    LatencyHistogram loopTimes = new LatencyHistogram();
+    for (AbstractSelectThread thread : getSelectThreads()) {
+      loopTimes.add(thread.getLoopTimes());
+    }
+    return loopTimes;
+  }
+
+  /**
+   * Number of times a select thread was found stalled by the watchdog.
+   * Always 0 unless a stall threshold is set.
+   */
+  public long getSelectorStallCount() {
+    return selectorStallCount.get();
+  }
+
+  /**
+   * The most recent stall the watchdog found, or null if there has been none.
+   */
+  public SelectorStall getLastSelectorStall() {
+    return lastSelectorStall;
+  }
+
+  /**
+   * An abstract thread that handles selecting on a set of transports and
+   * {@link FrameBuffer FrameBuffers} associated with selected keys
+   * corresponding to requests.
+   */
+  protected abstract class AbstractSelectThread extends Thread {
+    protected final Selector selector;
+
+    // FrameBuffers that want to change their selection interests. Filled by
+    // any thread, drained by this one. A FrameBuffer is only ever queued once
+    // at a time.
+    protected final Queue<FrameBuffer> selectInterestChanges = new ConcurrentLinkedQueue<FrameBuffer>();
+
+    // whether a wakeup has been issued that this thread hasn't reacted to yet.
+    // while one is pending, there's no point in waking the selector again.
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    // selector loop metrics
+    private final AtomicLong wakeupCount = new AtomicLong(0);
+    private final AtomicLong suppressedWakeupCount = new AtomicLong(0);
+    private volatile long selectLoopCount = 0;
+    private volatile long interestChangeCount = 0;
+
+    // connections managed by this thread, and the bytes they have moved
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+    private volatile long bytesTransferred = 0;
+
+    // the idle and read timeouts of this thread's connections, or null if
+    // neither is enabled. only touched from this thread.
+    private final HashedTimerWheel timeouts;
+
+    // the time as of the last select, which is close enough for timeouts
+    private long nowMillis;
+
+    // connections closed for timing out
+    private volatile long idleTimeoutCount = 0;
+    private volatile long readTimeoutCount = 0;
+
+    // when this thread last returned from select, or 0 while it's selecting.
+    // read by the stall watchdog.
+    private volatile long busySinceNanos = 0;
+
+    // the connection this thread is reading from or writing to, if the stall
+    // watchdog is running
+    private volatile FrameBuffer currentFrameBuffer = null;
+
+    // the busySinceNanos of the last stall reported, so each is only reported
+    // once. only touched by the stall watchdog.
+    private long reportedStallNanos = 0;
+
+    // time spent between selects, and the keys each select returned
+    private final LatencyHistogram loopTimes = new LatencyHistogram();
+    private volatile long readyKeyCount = 0;
+
+    public AbstractSelectThread() throws IOException {
+      this.selector = SelectorProvider.provider().openSelector();
+      this.nowMillis = System.currentTimeMillis();
+      if (idleTimeoutMillis > 0 || readTimeoutMillis > 0) {
+        this.timeouts = new HashedTimerWheel(TIMEOUT_TICK_MILLIS, TIMEOUT_WHEEL_SIZE, nowMillis);
+      } else {
+        this.timeouts = null;
+      }
+    }
+
+    /**
+     * If the selector is blocked, wake it up.
+     */
+    public void wakeupSelector() {
+      selector.wakeup();
+    }
+
+    /**
+     * Close the selector once the thread is done with it. Until then, a
+     * server socket registered with it can't really be closed, and would keep
+     * holding its port.
+     */
+    protected void closeSelector() {
+      try {
+        selector.close();
+      } catch (IOException e) {
+        LOGGER.warn("Got an IOException while closing selector!", e);
+      }
+    }
+
+    /**
+     * Add FrameBuffer to the list of select interest changes and wake up the
+     * selector if it's blocked. When the select() call exits, it'll give the
+     * FrameBuffer a chance to change its interests. Many responses finishing
+     * at about the same time cost only a single wakeup, and are all handled
+     * in the same pass through the select loop.
+     */
+    public void requestSelectInterestChange(FrameBuffer frameBuffer) {
+      if (frameBuffer.interestChangeQueued_.compareAndSet(false, true)) {
+        selectInterestChanges.offer(frameBuffer);
+      }
+      // wakeup the selector, if it's currently blocked and nobody else has
+      // done so already.
+      if (wakeupPending.compareAndSet(false, true)) {
+        wakeupCount.incrementAndGet();
+        selector.wakeup();
+      } else {
+        suppressedWakeupCount.incrementAndGet();
+      }
+    }
+
+    /**
+     * Check to see if there are any FrameBuffers that have switched their
+     * interest type from read to write or vice versa.
+     */
+    protected void processInterestChanges() {
+      // anything queued from here on needs a new wakeup to be noticed.
+      wakeupPending.set(false);
+      selectLoopCount++;
+
+      long changes = 0;
+      FrameBuffer fb;
+      while ((fb = selectInterestChanges.poll()) != null) {
+        // clear the flag first, so a change requested while we're handling
+        // this one queues the FrameBuffer again.
+        fb.interestChangeQueued_.set(false);
+        fb.changeSelectInterests();
+        changes++;
+      }
+      interestChangeCount += changes;
+    }
+
+    /**
+     * Wait for IO events, but no longer than until it's time to look for
+     * timed out connections again.
+     */
+    protected int selectUntilNextTimeout() throws IOException {
+      if (busySinceNanos != 0) {
+        loopTimes.record(System.nanoTime() - busySinceNanos);
+        busySinceNanos = 0;
+      }
+      int selected;
+      if (timeouts == null) {
+        selected = selector.select();
+      } else {
+        selected = selector.select(timeouts.millisToNextTick(System.currentTimeMillis()));
+      }
+      if (stallThresholdNanos > 0) {
+        currentFrameBuffer = null;
+      }
+      busySinceNanos = System.nanoTime();
+      readyKeyCount += selected;
+      nowMillis = System.currentTimeMillis();
+      return selected;
+    }
+
+    /**
+     * Called by the stall watchdog to report this thread if it has been busy
+     * with the current pass through its select loop for too long.
+     */
+    void checkForStall(long nowNanos) {
+      long busySince = busySinceNanos;
+      if (busySince == 0 || busySince == reportedStallNanos || nowNanos - busySince < stallThresholdNanos
+          || !isAlive()) {
+        return;
+      }
+      FrameBuffer frameBuffer = currentFrameBuffer;
+      StackTraceElement[] stack = getStackTrace();
+      if (busySinceNanos != busySince) {
+        // it got going again while we were looking
+        return;
+      }
+      reportedStallNanos = busySince;
+      SelectorStall stall = new SelectorStall(getName(), nowNanos - busySince,
+          frameBuffer == null ? null : frameBuffer.describe(), stack);
+      selectorStallCount.incrementAndGet();
+      lastSelectorStall = stall;
+      Throwable trace = new Throwable("Stack of " + getName());
+      trace.setStackTrace(stack);
+      LOGGER.warn(stall.toString(), trace);
+    }
+
+    /**
+     * While the server is draining, close the connections that are idle.
+     * Connections that are still busy are closed on a later pass, once they
+     * have finished.
+     */
+    protected void processDrain() {
+      if (!draining_) {
+        return;
+      }
+      // a connection whose next request arrived since the last select looks
+      // idle, but isn't. Those are left selected, for the next pass through
+      // the select loop to read.
+      try {
+        selector.selectNow();
+      } catch (IOException e) {
+        LOGGER.warn("Got an IOException while draining!", e);
+        return;
+      }
+      Set<SelectionKey> ready = selector.selectedKeys();
+      for (SelectionKey key : selector.keys()) {
+        Object attachment = key.attachment();
+        if (key.isValid() && !ready.contains(key)
+            && attachment instanceof FrameBuffer && ((FrameBuffer) attachment).isIdle()) {
+          cleanupSelectionKey(key);
+        }
+      }
+    }
+
+    /**
+     * Close the connections that have been idle for too long, or have taken
+     * too long to send a frame.
+     */
+    protected void processTimeouts() {
+      if (timeouts != null) {
+        nowMillis = System.currentTimeMillis();
+        timeouts.expire(nowMillis);
+      }
+    }
+
+    /**
+     * Number of connections closed for having been idle too long.
+     */
+    public long getIdleTimeoutCount() {
+      return idleTimeoutCount;
+    }
+
+    /**
+     * Number of connections closed for taking too long to send a frame.
+     */
+    public long getReadTimeoutCount() {
+      return readTimeoutCount;
+    }
+
+    /**
+     * Number of times another thread woke the selector up to hand it select
+     * interest changes.
+     */
+    public long getWakeupCount() {
+      return wakeupCount.get();
+    }
+
+    /**
+     * Number of select interest changes that didn't need to wake the selector
+     * up, because a wakeup was already pending.
+     */
+    public long getSuppressedWakeupCount() {
+      return suppressedWakeupCount.get();
+    }
+
+    /**
+     * Number of passes made through the select loop.
+     */
+    public long getSelectLoopCount() {
+      return selectLoopCount;
+    }
+
+    /**
+     * Number of select interest changes, such as finished responses, handled
+     * by the select loop. Divided by getSelectLoopCount(), this gives the
+     * number handled per pass.
+     */
+    public long getInterestChangeCount() {
+      return interestChangeCount;
+    }
+
+    /**
+     * Number of open connections this thread is managing.
+     */
+    public int getConnectionCount() {
+      return connectionCount.get();
+    }
+
+    /**
+     * Total bytes read from and written to this thread's connections.
+     */
+    public long getBytesTransferred() {
+      return bytesTransferred;
+    }
+
+    /**
+     * Number of ready keys returned by this thread's selects.
+     */
+    public long getReadyKeyCount() {
+      return readyKeyCount;
+    }
+
+    /**
+     * How long this thread was busy between returning from one select and
+     * entering the next.
+     */
+    public LatencyHistogram getLoopTimes() {
+      return loopTimes;
+    }
+
+    /**
+     * Do the work required to read from a readable client. If the frame is
+     * fully read, then invoke the method call.
+     */
+    protected void handleRead(SelectionKey key) {
+      FrameBuffer buffer = (FrameBuffer) key.attachment();
+      if (stallThresholdNanos > 0) {
+        currentFrameBuffer = buffer;
+      }
+      if (!buffer.read()) {
+        cleanupSelectionKey(key);
+        return;
+      }
+
+      // if the buffer's frame read is complete, invoke the method.
+      if (buffer.isFrameFullyRead()) {
+        if (!requestInvoke(buffer)) {
+          cleanupSelectionKey(key);
+        }
+      }
+    }
+
+    /**
      * Let a writable client get written, if there's data to be written.
      */
     protected void handleWrite(SelectionKey key) {
       FrameBuffer buffer = (FrameBuffer) key.attachment();
+      if (stallThresholdNanos > 0) {
+        currentFrameBuffer = buffer;
+      }
       if (!buffer.write()) {
         cleanupSelectionKey(key);
       }
@@ -237,10 +1151,117 @@ public abstract class AbstractNonblockingServer extends TServer {
     }
   } // SelectThread
 
+  /**
+   * Looks in on the select threads every so often, and reports those that have
+   * been stuck in the same pass through their select loop for longer than the
+   * stall threshold.
+   */
+  private class StallWatchdog extends Thread {
+    private volatile boolean stopped = false;
+
+    public StallWatchdog() {
+      super("AbstractNonblockingServer-watchdog");
+      setDaemon(true);
+    }
+
+    public void run() {
+      // look twice per threshold, so a stall is caught within 1.5 thresholds
+      long intervalMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(stallThresholdNanos / 2));
+      while (!stopped) {
+        try {
+          Thread.sleep(intervalMillis);
+        } catch (InterruptedException e) {
+          continue;
+        }
+        long nowNanos = System.nanoTime();
+        for (AbstractSelectThread thread : getSelectThreads()) {
+          thread.checkForStall(nowNanos);
+        }
+      }
+    }
+
+    public void shutdown() {
+      stopped = true;
+      interrupt();
+    }
+  } // StallWatchdog
+
+  /**
+   * A select thread that was found stuck in a single pass through its select
+   * loop, as seen by the stall watchdog.
+   */
+  public static class SelectorStall {
+    private final String threadName;
+    private final long stalledNanos;
+    private final String connection;
+    private final StackTraceElement[] stackTrace;
+
+    public SelectorStall(String threadName, long stalledNanos, String connection, StackTraceElement[] stackTrace) {
+      this.threadName = threadName;
+      this.stalledNanos = stalledNanos;
+      this.connection = connection;
+      this.stackTrace = stackTrace;
+    }
+
+    public String getThreadName() {
+      return threadName;
+    }
+
+    /**
+     * How long the thread had been busy when it was found.
+     */
+    public long getStalledNanos() {
+      return stalledNanos;
+    }
+
+    /**
+     * The connection the thread was last reading from or writing to in this
+     * pass, or null if it hadn't got to any.
+     */
+    public String getConnection() {
+      return connection;
+    }
+
+    /**
+     * Where the thread was stuck.
+     */
+    public StackTraceElement[] getStackTrace() {
+      return stackTrace;
+    }
+
+    @Override
+    public String toString() {
+      return threadName + " has been busy for " + TimeUnit.NANOSECONDS.toMillis(stalledNanos) + " ms"
+          + (connection == null ? "" : ", last serving " + connection);
+    }
+  }
+
+  /**
+   * When a call got to each stage, for the event listener. Only kept when
+   * there is one.
+   */
+  protected static class CallTimes {
+    // when the frame had been read, i.e. the call was ready to be invoked
+    final long frameReadNanos;
+    final long readNanos;
+
+    // the method the call is for, or null if it couldn't be read
+    String method;
+
+    // set by the invoker
+    long invokeStartNanos;
+    long responseReadyNanos;
+
+    CallTimes(long frameReadNanos, long readNanos) {
+      this.frameReadNanos = frameReadNanos;
+      this.readNanos = readNanos;
+    }
+  }
+
   /**
    * Possible states for the FrameBuffer state machine.
    */
-  private enum FrameBufferState {
+  protected enum FrameBufferState {
     // in the midst of reading the frame size off the wire
     READING_FRAME_SIZE,
     // reading the actual frame data now, but not all the way done yet
@@ -253,6 +1274,8 @@ public abstract class AbstractNonblockingServer extends TServer {
     WRITING,
     // another thread wants this framebuffer to go back to reading
     AWAITING_REGISTER_READ,
+    // read the frame size, but waiting for memory to read the frame into
+    AWAITING_FRAME_MEMORY,
     // we want our transport and selection key invalidated in the selector
     // thread
     AWAITING_CLOSE
@@ -266,30 +1289,96 @@ public abstract class AbstractNonblockingServer extends TServer {
    * read and write bits on the selection key for its client.
    */
   protected class FrameBuffer {
+    // response buffers that grew bigger than this are not kept around for the
+    // next request on this connection.
+    private static final int MAX_RETAINED_RESPONSE_BYTES = 64 * 1024;
+
     // the actual transport hooked up to the client.
     public final TNonblockingTransport trans_;
 
     // the SelectionKey that corresponds to our transport
-    private final SelectionKey selectionKey_;
+    protected final SelectionKey selectionKey_;
 
     // the SelectThread that owns the registration of our transport
-    private final AbstractSelectThread selectThread_;
+    protected final AbstractSelectThread selectThread_;
 
     // where in the process of reading/writing are we?
-    private FrameBufferState state_ = FrameBufferState.READING_FRAME_SIZE;
+    protected FrameBufferState state_ = FrameBufferState.READING_FRAME_SIZE;
 
     // the ByteBuffer we'll be using to write and read, depending on the state
-    private ByteBuffer buffer_;
+    protected ByteBuffer buffer_;
+
+    // reused for reading the size of every frame on this connection
+    private final ByteBuffer frameSizeBuffer_ = ByteBuffer.allocate(4);
+
+    // reused for handing every frame on this connection to the processor
+    private final TByteBuffer frameTrans_ = new TByteBuffer();
+
+    // reused for reading the method name of every frame on this connection,
+    // created the first time a name is needed
+    private TByteBuffer methodTrans_;
+    private TProtocol methodProt_;
+
+    // the method the frame that has just been read calls, if the server
+    // needs method names and the frame could be read
+    protected String readMethod_;
 
     private TByteArrayOutputStream response_;
 
+    // whether this FrameBuffer is waiting in its select thread's queue of
+    // select interest changes
+    private final AtomicBoolean interestChangeQueued_ = new AtomicBoolean(false);
+
+    // whether this FrameBuffer has stopped managing its connection, either
+    // because it was closed or because it was handed to another select thread
+    private boolean released_ = false;
+
+    // bytes of request frames and responses this connection holds against
+    // the server's buffer memory budget, or -1 once it has been closed and
+    // given everything back.
+    private final AtomicLong bytesHeld_ = new AtomicLong(0);
+
+    // while AWAITING_FRAME_MEMORY: the size of the frame to be read, whether
+    // we're in the server's queue of memory waiters, and whether memory has
+    // been set aside for the frame. the last two are guarded by the queue's
+    // lock.
+    private int pendingFrameSize_;
+    private boolean waitingForMemory_ = false;
+    private boolean memoryGranted_ = false;
+
+    // closes the connection when it has been idle or reading a frame for too
+    // long, or null if there are no timeouts. checks lazily against the
+    // times below instead of being moved on every read or write.
+    private final ConnectionTimeout timeout_;
+
+    // when data last moved on this connection, and when the frame being read
+    // started to arrive
+    protected long lastActivityMillis_;
+    private long frameStartMillis_;
+
+    // when the frame being read started to arrive, and the times of the call
+    // it holds once it has arrived, for the event listener. only kept when
+    // there is one.
+    private long frameStartNanos_;
+    protected CallTimes callTimes_;
+
     public FrameBuffer(final TNonblockingTransport trans,
         final SelectionKey selectionKey,
         final AbstractSelectThread selectThread) {
       trans_ = trans;
       selectionKey_ = selectionKey;
       selectThread_ = selectThread;
-      buffer_ = ByteBuffer.allocate(4);
+      buffer_ = frameSizeBuffer_;
+      selectThread_.connectionCount.incrementAndGet();
+      lastActivityMillis_ = selectThread_.nowMillis;
+      if (selectThread_.timeouts != null) {
+        // a new connection is idle. (subclasses aren't constructed yet, so
+        // don't ask isIdle().)
+        timeout_ = new ConnectionTimeout();
+        selectThread_.timeouts.schedule(timeout_, lastActivityMillis_ + shortestTimeoutMillis());
+      } else {
+        timeout_ = null;
+      }
     }
 
     /**
@@ -300,11 +1389,24 @@ public abstract class AbstractNonblockingServer extends TServer {
      *         closed
      */
     public boolean read() {
+      if (state_ == FrameBufferState.AWAITING_FRAME_MEMORY) {
+        // we stopped reading, so this is left over from an earlier select.
+        return true;
+      }
+
       if (state_ == FrameBufferState.READING_FRAME_SIZE) {
+        boolean frameStarted = buffer_.position() > 0;
+
         // try to read the frame size completely
         if (!internalRead()) {
           return false;
         }
+        if (!frameStarted) {
+          frameStartMillis_ = selectThread_.nowMillis;
+          if (eventListener_ != null) {
+            frameStartNanos_ = System.nanoTime();
+          }
+        }
 
         // if the frame size has been read completely, then prepare to read the
         // actual frame.
@@ -325,19 +1427,18 @@ public abstract class AbstractNonblockingServer extends TServer {
             return false;
           }
 
-          // if this frame will push us over the memory limit, then return.
-          // with luck, more memory will free up the next time around.
-          if (readBufferBytesAllocated.get() + frameSize > MAX_READ_BUFFER_BYTES) {
-            return true;
+          if (frameSize > MAX_BUFFER_BYTES_PER_CONNECTION) {
+            LOGGER.error("Read a frame size of " + frameSize
+                + ", which is bigger than the maximum allowable buffer size for one connection.");
+            return false;
           }
 
-          // increment the amount of memory allocated to read buffers
-          readBufferBytesAllocated.addAndGet(frameSize);
-
-          // reallocate the readbuffer as a frame-sized buffer
-          buffer_ = ByteBuffer.allocate(frameSize);
-
-          state_ = FrameBufferState.READING_FRAME;
+          // if this frame will push us over the memory limit, stop reading
+          // until enough memory has been freed up for it.
+          if (!reserveFrame(frameSize)) {
+            return true;
+          }
+          startFrameRead(frameSize);
         } else {
           // this skips the check of READING_FRAME state below, since we can't
           // possibly go on to that state if there's data left to be read at
@@ -361,6 +1462,13 @@ public abstract class AbstractNonblockingServer extends TServer {
           // get rid of the read select interests
           selectionKey_.interestOps(0);
           state_ = FrameBufferState.READ_FRAME_COMPLETE;
+          readMethod_ = needsMethodNames() ? readMethodName(buffer_) : null;
+          if (eventListener_ != null) {
+            long nowNanos = System.nanoTime();
+            callTimes_ = new CallTimes(nowNanos, nowNanos - frameStartNanos_);
+            callTimes_.method = readMethod_;
+            eventListener_.frameRead(trans_, buffer_.limit(), callTimes_.readNanos);
+          }
         }
 
         return true;
@@ -377,9 +1485,12 @@ public abstract class AbstractNonblockingServer extends TServer {
     public boolean write() {
       if (state_ == FrameBufferState.WRITING) {
         try {
-          if (trans_.write(buffer_) < 0) {
+          int written = trans_.write(buffer_);
+          if (written < 0) {
             return false;
           }
+          selectThread_.bytesTransferred += written;
+          lastActivityMillis_ = selectThread_.nowMillis;
         } catch (IOException e) {
           LOGGER.warn("Got an IOException during write!", e);
           return false;
@@ -387,6 +1498,8 @@ public abstract class AbstractNonblockingServer extends TServer {
 
         // we're done writing. now we need to switch back to reading.
         if (buffer_.remaining() == 0) {
+          freeBytes(buffer_.limit());
+          reportResponseWritten(callTimes_, buffer_.limit());
           prepareRead();
         }
         return true;
@@ -407,6 +1520,10 @@ public abstract class AbstractNonblockingServer extends TServer {
         state_ = FrameBufferState.WRITING;
       } else if (state_ == FrameBufferState.AWAITING_REGISTER_READ) {
         prepareRead();
+      } else if (state_ == FrameBufferState.AWAITING_FRAME_MEMORY) {
+        if (retryFrame()) {
+          selectionKey_.interestOps(SelectionKey.OP_READ);
+        }
       } else if (state_ == FrameBufferState.AWAITING_CLOSE) {
         close();
         selectionKey_.cancel();
@@ -419,25 +1536,120 @@ public abstract class AbstractNonblockingServer extends TServer {
      * Shut the connection down.
      */
     public void close() {
-      // if we're being closed due to an error, we might have allocated a
-      // buffer that we need to subtract for our memory accounting.
-      if (state_ == FrameBufferState.READING_FRAME || state_ == FrameBufferState.READ_FRAME_COMPLETE) {
-        readBufferBytesAllocated.addAndGet(-buffer_.array().length);
+      release();
+      // give back whatever memory we hold, including a frame that an invoker
+      // is still working on; it won't count it again when it's done.
+      long held = bytesHeld_.getAndSet(-1);
+      if (held > 0) {
+        freeBufferBytes(held);
+      }
+      if (held != -1 && eventListener_ != null) {
+        eventListener_.connectionClosed(trans_);
+      }
+      if (state_ == FrameBufferState.AWAITING_FRAME_MEMORY) {
+        cancelFrameWait();
+      }
+      // a complete frame may still be in use by an invoker thread, so only a
+      // partially read one can go back to the pool.
+      if (state_ == FrameBufferState.READING_FRAME) {
+        releaseFrame(buffer_);
       }
       trans_.close();
     }
 
     /**
-     * Check if this FrameBuffer has a full frame read.
+     * Check whether the connection is between requests: nothing has been read
+     * of the next frame, and there is nothing being processed or waiting to be
+     * written. Only meaningful on the select thread.
      */
-    public boolean isFrameFullyRead() {
-      return state_ == FrameBufferState.READ_FRAME_COMPLETE;
+    public boolean isIdle() {
+      return state_ == FrameBufferState.READING_FRAME_SIZE && buffer_.position() == 0;
     }
 
     /**
-     * After the processor has processed the invocation, whatever thread is
-     * managing invocations should call this method on this FrameBuffer so we
-     * know it's time to start trying to write again. Also, if it turns out that
+     * Stop managing this connection without closing it, so it can be handed
+     * over to another select thread. May only be called on the select thread,
+     * while isIdle().
+     */
+    public void detach() {
+      release();
+      selectionKey_.cancel();
+    }
+
+    private void release() {
+      if (!released_) {
+        released_ = true;
+        selectThread_.connectionCount.decrementAndGet();
+        if (timeout_ != null) {
+          selectThread_.timeouts.cancel(timeout_);
+        }
+      }
+    }
+
+    /**
+     * Whether a frame has started to arrive but hasn't been read completely.
+     */
+    private boolean isReadingFrame() {
+      return (state_ == FrameBufferState.READING_FRAME_SIZE && buffer_.position() > 0)
+          || state_ == FrameBufferState.READING_FRAME;
+    }
+
+    /**
+     * Closes the connection once it has been idle, or has been sending a
+     * frame, for too long. It isn't moved along on every read and write;
+     * instead, when it expires, it works out from the connection's state when
+     * it should really expire, and either closes the connection or schedules
+     * itself again.
+     */
+    private class ConnectionTimeout extends HashedTimerWheel.Timeout {
+      protected void expired(long nowMillis) {
+        if (idleTimeoutMillis > 0 && isIdle()
+            && lastActivityMillis_ + idleTimeoutMillis <= nowMillis) {
+          selectThread_.idleTimeoutCount++;
+          LOGGER.debug("Closing connection that has been idle for " + idleTimeoutMillis + " ms");
+        } else if (readTimeoutMillis > 0 && isReadingFrame()
+            && frameStartMillis_ + readTimeoutMillis <= nowMillis) {
+          selectThread_.readTimeoutCount++;
+          LOGGER.debug("Closing connection that took more than " + readTimeoutMillis + " ms to send a frame");
+        } else {
+          reschedule(nowMillis);
+          return;
+        }
+        close();
+        selectionKey_.cancel();
+      }
+
+      /**
+       * Schedule the next check for when the connection would time out if
+       * nothing happens on it in the meantime. A connection that is neither
+       * idle nor reading has nothing to time out for now, and is checked on
+       * again after the shortest timeout.
+       */
+      void reschedule(long nowMillis) {
+        long deadline = Long.MAX_VALUE;
+        if (idleTimeoutMillis > 0 && isIdle()) {
+          deadline = lastActivityMillis_ + idleTimeoutMillis;
+        } else if (readTimeoutMillis > 0 && isReadingFrame()) {
+          deadline = frameStartMillis_ + readTimeoutMillis;
+        }
+        if (deadline == Long.MAX_VALUE) {
+          deadline = nowMillis + shortestTimeoutMillis();
+        }
+        selectThread_.timeouts.schedule(this, deadline);
+      }
+    }
+
+    /**
+     * Check if this FrameBuffer has a full frame read.
+     */
+    public boolean isFrameFullyRead() {
+      return state_ == FrameBufferState.READ_FRAME_COMPLETE;
+    }
+
+    /**
+     * After the processor has processed the invocation, whatever thread is
+     * managing invocations should call this method on this FrameBuffer so we
+     * know it's time to start trying to write again. Also, if it turns out that
      * there actually isn't any data in the response buffer, we'll skip trying
      * to write and instead go back to reading.
      */
@@ -446,13 +1658,17 @@ public abstract class AbstractNonblockingServer extends TServer {
       // our read buffer count. we do this here as well as in close because
       // we'd like to free this read memory up as quickly as possible for other
       // clients.
-      readBufferBytesAllocated.addAndGet(-buffer_.array().length);
+      freeBytes(buffer_.limit());
+      releaseFrame(buffer_);
+      frameTrans_.clear();
 
       if (response_.len() == 0) {
         // go straight to reading again. this was probably an oneway method
         state_ = FrameBufferState.AWAITING_REGISTER_READ;
         buffer_ = null;
       } else {
+        // the response counts towards our memory use until it's written
+        holdBytes(response_.len());
         buffer_ = ByteBuffer.wrap(response_.get(), 0, response_.len());
 
         // set state that we're waiting to be switched to write. we do this
@@ -466,25 +1682,235 @@ public abstract class AbstractNonblockingServer extends TServer {
     }
 
     /**
-     * Actually invoke the method signified by this FrameBuffer.
+     * Actually invoke the method signified by this FrameBuffer. With a
+     * TAsyncProcessor, this may return before the call has completed.
      */
     public void invoke() {
-      TTransport inTrans = getInputTransport();
-      TProtocol inProt = inputProtocolFactory_.getProtocol(inTrans);
-      TProtocol outProt = outputProtocolFactory_.getProtocol(getOutputTransport());
+      reportInvokeStarted(callTimes_);
+      processFrame(getInputTransport(), getOutputTransport(), new AsyncMethodCallback<Void>() {
+        public void onComplete(Void response) {
+          reportInvokeFinished(callTimes_, true);
+          invokeFinished(true);
+        }
 
-      try {
-        processorFactory_.getProcessor(inTrans).process(inProt, outProt);
+        public void onError(Exception exception) {
+          reportInvokeFinished(callTimes_, false);
+          invokeFinished(false);
+        }
+      });
+    }
+
+    /**
+     * Invoke a frame that has been waiting queuedNanos for a worker thread,
+     * unless it has waited too long, in which case it is answered with an
+     * error instead.
+     */
+    public void invokeQueued(long queuedNanos) {
+      invokeQueued(null, queuedNanos);
+    }
+
+    /**
+     * Like invokeQueued(long), for the given call from getReadCall().
+     */
+    public void invokeQueued(PipelinedCall call, long queuedNanos) {
+      if (queueDelayController != null && queueDelayController.shouldShed(queuedNanos)) {
+        reject(call, "Server overloaded, request dropped after waiting "
+            + TimeUnit.NANOSECONDS.toMillis(queuedNanos) + " ms");
+      } else {
+        invoke(call);
+      }
+    }
+
+    /**
+     * Invoke the given call from getReadCall(). Connections with only one
+     * request in flight have no calls to tell apart, so this is invoke().
+     */
+    public void invoke(PipelinedCall call) {
+      invoke();
+    }
+
+    /**
+     * Reject the given call from getReadCall(), see reject(String).
+     */
+    public void reject(PipelinedCall call, String message) {
+      reject(message);
+    }
+
+    /**
+     * Answer the request with a TApplicationException carrying the given
+     * message, without processing it.
+     */
+    public void reject(String message) {
+      invokeFinished(rejectFrame(getInputTransport(), getOutputTransport(), message));
+    }
+
+    private void invokeFinished(boolean processed) {
+      if (processed) {
         responseReady();
         return;
+      }
+      // This will only be reached when there is a throwable. we're done with
+      // the frame either way; close() gives back the memory it took up.
+      releaseFrame(buffer_);
+      frameTrans_.clear();
+      state_ = FrameBufferState.AWAITING_CLOSE;
+      requestSelectInterestChange();
+    }
+
+    /**
+     * Run the processor over one frame, and call done once the response has
+     * been written, or done's onError() if the processor failed and the
+     * connection should be closed. A TAsyncProcessor is only started here,
+     * and done is called from whichever thread completes the call.
+     */
+    protected void processFrame(TTransport inTrans, TTransport outTrans, AsyncMethodCallback<Void> done) {
+      TProtocol inProt = inputProtocolFactory_.getProtocol(inTrans);
+      TProtocol outProt = outputProtocolFactory_.getProtocol(outTrans);
+
+      Exception failure;
+      try {
+        TProcessor processor = processorFactory_.getProcessor(inTrans);
+        if (processor instanceof TAsyncProcessor) {
+          ((TAsyncProcessor) processor).process(inProt, outProt, done);
+          return;
+        }
+        processor.process(inProt, outProt);
+        failure = null;
       } catch (TException te) {
         LOGGER.warn("Exception while invoking!", te);
+        failure = te;
       } catch (Throwable t) {
         LOGGER.error("Unexpected throwable while invoking!", t);
+        failure = new TException(t);
       }
-      // This will only be reached when there is a throwable.
-      state_ = FrameBufferState.AWAITING_CLOSE;
-      requestSelectInterestChange();
+      if (failure == null) {
+        done.onComplete(null);
+      } else {
+        done.onError(failure);
+      }
+    }
+
+    /**
+     * The name of the method the request that has just been read calls, e.g.
+     * to decide how to schedule it, or null if it couldn't be read or the
+     * server doesn't need method names. Only valid on the select thread,
+     * between a frame being read and its invocation being requested.
+     */
+    public String getReadMethodName() {
+      return readMethod_;
+    }
+
+    /**
+     * Read the method name out of a complete frame, leaving the frame as it
+     * was. The name is read once, on the select thread, when the frame is
+     * complete, and kept for everything that needs it.
+     */
+    private String readMethodName(ByteBuffer frame) {
+      if (methodProt_ == null) {
+        methodTrans_ = new TByteBuffer();
+        methodProt_ = inputProtocolFactory_.getProtocol(methodTrans_);
+      }
+      int position = frame.position();
+      frame.rewind();
+      methodTrans_.reset(frame);
+      try {
+        return methodProt_.readMessageBegin().name;
+      } catch (TException e) {
+        // leave it to the processor to complain
+        return null;
+      } finally {
+        methodTrans_.clear();
+        frame.position(position);
+      }
+    }
+
+    /**
+     * The call that has just been read, to have exactly that one invoked or
+     * rejected later even if the connection reads more requests in the
+     * meantime, or null if the connection only has one request in flight at a
+     * time. Only valid on the select thread, between a frame being read and
+     * its invocation being requested.
+     */
+    public PipelinedCall getReadCall() {
+      return null;
+    }
+
+    /**
+     * Tell the event listener that the call held by the given frame is about
+     * to be processed.
+     */
+    protected void reportInvokeStarted(CallTimes times) {
+      if (times == null) {
+        return;
+      }
+      times.invokeStartNanos = System.nanoTime();
+      eventListener_.invokeStarted(trans_, times.method, times.readNanos,
+          times.invokeStartNanos - times.frameReadNanos);
+    }
+
+    /**
+     * Tell the event listener that the processor is done with a call.
+     */
+    protected void reportInvokeFinished(CallTimes times, boolean success) {
+      if (times == null) {
+        return;
+      }
+      times.responseReadyNanos = System.nanoTime();
+      eventListener_.invokeFinished(trans_, times.method, times.responseReadyNanos - times.invokeStartNanos,
+          success);
+    }
+
+    /**
+     * Tell the event listener that the response to a call has been written.
+     */
+    protected void reportResponseWritten(CallTimes times, int bytes) {
+      if (times == null) {
+        return;
+      }
+      if (times.responseReadyNanos == 0) {
+        // turned away without being processed
+        times.responseReadyNanos = times.frameReadNanos;
+      }
+      eventListener_.responseWritten(trans_, times.method, bytes, System.nanoTime() - times.responseReadyNanos);
+    }
+
+    /**
+     * Who the client is and what this connection is doing, for logging.
+     */
+    public String describe() {
+      Object client = trans_;
+      if (trans_ instanceof TNonblockingSocket) {
+        client = ((TNonblockingSocket) trans_).getSocketChannel().socket().getRemoteSocketAddress();
+      }
+      return client + " (" + state_ + ")";
+    }
+
+    /**
+     * Write a TApplicationException in response to the request in a frame.
+     * Oneway requests get no response.
+     *
+     * @return true if the frame was answered, false if it couldn't be read
+     *         and the connection should be closed.
+     */
+    protected boolean rejectFrame(TTransport inTrans, TTransport outTrans, String message) {
+      TProtocol inProt = inputProtocolFactory_.getProtocol(inTrans);
+      TProtocol outProt = outputProtocolFactory_.getProtocol(outTrans);
+
+      try {
+        TMessage msg = inProt.readMessageBegin();
+        if (msg.type == TMessageType.ONEWAY) {
+          return true;
+        }
+        TApplicationException x = new TApplicationException(TApplicationException.INTERNAL_ERROR, message);
+        outProt.writeMessageBegin(new TMessage(msg.name, TMessageType.EXCEPTION, msg.seqid));
+        x.write(outProt);
+        outProt.writeMessageEnd();
+        outProt.getTransport().flush();
+        return true;
+      } catch (TException te) {
+        LOGGER.warn("Exception while rejecting!", te);
+      }
+      return false;
     }
 
     /**
@@ -492,17 +1918,52 @@ public abstract class AbstractNonblockingServer extends TServer {
      * the data it needs to handle an invocation.
      */
     private TTransport getInputTransport() {
-      return new TMemoryInputTransport(buffer_.array());
+      wrapFrame(buffer_, frameTrans_);
+      return frameTrans_;
+    }
+
+    /**
+     * Point a transport at the contents of a frame. This works for heap and
+     * direct buffers alike, so neither is copied.
+     */
+    protected void wrapFrame(ByteBuffer frame, TByteBuffer trans) {
+      ByteBuffer contents = frame.duplicate();
+      contents.rewind();
+      trans.reset(contents);
     }
 
     /**
      * Get the transport that should be used by the invoker for responding.
      */
     private TTransport getOutputTransport() {
-      response_ = new TByteArrayOutputStream();
+      if (response_ == null || response_.get().length > MAX_RETAINED_RESPONSE_BYTES) {
+        response_ = new TByteArrayOutputStream();
+      } else {
+        response_.reset();
+      }
       return outputTransportFactory_.getTransport(new TIOStreamTransport(response_));
     }
 
+    /**
+     * Get a buffer for a frame of the given size, from the pool if there is
+     * one.
+     */
+    protected ByteBuffer allocateFrame(int frameSize) {
+      if (bufferPool == null) {
+        return ByteBuffer.allocate(frameSize);
+      }
+      return bufferPool.acquire(frameSize);
+    }
+
+    /**
+     * Hand a frame buffer back to the pool, if there is one.
+     */
+    protected void releaseFrame(ByteBuffer frame) {
+      if (bufferPool != null && frame != frameSizeBuffer_) {
+        bufferPool.release(frame);
+      }
+    }
+
     /**
      * Perform a read into buffer.
      * 
@@ -511,9 +1972,12 @@ public abstract class AbstractNonblockingServer extends TServer {
      */
     private boolean internalRead() {
       try {
-        if (trans_.read(buffer_) < 0) {
+        int got = trans_.read(buffer_);
+        if (got < 0) {
           return false;
         }
+        selectThread_.bytesTransferred += got;
+        lastActivityMillis_ = selectThread_.nowMillis;
         return true;
       } catch (IOException e) {
         LOGGER.warn("Got an IOException in internalRead!", e);
@@ -530,7 +1994,172 @@ public abstract class AbstractNonblockingServer extends TServer {
       // we're in the select thread.
       selectionKey_.interestOps(SelectionKey.OP_READ);
       // get ready for another go-around
-      buffer_ = ByteBuffer.allocate(4);
+      startFrameSizeRead();
+    }
+
+    /**
+     * Set aside memory for a frame of the given size. If this connection is
+     * over its own limit, it stops reading until its outstanding requests have
+     * been answered. If the server is out of memory, it stops reading and
+     * queues up behind any other connections already waiting for memory, to
+     * be resumed through changeSelectInterests() once enough has been freed.
+     * Must be called on the select thread.
+     *
+     * @return true if the frame can be read right away
+     */
+    protected boolean reserveFrame(int frameSize) {
+      boolean retrying = state_ == FrameBufferState.AWAITING_FRAME_MEMORY;
+      pendingFrameSize_ = frameSize;
+      state_ = FrameBufferState.AWAITING_FRAME_MEMORY;
+
+      long held = bytesHeld_.get();
+      if (held > 0 && held + frameSize > MAX_BUFFER_BYTES_PER_CONNECTION) {
+        if (!retrying) {
+          connectionThrottledCount.incrementAndGet();
+        }
+        stopReading();
+        return false;
+      }
+
+      if (memoryWaiterCount == 0 && tryAllocateBufferBytes(frameSize)) {
+        return true;
+      }
+      synchronized (memoryWaiters) {
+        if (memoryWaiters.isEmpty() && tryAllocateBufferBytes(frameSize)) {
+          return true;
+        }
+        memoryWaiters.addLast(this);
+        memoryWaiterCount = memoryWaiters.size();
+        waitingForMemory_ = true;
+      }
+      throttledCount.incrementAndGet();
+      stopReading();
+      // memory may have been freed up between our failed attempt and joining
+      // the queue, by someone who saw the queue empty.
+      grantWaitingFrames();
+      return false;
+    }
+
+    /**
+     * Try again to get memory for the frame we're waiting on. Must be called
+     * on the select thread, while AWAITING_FRAME_MEMORY.
+     *
+     * @return true if the frame is now being read
+     */
+    protected boolean retryFrame() {
+      if (released_) {
+        return false;
+      }
+      boolean granted;
+      synchronized (memoryWaiters) {
+        if (waitingForMemory_) {
+          return false;
+        }
+        granted = memoryGranted_;
+        memoryGranted_ = false;
+      }
+      if (!granted && !reserveFrame(pendingFrameSize_)) {
+        return false;
+      }
+      startFrameRead(pendingFrameSize_);
+      return true;
+    }
+
+    /**
+     * Give up waiting for frame memory, handing it back if it has already been
+     * set aside for us.
+     */
+    private void cancelFrameWait() {
+      boolean granted;
+      synchronized (memoryWaiters) {
+        if (waitingForMemory_) {
+          memoryWaiters.remove(this);
+          memoryWaiterCount = memoryWaiters.size();
+          waitingForMemory_ = false;
+        }
+        granted = memoryGranted_;
+        memoryGranted_ = false;
+      }
+      if (granted) {
+        freeBufferBytes(pendingFrameSize_);
+      }
+    }
+
+    /**
+     * Start reading a frame whose memory has been set aside.
+     */
+    private void startFrameRead(int frameSize) {
+      if (!holdFrameBytes(frameSize)) {
+        // closed in the meantime
+        freeBufferBytes(frameSize);
+      }
+      buffer_ = allocateFrame(frameSize);
+      state_ = FrameBufferState.READING_FRAME;
+    }
+
+    /**
+     * Stop read events while waiting for memory. Write events are kept, since
+     * getting responses out is what frees memory up.
+     */
+    private void stopReading() {
+      if (selectionKey_.isValid()) {
+        selectionKey_.interestOps(selectionKey_.interestOps() & ~SelectionKey.OP_READ);
+      }
+    }
+
+    /**
+     * Count bytes that have already been taken from the server's budget as
+     * ours.
+     */
+    private boolean holdFrameBytes(long bytes) {
+      while (true) {
+        long held = bytesHeld_.get();
+        if (held < 0) {
+          return false;
+        }
+        if (bytesHeld_.compareAndSet(held, held + bytes)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Count bytes as ours and as allocated from the server's budget, whether
+     * or not that takes the server over it. Used for responses, which exist
+     * by the time we find out about them.
+     */
+    protected void holdBytes(long bytes) {
+      if (holdFrameBytes(bytes)) {
+        bufferBytesAllocated.addAndGet(bytes);
+      }
+    }
+
+    /**
+     * Give back bytes we hold. Does nothing once we have been closed, since
+     * close() gives back everything at once.
+     */
+    protected void freeBytes(long bytes) {
+      while (true) {
+        long held = bytesHeld_.get();
+        if (held < 0) {
+          return;
+        }
+        long freed = Math.min(held, bytes);
+        if (bytesHeld_.compareAndSet(held, held - freed)) {
+          if (freed > 0) {
+            freeBufferBytes(freed);
+          }
+          return;
+        }
+      }
+    }
+
+    /**
+     * Get ready to read the size of the next frame.
+     */
+    protected void startFrameSizeRead() {
+      frameSizeBuffer_.clear();
+      buffer_ = frameSizeBuffer_;
       state_ = FrameBufferState.READING_FRAME_SIZE;
     }
 
@@ -541,7 +2170,7 @@ public abstract class AbstractNonblockingServer extends TServer {
      * current thread is this FrameBuffer's select thread, then it just does the
      * interest change immediately.
      */
-    private void requestSelectInterestChange() {
+    protected void requestSelectInterestChange() {
       if (Thread.currentThread() == this.selectThread_) {
         changeSelectInterests();
       } else {
@@ -549,4 +2178,282 @@ public abstract class AbstractNonblockingServer extends TServer {
       }
     }
   } // FrameBuffer
+
+  /**
+   * A request read off a pipelined connection, along with its response once
+   * it has been processed.
+   */
+  protected static class PipelinedCall {
+    // the frame data; only valid until the call has been processed
+    final ByteBuffer frame;
+
+    // the serialized response, set before done is
+    ByteBuffer response;
+
+    // whether the call has been processed
+    volatile boolean done = false;
+
+    // the method the call is for, if the server needs method names
+    final String method;
+
+    // for the event listener, if there is one
+    final CallTimes times;
+
+    PipelinedCall(ByteBuffer frame, String method, CallTimes times) {
+      this.frame = frame;
+      this.method = method;
+      this.times = times;
+    }
+  }
+
+  /**
+   * A FrameBuffer that keeps reading frames off its connection while earlier
+   * ones are still being processed, up to pipelineDepth outstanding requests.
+   * Every frame is handed to the invoker as soon as it has been read, so
+   * several requests from one connection may be processed at the same time.
+   * Responses are either written in the order the requests arrived, or as
+   * soon as each one is ready, leaving it to the client to match them up by
+   * seqid.
+   */
+  protected class PipelinedFrameBuffer extends FrameBuffer {
+    // whether responses must go out in request order
+    private final boolean ordered_;
+
+    // calls that have been read but not yet picked up by an invoker
+    private final Queue<PipelinedCall> pendingInvokes_ = new ConcurrentLinkedQueue<PipelinedCall>();
+
+    // calls that have been read but not yet answered, in arrival order. only
+    // touched from the select thread.
+    private final LinkedList<PipelinedCall> calls_ = new LinkedList<PipelinedCall>();
+
+    // the call whose response is currently being written
+    private PipelinedCall writing_ = null;
+
+    // whether the last call to read() completed a frame
+    private boolean frameReady_ = false;
+
+    // set by an invoker when processing failed and the connection must close
+    private volatile boolean closeRequested_ = false;
+
+    public PipelinedFrameBuffer(final TNonblockingTransport trans,
+        final SelectionKey selectionKey,
+        final AbstractSelectThread selectThread,
+        final boolean ordered) {
+      super(trans, selectionKey, selectThread);
+      ordered_ = ordered;
+    }
+
+    /**
+     * Read from the connection. Once a frame is complete it is queued for
+     * invocation, and we go straight on to reading the next frame unless this
+     * connection already has as many requests outstanding as it may.
+     */
+    @Override
+    public boolean read() {
+      frameReady_ = false;
+      if (!super.read()) {
+        return false;
+      }
+
+      if (state_ == FrameBufferState.READ_FRAME_COMPLETE) {
+        PipelinedCall call = new PipelinedCall(buffer_, readMethod_, callTimes_);
+        calls_.add(call);
+        pendingInvokes_.add(call);
+        startFrameSizeRead();
+        frameReady_ = true;
+        updateSelectInterests();
+      }
+      return true;
+    }
+
+    /**
+     * Check if the last read completed a frame.
+     */
+    @Override
+    public boolean isFrameFullyRead() {
+      return frameReady_;
+    }
+
+    @Override
+    public String getReadMethodName() {
+      return calls_.getLast().method;
+    }
+
+    @Override
+    public PipelinedCall getReadCall() {
+      return calls_.getLast();
+    }
+
+    /**
+     * Write out as much of the next ready response as the connection takes.
+     */
+    @Override
+    public boolean write() {
+      if (writing_ == null) {
+        writing_ = nextResponse();
+        if (writing_ == null) {
+          updateSelectInterests();
+          return true;
+        }
+      }
+
+      try {
+        int written = trans_.write(writing_.response);
+        if (written < 0) {
+          return false;
+        }
+        selectThread_.bytesTransferred += written;
+        lastActivityMillis_ = selectThread_.nowMillis;
+      } catch (IOException e) {
+        LOGGER.warn("Got an IOException during write!", e);
+        return false;
+      }
+
+      if (writing_.response.remaining() == 0) {
+        freeBytes(writing_.response.limit());
+        reportResponseWritten(writing_.times, writing_.response.limit());
+        calls_.remove(writing_);
+        writing_ = null;
+        updateSelectInterests();
+      }
+      return true;
+    }
+
+    @Override
+    public boolean isIdle() {
+      return calls_.isEmpty() && writing_ == null && super.isIdle();
+    }
+
+    @Override
+    public void changeSelectInterests() {
+      if (closeRequested_) {
+        close();
+        selectionKey_.cancel();
+        return;
+      }
+      updateSelectInterests();
+    }
+
+    /**
+     * Process the oldest call that no invoker has picked up yet.
+     */
+    @Override
+    public void invoke() {
+      handleCall(pendingInvokes_.poll(), null);
+    }
+
+    @Override
+    public void invoke(PipelinedCall call) {
+      handleCall(pendingInvokes_.remove(call) ? call : null, null);
+    }
+
+    /**
+     * Answer the oldest call that no invoker has picked up yet with an error.
+     */
+    @Override
+    public void reject(String message) {
+      handleCall(pendingInvokes_.poll(), message);
+    }
+
+    @Override
+    public void reject(PipelinedCall call, String message) {
+      handleCall(pendingInvokes_.remove(call) ? call : null, message);
+    }
+
+    /**
+     * Process a call that has just been taken off pendingInvokes_, or reject
+     * it with the given message if there is one.
+     */
+    private void handleCall(final PipelinedCall call, String rejectMessage) {
+      if (call == null) {
+        LOGGER.error("invoke was called, but there is no frame to process");
+        return;
+      }
+
+      TByteBuffer inTrans = new TByteBuffer();
+      wrapFrame(call.frame, inTrans);
+      final TByteArrayOutputStream response = new TByteArrayOutputStream();
+      TTransport outTrans = outputTransportFactory_.getTransport(new TIOStreamTransport(response));
+      if (rejectMessage != null) {
+        callFinished(call, response, rejectFrame(inTrans, outTrans, rejectMessage));
+        return;
+      }
+      reportInvokeStarted(call.times);
+      processFrame(inTrans, outTrans, new AsyncMethodCallback<Void>() {
+        public void onComplete(Void result) {
+          reportInvokeFinished(call.times, true);
+          callFinished(call, response, true);
+        }
+
+        public void onError(Exception exception) {
+          reportInvokeFinished(call.times, false);
+          callFinished(call, response, false);
+        }
+      });
+    }
+
+    /**
+     * Hand the response to a call back to the select thread.
+     */
+    private void callFinished(PipelinedCall call, TByteArrayOutputStream response, boolean processed) {
+      // the frame is not needed anymore, so free its memory up right away.
+      freeBytes(call.frame.limit());
+      releaseFrame(call.frame);
+
+      if (processed) {
+        holdBytes(response.len());
+        call.response = ByteBuffer.wrap(response.get(), 0, response.len());
+        call.done = true;
+      } else {
+        closeRequested_ = true;
+      }
+      requestSelectInterestChange();
+    }
+
+    /**
+     * Find the next response that may be written, forgetting about calls that
+     * completed without one (oneway methods) on the way.
+     */
+    private PipelinedCall nextResponse() {
+      Iterator<PipelinedCall> it = calls_.iterator();
+      while (it.hasNext()) {
+        PipelinedCall call = it.next();
+        if (!call.done) {
+          if (ordered_) {
+            return null;
+          }
+          continue;
+        }
+        if (call.response.remaining() == 0) {
+          it.remove();
+          continue;
+        }
+        return call;
+      }
+      return null;
+    }
+
+    /**
+     * Read while there is room for more outstanding requests, and write while
+     * there are responses ready to go.
+     */
+    private void updateSelectInterests() {
+      if (!selectionKey_.isValid()) {
+        return;
+      }
+      // a call may have finished that frees up the memory we're waiting on
+      if (state_ == FrameBufferState.AWAITING_FRAME_MEMORY && !retryFrame()) {
+        selectionKey_.interestOps(writing_ != null || nextResponse() != null ? SelectionKey.OP_WRITE : 0);
+        return;
+      }
+      int ops = 0;
+      if (writing_ != null || nextResponse() != null) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+      if (calls_.size() < pipelineDepth) {
+        ops |= SelectionKey.OP_READ;
+      }
+      selectionKey_.interestOps(ops);
+    }
+  } // PipelinedFrameBuffer
 }
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolDecorator;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Tells a TServerEventListener about the calls on one connection of a blocking
+ * server. The request is taken to start arriving once the first read for it
+ * returns data, so the time spent waiting for the client to send it doesn't
+ * count, but reading its message header does. The handler is taken to be done
+ * once the processor starts writing the response.
+ *
+ * The connection's transports have to be built on getTransport() for the
+ * reporter to see the reads.
+ *
+ * Not thread safe; belongs to the thread serving the connection.
+ */
+class BlockingCallReporter {
+  private final TServerEventListener listener;
+  private final TTransport connection;
+  private final TTransport transport;
+  private TProtocol inputProtocol;
+  private TProtocol outputProtocol;
+
+  // the call being processed, or null between calls
+  private String method;
+  // when the first bytes of the next request arrived, or 0 if none have yet
+  private long readStartNanos;
+  private long invokeStartNanos;
+  private long writeStartNanos;
+
+  // whether the request has been read, but the response not started yet
+  private boolean invoking;
+
+  public BlockingCallReporter(TServerEventListener listener, TTransport connection) {
+    this.listener = listener;
+    this.connection = connection;
+    this.transport = new ArrivalTransport(connection);
+  }
+
+  /**
+   * The connection, wrapped to notice when requests start arriving.
+   */
+  public TTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Have the processor process the next call on the connection, telling the
+   * listener about it along the way. The protocols must be the same for every
+   * call.
+   */
+  public boolean process(TProcessor processor, TProtocol in, TProtocol out) throws TException {
+    if (inputProtocol == null) {
+      decorate(in, out);
+    }
+    method = null;
+    invoking = false;
+    writeStartNanos = 0;
+    boolean success = false;
+    try {
+      boolean result = processor.process(inputProtocol, outputProtocol);
+      success = true;
+      return result;
+    } finally {
+      if (method != null) {
+        long nowNanos = System.nanoTime();
+        if (invoking) {
+          // a oneway call, or the processor failed before it got to answer
+          listener.invokeFinished(connection, method, nowNanos - invokeStartNanos, success);
+        } else if (writeStartNanos != 0 && success) {
+          listener.responseWritten(connection, method, -1, nowNanos - writeStartNanos);
+        }
+      }
+    }
+  }
+
+  private void decorate(TProtocol in, TProtocol out) {
+    inputProtocol = new TProtocolDecorator(in) {
+      public TMessage readMessageBegin() throws TException {
+        long beginNanos = System.nanoTime();
+        TMessage message = super.readMessageBegin();
+        method = message.name;
+        if (readStartNanos == 0) {
+          // the request had already been read ahead along with an earlier one
+          readStartNanos = beginNanos;
+        }
+        return message;
+      }
+
+      public void readMessageEnd() throws TException {
+        super.readMessageEnd();
+        invokeStartNanos = System.nanoTime();
+        long readNanos = invokeStartNanos - readStartNanos;
+        // whatever arrives from now on belongs to the next request
+        readStartNanos = 0;
+        listener.frameRead(connection, -1, readNanos);
+        listener.invokeStarted(connection, method, readNanos, 0);
+        invoking = true;
+      }
+    };
+    outputProtocol = new TProtocolDecorator(out) {
+      public void writeMessageBegin(TMessage message) throws TException {
+        if (invoking) {
+          invoking = false;
+          writeStartNanos = System.nanoTime();
+          listener.invokeFinished(connection, method, writeStartNanos - invokeStartNanos, true);
+        }
+        super.writeMessageBegin(message);
+      }
+    };
+  }
+
+  /**
+   * Notes when the first read after a request returns data.
+   */
+  private class ArrivalTransport extends TTransport {
+    private final TTransport transport_;
+
+    public ArrivalTransport(TTransport transport) {
+      transport_ = transport;
+    }
+
+    public boolean isOpen() {
+      return transport_.isOpen();
+    }
+
+    public boolean peek() {
+      return transport_.peek();
+    }
+
+    public void open() throws TTransportException {
+      transport_.open();
+    }
+
+    public void close() {
+      transport_.close();
+    }
+
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+      int got = transport_.read(buf, off, len);
+      if (got > 0 && readStartNanos == 0) {
+        readStartNanos = System.nanoTime();
+      }
+      return got;
+    }
+
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+      transport_.write(buf, off, len);
+    }
+
+    public void flush() throws TTransportException {
+      transport_.flush();
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A source of recyclable ByteBuffers for the frame data read by the
+ * nonblocking servers. Buffers are acquired on a selector thread when a frame
+ * header has been read, and released, possibly from a worker thread, once the
+ * invocation for that frame has completed. Implementations must therefore be
+ * thread safe.
+ */
+public interface ByteBufferPool {
+
+  /**
+   * Get a buffer able to hold at least size bytes. The returned buffer has its
+   * position set to 0 and its limit set to size, but its capacity may be
+   * larger.
+   */
+  public ByteBuffer acquire(int size);
+
+  /**
+   * Hand a buffer previously obtained from acquire() back to the pool. The
+   * caller must not touch the buffer afterwards.
+   */
+  public void release(ByteBuffer buffer);
+}
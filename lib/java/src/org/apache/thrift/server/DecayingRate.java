@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+/**
+ * How fast an ever growing count, such as bytes transferred, goes up, in
+ * units per second. This is an exponentially weighted moving average: each
+ * sample folds in the rate since the previous one, weighted by how long ago
+ * that was relative to the decay time. Old traffic fades out smoothly rather
+ * than being forgotten all at once at the end of a fixed window, so a burst
+ * right before the window rolled over doesn't dominate the next interval and
+ * a thread that has gone quiet decays towards 0 instead of keeping its last
+ * reading.
+ *
+ * Samples must be taken by one thread; the rate may be read from any.
+ */
+class DecayingRate {
+  private final double decayMillis;
+
+  // the last sample, replaced as a whole so readers see a consistent one
+  private volatile Sample last;
+
+  private static class Sample {
+    final long millis;
+    final long count;
+    final double rate;
+
+    Sample(long millis, long count, double rate) {
+      this.millis = millis;
+      this.count = count;
+      this.rate = rate;
+    }
+  }
+
+  /**
+   * @param decayMillis How long it takes for the weight of past traffic to
+   * fall to 1/e.
+   * @param nowMillis The current time.
+   * @param count The count at that time.
+   */
+  public DecayingRate(long decayMillis, long nowMillis, long count) {
+    if (decayMillis <= 0) {
+      throw new IllegalArgumentException("decayMillis must be positive.");
+    }
+    this.decayMillis = decayMillis;
+    this.last = new Sample(nowMillis, count, 0);
+  }
+
+  /**
+   * Fold the count at the given time into the average.
+   */
+  public void sample(long nowMillis, long count) {
+    Sample sample = last;
+    if (nowMillis > sample.millis) {
+      last = new Sample(nowMillis, count, estimate(sample, nowMillis, count));
+    }
+  }
+
+  /**
+   * The average rate as of the given time, counting what happened since the
+   * last sample without recording it.
+   */
+  public double get(long nowMillis, long count) {
+    Sample sample = last;
+    if (nowMillis <= sample.millis) {
+      return sample.rate;
+    }
+    return estimate(sample, nowMillis, count);
+  }
+
+  /**
+   * When the last sample was taken.
+   */
+  public long getLastSampleMillis() {
+    return last.millis;
+  }
+
+  private double estimate(Sample sample, long nowMillis, long count) {
+    long elapsed = nowMillis - sample.millis;
+    double recent = (count - sample.count) * 1000.0 / elapsed;
+    double weight = 1 - Math.exp(-elapsed / decayMillis);
+    return sample.rate + weight * (recent - sample.rate);
+  }
+}
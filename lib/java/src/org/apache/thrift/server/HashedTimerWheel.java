@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+/**
+ * A hashed timer wheel: timeouts are hashed into a ring of slots by the tick
+ * they fall due in, so scheduling and cancelling take constant time however
+ * many timeouts there are, and each tick only looks at the timeouts in one
+ * slot. Timeouts further away than one turn of the wheel share slots with
+ * nearer ones and are simply passed over until their turn comes. Timeouts
+ * never expire early, but may expire up to a tick late.
+ *
+ * Not thread safe; meant to be driven by a single select thread.
+ */
+class HashedTimerWheel {
+
+  /**
+   * Something that can be scheduled on the wheel. A timeout is on at most one
+   * wheel, at most once.
+   */
+  static abstract class Timeout {
+    private Timeout prev;
+    private Timeout next;
+    private int slot = -1;
+    private long deadline;
+
+    /**
+     * Called from expire() once the deadline has passed. The timeout has
+     * already been removed, and may schedule itself again.
+     */
+    protected abstract void expired(long nowMillis);
+
+    public boolean isScheduled() {
+      return slot >= 0;
+    }
+
+    public long getDeadline() {
+      return deadline;
+    }
+  }
+
+  private final long tickMillis;
+  private final int mask;
+  private final Timeout[] slots;
+
+  // the last tick that has been dealt with
+  private long currentTick;
+  private int size = 0;
+
+  /**
+   * @param tickMillis How long one tick is.
+   * @param ticksPerWheel How many slots the wheel has. Rounded up to a power
+   * of two.
+   * @param nowMillis The current time.
+   */
+  public HashedTimerWheel(long tickMillis, int ticksPerWheel, long nowMillis) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("tickMillis must be positive");
+    }
+    if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+      throw new IllegalArgumentException("ticksPerWheel must be between 1 and 2^30");
+    }
+    int n = 1;
+    while (n < ticksPerWheel) {
+      n <<= 1;
+    }
+    this.tickMillis = tickMillis;
+    this.mask = n - 1;
+    this.slots = new Timeout[n];
+    this.currentTick = nowMillis / tickMillis;
+  }
+
+  /**
+   * Schedule a timeout to expire at the given time, moving it if it is
+   * already scheduled. A deadline that has passed expires on the next tick.
+   */
+  public void schedule(Timeout timeout, long deadlineMillis) {
+    if (timeout.isScheduled()) {
+      cancel(timeout);
+    }
+    // the first tick at or after the deadline, so we never expire early
+    long tick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick + 1);
+    int slot = (int) (tick & mask);
+    timeout.deadline = deadlineMillis;
+    timeout.slot = slot;
+    timeout.prev = null;
+    timeout.next = slots[slot];
+    if (timeout.next != null) {
+      timeout.next.prev = timeout;
+    }
+    slots[slot] = timeout;
+    size++;
+  }
+
+  /**
+   * Take a timeout off the wheel. Does nothing if it isn't scheduled.
+   */
+  public void cancel(Timeout timeout) {
+    if (!timeout.isScheduled()) {
+      return;
+    }
+    if (timeout.prev != null) {
+      timeout.prev.next = timeout.next;
+    } else {
+      slots[timeout.slot] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.slot = -1;
+    size--;
+  }
+
+  /**
+   * Expire every timeout whose deadline has passed, going through the ticks
+   * since the last call.
+   *
+   * @return the number of timeouts that expired
+   */
+  public int expire(long nowMillis) {
+    long nowTick = nowMillis / tickMillis;
+    // after a full turn every slot has been looked at
+    long lastTick = Math.min(nowTick, currentTick + slots.length);
+    int expired = 0;
+    for (long tick = currentTick + 1; tick <= lastTick; tick++) {
+      int slot = (int) (tick & mask);
+      Timeout timeout = slots[slot];
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.deadline <= nowMillis) {
+          cancel(timeout);
+          timeout.expired(nowMillis);
+          expired++;
+          // the callback may have taken the next one off the wheel too, in
+          // which case start over on this slot.
+          if (next != null && next.slot != slot) {
+            next = slots[slot];
+          }
+        }
+        timeout = next;
+      }
+    }
+    if (nowTick > currentTick) {
+      currentTick = nowTick;
+    }
+    return expired;
+  }
+
+  /**
+   * How long until the next tick is due, or 0 if nothing is scheduled. Suits
+   * Selector.select(long), where 0 means wait indefinitely.
+   */
+  public long millisToNextTick(long nowMillis) {
+    if (size == 0) {
+      return 0;
+    }
+    return Math.max(1, (currentTick + 1) * tickMillis - nowMillis);
+  }
+
+  /**
+   * Number of timeouts scheduled.
+   */
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which methods are cheap enough to run right on the selector thread
+ * that read their request, since handing a trivial call to a worker thread
+ * and back costs more than the call itself.
+ *
+ * Methods are either declared cheap up front, or learned: a method whose
+ * calls took less than the auto-inline threshold on average over a batch of
+ * calls on the worker threads is run inline from then on. Either way, a
+ * method that holds up its selector thread for longer than the maximum
+ * inline time even once is demoted to the worker threads for good, since
+ * every other connection on that selector waits on it.
+ *
+ * Thread safe.
+ */
+class InlineExecutionPolicy {
+  private static final Logger LOGGER = LoggerFactory.getLogger(InlineExecutionPolicy.class.getName());
+
+  // calls on the worker threads averaged to decide whether a method is cheap
+  static final int LEARNING_SAMPLES = 100;
+
+  // method names are chosen by clients, so only keep track of so many
+  static final int MAX_TRACKED_METHODS = 1024;
+
+  private static class MethodStats {
+    volatile boolean inline = false;
+    volatile boolean demoted = false;
+
+    // calls on the worker threads in the current batch, and their total
+    // time; guarded by this
+    int samples = 0;
+    long totalNanos = 0;
+  }
+
+  private final long autoInlineNanos;
+  private final long maxInlineNanos;
+
+  private final ConcurrentHashMap<String, MethodStats> methods = new ConcurrentHashMap<String, MethodStats>();
+
+  private final AtomicLong inlineCount = new AtomicLong(0);
+  private final AtomicLong demotionCount = new AtomicLong(0);
+
+  /**
+   * @param inlineMethods Methods to run inline from the start.
+   * @param autoInlineNanos Methods that take less than this on average are
+   * run inline, or 0 to only run the given methods inline.
+   * @param maxInlineNanos The longest an inline call may take before its
+   * method is demoted.
+   */
+  public InlineExecutionPolicy(Collection<String> inlineMethods, long autoInlineNanos, long maxInlineNanos) {
+    this.autoInlineNanos = autoInlineNanos;
+    this.maxInlineNanos = maxInlineNanos;
+    for (String method : inlineMethods) {
+      MethodStats stats = new MethodStats();
+      stats.inline = true;
+      methods.put(method, stats);
+    }
+  }
+
+  /**
+   * Whether calls of the method should be run on the selector thread.
+   */
+  public boolean isInline(String method) {
+    MethodStats stats = method == null ? null : methods.get(method);
+    return stats != null && stats.inline;
+  }
+
+  /**
+   * Whether the policy wants to hear how long calls of the method take on
+   * the worker threads.
+   */
+  public boolean isLearning(String method) {
+    if (autoInlineNanos <= 0 || method == null) {
+      return false;
+    }
+    MethodStats stats = methods.get(method);
+    return stats == null ? methods.size() < MAX_TRACKED_METHODS : !stats.inline && !stats.demoted;
+  }
+
+  /**
+   * Note how long a call took on a worker thread.
+   */
+  public void recordPooled(String method, long nanos) {
+    MethodStats stats = stats(method);
+    if (stats == null) {
+      return;
+    }
+    synchronized (stats) {
+      if (stats.inline || stats.demoted) {
+        return;
+      }
+      stats.totalNanos += nanos;
+      if (++stats.samples < LEARNING_SAMPLES) {
+        return;
+      }
+      long meanNanos = stats.totalNanos / stats.samples;
+      stats.samples = 0;
+      stats.totalNanos = 0;
+      if (meanNanos < autoInlineNanos) {
+        stats.inline = true;
+        LOGGER.info("Running " + method + " on the selector threads from now on, its calls take "
+            + TimeUnit.NANOSECONDS.toMicros(meanNanos) + " us on average");
+      }
+    }
+  }
+
+  /**
+   * Note how long a call took on a selector thread, demoting its method if
+   * that was too long.
+   */
+  public void recordInline(String method, long nanos) {
+    inlineCount.incrementAndGet();
+    if (nanos <= maxInlineNanos) {
+      return;
+    }
+    MethodStats stats = methods.get(method);
+    if (stats != null && !stats.demoted) {
+      stats.demoted = true;
+      stats.inline = false;
+      demotionCount.incrementAndGet();
+      LOGGER.warn("A call of " + method + " held up its selector thread for "
+          + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, running it on the worker threads from now on");
+    }
+  }
+
+  /**
+   * The methods currently run inline.
+   */
+  public Set<String> getInlineMethods() {
+    Set<String> inline = new TreeSet<String>();
+    for (Map.Entry<String, MethodStats> entry : methods.entrySet()) {
+      if (entry.getValue().inline) {
+        inline.add(entry.getKey());
+      }
+    }
+    return inline;
+  }
+
+  /**
+   * Number of calls that were run inline.
+   */
+  public long getInlineCount() {
+    return inlineCount.get();
+  }
+
+  /**
+   * Number of methods demoted for holding up a selector thread.
+   */
+  public long getDemotionCount() {
+    return demotionCount.get();
+  }
+
+  private MethodStats stats(String method) {
+    MethodStats stats = methods.get(method);
+    if (stats == null) {
+      if (methods.size() >= MAX_TRACKED_METHODS) {
+        return null;
+      }
+      MethodStats newStats = new MethodStats();
+      stats = methods.putIfAbsent(method, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    return stats;
+  }
+}
@@ -1,6 +1,7 @@
 package org.apache.thrift.server;
 
 import org.apache.thrift.server.AbstractNonblockingServer.FrameBuffer;
+import org.apache.thrift.server.AbstractNonblockingServer.PipelinedCall;
 
 /**
  * An Invocation represents a method call that is prepared to execute, given
@@ -10,11 +11,20 @@ import org.apache.thrift.server.AbstractNonblockingServer.FrameBuffer;
 class Invocation implements Runnable {
   private final FrameBuffer frameBuffer;
 
+  // the call on a pipelined connection this invocation is for, if any. taken
+  // when the invocation is created, which is right after the frame was read.
+  private final PipelinedCall call;
+
+  // when the invocation was queued, to tell how long it waited for a thread
+  private final long createdNanos;
+
   public Invocation(final FrameBuffer frameBuffer) {
     this.frameBuffer = frameBuffer;
+    this.call = frameBuffer.getReadCall();
+    this.createdNanos = System.nanoTime();
   }
 
   public void run() {
-    frameBuffer.invoke();
+    frameBuffer.invokeQueued(call, System.nanoTime() - createdNanos);
   }
 }
\ No newline at end of file
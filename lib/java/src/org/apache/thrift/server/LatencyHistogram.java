@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations, in nanoseconds, that any number of threads can
+ * record into without locking. Like an HdrHistogram, values are counted in
+ * buckets that are never wider than 1/16th of their lower bound, so a handful
+ * of kilobytes covers everything from nanoseconds to years, and percentiles
+ * are accurate to within about 6%.
+ */
+public class LatencyHistogram {
+  // each power of two is split into this many buckets
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // enough buckets for any non-negative long
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong(0);
+  private final AtomicLong totalNanos = new AtomicLong(0);
+  private final AtomicLong maxNanos = new AtomicLong(0);
+
+  /**
+   * Count one duration. Negative durations, which a clock going backwards
+   * may produce, count as 0.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(bucketIndex(nanos));
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    long max;
+    while (nanos > (max = maxNanos.get())) {
+      if (maxNanos.compareAndSet(max, nanos)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Add everything recorded into another histogram to this one.
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long n = other.counts.get(i);
+      if (n != 0) {
+        counts.addAndGet(i, n);
+      }
+    }
+    count.addAndGet(other.count.get());
+    totalNanos.addAndGet(other.totalNanos.get());
+    long otherMax = other.maxNanos.get();
+    long max;
+    while (otherMax > (max = maxNanos.get())) {
+      if (maxNanos.compareAndSet(max, otherMax)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Number of durations recorded.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMeanNanos() {
+    long n = count.get();
+    return n == 0 ? 0 : totalNanos.get() / n;
+  }
+
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * The duration that the given percentage of recorded durations were no
+   * longer than, rounded up to the end of its bucket. 0 if nothing has been
+   * recorded.
+   *
+   * @param percentile between 0 and 100, e.g. 99.9
+   */
+  public long getPercentileNanos(double percentile) {
+    return snapshot().getPercentileNanos(percentile);
+  }
+
+  /**
+   * A copy of what has been recorded so far, which doesn't change as more is
+   * recorded, so several percentiles can be read off the same data.
+   */
+  public Snapshot snapshot() {
+    long[] snapshotCounts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshotCounts[i] = counts.get(i);
+    }
+    return new Snapshot(snapshotCounts, totalNanos.get(), maxNanos.get());
+  }
+
+  /**
+   * A copy of what has been recorded so far, leaving this histogram empty,
+   * e.g. to report on fixed intervals. Durations recorded while the snapshot
+   * is taken go to either the snapshot or this histogram, and may throw the
+   * snapshot's mean and maximum off by a little.
+   */
+  public Snapshot snapshotAndReset() {
+    long[] snapshotCounts = new long[BUCKETS];
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (counts.get(i) != 0) {
+        snapshotCounts[i] = counts.getAndSet(i, 0);
+        n += snapshotCounts[i];
+      }
+    }
+    count.addAndGet(-n);
+    return new Snapshot(snapshotCounts, totalNanos.getAndSet(0), maxNanos.getAndSet(0));
+  }
+
+  @Override
+  public String toString() {
+    return snapshot().toString();
+  }
+
+  /**
+   * The contents of a LatencyHistogram at one point in time.
+   */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    private Snapshot(long[] counts, long totalNanos, long maxNanos) {
+      this.counts = counts;
+      long n = 0;
+      for (long c : counts) {
+        n += c;
+      }
+      this.count = n;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getMeanNanos() {
+      return count == 0 ? 0 : totalNanos / count;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    /**
+     * The duration that the given percentage of durations were no longer
+     * than, rounded up to the end of its bucket. 0 if there are none.
+     *
+     * @param percentile between 0 and 100, e.g. 99.9
+     */
+    public long getPercentileNanos(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("percentile must be between 0 and 100.");
+      }
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(bucketUpperBound(i), maxNanos);
+        }
+      }
+      return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + count + " mean=" + getMeanNanos() + "ns p50=" + getPercentileNanos(50)
+          + "ns p99=" + getPercentileNanos(99) + "ns p99.9=" + getPercentileNanos(99.9)
+          + "ns max=" + maxNanos + "ns";
+    }
+  }
+
+  static int bucketIndex(long nanos) {
+    if (nanos < 2 * SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    // keep the top SUB_BUCKET_BITS + 1 bits of the value
+    int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKETS + (int) (nanos >>> shift);
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long top = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * A TServerEventListener that keeps histograms of how long the calls of each
+ * method took to arrive, waited for a thread, took to process, and took to
+ * write their responses out. Recording is lock free and allocates nothing
+ * once a method has been seen.
+ *
+ * Method names are chosen by clients, so only so many are tracked one by
+ * one; calls of any further methods are lumped together under OTHER_METHODS.
+ */
+public class MethodLatencyRecorder implements TServerEventListener {
+  public static final String OTHER_METHODS = "<other>";
+
+  // how many method names are tracked, unless given otherwise
+  private static final int DEFAULT_MAX_METHODS = 1024;
+
+  /**
+   * What has been recorded for one method.
+   */
+  public static class MethodLatencies {
+    private final LatencyHistogram readTimes = new LatencyHistogram();
+    private final LatencyHistogram queueTimes = new LatencyHistogram();
+    private final LatencyHistogram handlerTimes = new LatencyHistogram();
+    private final LatencyHistogram writeTimes = new LatencyHistogram();
+    private final AtomicLong failureCount = new AtomicLong(0);
+
+    /**
+     * How long requests took to arrive, from their first byte to their last.
+     */
+    public LatencyHistogram getReadTimes() {
+      return readTimes;
+    }
+
+    /**
+     * How long requests waited for a thread to process them.
+     */
+    public LatencyHistogram getQueueTimes() {
+      return queueTimes;
+    }
+
+    /**
+     * How long the processor took, including reading the arguments and
+     * writing the result into the response buffer.
+     */
+    public LatencyHistogram getHandlerTimes() {
+      return handlerTimes;
+    }
+
+    /**
+     * How long responses took to be written out once they were ready.
+     */
+    public LatencyHistogram getWriteTimes() {
+      return writeTimes;
+    }
+
+    /**
+     * Number of calls the processor failed on.
+     */
+    public long getFailureCount() {
+      return failureCount.get();
+    }
+
+    @Override
+    public String toString() {
+      return "read: " + readTimes + ", queue: " + queueTimes + ", handler: " + handlerTimes
+          + ", write: " + writeTimes + ", failures: " + getFailureCount();
+    }
+  }
+
+  private final int maxMethods;
+  private final ConcurrentHashMap<String, MethodLatencies> methods = new ConcurrentHashMap<String, MethodLatencies>();
+  private final MethodLatencies otherMethods = new MethodLatencies();
+
+  private final AtomicInteger openConnectionCount = new AtomicInteger(0);
+
+  public MethodLatencyRecorder() {
+    this(DEFAULT_MAX_METHODS);
+  }
+
+  /**
+   * @param maxMethods How many methods to keep histograms for one by one.
+   */
+  public MethodLatencyRecorder(int maxMethods) {
+    if (maxMethods < 0) {
+      throw new IllegalArgumentException("maxMethods must be non-negative.");
+    }
+    this.maxMethods = maxMethods;
+  }
+
+  /**
+   * What has been recorded for the given method, or null if none of its
+   * calls has been seen.
+   */
+  public MethodLatencies getLatencies(String method) {
+    if (OTHER_METHODS.equals(method)) {
+      return otherMethods.handlerTimes.getCount() == 0 ? null : otherMethods;
+    }
+    return methods.get(method);
+  }
+
+  /**
+   * What has been recorded for every method seen so far, sorted by method
+   * name. Methods seen later aren't added to the map, but the histograms in it
+   * keep counting.
+   */
+  public Map<String, MethodLatencies> getLatencies() {
+    Map<String, MethodLatencies> latencies = new TreeMap<String, MethodLatencies>(methods);
+    if (otherMethods.handlerTimes.getCount() != 0) {
+      latencies.put(OTHER_METHODS, otherMethods);
+    }
+    return Collections.unmodifiableMap(latencies);
+  }
+
+  public int getOpenConnectionCount() {
+    return openConnectionCount.get();
+  }
+
+  public void connectionOpened(TTransport connection) {
+    openConnectionCount.incrementAndGet();
+  }
+
+  public void connectionClosed(TTransport connection) {
+    openConnectionCount.decrementAndGet();
+  }
+
+  public void frameRead(TTransport connection, int bytes, long readNanos) {
+    // the method isn't known yet; recorded in invokeStarted()
+  }
+
+  public void invokeStarted(TTransport connection, String method, long readNanos, long queuedNanos) {
+    MethodLatencies latencies = latencies(method);
+    latencies.readTimes.record(readNanos);
+    latencies.queueTimes.record(queuedNanos);
+  }
+
+  public void invokeFinished(TTransport connection, String method, long handlerNanos, boolean success) {
+    MethodLatencies latencies = latencies(method);
+    latencies.handlerTimes.record(handlerNanos);
+    if (!success) {
+      latencies.failureCount.incrementAndGet();
+    }
+  }
+
+  public void responseWritten(TTransport connection, String method, int bytes, long writeNanos) {
+    if (method != null) {
+      latencies(method).writeTimes.record(writeNanos);
+    }
+  }
+
+  private MethodLatencies latencies(String method) {
+    if (method == null) {
+      return otherMethods;
+    }
+    MethodLatencies latencies = methods.get(method);
+    if (latencies == null) {
+      if (methods.size() >= maxMethods) {
+        return otherMethods;
+      }
+      MethodLatencies newLatencies = new MethodLatencies();
+      latencies = methods.putIfAbsent(method, newLatencies);
+      if (latencies == null) {
+        latencies = newLatencies;
+      }
+    }
+    return latencies;
+  }
+}
@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded work queue for a ThreadPoolExecutor that hands out tasks by
+ * priority class, first come first served within a class. Tasks that are
+ * {@link Prioritized} say which class they belong to; all others go into the
+ * default class. Class 0 comes first.
+ *
+ * So that a steady stream of high priority work can't starve the lower
+ * classes completely, a task that has waited longer than maxWaitNanos is
+ * handed out ahead of higher classes, oldest first.
+ */
+class PriorityInvocationQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+  /**
+   * A task that knows its priority class.
+   */
+  interface Prioritized {
+    int getPriority();
+  }
+
+  /**
+   * Gives a task a priority class.
+   */
+  static class PrioritizedRunnable implements Runnable, Prioritized {
+    private final Runnable runnable;
+    private final int priority;
+
+    public PrioritizedRunnable(Runnable runnable, int priority) {
+      this.runnable = runnable;
+      this.priority = priority;
+    }
+
+    public void run() {
+      runnable.run();
+    }
+
+    public int getPriority() {
+      return priority;
+    }
+  }
+
+  private static class Entry {
+    final Runnable task;
+    final long queuedNanos;
+
+    Entry(Runnable task, long queuedNanos) {
+      this.task = task;
+      this.queuedNanos = queuedNanos;
+    }
+  }
+
+  private final List<LinkedList<Entry>> classes;
+  private final int defaultPriority;
+  private final long maxWaitNanos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private int count = 0;
+
+  // tasks handed out ahead of higher classes because they had waited too long
+  private long agedCount = 0;
+
+  /**
+   * @param numClasses How many priority classes there are.
+   * @param defaultPriority The class of tasks that don't say.
+   * @param maxWaitNanos How long a task may wait before it goes ahead of
+   * higher classes, or 0 to always go strictly by class.
+   */
+  public PriorityInvocationQueue(int numClasses, int defaultPriority, long maxWaitNanos) {
+    if (numClasses <= 0 || defaultPriority < 0 || defaultPriority >= numClasses) {
+      throw new IllegalArgumentException("Need at least one class, and a default class among them");
+    }
+    if (maxWaitNanos < 0) {
+      throw new IllegalArgumentException("maxWaitNanos must be non-negative");
+    }
+    this.classes = new ArrayList<LinkedList<Entry>>(numClasses);
+    for (int i = 0; i < numClasses; i++) {
+      classes.add(new LinkedList<Entry>());
+    }
+    this.defaultPriority = defaultPriority;
+    this.maxWaitNanos = maxWaitNanos;
+  }
+
+  public boolean offer(Runnable task) {
+    if (task == null) {
+      throw new NullPointerException();
+    }
+    int priority = defaultPriority;
+    if (task instanceof Prioritized) {
+      priority = Math.max(0, Math.min(classes.size() - 1, ((Prioritized) task).getPriority()));
+    }
+    lock.lock();
+    try {
+      classes.get(priority).addLast(new Entry(task, System.nanoTime()));
+      count++;
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void put(Runnable task) {
+    offer(task);
+  }
+
+  public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+    return offer(task);
+  }
+
+  public Runnable poll() {
+    lock.lock();
+    try {
+      return count == 0 ? null : dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Runnable take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        notEmpty.await();
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Runnable peek() {
+    lock.lock();
+    try {
+      return count == 0 ? null : classes.get(nextClass(false)).getFirst().task;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    lock.lock();
+    try {
+      for (LinkedList<Entry> entries : classes) {
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+          if (it.next().task == o) {
+            it.remove();
+            count--;
+            return true;
+          }
+        }
+      }
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Number of tasks waiting in the given priority class.
+   */
+  public int size(int priority) {
+    lock.lock();
+    try {
+      return classes.get(priority).size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Number of tasks that were handed out ahead of higher priority ones
+   * because they had waited too long.
+   */
+  public long getAgedCount() {
+    lock.lock();
+    try {
+      return agedCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int remainingCapacity() {
+    return Integer.MAX_VALUE;
+  }
+
+  public int drainTo(Collection<? super Runnable> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  public int drainTo(Collection<? super Runnable> c, int maxElements) {
+    if (c == this) {
+      throw new IllegalArgumentException();
+    }
+    lock.lock();
+    try {
+      int n = 0;
+      while (n < maxElements && count > 0) {
+        c.add(dequeue());
+        n++;
+      }
+      return n;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * A snapshot of the queued tasks, in no particular order.
+   */
+  @Override
+  public Iterator<Runnable> iterator() {
+    lock.lock();
+    try {
+      List<Runnable> tasks = new ArrayList<Runnable>(count);
+      for (LinkedList<Entry> entries : classes) {
+        for (Entry entry : entries) {
+          tasks.add(entry.task);
+        }
+      }
+      return tasks.iterator();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Take the next task off the queue. Must hold the lock, and the queue must
+   * not be empty.
+   */
+  private Runnable dequeue() {
+    Entry entry = classes.get(nextClass(true)).removeFirst();
+    count--;
+    return entry.task;
+  }
+
+  /**
+   * The class the next task comes from: the highest class with anything in
+   * it, unless a lower class has a task that has waited too long.
+   */
+  private int nextClass(boolean counting) {
+    int chosen = 0;
+    while (classes.get(chosen).isEmpty()) {
+      chosen++;
+    }
+    if (maxWaitNanos > 0) {
+      long now = System.nanoTime();
+      long oldest = now - maxWaitNanos;
+      int aged = -1;
+      for (int i = chosen + 1; i < classes.size(); i++) {
+        if (!classes.get(i).isEmpty() && classes.get(i).getFirst().queuedNanos - oldest < 0) {
+          oldest = classes.get(i).getFirst().queuedNanos;
+          aged = i;
+        }
+      }
+      if (aged >= 0) {
+        chosen = aged;
+        if (counting) {
+          agedCount++;
+        }
+      }
+    }
+    return chosen;
+  }
+}
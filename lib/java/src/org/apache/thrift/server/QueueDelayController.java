@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a request that has been waiting for a worker thread is
+ * still worth processing, based on how long it waited.
+ *
+ * There are two limits. A request that waited longer than the maximum delay
+ * is always turned away, since its client has most likely given up on it.
+ * The target delay works like CoDel: queueing is fine as long as it clears
+ * up, so we only look at the shortest delay seen in each interval. If even
+ * that was above the target, the queue is standing rather than bursting, and
+ * for the next interval requests that waited more than twice the target are
+ * turned away, until the queue drains. This keeps latency bounded under
+ * overload, without shedding anything during short bursts.
+ *
+ * Thread safe. The bookkeeping is approximate when several threads race on
+ * it, which doesn't matter at this granularity.
+ */
+class QueueDelayController {
+  private final long targetNanos;
+  private final long intervalNanos;
+  private final long maxNanos;
+
+  // the shortest delay seen in the current interval, and when it ends
+  private final AtomicLong minDelayNanos = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong intervalEndNanos;
+
+  // whether the last interval showed a standing queue
+  private volatile boolean overloaded = false;
+
+  private final AtomicLong shedCount = new AtomicLong(0);
+
+  /**
+   * @param targetNanos The delay the shortest wait in an interval should stay
+   * under, or 0 to not adapt.
+   * @param intervalNanos How long an interval is.
+   * @param maxNanos The longest any request may wait, or 0 for no limit.
+   */
+  public QueueDelayController(long targetNanos, long intervalNanos, long maxNanos) {
+    if (targetNanos < 0 || maxNanos < 0 || intervalNanos <= 0) {
+      throw new IllegalArgumentException("Need non-negative delays and a positive interval");
+    }
+    this.targetNanos = targetNanos;
+    this.intervalNanos = intervalNanos;
+    this.maxNanos = maxNanos;
+    this.intervalEndNanos = new AtomicLong(System.nanoTime() + intervalNanos);
+  }
+
+  /**
+   * Record that a request waited queuedNanos, and decide whether to turn it
+   * away.
+   *
+   * @return true if the request should not be processed
+   */
+  public boolean shouldShed(long queuedNanos) {
+    boolean shed = false;
+    if (targetNanos > 0) {
+      long min = minDelayNanos.get();
+      while (queuedNanos < min && !minDelayNanos.compareAndSet(min, queuedNanos)) {
+        min = minDelayNanos.get();
+      }
+
+      long now = System.nanoTime();
+      long end = intervalEndNanos.get();
+      if (now - end >= 0 && intervalEndNanos.compareAndSet(end, now + intervalNanos)) {
+        min = minDelayNanos.getAndSet(Long.MAX_VALUE);
+        overloaded = min != Long.MAX_VALUE && min > targetNanos;
+      }
+      shed = overloaded && queuedNanos > 2 * targetNanos;
+    }
+    if (maxNanos > 0 && queuedNanos > maxNanos) {
+      shed = true;
+    }
+    if (shed) {
+      shedCount.incrementAndGet();
+    }
+    return shed;
+  }
+
+  /**
+   * Whether the last interval found a standing queue.
+   */
+  public boolean isOverloaded() {
+    return overloaded;
+  }
+
+  /**
+   * Number of requests turned away.
+   */
+  public long getShedCount() {
+    return shedCount.get();
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ByteBufferPool that keeps one lock-free free list per power-of-two size
+ * class. Requests are rounded up to the next size class; requests larger than
+ * the biggest class are served with a fresh, unpooled buffer. Each class keeps
+ * at most maxBuffersPerClass idle buffers around, so the memory held by an
+ * idle pool is bounded.
+ */
+public class SizeClassedByteBufferPool implements ByteBufferPool {
+  public static final int DEFAULT_MIN_BUFFER_SIZE = 256;
+  public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+  public static final int DEFAULT_MAX_BUFFERS_PER_CLASS = 64;
+
+  private final int minShift;
+  private final int maxBufferSize;
+  private final int maxBuffersPerClass;
+  private final boolean direct;
+
+  // idle buffers for each size class, and how many of them there are. the
+  // count is kept separately since ConcurrentLinkedQueue.size() is O(n).
+  private final List<ConcurrentLinkedQueue<ByteBuffer>> freeLists;
+  private final AtomicInteger[] freeCounts;
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong discards = new AtomicLong(0);
+
+  /**
+   * Create a heap buffer pool with the default size classes.
+   */
+  public SizeClassedByteBufferPool() {
+    this(DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_BUFFERS_PER_CLASS, false);
+  }
+
+  /**
+   * @param minBufferSize The smallest size class. Rounded up to a power of two.
+   * @param maxBufferSize The largest size class. Rounded up to a power of two.
+   * Bigger requests are not pooled.
+   * @param maxBuffersPerClass The most idle buffers retained per size class.
+   * @param direct Whether to allocate direct rather than heap buffers.
+   */
+  public SizeClassedByteBufferPool(int minBufferSize, int maxBufferSize, int maxBuffersPerClass, boolean direct) {
+    if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+      throw new IllegalArgumentException("Need 0 < minBufferSize <= maxBufferSize");
+    }
+    if (maxBufferSize > (1 << 30)) {
+      throw new IllegalArgumentException("maxBufferSize must be at most 2^30");
+    }
+    if (maxBuffersPerClass < 0) {
+      throw new IllegalArgumentException("maxBuffersPerClass must be non-negative");
+    }
+    this.minShift = log2Ceil(minBufferSize);
+    int maxShift = log2Ceil(maxBufferSize);
+    this.maxBufferSize = 1 << maxShift;
+    this.maxBuffersPerClass = maxBuffersPerClass;
+    this.direct = direct;
+
+    int numClasses = maxShift - minShift + 1;
+    freeLists = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(numClasses);
+    freeCounts = new AtomicInteger[numClasses];
+    for (int i = 0; i < numClasses; i++) {
+      freeLists.add(new ConcurrentLinkedQueue<ByteBuffer>());
+      freeCounts[i] = new AtomicInteger(0);
+    }
+  }
+
+  public ByteBuffer acquire(int size) {
+    if (size > maxBufferSize) {
+      misses.incrementAndGet();
+      return allocate(size);
+    }
+
+    int sizeClass = sizeClassFor(size);
+    ByteBuffer buffer = freeLists.get(sizeClass).poll();
+    if (buffer == null) {
+      misses.incrementAndGet();
+      buffer = allocate(1 << (sizeClass + minShift));
+    } else {
+      freeCounts[sizeClass].decrementAndGet();
+      hits.incrementAndGet();
+    }
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+
+  public void release(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    // only take back buffers that exactly fit one of our classes, otherwise a
+    // later acquire() might get a buffer that is too small.
+    if (buffer.isDirect() != direct || capacity > maxBufferSize
+        || Integer.bitCount(capacity) != 1 || capacity < (1 << minShift)) {
+      discards.incrementAndGet();
+      return;
+    }
+
+    int sizeClass = sizeClassFor(capacity);
+    if (freeCounts[sizeClass].incrementAndGet() > maxBuffersPerClass) {
+      freeCounts[sizeClass].decrementAndGet();
+      discards.incrementAndGet();
+      return;
+    }
+    freeLists.get(sizeClass).offer(buffer);
+  }
+
+  /**
+   * Number of acquire() calls that were served from an idle buffer.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Number of acquire() calls that had to allocate a new buffer.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Number of released buffers that were dropped rather than retained, either
+   * because their size class was full or because they were not poolable.
+   */
+  public long getDiscardCount() {
+    return discards.get();
+  }
+
+  /**
+   * Number of idle buffers currently held by the pool.
+   */
+  public int getIdleBufferCount() {
+    int total = 0;
+    for (AtomicInteger count : freeCounts) {
+      total += count.get();
+    }
+    return total;
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  private int sizeClassFor(int size) {
+    return Math.max(0, log2Ceil(size) - minShift);
+  }
+
+  private static int log2Ceil(int n) {
+    return n <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+  }
+}
@@ -39,6 +39,7 @@ public class THsHaServer extends TNonblockingServer {
     private int stopTimeoutVal = 60;
     private TimeUnit stopTimeoutUnit = TimeUnit.SECONDS;
     private ExecutorService executorService = null;
+    private boolean useVirtualThreads = false;
 
     public Args(TNonblockingServerTransport transport) {
       super(transport);
@@ -79,6 +80,20 @@ public class THsHaServer extends TNonblockingServer {
       this.executorService = executorService;
       return this;
     }
+
+    public boolean getUseVirtualThreads() {
+      return useVirtualThreads;
+    }
+
+    /**
+     * Run every invocation on a new virtual thread instead of on the worker
+     * threads. workerThreads does not apply. Requires Java 21 or later; see
+     * VirtualThreads.isSupported().
+     */
+    public Args useVirtualThreads(boolean useVirtualThreads) {
+      this.useVirtualThreads = useVirtualThreads;
+      return this;
+    }
   }
 
 
@@ -94,6 +109,15 @@ public class THsHaServer extends TNonblockingServer {
   public THsHaServer(Args args) {
     super(args);
 
+    if (args.useVirtualThreads) {
+      if (!VirtualThreads.isSupported()) {
+        throw new IllegalArgumentException("useVirtualThreads requires Java 21 or later.");
+      }
+      if (args.executorService != null) {
+        throw new IllegalArgumentException("useVirtualThreads can't be combined with executorService.");
+      }
+    }
+
     invoker = args.executorService == null ? createInvokerPool(args) : args.executorService;
     this.args = args;
   }
@@ -111,6 +135,10 @@ public class THsHaServer extends TNonblockingServer {
    * Helper to create an invoker pool
    */
   protected static ExecutorService createInvokerPool(Args options) {
+    if (options.useVirtualThreads) {
+      return VirtualThreads.newThreadPerTaskExecutor("thrift-invoker-");
+    }
+
     int workerThreads = options.workerThreads;
     int stopTimeoutVal = options.stopTimeoutVal;
     TimeUnit stopTimeoutUnit = options.stopTimeoutUnit;
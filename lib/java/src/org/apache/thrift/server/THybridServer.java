@@ -0,0 +1,396 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TNonblockingServerTransport;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A half-sync server for blocking processors and transports that doesn't tie
+ * up a thread for every connection. Connections waiting for their next
+ * request are parked on a selector. When bytes arrive, the connection is
+ * handed to a worker thread, which switches it to blocking mode and runs the
+ * processor just as TThreadPoolServer does, then parks the connection again.
+ * Unlike the nonblocking servers, any transport works, framed or not, so long
+ * as it doesn't read ahead past the end of a request. The server socket's
+ * client timeout bounds how long a worker waits for the rest of a request.
+ */
+public class THybridServer extends TServer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(THybridServer.class.getName());
+
+  public static class Args extends AbstractServerArgs<Args> {
+    private int workerThreads = 5;
+    private int stopTimeoutVal = 60;
+    private TimeUnit stopTimeoutUnit = TimeUnit.SECONDS;
+    private ExecutorService executorService = null;
+
+    public Args(TNonblockingServerTransport transport) {
+      super(transport);
+    }
+
+    public Args workerThreads(int i) {
+      workerThreads = i;
+      return this;
+    }
+
+    public int getWorkerThreads() {
+      return workerThreads;
+    }
+
+    public int getStopTimeoutVal() {
+      return stopTimeoutVal;
+    }
+
+    public Args stopTimeoutVal(int stopTimeoutVal) {
+      this.stopTimeoutVal = stopTimeoutVal;
+      return this;
+    }
+
+    public TimeUnit getStopTimeoutUnit() {
+      return stopTimeoutUnit;
+    }
+
+    public Args stopTimeoutUnit(TimeUnit stopTimeoutUnit) {
+      this.stopTimeoutUnit = stopTimeoutUnit;
+      return this;
+    }
+
+    public ExecutorService getExecutorService() {
+      return executorService;
+    }
+
+    public Args executorService(ExecutorService executorService) {
+      this.executorService = executorService;
+      return this;
+    }
+  }
+
+  // the workers that process requests
+  private final ExecutorService invoker;
+
+  private final Args args;
+
+  // Flag for stopping the server
+  private volatile boolean stopped_ = true;
+
+  private volatile Selector selector;
+
+  // connections the workers are done with, waiting to be parked on the
+  // selector again
+  private final ConcurrentLinkedQueue<Connection> toPark = new ConcurrentLinkedQueue<Connection>();
+
+  private final AtomicInteger parkedConnections = new AtomicInteger(0);
+  private final AtomicInteger busyConnections = new AtomicInteger(0);
+
+  public THybridServer(Args args) {
+    super(args);
+    invoker = args.executorService == null ? createInvokerPool(args) : args.executorService;
+    this.args = args;
+  }
+
+  /**
+   * Helper to create an invoker pool
+   */
+  protected static ExecutorService createInvokerPool(Args options) {
+    LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+    return new ThreadPoolExecutor(options.workerThreads, options.workerThreads,
+        options.stopTimeoutVal, options.stopTimeoutUnit, queue);
+  }
+
+  public void serve() {
+    try {
+      serverTransport_.listen();
+      selector = Selector.open();
+    } catch (TTransportException ttx) {
+      LOGGER.error("Error occurred during listening.", ttx);
+      return;
+    } catch (IOException iox) {
+      LOGGER.error("Could not open a selector.", iox);
+      return;
+    }
+    ((TNonblockingServerTransport) serverTransport_).registerSelector(selector);
+
+    stopped_ = false;
+    setServing(true);
+    try {
+      while (!stopped_) {
+        select();
+      }
+    } catch (Throwable t) {
+      LOGGER.error("Run method threw an uncaught exception!", t);
+    }
+
+    serverTransport_.close();
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+        parkedConnections.decrementAndGet();
+        ((Connection) key.attachment()).close();
+      }
+    }
+    gracefullyShutdownInvokerPool();
+    // workers that finished after the select loop did
+    closeConnectionsToPark();
+    try {
+      selector.close();
+    } catch (IOException e) {
+      LOGGER.warn("Got an IOException while closing selector!", e);
+    }
+    setServing(false);
+  }
+
+  public void stop() {
+    stopped_ = true;
+    Selector s = selector;
+    if (s != null) {
+      s.wakeup();
+    }
+  }
+
+  /**
+   * Number of connections waiting for their next request.
+   */
+  public int getParkedConnectionCount() {
+    return parkedConnections.get();
+  }
+
+  /**
+   * Number of connections a worker thread is serving, or that are waiting
+   * for one.
+   */
+  public int getBusyConnectionCount() {
+    return busyConnections.get();
+  }
+
+  protected void gracefullyShutdownInvokerPool() {
+    // try to gracefully shut down the executor service
+    invoker.shutdown();
+
+    // Loop until awaitTermination finally does return without a interrupted
+    // exception. If we don't do this, then we'll shut down prematurely. We want
+    // to let the executorService clear it's task queue, closing client sockets
+    // appropriately.
+    long timeoutMS = args.stopTimeoutUnit.toMillis(args.stopTimeoutVal);
+    long now = System.currentTimeMillis();
+    while (timeoutMS >= 0) {
+      try {
+        invoker.awaitTermination(timeoutMS, TimeUnit.MILLISECONDS);
+        break;
+      } catch (InterruptedException ix) {
+        long newnow = System.currentTimeMillis();
+        timeoutMS -= (newnow - now);
+        now = newnow;
+      }
+    }
+  }
+
+  /**
+   * Wait for connections to become readable, and hand them to the workers.
+   * Also accepts new connections, and parks the ones the workers are done
+   * with.
+   */
+  private void select() throws IOException {
+    selector.select();
+    parkConnections();
+
+    List<Connection> ready = new ArrayList<Connection>();
+    while (!stopped_ && !selector.selectedKeys().isEmpty()) {
+      Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+      while (selectedKeys.hasNext()) {
+        SelectionKey key = selectedKeys.next();
+        selectedKeys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          handleAccept();
+        } else if (key.isReadable()) {
+          key.cancel();
+          ready.add((Connection) key.attachment());
+        }
+      }
+      // a channel can't be switched to blocking mode until its cancelled key
+      // has been deregistered, which takes another select
+      selector.selectNow();
+    }
+
+    for (Connection connection : ready) {
+      parkedConnections.decrementAndGet();
+      busyConnections.incrementAndGet();
+      try {
+        invoker.execute(connection);
+      } catch (RejectedExecutionException rx) {
+        LOGGER.warn("ExecutorService rejected execution!", rx);
+        busyConnections.decrementAndGet();
+        connection.close();
+      }
+    }
+  }
+
+  private void handleAccept() {
+    try {
+      TNonblockingSocket client = (TNonblockingSocket) serverTransport_.accept();
+      park(new Connection(client));
+    } catch (TTransportException tte) {
+      LOGGER.warn("Exception trying to accept!", tte);
+    }
+  }
+
+  /**
+   * Register a connection with the selector. Only called on the select
+   * thread.
+   */
+  private void park(Connection connection) {
+    try {
+      connection.channel_.register(selector, SelectionKey.OP_READ, connection);
+      parkedConnections.incrementAndGet();
+    } catch (ClosedChannelException e) {
+      connection.close();
+    }
+  }
+
+  private void parkConnections() {
+    Connection connection;
+    while ((connection = toPark.poll()) != null) {
+      park(connection);
+    }
+  }
+
+  private void closeConnectionsToPark() {
+    Connection connection;
+    while ((connection = toPark.poll()) != null) {
+      connection.close();
+    }
+  }
+
+  /**
+   * A client connection. Its transports, protocols and processor live as long
+   * as it does; only the thread serving it changes.
+   */
+  private class Connection implements Runnable {
+    private final TNonblockingSocket socket_;
+    private final SocketChannel channel_;
+
+    private BufferedInputStream in_;
+    private TTransport client_;
+    private TTransport inputTransport_;
+    private TTransport outputTransport_;
+    private TProtocol inputProtocol_;
+    private TProtocol outputProtocol_;
+    private TProcessor processor_;
+    private BlockingCallReporter reporter_;
+
+    private Connection(TNonblockingSocket socket) {
+      socket_ = socket;
+      channel_ = socket.getSocketChannel();
+    }
+
+    /**
+     * Serve the requests that have arrived, then park the connection again.
+     */
+    public void run() {
+      boolean keep = false;
+      try {
+        channel_.configureBlocking(true);
+        if (processor_ == null) {
+          open();
+        }
+        // requests that are already here are served without parking
+        do {
+          keep = reporter_ == null ? processor_.process(inputProtocol_, outputProtocol_)
+              : reporter_.process(processor_, inputProtocol_, outputProtocol_);
+        } while (keep && !stopped_ && in_.available() > 0);
+        channel_.configureBlocking(false);
+      } catch (TTransportException ttx) {
+        // Assume the client died and continue silently
+        keep = false;
+      } catch (TException tx) {
+        LOGGER.error("Thrift error occurred during processing of message.", tx);
+        keep = false;
+      } catch (Exception x) {
+        LOGGER.error("Error occurred during processing of message.", x);
+        keep = false;
+      }
+
+      busyConnections.decrementAndGet();
+      if (!keep || stopped_) {
+        close();
+        return;
+      }
+      toPark.offer(this);
+      selector.wakeup();
+    }
+
+    private void open() throws IOException, TTransportException {
+      in_ = new BufferedInputStream(channel_.socket().getInputStream());
+      client_ = new TIOStreamTransport(in_, new BufferedOutputStream(channel_.socket().getOutputStream()));
+      processor_ = processorFactory_.getProcessor(client_);
+      TTransport transport = client_;
+      if (eventListener_ != null) {
+        reporter_ = new BlockingCallReporter(eventListener_, client_);
+        transport = reporter_.getTransport();
+      }
+      inputTransport_ = inputTransportFactory_.getTransport(transport);
+      outputTransport_ = outputTransportFactory_.getTransport(transport);
+      inputProtocol_ = inputProtocolFactory_.getProtocol(inputTransport_);
+      outputProtocol_ = outputProtocolFactory_.getProtocol(outputTransport_);
+      if (eventListener_ != null) {
+        eventListener_.connectionOpened(client_);
+      }
+    }
+
+    private void close() {
+      if (inputTransport_ != null) {
+        inputTransport_.close();
+      }
+      if (outputTransport_ != null) {
+        outputTransport_.close();
+      }
+      socket_.close();
+      if (eventListener_ != null && outputProtocol_ != null) {
+        eventListener_.connectionClosed(client_);
+      }
+    }
+  }
+}
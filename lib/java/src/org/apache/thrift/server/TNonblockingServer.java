@@ -26,6 +26,8 @@ import org.apache.thrift.transport.TTransportException;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 
 /**
@@ -52,7 +54,7 @@ public class TNonblockingServer extends AbstractNonblockingServer {
 
   private SelectAcceptThread selectAcceptThread_;
 
-  public TNonblockingServer(AbstractNonblockingServerArgs args) {
+  public TNonblockingServer(AbstractNonblockingServerArgs<?> args) {
     super(args);
   }
 
@@ -106,6 +108,15 @@ public class TNonblockingServer extends AbstractNonblockingServer {
     }
   }
 
+  @Override
+  protected Collection<? extends AbstractSelectThread> getSelectThreads() {
+    SelectAcceptThread thread = selectAcceptThread_;
+    if (thread == null) {
+      return Collections.<AbstractSelectThread>emptyList();
+    }
+    return Collections.singletonList(thread);
+  }
+
   /**
    * Perform an invocation. This method could behave several different ways
    * - invoke immediately inline, queue for separate execution, etc.
@@ -153,6 +164,8 @@ public class TNonblockingServer extends AbstractNonblockingServer {
         while (!stopped_) {
           select();
           processInterestChanges();
+          processTimeouts();
+          processDrain();
         }
         for (SelectionKey selectionKey : selector.keys()) {
           cleanupSelectionKey(selectionKey);
@@ -160,6 +173,7 @@ public class TNonblockingServer extends AbstractNonblockingServer {
       } catch (Throwable t) {
         LOGGER.error("run() exiting due to uncaught error", t);
       } finally {
+        closeSelector();
         stopped_ = true;
       }
     }
@@ -175,7 +189,7 @@ public class TNonblockingServer extends AbstractNonblockingServer {
     private void select() {
       try {
         // wait for io events.
-        selector.select();
+        selectUntilNextTimeout();
 
         // process the io events we received
         Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
@@ -220,9 +234,12 @@ public class TNonblockingServer extends AbstractNonblockingServer {
         clientKey = client.registerSelector(selector, SelectionKey.OP_READ);
 
         // add this key to the map
-        FrameBuffer frameBuffer = new FrameBuffer(client, clientKey,
+        FrameBuffer frameBuffer = createFrameBuffer(client, clientKey,
           SelectAcceptThread.this);
         clientKey.attach(frameBuffer);
+        if (eventListener_ != null) {
+          eventListener_.connectionOpened(client);
+        }
       } catch (TTransportException tte) {
         // something went wrong accepting.
         LOGGER.warn("Exception trying to accept!", tte);
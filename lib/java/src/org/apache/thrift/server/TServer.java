@@ -45,51 +45,71 @@ public abstract class TServer {
     TTransportFactory outputTransportFactory = new TTransportFactory();
     TProtocolFactory inputProtocolFactory = new TBinaryProtocol.Factory();
     TProtocolFactory outputProtocolFactory = new TBinaryProtocol.Factory();
+    TServerEventListener eventListener;
 
     public AbstractServerArgs(TServerTransport transport) {
       serverTransport = transport;
     }
 
+    /**
+     * This, as the concrete Args type, for the setters to return. Safe as
+     * long as every subclass passes itself as T.
+     */
+    @SuppressWarnings("unchecked")
+    final T self() {
+      return (T) this;
+    }
+
     public T processorFactory(TProcessorFactory factory) {
       this.processorFactory = factory;
-      return (T) this;
+      return self();
     }
 
     public T processor(TProcessor processor) {
       this.processorFactory = new TProcessorFactory(processor);
-      return (T) this;
+      return self();
     }
 
     public T transportFactory(TTransportFactory factory) {
       this.inputTransportFactory = factory;
       this.outputTransportFactory = factory;
-      return (T) this;
+      return self();
     }
 
     public T inputTransportFactory(TTransportFactory factory) {
       this.inputTransportFactory = factory;
-      return (T) this;
+      return self();
     }
 
     public T outputTransportFactory(TTransportFactory factory) {
       this.outputTransportFactory = factory;
-      return (T) this;
+      return self();
     }
 
     public T protocolFactory(TProtocolFactory factory) {
       this.inputProtocolFactory = factory;
       this.outputProtocolFactory = factory;
-      return (T) this;
+      return self();
     }
 
     public T inputProtocolFactory(TProtocolFactory factory) {
       this.inputProtocolFactory = factory;
-      return (T) this;
+      return self();
     }
 
     public T outputProtocolFactory(TProtocolFactory factory) {
       this.outputProtocolFactory = factory;
-      return (T) this;
+      return self();
+    }
+
+    /**
+     * Tell the given listener about every connection and call, e.g. a
+     * MethodLatencyRecorder. Without one, the server doesn't even look at the
+     * clock for it.
+     */
+    public T eventListener(TServerEventListener eventListener) {
+      this.eventListener = eventListener;
+      return self();
     }
   }
 
@@ -123,15 +143,21 @@ public abstract class TServer {
    */
   protected TProtocolFactory outputProtocolFactory_;
 
+  /**
+   * Told about connections and calls, or null
+   */
+  protected TServerEventListener eventListener_;
+
   private boolean isServing;
 
-  protected TServer(AbstractServerArgs args) {
+  protected TServer(AbstractServerArgs<?> args) {
     processorFactory_ = args.processorFactory;
     serverTransport_ = args.serverTransport;
     inputTransportFactory_ = args.inputTransportFactory;
     outputTransportFactory_ = args.outputTransportFactory;
     inputProtocolFactory_ = args.inputProtocolFactory;
     outputProtocolFactory_ = args.outputProtocolFactory;
+    eventListener_ = args.eventListener;
   }
 
   /**
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Told what a server is doing with its connections and the calls on them,
+ * e.g. to collect metrics. The listener is called on the server's own
+ * threads, right in the middle of serving, so it must be quick, must not
+ * block, and must not throw. Every connection is identified by its transport,
+ * which stays the same for as long as the connection is open. Calls on one
+ * connection may overlap when the server pipelines requests.
+ *
+ * Used by the nonblocking servers, TThreadPoolServer and TSimpleServer. The
+ * blocking servers can't tell how big requests and responses are, and pass -1
+ * for their sizes; their calls never wait in a queue.
+ *
+ * @see MethodLatencyRecorder
+ */
+public interface TServerEventListener {
+
+  public void connectionOpened(TTransport connection);
+
+  public void connectionClosed(TTransport connection);
+
+  /**
+   * A request has arrived in full, readNanos after its first byte did.
+   */
+  public void frameRead(TTransport connection, int bytes, long readNanos);
+
+  /**
+   * A request is about to be processed, having taken readNanos to arrive and
+   * then waited queuedNanos for a thread to process it.
+   */
+  public void invokeStarted(TTransport connection, String method, long readNanos, long queuedNanos);
+
+  /**
+   * The processor is done with a request after handlerNanos. success is false
+   * if it failed, in which case the connection is closed without an answer.
+   * A call that the handler answered with an exception is still a success.
+   */
+  public void invokeFinished(TTransport connection, String method, long handlerNanos, boolean success);
+
+  /**
+   * The response to a call has been written, writeNanos after it was ready.
+   * Not called for oneway methods. method is null for requests that were
+   * turned away without being processed.
+   */
+  public void responseWritten(TTransport connection, String method, int bytes, long writeNanos);
+}
@@ -37,7 +37,7 @@ public class TSimpleServer extends TServer {
 
   private boolean stopped_ = false;
 
-  public TSimpleServer(AbstractServerArgs args) {
+  public TSimpleServer(AbstractServerArgs<?> args) {
     super(args);
   }
 
@@ -63,11 +63,22 @@ public class TSimpleServer extends TServer {
         client = serverTransport_.accept();
         if (client != null) {
           processor = processorFactory_.getProcessor(client);
-          inputTransport = inputTransportFactory_.getTransport(client);
-          outputTransport = outputTransportFactory_.getTransport(client);
+          BlockingCallReporter reporter = null;
+          TTransport transport = client;
+          if (eventListener_ != null) {
+            reporter = new BlockingCallReporter(eventListener_, client);
+            transport = reporter.getTransport();
+          }
+          inputTransport = inputTransportFactory_.getTransport(transport);
+          outputTransport = outputTransportFactory_.getTransport(transport);
           inputProtocol = inputProtocolFactory_.getProtocol(inputTransport);
           outputProtocol = outputProtocolFactory_.getProtocol(outputTransport);
-          while (processor.process(inputProtocol, outputProtocol)) {}
+          if (reporter == null) {
+            while (processor.process(inputProtocol, outputProtocol)) {}
+          } else {
+            eventListener_.connectionOpened(client);
+            while (reporter.process(processor, inputProtocol, outputProtocol)) {}
+          }
         }
       } catch (TTransportException ttx) {
         // Client died, just move on
@@ -89,6 +100,9 @@ public class TSimpleServer extends TServer {
         outputTransport.close();
       }
 
+      if (eventListener_ != null && outputProtocol != null) {
+        eventListener_.connectionClosed(client);
+      }
     }
     setServing(false);
   }
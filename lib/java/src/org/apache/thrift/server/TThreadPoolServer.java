@@ -19,15 +19,28 @@
 
 package org.apache.thrift.server;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.thrift.TApplicationException;
 import org.apache.thrift.TException;
 import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TServerTransport;
+import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 import org.slf4j.Logger;
@@ -48,6 +61,13 @@ public class TThreadPoolServer extends TServer {
     public ExecutorService executorService;
     public int stopTimeoutVal = 60;
     public TimeUnit stopTimeoutUnit = TimeUnit.SECONDS;
+    public boolean useVirtualThreads = false;
+    public int maxQueuedConnections = 0;
+    public int queueTimeoutVal = 0;
+    public TimeUnit queueTimeoutUnit = TimeUnit.MILLISECONDS;
+    public int acceptorThreads = 1;
+    public int rejectorThreads = 8;
+    public List<TServerTransport> additionalServerTransports = new ArrayList<TServerTransport>();
 
     public Args(TServerTransport transport) {
       super(transport);
@@ -67,6 +87,75 @@ public class TThreadPoolServer extends TServer {
       this.executorService = executorService;
       return this;
     }
+
+    /**
+     * How many connections may wait for a worker thread once all
+     * maxWorkerThreads are busy. Connections beyond that are answered with a
+     * TApplicationException and closed. The default of 0 queues none.
+     */
+    public Args maxQueuedConnections(int n) {
+      maxQueuedConnections = n;
+      return this;
+    }
+
+    /**
+     * Answer connections that waited longer than this for a worker thread
+     * with a TApplicationException and close them, since their clients have
+     * likely timed out already. The default of 0 lets connections wait
+     * however long it takes.
+     */
+    public Args queueTimeoutVal(int queueTimeoutVal) {
+      this.queueTimeoutVal = queueTimeoutVal;
+      return this;
+    }
+
+    public Args queueTimeoutUnit(TimeUnit queueTimeoutUnit) {
+      this.queueTimeoutUnit = queueTimeoutUnit;
+      return this;
+    }
+
+    /**
+     * How many connections turned away for lack of a worker thread may be
+     * answered at once. Each answer waits briefly for the client's first
+     * request, so this bounds how many idle clients a burst of rejections
+     * can hold up.
+     */
+    public Args rejectorThreads(int n) {
+      rejectorThreads = n;
+      return this;
+    }
+
+    /**
+     * How many threads accept connections on each server transport. More
+     * than one keeps connections coming in while a thread is busy setting up
+     * the last one, such as when many clients reconnect at once.
+     */
+    public Args acceptorThreads(int n) {
+      acceptorThreads = n;
+      return this;
+    }
+
+    /**
+     * Also accept connections on another server transport, such as one bound
+     * to another port or interface. Its connections are served by the same
+     * worker threads. May be called more than once.
+     */
+    public Args additionalServerTransport(TServerTransport transport) {
+      additionalServerTransports.add(transport);
+      return this;
+    }
+
+    /**
+     * Serve every connection on a virtual thread of its own instead of on a
+     * pooled platform thread, so tens of thousands of mostly idle clients
+     * don't need as many platform threads. minWorkerThreads and
+     * maxWorkerThreads do not apply. Requires Java 21 or later; see
+     * VirtualThreads.isSupported().
+     */
+    public Args useVirtualThreads(boolean useVirtualThreads) {
+      this.useVirtualThreads = useVirtualThreads;
+      return this;
+    }
   }
 
   // Executor service for handling client connections
@@ -79,17 +168,89 @@ public class TThreadPoolServer extends TServer {
 
   private final long stopTimeoutVal;
 
+  // how long a connection may wait for a worker, or 0 for no limit
+  private final long queueTimeoutNanos;
+
+  // how long a client that is being turned away gets to send its request.
+  // short, since a client that has a request to send has usually sent it by
+  // the time it is turned away, and the rest would hold up the rejectors.
+  private static final int REJECT_READ_TIMEOUT_MILLIS = 100;
+
+  // how many turned away connections may wait to be answered before they
+  // are closed without an answer
+  private static final int MAX_PENDING_REJECTIONS = 1024;
+
+  private final int rejectorThreads;
+
+  // answers the connections there's no worker for
+  private ExecutorService rejector_;
+
+  // every transport connections are accepted on, the main one first
+  private final List<TServerTransport> serverTransports_;
+
+  private final int acceptorThreads;
+
+  private final AtomicLong rejectedConnectionCount = new AtomicLong(0);
+  private final AtomicLong queueTimeoutCount = new AtomicLong(0);
+
   public TThreadPoolServer(Args args) {
     super(args);
 
     stopTimeoutUnit = args.stopTimeoutUnit;
     stopTimeoutVal = args.stopTimeoutVal;
 
+    if (args.maxQueuedConnections < 0) {
+      throw new IllegalArgumentException("maxQueuedConnections must be non-negative.");
+    }
+    if (args.queueTimeoutVal < 0) {
+      throw new IllegalArgumentException("queueTimeoutVal must be non-negative.");
+    }
+    if (args.maxQueuedConnections > 0 && (args.executorService != null || args.useVirtualThreads)) {
+      throw new IllegalArgumentException("maxQueuedConnections only applies to the default worker pool.");
+    }
+    queueTimeoutNanos = args.queueTimeoutUnit.toNanos(args.queueTimeoutVal);
+
+    if (args.acceptorThreads < 1) {
+      throw new IllegalArgumentException("acceptorThreads must be positive.");
+    }
+    acceptorThreads = args.acceptorThreads;
+    if (args.rejectorThreads < 1) {
+      throw new IllegalArgumentException("rejectorThreads must be positive.");
+    }
+    rejectorThreads = args.rejectorThreads;
+    List<TServerTransport> transports = new ArrayList<TServerTransport>();
+    transports.add(serverTransport_);
+    transports.addAll(args.additionalServerTransports);
+    serverTransports_ = Collections.unmodifiableList(transports);
+
+    if (args.useVirtualThreads) {
+      if (!VirtualThreads.isSupported()) {
+        throw new IllegalArgumentException("useVirtualThreads requires Java 21 or later.");
+      }
+      if (args.executorService != null) {
+        throw new IllegalArgumentException("useVirtualThreads can't be combined with executorService.");
+      }
+    }
+
     executorService_ = args.executorService != null ?
         args.executorService : createDefaultExecutorService(args);
   }
 
-  private static ExecutorService createDefaultExecutorService(Args args) {
+  static ExecutorService createDefaultExecutorService(Args args) {
+    if (args.useVirtualThreads) {
+      return VirtualThreads.newThreadPerTaskExecutor("thrift-worker-");
+    }
+    if (args.maxQueuedConnections > 0) {
+      ConnectionQueue executorQueue = new ConnectionQueue(args.maxQueuedConnections);
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(args.minWorkerThreads,
+                                                           args.maxWorkerThreads,
+                                                           60,
+                                                           TimeUnit.SECONDS,
+                                                           executorQueue,
+                                                           executorQueue);
+      executorQueue.executor_ = executor;
+      return executor;
+    }
     SynchronousQueue<Runnable> executorQueue =
       new SynchronousQueue<Runnable>();
     return new ThreadPoolExecutor(args.minWorkerThreads,
@@ -99,32 +260,99 @@ public class TThreadPoolServer extends TServer {
                                   executorQueue);
   }
 
+  /**
+   * A bounded queue of connections for a ThreadPoolExecutor that starts
+   * another worker thread rather than queue a connection, until it has
+   * maxWorkerThreads. A plain bounded queue would make the executor queue
+   * connections while it still has only minWorkerThreads.
+   */
+  static class ConnectionQueue extends LinkedBlockingQueue<Runnable> implements RejectedExecutionHandler {
+    private static final long serialVersionUID = 1L;
+
+    private transient ThreadPoolExecutor executor_;
+
+    ConnectionQueue(int capacity) {
+      super(capacity);
+    }
+
+    @Override
+    public boolean offer(Runnable r) {
+      ThreadPoolExecutor executor = executor_;
+      int poolSize = executor.getPoolSize();
+      // an idle worker will pick it up
+      if (size() < poolSize - executor.getActiveCount()) {
+        return super.offer(r);
+      }
+      // have the executor start another worker
+      if (poolSize < executor.getMaximumPoolSize()) {
+        return false;
+      }
+      return super.offer(r);
+    }
+
+    /**
+     * The executor couldn't start another worker after all, because others
+     * were started at the same time. Queue the connection if there's room.
+     */
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+      if (executor.isShutdown() || !super.offer(r)) {
+        throw new RejectedExecutionException("All worker threads are busy and the queue is full");
+      }
+    }
+  }
+
 
   public void serve() {
+    int listening = 0;
     try {
-      serverTransport_.listen();
+      for (TServerTransport transport : serverTransports_) {
+        transport.listen();
+        listening++;
+      }
     } catch (TTransportException ttx) {
       LOGGER.error("Error occurred during listening.", ttx);
+      // don't leave the ones that did listen taking connections nobody accepts
+      for (int i = 0; i < listening; i++) {
+        serverTransports_.get(i).close();
+      }
       return;
     }
 
     stopped_ = false;
+    rejector_ = new ThreadPoolExecutor(rejectorThreads, rejectorThreads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(MAX_PENDING_REJECTIONS), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TThreadPoolServer-rejector");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
     setServing(true);
-    while (!stopped_) {
-      int failureCount = 0;
+
+    // this thread accepts on the main transport, other threads take the rest
+    List<Thread> acceptors = new ArrayList<Thread>();
+    for (int i = 0; i < serverTransports_.size(); i++) {
+      for (int j = (i == 0 ? 1 : 0); j < acceptorThreads; j++) {
+        Thread acceptor = new Acceptor(serverTransports_.get(i));
+        acceptor.setName("TThreadPoolServer-acceptor-" + i + "-" + j);
+        acceptor.start();
+        acceptors.add(acceptor);
+      }
+    }
+    acceptLoop(serverTransport_);
+    for (Thread acceptor : acceptors) {
       try {
-        TTransport client = serverTransport_.accept();
-        WorkerProcess wp = new WorkerProcess(client);
-        executorService_.execute(wp);
-      } catch (TTransportException ttx) {
-        if (!stopped_) {
-          ++failureCount;
-          LOGGER.warn("Transport error occurred during acceptance of message.", ttx);
-        }
+        acceptor.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
     }
 
     executorService_.shutdown();
+    // close the connections that were still waiting to be turned away
+    for (Runnable rejection : rejector_.shutdownNow()) {
+      ((Rejection) rejection).client_.close();
+    }
 
     // Loop until awaitTermination finally does return without a interrupted
     // exception. If we don't do this, then we'll shut down prematurely. We want
@@ -147,7 +375,171 @@ public class TThreadPoolServer extends TServer {
 
   public void stop() {
     stopped_ = true;
-    serverTransport_.interrupt();
+    for (TServerTransport transport : serverTransports_) {
+      transport.interrupt();
+    }
+  }
+
+  /**
+   * Accept connections on the given transport and hand them to the workers
+   * until the server is stopped.
+   */
+  private void acceptLoop(TServerTransport transport) {
+    while (!stopped_) {
+      try {
+        TTransport client = transport.accept();
+        WorkerProcess wp = new WorkerProcess(client);
+        try {
+          executorService_.execute(wp);
+        } catch (RejectedExecutionException rx) {
+          reject(client, "Server overloaded, all worker threads are busy");
+        }
+      } catch (TTransportException ttx) {
+        if (!stopped_) {
+          LOGGER.warn("Transport error occurred during acceptance of message.", ttx);
+        }
+      }
+    }
+  }
+
+  private class Acceptor extends Thread {
+    private final TServerTransport transport_;
+
+    private Acceptor(TServerTransport transport) {
+      transport_ = transport;
+    }
+
+    @Override
+    public void run() {
+      acceptLoop(transport_);
+    }
+  }
+
+  /**
+   * Number of worker threads, or -1 if the executor service isn't a
+   * ThreadPoolExecutor.
+   */
+  public int getWorkerCount() {
+    if (executorService_ instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) executorService_).getPoolSize();
+    }
+    return -1;
+  }
+
+  /**
+   * Number of worker threads serving a connection, or -1 if the executor
+   * service isn't a ThreadPoolExecutor.
+   */
+  public int getBusyWorkerCount() {
+    if (executorService_ instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) executorService_).getActiveCount();
+    }
+    return -1;
+  }
+
+  /**
+   * The most worker threads there have ever been at once, or -1 if the
+   * executor service isn't a ThreadPoolExecutor.
+   */
+  public int getLargestWorkerCount() {
+    if (executorService_ instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) executorService_).getLargestPoolSize();
+    }
+    return -1;
+  }
+
+  /**
+   * Number of connections waiting for a worker thread, or -1 if the executor
+   * service isn't a ThreadPoolExecutor.
+   */
+  public int getQueuedConnectionCount() {
+    if (executorService_ instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) executorService_).getQueue().size();
+    }
+    return -1;
+  }
+
+  /**
+   * Number of connections turned away because there was no worker thread for
+   * them, including those that timed out in the queue.
+   */
+  public long getRejectedConnectionCount() {
+    return rejectedConnectionCount.get();
+  }
+
+  /**
+   * Number of connections turned away because they waited longer than
+   * queueTimeoutVal for a worker thread.
+   */
+  public long getQueueTimeoutCount() {
+    return queueTimeoutCount.get();
+  }
+
+  /**
+   * Turn away a connection there's no worker for. Its first request is
+   * answered with a TApplicationException, so the client can tell the server
+   * is overloaded, then the connection is closed. This happens on a thread
+   * of its own, since the client may be slow to send the request. If that
+   * thread falls behind too, the connection is just closed.
+   */
+  private void reject(TTransport client, String message) {
+    rejectedConnectionCount.incrementAndGet();
+    try {
+      rejector_.execute(new Rejection(client, message));
+    } catch (RejectedExecutionException rx) {
+      LOGGER.warn("Closing connection without answering, too many rejections pending");
+      client.close();
+    }
+  }
+
+  private class Rejection implements Runnable {
+    private final TTransport client_;
+    private final String message_;
+
+    private Rejection(TTransport client, String message) {
+      client_ = client;
+      message_ = message;
+    }
+
+    public void run() {
+      answerOverloaded(client_, message_);
+    }
+  }
+
+  private void answerOverloaded(TTransport client, String message) {
+    if (client instanceof TSocket) {
+      ((TSocket) client).setTimeout(REJECT_READ_TIMEOUT_MILLIS);
+    }
+    TTransport inputTransport = null;
+    TTransport outputTransport = null;
+    try {
+      inputTransport = inputTransportFactory_.getTransport(client);
+      outputTransport = outputTransportFactory_.getTransport(client);
+      TProtocol inputProtocol = inputProtocolFactory_.getProtocol(inputTransport);
+      TProtocol outputProtocol = outputProtocolFactory_.getProtocol(outputTransport);
+      TMessage msg = inputProtocol.readMessageBegin();
+      if (msg.type != TMessageType.ONEWAY) {
+        TApplicationException x = new TApplicationException(TApplicationException.INTERNAL_ERROR, message);
+        outputProtocol.writeMessageBegin(new TMessage(msg.name, TMessageType.EXCEPTION, msg.seqid));
+        x.write(outputProtocol);
+        outputProtocol.writeMessageEnd();
+        outputProtocol.getTransport().flush();
+      }
+    } catch (TTransportException ttx) {
+      // the client went away or never sent a request
+    } catch (TException tx) {
+      LOGGER.warn("Exception while rejecting!", tx);
+    } catch (RuntimeException x) {
+      LOGGER.warn("Exception while rejecting!", x);
+    }
+
+    if (inputTransport != null) {
+      inputTransport.close();
+    }
+    if (outputTransport != null) {
+      outputTransport.close();
+    }
+    client.close();
   }
 
   private class WorkerProcess implements Runnable {
@@ -157,6 +549,11 @@ public class TThreadPoolServer extends TServer {
      */
     private TTransport client_;
 
+    /**
+     * When the connection was accepted.
+     */
+    private final long acceptedNanos_;
+
     /**
      * Default constructor.
      *
@@ -164,12 +561,19 @@ public class TThreadPoolServer extends TServer {
      */
     private WorkerProcess(TTransport client) {
       client_ = client;
+      acceptedNanos_ = System.nanoTime();
     }
 
     /**
      * Loops on processing a client forever
      */
     public void run() {
+      if (queueTimeoutNanos > 0 && System.nanoTime() - acceptedNanos_ > queueTimeoutNanos) {
+        // leave answering it to the rejectors, this worker is needed elsewhere
+        queueTimeoutCount.incrementAndGet();
+        reject(client_, "Server overloaded, connection waited too long for a worker thread");
+        return;
+      }
       TProcessor processor = null;
       TTransport inputTransport = null;
       TTransport outputTransport = null;
@@ -177,13 +581,24 @@ public class TThreadPoolServer extends TServer {
       TProtocol outputProtocol = null;
       try {
         processor = processorFactory_.getProcessor(client_);
-        inputTransport = inputTransportFactory_.getTransport(client_);
-        outputTransport = outputTransportFactory_.getTransport(client_);
+        BlockingCallReporter reporter = null;
+        TTransport transport = client_;
+        if (eventListener_ != null) {
+          reporter = new BlockingCallReporter(eventListener_, client_);
+          transport = reporter.getTransport();
+        }
+        inputTransport = inputTransportFactory_.getTransport(transport);
+        outputTransport = outputTransportFactory_.getTransport(transport);
         inputProtocol = inputProtocolFactory_.getProtocol(inputTransport);
         outputProtocol = outputProtocolFactory_.getProtocol(outputTransport);
         // we check stopped_ first to make sure we're not supposed to be shutting
         // down. this is necessary for graceful shutdown.
-        while (!stopped_ && processor.process(inputProtocol, outputProtocol)) {}
+        if (reporter == null) {
+          while (!stopped_ && processor.process(inputProtocol, outputProtocol)) {}
+        } else {
+          eventListener_.connectionOpened(client_);
+          while (!stopped_ && reporter.process(processor, inputProtocol, outputProtocol)) {}
+        }
       } catch (TTransportException ttx) {
         // Assume the client died and continue silently
       } catch (TException tx) {
@@ -199,6 +614,10 @@ public class TThreadPoolServer extends TServer {
       if (outputTransport != null) {
         outputTransport.close();
       }
+
+      if (eventListener_ != null && outputProtocol != null) {
+        eventListener_.connectionClosed(client_);
+      }
     }
   }
 }
@@ -26,17 +26,27 @@ import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.thrift.transport.TNonblockingServerSocket;
 import org.apache.thrift.transport.TNonblockingServerTransport;
 import org.apache.thrift.transport.TNonblockingTransport;
 import org.apache.thrift.transport.TTransportException;
@@ -53,13 +63,28 @@ import org.slf4j.LoggerFactory;
  * environments when the the bottleneck is CPU on the single selector thread
  * handling I/O. In addition, because the accept handling is decoupled from
  * reads/writes and invocation, the server has better ability to handle back-
- * pressure from new connections (e.g. stop accepting when busy).
+ * pressure from new connections (e.g. stop accepting when busy). On platforms
+ * with SO_REUSEPORT, the selector threads can instead each accept on their own
+ * server socket, which copes better with many clients connecting at once.
  * 
  * Like TNonblockingServer, it relies on the use of TFramedTransport.
  */
 public class TThreadedSelectorServer extends AbstractNonblockingServer {
   private static final Logger LOGGER = LoggerFactory.getLogger(TThreadedSelectorServer.class.getName());
 
+  // how many connections a selector thread accepting for itself takes on
+  // each pass through its select loop
+  private static final int MAX_ACCEPTS_PER_SELECT = 64;
+
+  // how often the selector threads sample their bytes per second, and how
+  // quickly older samples fade out of the average
+  private static final long LOAD_SAMPLE_MILLIS = 100;
+  private static final long LOAD_DECAY_MILLIS = 1000;
+
+  // how far apart, relative to the least loaded, the most and least loaded
+  // selector threads must be before connections are moved between them
+  private static final double REBALANCE_TOLERANCE = 0.25;
+
   public static class Args extends AbstractNonblockingServerArgs<Args> {
 
     /** The number of threads for selecting on already-accepted connections */
@@ -100,6 +125,100 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
 
     private AcceptPolicy acceptPolicy = AcceptPolicy.FAST_ACCEPT;
 
+    /**
+     * Determines how new connections are spread over the selector threads.
+     */
+    public static enum SelectorBalancePolicy {
+      /**
+       * Hand connections to each selector thread in turn.
+       */
+      ROUND_ROBIN,
+      /**
+       * Hand each connection to the selector thread with the fewest
+       * connections.
+       */
+      LEAST_CONNECTIONS,
+      /**
+       * Hand each connection to the selector thread that has moved the fewest
+       * bytes per second recently. Since that is only measured once a second,
+       * this suits a fairly steady population of busy long-lived connections
+       * better than bursts of new ones.
+       */
+      LEAST_BYTES,
+      /**
+       * Pick two selector threads at random and hand the connection to the one
+       * with fewer connections. Nearly as good as LEAST_CONNECTIONS, without
+       * looking at every thread.
+       */
+      POWER_OF_TWO_CHOICES
+    }
+
+    private SelectorBalancePolicy selectorBalancePolicy = SelectorBalancePolicy.ROUND_ROBIN;
+
+    /**
+     * How often to move idle connections from the busiest selector thread to
+     * the least busy one. 0 disables rebalancing.
+     */
+    private int rebalanceIntervalVal = 0;
+    private TimeUnit rebalanceIntervalUnit = TimeUnit.SECONDS;
+
+    /**
+     * Whether every selector thread accepts connections on its own
+     * SO_REUSEPORT server socket, instead of a single accept thread handing
+     * them out.
+     */
+    private boolean acceptOnSelectorThreads = false;
+
+    /**
+     * Whether pipelined responses may be written as soon as they are ready,
+     * rather than in the order the requests arrived on the connection.
+     */
+    private boolean outOfOrderResponses = false;
+
+    /**
+     * Whether every invocation runs on a virtual thread of its own instead of
+     * on the worker threads.
+     */
+    private boolean useVirtualThreads = false;
+
+    /**
+     * Scheduling priorities for invocations of particular methods.
+     */
+    public static enum MethodPriority {
+      /** Served before anything else, e.g. health checks. */
+      HIGH,
+      /** The priority of methods that haven't been given one. */
+      NORMAL,
+      /** Served once nothing else is waiting, e.g. batch jobs. */
+      LOW
+    }
+
+    private final Map<String, MethodPriority> methodPriorities = new HashMap<String, MethodPriority>();
+    private final Map<String, ExecutorService> methodExecutors = new HashMap<String, ExecutorService>();
+
+    /**
+     * How long an invocation may be passed over in favour of higher priority
+     * ones before it goes first anyway. 0 lets higher priorities always win.
+     */
+    private int maxPriorityWaitVal = 1;
+    private TimeUnit maxPriorityWaitUnit = TimeUnit.SECONDS;
+
+    private final Set<String> inlineMethods = new HashSet<String>();
+
+    /**
+     * Methods whose calls take less than this on average on the worker
+     * threads are run on the selector threads instead. 0 disables this.
+     */
+    private int autoInlineThresholdVal = 0;
+    private TimeUnit autoInlineThresholdUnit = TimeUnit.MICROSECONDS;
+
+    /**
+     * The longest a call may run on a selector thread before its method is
+     * moved to the worker threads for good.
+     */
+    private int maxInlineTimeVal = 5;
+    private TimeUnit maxInlineTimeUnit = TimeUnit.MILLISECONDS;
+
     public Args(TNonblockingServerTransport transport) {
       super(transport);
     }
@@ -167,6 +286,196 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
       return this;
     }
 
+    public SelectorBalancePolicy getSelectorBalancePolicy() {
+      return selectorBalancePolicy;
+    }
+
+    public Args selectorBalancePolicy(SelectorBalancePolicy selectorBalancePolicy) {
+      this.selectorBalancePolicy = selectorBalancePolicy;
+      return this;
+    }
+
+    public int getRebalanceIntervalVal() {
+      return rebalanceIntervalVal;
+    }
+
+    /**
+     * Periodically move connections that are between requests from the
+     * busiest selector thread to the least busy one, as measured by the
+     * selectorBalancePolicy. Long-lived connections otherwise stay on whichever
+     * thread they were first handed to. 0, the default, disables this.
+     */
+    public Args rebalanceIntervalVal(int rebalanceIntervalVal) {
+      this.rebalanceIntervalVal = rebalanceIntervalVal;
+      return this;
+    }
+
+    public TimeUnit getRebalanceIntervalUnit() {
+      return rebalanceIntervalUnit;
+    }
+
+    public Args rebalanceIntervalUnit(TimeUnit rebalanceIntervalUnit) {
+      this.rebalanceIntervalUnit = rebalanceIntervalUnit;
+      return this;
+    }
+
+    public boolean getAcceptOnSelectorThreads() {
+      return acceptOnSelectorThreads;
+    }
+
+    /**
+     * Have every selector thread accept connections for itself, each on its
+     * own server socket bound to the same port with SO_REUSEPORT, so the
+     * kernel spreads new connections over the selector threads. This takes
+     * the single accept thread and its hand-off queues out of the way when
+     * many clients connect at once. The server transport must be a
+     * TNonblockingServerSocket created with reusePort; the other sockets are
+     * bound from it. The acceptPolicy and selectorBalancePolicy do not apply
+     * in this mode, but rebalancing does.
+     */
+    public Args acceptOnSelectorThreads(boolean acceptOnSelectorThreads) {
+      this.acceptOnSelectorThreads = acceptOnSelectorThreads;
+      return this;
+    }
+
+    public boolean getOutOfOrderResponses() {
+      return outOfOrderResponses;
+    }
+
+    /**
+     * Write each pipelined response back as soon as its request has been
+     * processed, so a slow call does not hold up the calls queued behind it
+     * on the same connection. Clients must match responses to requests by
+     * their seqid. Requires a pipelineDepth greater than 1.
+     */
+    public Args outOfOrderResponses(boolean outOfOrderResponses) {
+      this.outOfOrderResponses = outOfOrderResponses;
+      return this;
+    }
+
+    public boolean getUseVirtualThreads() {
+      return useVirtualThreads;
+    }
+
+    /**
+     * Run every invocation on a new virtual thread instead of on the worker
+     * threads, so handlers that block don't need a big pool to keep up.
+     * workerThreads does not apply. Requires Java 21 or later; see
+     * VirtualThreads.isSupported().
+     */
+    public Args useVirtualThreads(boolean useVirtualThreads) {
+      this.useVirtualThreads = useVirtualThreads;
+      return this;
+    }
+
+    public Map<String, MethodPriority> getMethodPriorities() {
+      return methodPriorities;
+    }
+
+    /**
+     * Schedule invocations of the given method with the given priority on the
+     * worker threads. Only applies to the default worker pool, not to an
+     * executorService or to methods that have their own methodExecutor. For
+     * multiplexed services, the method name includes the service name, as in
+     * "Service:method".
+     */
+    public Args methodPriority(String methodName, MethodPriority priority) {
+      methodPriorities.put(methodName, priority);
+      return this;
+    }
+
+    public Map<String, ExecutorService> getMethodExecutors() {
+      return methodExecutors;
+    }
+
+    /**
+     * Run invocations of the given method on their own executor instead of the
+     * worker threads, e.g. a small bounded pool for an expensive method so it
+     * can't tie up every worker. If the executor rejects an invocation, the
+     * client gets a TApplicationException back. The server doesn't shut the
+     * executor down when it stops, so it can be shared with other servers;
+     * that's left to the caller.
+     */
+    public Args methodExecutor(String methodName, ExecutorService executor) {
+      methodExecutors.put(methodName, executor);
+      return this;
+    }
+
+    public int getMaxPriorityWaitVal() {
+      return maxPriorityWaitVal;
+    }
+
+    public Args maxPriorityWaitVal(int maxPriorityWaitVal) {
+      this.maxPriorityWaitVal = maxPriorityWaitVal;
+      return this;
+    }
+
+    public TimeUnit getMaxPriorityWaitUnit() {
+      return maxPriorityWaitUnit;
+    }
+
+    public Args maxPriorityWaitUnit(TimeUnit maxPriorityWaitUnit) {
+      this.maxPriorityWaitUnit = maxPriorityWaitUnit;
+      return this;
+    }
+
+    public Set<String> getInlineMethods() {
+      return inlineMethods;
+    }
+
+    /**
+     * Run calls of the given method on the selector thread that read them,
+     * rather than handing them to the worker threads and back. Only worth it
+     * for methods that take microseconds, such as counters or cache hits,
+     * since the selector thread serves no other connection meanwhile. A
+     * method that takes longer than maxInlineTime is moved to the worker
+     * threads for good.
+     */
+    public Args inlineMethod(String methodName) {
+      inlineMethods.add(methodName);
+      return this;
+    }
+
+    public int getAutoInlineThresholdVal() {
+      return autoInlineThresholdVal;
+    }
+
+    public Args autoInlineThresholdVal(int autoInlineThresholdVal) {
+      this.autoInlineThresholdVal = autoInlineThresholdVal;
+      return this;
+    }
+
+    public TimeUnit getAutoInlineThresholdUnit() {
+      return autoInlineThresholdUnit;
+    }
+
+    public Args autoInlineThresholdUnit(TimeUnit autoInlineThresholdUnit) {
+      this.autoInlineThresholdUnit = autoInlineThresholdUnit;
+      return this;
+    }
+
+    public int getMaxInlineTimeVal() {
+      return maxInlineTimeVal;
+    }
+
+    public Args maxInlineTimeVal(int maxInlineTimeVal) {
+      this.maxInlineTimeVal = maxInlineTimeVal;
+      return this;
+    }
+
+    public TimeUnit getMaxInlineTimeUnit() {
+      return maxInlineTimeUnit;
+    }
+
+    public Args maxInlineTimeUnit(TimeUnit maxInlineTimeUnit) {
+      this.maxInlineTimeUnit = maxInlineTimeUnit;
+      return this;
+    }
+
+    private boolean isInlining() {
+      return !inlineMethods.isEmpty() || autoInlineThresholdVal > 0;
+    }
+
     public void validate() {
       if (selectorThreads <= 0) {
         throw new IllegalArgumentException("selectorThreads must be positive.");
@@ -177,18 +486,62 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
       if (acceptQueueSizePerThread <= 0) {
         throw new IllegalArgumentException("acceptQueueSizePerThread must be positive.");
       }
+      if (acceptOnSelectorThreads && !(serverTransport instanceof TNonblockingServerSocket
+          && ((TNonblockingServerSocket) serverTransport).isReusePort())) {
+        throw new IllegalArgumentException(
+            "acceptOnSelectorThreads requires a TNonblockingServerSocket created with reusePort.");
+      }
+      if (rebalanceIntervalVal < 0) {
+        throw new IllegalArgumentException("rebalanceIntervalVal must be non-negative.");
+      }
+      if (outOfOrderResponses && getPipelineDepth() <= 1) {
+        throw new IllegalArgumentException("outOfOrderResponses requires a pipelineDepth greater than 1.");
+      }
+      if (!methodPriorities.isEmpty() && (workerThreads == 0 || executorService != null)) {
+        throw new IllegalArgumentException("methodPriority requires the default worker pool.");
+      }
+      if (useVirtualThreads) {
+        if (!VirtualThreads.isSupported()) {
+          throw new IllegalArgumentException("useVirtualThreads requires Java 21 or later.");
+        }
+        if (executorService != null || !methodPriorities.isEmpty()) {
+          throw new IllegalArgumentException("useVirtualThreads can't be combined with executorService or methodPriority.");
+        }
+      }
+      if (maxPriorityWaitVal < 0) {
+        throw new IllegalArgumentException("maxPriorityWaitVal must be non-negative.");
+      }
+      if (autoInlineThresholdVal < 0) {
+        throw new IllegalArgumentException("autoInlineThresholdVal must be non-negative.");
+      }
+      if (maxInlineTimeVal <= 0) {
+        throw new IllegalArgumentException("maxInlineTimeVal must be positive.");
+      }
+      if (isInlining() && workerThreads == 0 && executorService == null) {
+        throw new IllegalArgumentException("Without worker threads, every call already runs on the selector threads.");
+      }
     }
   }
 
   // Flag for stopping the server
   private volatile boolean stopped_ = true;
 
-  // The thread handling all accepts
+  // The thread handling all accepts, unless the selector threads accept
   private AcceptThread acceptThread;
 
+  // The extra server sockets the selector threads accept on, if they do
+  private final List<TNonblockingServerSocket> siblingServerSockets = new ArrayList<TNonblockingServerSocket>();
+
   // Threads handling events on client transports
   private final Set<SelectorThread> selectorThreads = new HashSet<SelectorThread>();
 
+  // Connections the accept thread is accepting or has yet to hand to a
+  // selector thread
+  private final AtomicInteger acceptingCount = new AtomicInteger(0);
+
+  // The thread moving connections between selector threads, if enabled
+  private RebalanceThread rebalanceThread;
+
   // This wraps all the functionality of queueing and thread pool management
   // for the passing of Invocations from the selector thread(s) to the workers
   // (if any).
@@ -196,6 +549,12 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
 
   private final Args args;
 
+  // whether invocations are scheduled by method name
+  private final boolean routeByMethod;
+
+  // which methods run on the selector threads, or null if none do
+  private final InlineExecutionPolicy inlinePolicy;
+
   /**
    * Create the server with the specified Args configuration
    */
@@ -204,6 +563,14 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
     args.validate();
     invoker = args.executorService == null ? createDefaultExecutor(args) : args.executorService;
     this.args = args;
+    if (args.isInlining()) {
+      inlinePolicy = new InlineExecutionPolicy(args.inlineMethods,
+          args.autoInlineThresholdUnit.toNanos(args.autoInlineThresholdVal),
+          args.maxInlineTimeUnit.toNanos(args.maxInlineTimeVal));
+    } else {
+      inlinePolicy = null;
+    }
+    routeByMethod = !args.methodPriorities.isEmpty() || !args.methodExecutors.isEmpty() || inlinePolicy != null;
   }
 
   /**
@@ -215,23 +582,115 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
   @Override
   protected boolean startThreads() {
     try {
-      for (int i = 0; i < args.selectorThreads; ++i) {
-        selectorThreads.add(new SelectorThread(args.acceptQueueSizePerThread));
+      if (args.acceptOnSelectorThreads) {
+        createAcceptingSelectorThreads();
+      } else {
+        for (int i = 0; i < args.selectorThreads; ++i) {
+          selectorThreads.add(new SelectorThread(args.acceptQueueSizePerThread));
+        }
+        acceptThread = new AcceptThread((TNonblockingServerTransport) serverTransport_,
+          createSelectorThreadLoadBalancer(selectorThreads));
+      }
+      if (args.rebalanceIntervalVal > 0) {
+        rebalanceThread = new RebalanceThread(args.rebalanceIntervalUnit.toMillis(args.rebalanceIntervalVal));
       }
-      acceptThread = new AcceptThread((TNonblockingServerTransport) serverTransport_,
-        createSelectorThreadLoadBalancer(selectorThreads));
       stopped_ = false;
       for (SelectorThread thread : selectorThreads) {
         thread.start();
       }
-      acceptThread.start();
+      if (acceptThread != null) {
+        acceptThread.start();
+      }
+      if (rebalanceThread != null) {
+        rebalanceThread.start();
+      }
       return true;
     } catch (IOException e) {
       LOGGER.error("Failed to start threads!", e);
+      abandonThreads();
+      return false;
+    } catch (TTransportException e) {
+      LOGGER.error("Failed to bind server sockets for the selector threads!", e);
+      abandonThreads();
       return false;
     }
   }
 
+  /**
+   * Forget the threads created by a startThreads() that failed before any of
+   * them started, and release the ports bound for them.
+   */
+  private void abandonThreads() {
+    closeSiblingServerSockets();
+    selectorThreads.clear();
+    acceptThread = null;
+    rebalanceThread = null;
+  }
+
+  private void closeSiblingServerSockets() {
+    for (TNonblockingServerSocket socket : siblingServerSockets) {
+      socket.close();
+    }
+    siblingServerSockets.clear();
+  }
+
+  /**
+   * Give every selector thread a server socket to accept on: the first gets
+   * the server transport itself, the others get sockets bound to the same
+   * port.
+   */
+  private void createAcceptingSelectorThreads() throws IOException, TTransportException {
+    TNonblockingServerSocket serverSocket = (TNonblockingServerSocket) serverTransport_;
+    for (int i = 0; i < args.selectorThreads; ++i) {
+      TNonblockingServerSocket acceptSocket = serverSocket;
+      if (i > 0) {
+        acceptSocket = serverSocket.newReusePortSibling();
+        siblingServerSockets.add(acceptSocket);
+      }
+      selectorThreads.add(new SelectorThread(args.acceptQueueSizePerThread, acceptSocket));
+    }
+  }
+
+  @Override
+  protected boolean startListening() {
+    if (!super.startListening()) {
+      return false;
+    }
+    try {
+      for (TNonblockingServerSocket socket : siblingServerSockets) {
+        socket.listen();
+      }
+      return true;
+    } catch (TTransportException ttx) {
+      LOGGER.error("Failed to start listening on server socket!", ttx);
+      // don't leave the ones that did listen taking connections nobody accepts
+      stopListening();
+      return false;
+    }
+  }
+
+  @Override
+  protected void stopListening() {
+    super.stopListening();
+    closeSiblingServerSockets();
+  }
+
+  @Override
+  protected Collection<? extends AbstractSelectThread> getSelectThreads() {
+    return selectorThreads;
+  }
+
+  /**
+   * Also counts the connections that are on their way to a selector thread,
+   * whether in the accept thread, an accept queue, or being migrated. A
+   * connection may briefly be counted twice while it is handed over, but is
+   * never missed.
+   */
+  @Override
+  public int getOpenConnectionCount() {
+    return super.getOpenConnectionCount() + acceptingCount.get();
+  }
+
   /**
    * Joins the accept and selector threads and shuts down the executor service.
    */
@@ -248,10 +707,15 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
 
   protected void joinThreads() throws InterruptedException {
     // wait until the io threads exit
-    acceptThread.join();
+    if (acceptThread != null) {
+      acceptThread.join();
+    }
     for (SelectorThread thread : selectorThreads) {
       thread.join();
     }
+    if (rebalanceThread != null) {
+      rebalanceThread.join();
+    }
   }
 
   /**
@@ -267,6 +731,9 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
     if (acceptThread != null) {
       acceptThread.wakeupSelector();
     }
+    if (rebalanceThread != null) {
+      rebalanceThread.interrupt();
+    }
     if (selectorThreads != null) {
       for (SelectorThread thread : selectorThreads) {
         if (thread != null)
@@ -276,6 +743,11 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
   }
 
   protected void gracefullyShutdownInvokerPool() {
+    // the methodExecutors belong to the caller and are left running
+    if (invoker == null) {
+      return;
+    }
+
     // try to gracefully shut down the executor service
     invoker.shutdown();
 
@@ -305,6 +777,31 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
   @Override
   protected boolean requestInvoke(FrameBuffer frameBuffer) {
     Runnable invocation = getRunnable(frameBuffer);
+    if (routeByMethod) {
+      String methodName = frameBuffer.getReadMethodName();
+      if (inlinePolicy != null && inlinePolicy.isInline(methodName)) {
+        long startNanos = System.nanoTime();
+        frameBuffer.invoke(frameBuffer.getReadCall());
+        inlinePolicy.recordInline(methodName, System.nanoTime() - startNanos);
+        return true;
+      }
+      ExecutorService methodExecutor = args.methodExecutors.get(methodName);
+      if (methodExecutor != null) {
+        try {
+          methodExecutor.execute(invocation);
+        } catch (RejectedExecutionException rx) {
+          frameBuffer.reject(frameBuffer.getReadCall(), "Too many concurrent calls to " + methodName);
+        }
+        return true;
+      }
+      if (inlinePolicy != null && inlinePolicy.isLearning(methodName)) {
+        invocation = new TimedInvocation(invocation, methodName);
+      }
+      Args.MethodPriority priority = args.methodPriorities.get(methodName);
+      if (priority != null) {
+        invocation = new PriorityInvocationQueue.PrioritizedRunnable(invocation, priority.ordinal());
+      }
+    }
     if (invoker != null) {
       try {
         invoker.execute(invocation);
@@ -324,10 +821,105 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
     return new Invocation(frameBuffer);
   }
 
+  @Override
+  protected boolean needsMethodNames() {
+    return routeByMethod || super.needsMethodNames();
+  }
+
+  /**
+   * The methods that are currently run on the selector threads.
+   */
+  public Set<String> getInlineMethods() {
+    return inlinePolicy == null ? Collections.<String>emptySet() : inlinePolicy.getInlineMethods();
+  }
+
+  /**
+   * Number of calls that were run on a selector thread.
+   */
+  public long getInlineInvocationCount() {
+    return inlinePolicy == null ? 0 : inlinePolicy.getInlineCount();
+  }
+
+  /**
+   * Number of methods that were moved back to the worker threads because a
+   * call took longer than maxInlineTime on a selector thread.
+   */
+  public long getInlineDemotionCount() {
+    return inlinePolicy == null ? 0 : inlinePolicy.getDemotionCount();
+  }
+
+  /**
+   * Times an invocation on a worker thread, to find methods cheap enough to
+   * run inline. The invocation processes the call it was created for, so
+   * the time is always that of a call of methodName.
+   */
+  private class TimedInvocation implements Runnable {
+    private final Runnable invocation;
+    private final String methodName;
+
+    TimedInvocation(Runnable invocation, String methodName) {
+      this.invocation = invocation;
+      this.methodName = methodName;
+    }
+
+    public void run() {
+      long startNanos = System.nanoTime();
+      invocation.run();
+      inlinePolicy.recordPooled(methodName, System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Number of invocations waiting for a worker thread with the given
+   * priority. Always 0 unless method priorities are in use.
+   */
+  public int getQueuedInvocationCount(Args.MethodPriority priority) {
+    PriorityInvocationQueue queue = getPriorityQueue();
+    return queue == null ? 0 : queue.size(priority.ordinal());
+  }
+
+  /**
+   * Number of invocations that went ahead of higher priority ones because
+   * they had waited for longer than maxPriorityWait.
+   */
+  public long getAgedInvocationCount() {
+    PriorityInvocationQueue queue = getPriorityQueue();
+    return queue == null ? 0 : queue.getAgedCount();
+  }
+
+  private PriorityInvocationQueue getPriorityQueue() {
+    if (invoker instanceof ThreadPoolExecutor
+        && ((ThreadPoolExecutor) invoker).getQueue() instanceof PriorityInvocationQueue) {
+      return (PriorityInvocationQueue) ((ThreadPoolExecutor) invoker).getQueue();
+    }
+    return null;
+  }
+
+  /**
+   * Use out of order pipelining if it has been asked for.
+   */
+  @Override
+  protected FrameBuffer createFrameBuffer(final TNonblockingTransport trans,
+      final SelectionKey selectionKey,
+      final AbstractSelectThread selectThread) {
+    if (args.outOfOrderResponses) {
+      return new PipelinedFrameBuffer(trans, selectionKey, selectThread, false);
+    }
+    return super.createFrameBuffer(trans, selectionKey, selectThread);
+  }
+
   /**
    * Helper to create the invoker if one is not specified
    */
   protected static ExecutorService createDefaultExecutor(Args options) {
+    if (options.useVirtualThreads) {
+      return VirtualThreads.newThreadPerTaskExecutor("thrift-invoker-");
+    }
+    if (options.workerThreads > 0 && !options.methodPriorities.isEmpty()) {
+      PriorityInvocationQueue queue = new PriorityInvocationQueue(Args.MethodPriority.values().length,
+          Args.MethodPriority.NORMAL.ordinal(), options.maxPriorityWaitUnit.toNanos(options.maxPriorityWaitVal));
+      return new ThreadPoolExecutor(options.workerThreads, options.workerThreads, 0L, TimeUnit.MILLISECONDS, queue);
+    }
     return (options.workerThreads > 0) ? Executors.newFixedThreadPool(options.workerThreads) : null;
   }
 
@@ -377,6 +969,11 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
       } catch (Throwable t) {
         LOGGER.error("run() exiting due to uncaught error", t);
       } finally {
+        try {
+          acceptSelector.close();
+        } catch (IOException e) {
+          LOGGER.warn("Got an IOException while closing selector!", e);
+        }
         // This will wake up the selector threads
         TThreadedSelectorServer.this.stop();
       }
@@ -424,26 +1021,31 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
      * Accept a new connection.
      */
     private void handleAccept() {
+      // counted until a selector thread has it, see getOpenConnectionCount()
+      acceptingCount.incrementAndGet();
       final TNonblockingTransport client = doAccept();
-      if (client != null) {
-        // Pass this connection to a selector thread
-        final SelectorThread targetThread = threadChooser.nextThread();
-
-        if (args.acceptPolicy == Args.AcceptPolicy.FAST_ACCEPT || invoker == null) {
-          doAddAccept(targetThread, client);
-        } else {
-          // FAIR_ACCEPT
-          try {
-            invoker.submit(new Runnable() {
-              public void run() {
-                doAddAccept(targetThread, client);
-              }
-            });
-          } catch (RejectedExecutionException rx) {
-            LOGGER.warn("ExecutorService rejected accept registration!", rx);
-            // close immediately
-            client.close();
-          }
+      if (client == null) {
+        acceptingCount.decrementAndGet();
+        return;
+      }
+      // Pass this connection to a selector thread
+      final SelectorThread targetThread = threadChooser.nextThread();
+
+      if (args.acceptPolicy == Args.AcceptPolicy.FAST_ACCEPT || invoker == null) {
+        doAddAccept(targetThread, client);
+      } else {
+        // FAIR_ACCEPT
+        try {
+          invoker.submit(new Runnable() {
+            public void run() {
+              doAddAccept(targetThread, client);
+            }
+          });
+        } catch (RejectedExecutionException rx) {
+          LOGGER.warn("ExecutorService rejected accept registration!", rx);
+          // close immediately
+          client.close();
+          acceptingCount.decrementAndGet();
         }
       }
     }
@@ -462,6 +1064,7 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
       if (!thread.addAcceptedConnection(client)) {
         client.close();
       }
+      acceptingCount.decrementAndGet();
     }
   } // AcceptThread
 
@@ -474,6 +1077,23 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
     // Accepted connections added by the accept thread.
     private final BlockingQueue<TNonblockingTransport> acceptedQueue;
 
+    // The server socket this thread accepts on itself, if any
+    private final TNonblockingServerTransport serverTransport;
+
+    // Idle connections handed over by other selector threads.
+    private final Queue<TNonblockingTransport> migratedQueue = new ConcurrentLinkedQueue<TNonblockingTransport>();
+
+    // Connections handed to this thread, or being accepted by it, that it
+    // hasn't registered yet
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+
+    // A request from the rebalancer to hand some connections to another thread
+    private final AtomicReference<MigrationRequest> migrationRequest = new AtomicReference<MigrationRequest>();
+    private volatile long migratedAwayCount = 0;
+
+    // Bytes per second moved, decaying over about a second
+    private final DecayingRate bytesPerSecond = new DecayingRate(LOAD_DECAY_MILLIS, System.currentTimeMillis(), 0);
+
     /**
      * Set up the SelectorThread with an unbounded queue for incoming accepts.
      * 
@@ -505,6 +1125,20 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
      */
     public SelectorThread(BlockingQueue<TNonblockingTransport> acceptedQueue) throws IOException {
       this.acceptedQueue = acceptedQueue;
+      this.serverTransport = null;
+    }
+
+    /**
+     * Set up a SelectorThread that accepts connections from the given server
+     * transport itself, in addition to any handed to it.
+     *
+     * @throws IOException
+     *           if a selector cannot be created.
+     */
+    public SelectorThread(int maxPendingAccepts, TNonblockingServerTransport serverTransport) throws IOException {
+      this.acceptedQueue = createDefaultAcceptQueue(maxPendingAccepts);
+      this.serverTransport = serverTransport;
+      serverTransport.registerSelector(selector);
     }
 
     /**
@@ -516,9 +1150,11 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
      * @return true if the connection has been successfully added.
      */
     public boolean addAcceptedConnection(TNonblockingTransport accepted) {
+      pendingCount.incrementAndGet();
       try {
         acceptedQueue.put(accepted);
       } catch (InterruptedException e) {
+        pendingCount.decrementAndGet();
         LOGGER.warn("Interrupted while adding accepted connection!", e);
         return false;
       }
@@ -526,6 +1162,51 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
       return true;
     }
 
+    /**
+     * Hands off an idle connection that was being managed by another selector
+     * thread.
+     */
+    public void addMigratedConnection(TNonblockingTransport migrated) {
+      pendingCount.incrementAndGet();
+      migratedQueue.offer(migrated);
+      selector.wakeup();
+    }
+
+    /**
+     * Ask this thread to hand up to count of its idle connections over to
+     * another selector thread. Replaces any request it hasn't acted on yet.
+     */
+    public void requestMigration(SelectorThread target, int count) {
+      migrationRequest.set(new MigrationRequest(target, count));
+      selector.wakeup();
+    }
+
+    /**
+     * Number of open connections this thread manages, counting the ones
+     * handed to it that it hasn't picked up yet.
+     */
+    @Override
+    public int getConnectionCount() {
+      return super.getConnectionCount() + pendingCount.get();
+    }
+
+    /**
+     * Bytes per second read and written by this thread, as a moving average
+     * that weighs the last second or so the most. Falls off towards 0 once
+     * the thread goes idle.
+     */
+    public double getBytesPerSecond() {
+      return bytesPerSecond.get(System.currentTimeMillis(), getBytesTransferred());
+    }
+
+    /**
+     * Number of connections this thread has handed over to other selector
+     * threads.
+     */
+    public long getMigratedAwayCount() {
+      return migratedAwayCount;
+    }
+
     /**
      * The work loop. Handles selecting (read/write IO), dispatching, and
      * managing the selection preferences of all existing connections.
@@ -535,7 +1216,11 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
         while (!stopped_) {
           select();
           processAcceptedConnections();
+          processMigrationRequest();
           processInterestChanges();
+          processTimeouts();
+          processDrain();
+          updateLoad();
         }
         for (SelectionKey selectionKey : selector.keys()) {
           cleanupSelectionKey(selectionKey);
@@ -543,6 +1228,7 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
       } catch (Throwable t) {
         LOGGER.error("run() exiting due to uncaught error", t);
       } finally {
+        closeSelector();
         // This will wake up the accept thread and the other selector threads
         TThreadedSelectorServer.this.stop();
       }
@@ -557,7 +1243,7 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
     private void select() {
       try {
         // wait for io events.
-        selector.select();
+        selectUntilNextTimeout();
 
         // process the io events we received
         Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
@@ -571,7 +1257,10 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
             continue;
           }
 
-          if (key.isReadable()) {
+          if (key.isAcceptable()) {
+            // only possible if this thread has its own server socket
+            handleAccept();
+          } else if (key.isReadable()) {
             // deal with reads
             handleRead(key);
           } else if (key.isWritable()) {
@@ -586,6 +1275,31 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
       }
     }
 
+    /**
+     * Accept the connections waiting on our own server socket and register
+     * them straight away. At most MAX_ACCEPTS_PER_SELECT are taken at a time,
+     * so existing connections still get served while a lot of clients are
+     * connecting; the rest are picked up on the next pass.
+     */
+    private void handleAccept() {
+      for (int i = 0; i < MAX_ACCEPTS_PER_SELECT && !stopped_; ++i) {
+        TNonblockingTransport client;
+        try {
+          client = (TNonblockingTransport) serverTransport.accept();
+        } catch (TTransportException tte) {
+          // something went wrong accepting.
+          LOGGER.warn("Exception trying to accept!", tte);
+          return;
+        }
+        if (client == null) {
+          return;
+        }
+        pendingCount.incrementAndGet();
+        registerAccepted(client, false);
+        pendingCount.decrementAndGet();
+      }
+    }
+
     private void processAcceptedConnections() {
       // Register accepted connections
       while (!stopped_) {
@@ -593,17 +1307,76 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
         if (accepted == null) {
           break;
         }
-        registerAccepted(accepted);
+        registerAccepted(accepted, false);
+        pendingCount.decrementAndGet();
+      }
+      // and the ones other selector threads handed over
+      while (!stopped_) {
+        TNonblockingTransport migrated = migratedQueue.poll();
+        if (migrated == null) {
+          break;
+        }
+        registerAccepted(migrated, true);
+        pendingCount.decrementAndGet();
+      }
+    }
+
+    /**
+     * Hand idle connections over to another selector thread, if the rebalancer
+     * has asked for it. Only connections that are between requests are moved,
+     * so there is no partially read frame or pending response to carry over.
+     */
+    private void processMigrationRequest() {
+      MigrationRequest request = migrationRequest.getAndSet(null);
+      if (request == null || request.target == this) {
+        return;
+      }
+      int moved = 0;
+      for (SelectionKey key : selector.keys()) {
+        if (moved >= request.count || stopped_) {
+          break;
+        }
+        if (!key.isValid()) {
+          continue;
+        }
+        FrameBuffer frameBuffer = (FrameBuffer) key.attachment();
+        if (frameBuffer == null || !frameBuffer.isIdle()) {
+          continue;
+        }
+        // still counted here until the target has it
+        pendingCount.incrementAndGet();
+        frameBuffer.detach();
+        request.target.addMigratedConnection(frameBuffer.trans_);
+        pendingCount.decrementAndGet();
+        moved++;
       }
+      migratedAwayCount += moved;
     }
 
-    private void registerAccepted(TNonblockingTransport accepted) {
+    /**
+     * Fold the bytes moved since the last sample into the bytes per second.
+     */
+    private void updateLoad() {
+      long now = System.currentTimeMillis();
+      if (now - bytesPerSecond.getLastSampleMillis() >= LOAD_SAMPLE_MILLIS) {
+        bytesPerSecond.sample(now, getBytesTransferred());
+      }
+    }
+
+    /**
+     * Start managing a connection, either newly accepted or migrated here from
+     * another selector thread.
+     */
+    private void registerAccepted(TNonblockingTransport accepted, boolean migrated) {
       SelectionKey clientKey = null;
       try {
         clientKey = accepted.registerSelector(selector, SelectionKey.OP_READ);
 
-        FrameBuffer frameBuffer = new FrameBuffer(accepted, clientKey, SelectorThread.this);
+        FrameBuffer frameBuffer = createFrameBuffer(accepted, clientKey, SelectorThread.this);
         clientKey.attach(frameBuffer);
+        if (eventListener_ != null && !migrated) {
+          eventListener_.connectionOpened(accepted);
+        }
       } catch (IOException e) {
         LOGGER.warn("Failed to register accepted connection to selector!", e);
         if (clientKey != null) {
@@ -614,12 +1387,193 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
     }
   } // SelectorThread
 
+  /**
+   * A rebalancer's request for a selector thread to hand some of its idle
+   * connections to another one.
+   */
+  private static class MigrationRequest {
+    final SelectorThread target;
+    final int count;
+
+    MigrationRequest(SelectorThread target, int count) {
+      this.target = target;
+      this.count = count;
+    }
+  }
+
+  /**
+   * How a selector thread's load is measured for balancing: bytes per second
+   * under the LEAST_BYTES policy, open connections otherwise.
+   */
+  protected double getLoad(SelectorThread thread) {
+    if (args.selectorBalancePolicy == Args.SelectorBalancePolicy.LEAST_BYTES) {
+      return thread.getBytesPerSecond();
+    }
+    return thread.getConnectionCount();
+  }
+
+  /**
+   * Move idle connections from the most loaded selector thread to the least
+   * loaded one, if they are far enough apart. See planMigration().
+   */
+  protected void rebalanceSelectorThreads() {
+    List<SelectorThread> threads = new ArrayList<SelectorThread>(selectorThreads);
+    double[] loads = new double[threads.size()];
+    int[] connections = new int[threads.size()];
+    for (int i = 0; i < loads.length; i++) {
+      loads[i] = getLoad(threads.get(i));
+      connections[i] = threads.get(i).getConnectionCount();
+    }
+    MigrationPlan plan = planMigration(loads, connections);
+    if (plan != null) {
+      threads.get(plan.from).requestMigration(threads.get(plan.to), plan.count);
+    }
+  }
+
+  /**
+   * Which connections to move between selector threads: from the most
+   * loaded to the least loaded one, if they are far enough apart. Half the
+   * difference is moved, estimating the load of a connection on the busiest
+   * thread as its average. Ties go to the thread that comes first.
+   *
+   * @param loads The load of each thread.
+   * @param connections How many connections each thread has.
+   * @return What to move, as indexes into the arrays, or null for nothing.
+   */
+  static MigrationPlan planMigration(double[] loads, int[] connections) {
+    int busiest = -1;
+    int idlest = -1;
+    for (int i = 0; i < loads.length; i++) {
+      if (busiest == -1 || loads[i] > loads[busiest]) {
+        busiest = i;
+      }
+      if (idlest == -1 || loads[i] < loads[idlest]) {
+        idlest = i;
+      }
+    }
+    if (busiest == idlest) {
+      return null;
+    }
+
+    double maxLoad = loads[busiest];
+    double minLoad = loads[idlest];
+    int count = connections[busiest];
+    if (count < 2 || maxLoad <= minLoad * (1 + REBALANCE_TOLERANCE)) {
+      return null;
+    }
+    double loadPerConnection = maxLoad / count;
+    int moved = (int) (((maxLoad - minLoad) / 2) / loadPerConnection);
+    moved = Math.min(moved, count / 2);
+    return moved > 0 ? new MigrationPlan(busiest, idlest, moved) : null;
+  }
+
+  /**
+   * Connections planMigration() decided to move between two selector threads.
+   */
+  static class MigrationPlan {
+    final int from;
+    final int to;
+    final int count;
+
+    MigrationPlan(int from, int to, int count) {
+      this.from = from;
+      this.to = to;
+      this.count = count;
+    }
+  }
+
+  /**
+   * The thread that periodically rebalances connections across the selector
+   * threads.
+   */
+  protected class RebalanceThread extends Thread {
+    private final long intervalMillis;
+
+    public RebalanceThread(long intervalMillis) {
+      super("TThreadedSelectorServer-rebalancer");
+      this.intervalMillis = intervalMillis;
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (!stopped_) {
+        try {
+          Thread.sleep(intervalMillis);
+        } catch (InterruptedException e) {
+          continue;
+        }
+        if (!stopped_) {
+          rebalanceSelectorThreads();
+        }
+      }
+    }
+  } // RebalanceThread
+
+  /**
+   * A point in time view of one selector thread's load, for monitoring.
+   */
+  public static class SelectorThreadLoad {
+    private final String threadName;
+    private final int connectionCount;
+    private final double bytesPerSecond;
+    private final long migratedAwayCount;
+
+    public SelectorThreadLoad(String threadName, int connectionCount, double bytesPerSecond, long migratedAwayCount) {
+      this.threadName = threadName;
+      this.connectionCount = connectionCount;
+      this.bytesPerSecond = bytesPerSecond;
+      this.migratedAwayCount = migratedAwayCount;
+    }
+
+    public String getThreadName() {
+      return threadName;
+    }
+
+    public int getConnectionCount() {
+      return connectionCount;
+    }
+
+    public double getBytesPerSecond() {
+      return bytesPerSecond;
+    }
+
+    public long getMigratedAwayCount() {
+      return migratedAwayCount;
+    }
+
+    @Override
+    public String toString() {
+      return threadName + ": " + connectionCount + " connections, " + (long) bytesPerSecond + " bytes/s, "
+          + migratedAwayCount + " migrated away";
+    }
+  }
+
+  /**
+   * The current load of every selector thread.
+   */
+  public List<SelectorThreadLoad> getSelectorThreadLoads() {
+    List<SelectorThreadLoad> loads = new ArrayList<SelectorThreadLoad>();
+    for (SelectorThread thread : selectorThreads) {
+      loads.add(new SelectorThreadLoad(thread.getName(), thread.getConnectionCount(),
+          thread.getBytesPerSecond(), thread.getMigratedAwayCount()));
+    }
+    return loads;
+  }
+
   /**
    * Creates a SelectorThreadLoadBalancer to be used by the accept thread for
    * assigning newly accepted connections across the threads.
    */
   protected SelectorThreadLoadBalancer createSelectorThreadLoadBalancer(Collection<? extends SelectorThread> threads) {
-    return new SelectorThreadLoadBalancer(threads);
+    switch (args.selectorBalancePolicy) {
+      case LEAST_CONNECTIONS:
+      case LEAST_BYTES:
+        return new LeastLoadedSelectorThreadLoadBalancer(threads);
+      case POWER_OF_TWO_CHOICES:
+        return new PowerOfTwoChoicesSelectorThreadLoadBalancer(threads);
+      default:
+        return new SelectorThreadLoadBalancer(threads);
+    }
   }
 
   /**
@@ -645,5 +1599,64 @@ public class TThreadedSelectorServer extends AbstractNonblockingServer {
       }
       return nextThreadIterator.next();
     }
+
+    protected Collection<? extends SelectorThread> getThreads() {
+      return threads;
+    }
+  }
+
+  /**
+   * A load balancer that picks the selector thread with the lowest load, as
+   * measured by getLoad(). Ties go to the thread round robin would have
+   * picked, so an idle server still spreads connections evenly.
+   */
+  protected class LeastLoadedSelectorThreadLoadBalancer extends SelectorThreadLoadBalancer {
+    public <T extends SelectorThread> LeastLoadedSelectorThreadLoadBalancer(Collection<T> threads) {
+      super(threads);
+    }
+
+    @Override
+    public SelectorThread nextThread() {
+      SelectorThread best = super.nextThread();
+      double bestLoad = getLoad(best);
+      for (SelectorThread thread : getThreads()) {
+        double load = getLoad(thread);
+        if (load < bestLoad) {
+          best = thread;
+          bestLoad = load;
+        }
+      }
+      return best;
+    }
+  }
+
+  /**
+   * A load balancer that picks two selector threads at random and takes the
+   * one with the lower load, as measured by getLoad().
+   */
+  protected class PowerOfTwoChoicesSelectorThreadLoadBalancer extends SelectorThreadLoadBalancer {
+    private final List<SelectorThread> threadList;
+    private final Random random = new Random();
+
+    public <T extends SelectorThread> PowerOfTwoChoicesSelectorThreadLoadBalancer(Collection<T> threads) {
+      super(threads);
+      threadList = new ArrayList<SelectorThread>(threads);
+    }
+
+    @Override
+    public SelectorThread nextThread() {
+      int size = threadList.size();
+      if (size == 1) {
+        return threadList.get(0);
+      }
+      int first = random.nextInt(size);
+      int second = random.nextInt(size - 1);
+      if (second >= first) {
+        second++;
+      }
+      SelectorThread a = threadList.get(first);
+      SelectorThread b = threadList.get(second);
+      return getLoad(a) <= getLoad(b) ? a : b;
+    }
   }
 }
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of Java 21 and later. Looked up reflectively
+ * since this library still builds for Java 5.
+ */
+public final class VirtualThreads {
+  // Thread.ofVirtual(), Thread.Builder.name(String, long),
+  // Thread.Builder.factory() and Executors.newThreadPerTaskExecutor(), or
+  // null if this JDK has no virtual threads
+  private static final Method[] METHODS = lookupMethods();
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Whether this JDK can run tasks on virtual threads.
+   */
+  public static boolean isSupported() {
+    return METHODS != null;
+  }
+
+  /**
+   * An executor that starts a new virtual thread for every task, named
+   * namePrefix followed by a sequence number.
+   *
+   * @throws UnsupportedOperationException if virtual threads aren't supported
+   */
+  public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+    if (METHODS == null) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+    }
+    try {
+      return (ExecutorService) METHODS[3].invoke(null, newThreadFactory(namePrefix));
+    } catch (Exception e) {
+      throw new UnsupportedOperationException("Could not create a virtual thread executor.", e);
+    }
+  }
+
+  private static ThreadFactory newThreadFactory(String namePrefix) throws Exception {
+    Object builder = METHODS[0].invoke(null);
+    builder = METHODS[1].invoke(builder, namePrefix, 0L);
+    return (ThreadFactory) METHODS[2].invoke(builder);
+  }
+
+  private static Method[] lookupMethods() {
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      Method[] methods = new Method[] {
+        Thread.class.getMethod("ofVirtual"),
+        builder.getMethod("name", String.class, long.class),
+        builder.getMethod("factory"),
+        Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+      };
+      // virtual threads are a preview feature on Java 19 and 20, and throw
+      // unless previews are enabled
+      methods[0].invoke(null);
+      return methods;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
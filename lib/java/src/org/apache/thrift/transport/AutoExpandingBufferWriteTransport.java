@@ -26,11 +26,23 @@ import org.apache.commons.lang.NotImplementedException;
 public final class AutoExpandingBufferWriteTransport extends TTransport {
 
   private final AutoExpandingBuffer buf;
+  private final int frontReserve;
   private int pos;
 
   public AutoExpandingBufferWriteTransport(int initialCapacity, double growthCoefficient) {
+    this(initialCapacity, growthCoefficient, 0);
+  }
+
+  /**
+   * @param frontReserve Number of bytes to leave empty at the start of the
+   * buffer, so that a header can be filled in there once the rest of the
+   * data has been written.
+   */
+  public AutoExpandingBufferWriteTransport(int initialCapacity, double growthCoefficient, int frontReserve) {
     this.buf = new AutoExpandingBuffer(initialCapacity, growthCoefficient);
-    this.pos = 0;
+    this.buf.resizeIfNecessary(frontReserve);
+    this.frontReserve = frontReserve;
+    this.pos = frontReserve;
   }
 
   @Override
@@ -54,15 +66,40 @@ public final class AutoExpandingBufferWriteTransport extends TTransport {
     pos += len;
   }
 
+  @Override
+  public boolean reserveWriteBuffer(int len) {
+    buf.resizeIfNecessary(pos + len);
+    return true;
+  }
+
+  @Override
+  public byte[] getWriteBuffer() {
+    return buf.array();
+  }
+
+  @Override
+  public int getWriteBufferPosition() {
+    return pos;
+  }
+
+  @Override
+  public void commitWriteBuffer(int len) {
+    pos += len;
+  }
+
   public AutoExpandingBuffer getBuf() {
     return buf;
   }
 
+  /**
+   * The position the next write will go to. This includes the front reserve,
+   * so it is also the number of bytes to send out of getBuf().
+   */
   public int getPos() {
     return pos;
   }
 
   public void reset() {
-    pos = 0;
+    pos = frontReserve;
   }
 }
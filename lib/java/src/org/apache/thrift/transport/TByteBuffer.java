@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.transport;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport that reads from and writes to a ByteBuffer, which may be a heap,
+ * direct, sliced or mapped buffer. Reading consumes the bytes between the
+ * buffer's position and limit; writing fills the same range.
+ *
+ * Heap buffers are exposed through getBuffer() so the protocols can use their
+ * usual byte[] fast paths. Every buffer is also exposed through
+ * getByteBuffer(), which lets the protocols decode directly out of direct
+ * buffers without first copying them into a byte[].
+ */
+public final class TByteBuffer extends TTransport {
+  private ByteBuffer buf_;
+
+  public TByteBuffer() {
+  }
+
+  /**
+   * @param buf The buffer to wrap. It is used as-is, not duplicated, so
+   * reading or writing moves its position.
+   */
+  public TByteBuffer(ByteBuffer buf) {
+    reset(buf);
+  }
+
+  public void reset(ByteBuffer buf) {
+    buf_ = buf;
+  }
+
+  public void clear() {
+    buf_ = null;
+  }
+
+  @Override
+  public void close() {}
+
+  @Override
+  public boolean isOpen() {
+    return true;
+  }
+
+  @Override
+  public void open() throws TTransportException {}
+
+  @Override
+  public int read(byte[] buf, int off, int len) throws TTransportException {
+    int amtToRead = Math.min(len, buf_.remaining());
+    if (amtToRead > 0) {
+      buf_.get(buf, off, amtToRead);
+    }
+    return amtToRead;
+  }
+
+  @Override
+  public void write(byte[] buf, int off, int len) throws TTransportException {
+    try {
+      buf_.put(buf, off, len);
+    } catch (BufferOverflowException e) {
+      throw new TTransportException("Not enough room in output buffer", e);
+    }
+  }
+
+  @Override
+  public byte[] getBuffer() {
+    return buf_.hasArray() ? buf_.array() : null;
+  }
+
+  @Override
+  public int getBufferPosition() {
+    return buf_.hasArray() ? buf_.arrayOffset() + buf_.position() : 0;
+  }
+
+  @Override
+  public int getBytesRemainingInBuffer() {
+    return buf_.hasArray() ? buf_.remaining() : -1;
+  }
+
+  @Override
+  public void consumeBuffer(int len) {
+    buf_.position(buf_.position() + len);
+  }
+
+  @Override
+  public ByteBuffer getByteBuffer() {
+    return buf_;
+  }
+}
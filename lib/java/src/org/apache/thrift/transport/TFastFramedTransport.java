@@ -104,7 +104,9 @@ public class TFastFramedTransport extends TTransport {
   public TFastFramedTransport(TTransport underlying, int initialBufferCapacity, int maxLength) {
     this.underlying = underlying;
     this.maxLength = maxLength;
-    writeBuffer = new AutoExpandingBufferWriteTransport(initialBufferCapacity, 1.5);
+    // leave room for the frame size in front of the data, so that a whole
+    // frame can be handed to the underlying transport in one write.
+    writeBuffer = new AutoExpandingBufferWriteTransport(initialBufferCapacity, 1.5, 4);
     readBuffer = new AutoExpandingBufferReadTransport(initialBufferCapacity, 1.5);
   }
 
@@ -156,6 +158,26 @@ public class TFastFramedTransport extends TTransport {
     writeBuffer.write(buf, off, len);
   }
 
+  @Override
+  public boolean reserveWriteBuffer(int len) {
+    return writeBuffer.reserveWriteBuffer(len);
+  }
+
+  @Override
+  public byte[] getWriteBuffer() {
+    return writeBuffer.getWriteBuffer();
+  }
+
+  @Override
+  public int getWriteBufferPosition() {
+    return writeBuffer.getWriteBufferPosition();
+  }
+
+  @Override
+  public void commitWriteBuffer(int len) {
+    writeBuffer.commitWriteBuffer(len);
+  }
+
   @Override
   public void consumeBuffer(int len) {
     readBuffer.consumeBuffer(len);
@@ -164,9 +186,9 @@ public class TFastFramedTransport extends TTransport {
   @Override
   public void flush() throws TTransportException {
     int length = writeBuffer.getPos();
-    TFramedTransport.encodeFrameSize(length, i32buf);
-    underlying.write(i32buf, 0, 4);
-    underlying.write(writeBuffer.getBuf().array(), 0, length);
+    byte[] frame = writeBuffer.getBuf().array();
+    TFramedTransport.encodeFrameSize(length - 4, frame);
+    underlying.write(frame, 0, length);
     writeBuffer.reset();
     underlying.flush();
   }
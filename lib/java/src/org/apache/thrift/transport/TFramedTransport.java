@@ -37,11 +37,14 @@ public class TFramedTransport extends TTransport {
   private TTransport transport_ = null;
 
   /**
-   * Buffer for output
+   * Buffer for output. The first 4 bytes are reserved for the frame size, so
+   * that a whole frame can be handed to the underlying transport in one write.
    */
   private final TByteArrayOutputStream writeBuffer_ =
     new TByteArrayOutputStream(1024);
 
+  private static final byte[] sizeFiller_ = new byte[] { 0x00, 0x00, 0x00, 0x00 };
+
   /**
    * Buffer for input
    */
@@ -70,11 +73,11 @@ public class TFramedTransport extends TTransport {
   public TFramedTransport(TTransport transport, int maxLength) {
     transport_ = transport;
     maxLength_ = maxLength;
+    writeBuffer_.write(sizeFiller_, 0, 4);
   }
 
   public TFramedTransport(TTransport transport) {
-    transport_ = transport;
-    maxLength_ = TFramedTransport.DEFAULT_MAX_LENGTH;
+    this(transport, TFramedTransport.DEFAULT_MAX_LENGTH);
   }
 
   public void open() throws TTransportException {
@@ -146,15 +149,38 @@ public class TFramedTransport extends TTransport {
     writeBuffer_.write(buf, off, len);
   }
 
+  @Override
+  public boolean reserveWriteBuffer(int len) {
+    writeBuffer_.reserve(len);
+    return true;
+  }
+
+  @Override
+  public byte[] getWriteBuffer() {
+    return writeBuffer_.get();
+  }
+
+  @Override
+  public int getWriteBufferPosition() {
+    return writeBuffer_.len();
+  }
+
+  @Override
+  public void commitWriteBuffer(int len) {
+    writeBuffer_.commit(len);
+  }
+
   @Override
   public void flush() throws TTransportException {
     byte[] buf = writeBuffer_.get();
-    int len = writeBuffer_.len();
+    int len = writeBuffer_.len() - 4;       // account for the prepended frame size
     writeBuffer_.reset();
+    writeBuffer_.write(sizeFiller_, 0, 4);  // make room for the next frame's size data
 
-    encodeFrameSize(len, i32buf);
-    transport_.write(i32buf, 0, 4);
-    transport_.write(buf, 0, len);
+    // the size filler just went into buf, which is big enough to not be
+    // reallocated, so fill in the real size after it.
+    encodeFrameSize(len, buf);
+    transport_.write(buf, 0, len + 4);      // we have to write the frame size and frame data
     transport_.flush();
   }
 
@@ -66,6 +66,27 @@ public class TMemoryBuffer extends TTransport {
     arr_.write(buf, off, len);
   }
 
+  @Override
+  public boolean reserveWriteBuffer(int len) {
+    arr_.reserve(len);
+    return true;
+  }
+
+  @Override
+  public byte[] getWriteBuffer() {
+    return arr_.get();
+  }
+
+  @Override
+  public int getWriteBufferPosition() {
+    return arr_.len();
+  }
+
+  @Override
+  public void commitWriteBuffer(int len) {
+    arr_.commit(len);
+  }
+
   /**
    * Output the contents of the memory buffer as a String, using the supplied
    * encoding
@@ -21,6 +21,7 @@
 package org.apache.thrift.transport;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketException;
@@ -29,6 +30,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +56,22 @@ public class TNonblockingServerSocket extends TNonblockingServerTransport {
    */
   private int clientTimeout_ = 0;
 
+  /**
+   * The address we were asked to bind to, for binding siblings
+   */
+  private final InetSocketAddress bindAddr_;
+
+  /**
+   * Whether the socket was bound with SO_REUSEPORT
+   */
+  private final boolean reusePort_;
+
+  /**
+   * StandardSocketOptions.SO_REUSEPORT, or null on JDKs older than 9. Looked
+   * up reflectively since this library still builds for Java 5.
+   */
+  private static final Object SO_REUSEPORT = lookupReusePortOption();
+
   /**
    * Creates just a port listening server socket
    */
@@ -73,11 +91,31 @@ public class TNonblockingServerSocket extends TNonblockingServerTransport {
   }
 
   public TNonblockingServerSocket(InetSocketAddress bindAddr, int clientTimeout) throws TTransportException {
+    this(bindAddr, clientTimeout, false);
+  }
+
+  /**
+   * Creates a server socket that may share its port with other sockets.
+   *
+   * @param reusePort Bind with SO_REUSEPORT, so that further sockets can be
+   * bound to the same address with newReusePortSibling(), and the kernel
+   * spreads incoming connections over all of them. Requires a JDK and OS
+   * that support SO_REUSEPORT; see isReusePortSupported().
+   */
+  public TNonblockingServerSocket(InetSocketAddress bindAddr, int clientTimeout, boolean reusePort)
+      throws TTransportException {
     clientTimeout_ = clientTimeout;
+    bindAddr_ = bindAddr;
+    reusePort_ = reusePort;
     try {
       serverSocketChannel = ServerSocketChannel.open();
       serverSocketChannel.configureBlocking(false);
 
+      if (reusePort && !setReusePort(serverSocketChannel)) {
+        serverSocketChannel.close();
+        throw new TTransportException("SO_REUSEPORT is not supported on this platform.");
+      }
+
       // Make server socket
       serverSocket_ = serverSocketChannel.socket();
       // Prevent 2MSL delay problem on server restarts
@@ -90,6 +128,60 @@ public class TNonblockingServerSocket extends TNonblockingServerTransport {
     }
   }
 
+  /**
+   * Whether server sockets can be bound with SO_REUSEPORT here.
+   */
+  public static boolean isReusePortSupported() {
+    if (SO_REUSEPORT == null) {
+      return false;
+    }
+    ServerSocketChannel channel = null;
+    try {
+      channel = ServerSocketChannel.open();
+      Method supportedOptions = ServerSocketChannel.class.getMethod("supportedOptions");
+      return ((Set<?>) supportedOptions.invoke(channel)).contains(SO_REUSEPORT);
+    } catch (Exception e) {
+      return false;
+    } finally {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // nothing to do
+        }
+      }
+    }
+  }
+
+  /**
+   * Bind another server socket to the address this one is bound to. The
+   * kernel spreads new connections over all the sockets bound to the port.
+   * Only possible when this socket was created with reusePort.
+   */
+  public TNonblockingServerSocket newReusePortSibling() throws TTransportException {
+    if (!reusePort_) {
+      throw new IllegalStateException("Server socket was not bound with SO_REUSEPORT.");
+    }
+    if (serverSocket_ == null) {
+      throw new TTransportException(TTransportException.NOT_OPEN, "No underlying server socket.");
+    }
+    // bind to the port we actually got, in case we were asked for port 0
+    InetSocketAddress addr = new InetSocketAddress(bindAddr_.getAddress(), serverSocket_.getLocalPort());
+    return new TNonblockingServerSocket(addr, clientTimeout_, true);
+  }
+
+  public boolean isReusePort() {
+    return reusePort_;
+  }
+
+  /**
+   * The local port this socket is bound to, or -1 if it is closed.
+   */
+  public int getPort() {
+    ServerSocket socket = serverSocket_;
+    return socket == null ? -1 : socket.getLocalPort();
+  }
+
   public void listen() throws TTransportException {
     // Make sure not to block on accept
     if (serverSocket_ != null) {
@@ -147,4 +239,27 @@ public class TNonblockingServerSocket extends TNonblockingServerTransport {
     close();
   }
 
+  private static Object lookupReusePortOption() {
+    try {
+      return Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static boolean setReusePort(ServerSocketChannel channel) {
+    if (SO_REUSEPORT == null) {
+      return false;
+    }
+    try {
+      Method setOption = ServerSocketChannel.class.getMethod("setOption",
+          Class.forName("java.net.SocketOption"), Object.class);
+      setOption.invoke(channel, SO_REUSEPORT, Boolean.TRUE);
+      return true;
+    } catch (Exception e) {
+      LOGGER.warn("Could not set SO_REUSEPORT: " + e);
+      return false;
+    }
+  }
+
 }
@@ -164,6 +164,14 @@ public class TNonblockingSocket extends TNonblockingTransport {
     return socketChannel_.write(buffer);
   }
 
+  /**
+   * Perform a nonblocking gathering write of the data in buffers.
+   */
+  @Override
+  public long write(ByteBuffer[] buffers) throws IOException {
+    return socketChannel_.write(buffers);
+  }
+
   /**
    * Writes to the underlying output stream if not null.
    */
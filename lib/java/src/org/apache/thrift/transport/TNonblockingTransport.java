@@ -44,4 +44,28 @@ public abstract class TNonblockingTransport extends TTransport {
   public abstract int read(ByteBuffer buffer) throws IOException;
 
   public abstract int write(ByteBuffer buffer) throws IOException;
+
+  /**
+   * Write as much of a sequence of buffers as possible without blocking.
+   * Transports over a GatheringByteChannel should override this so the
+   * buffers go out in a single system call; this default just writes them
+   * one after the other.
+   * @return the number of bytes written, or -1 if the first write hit the end
+   * of the stream
+   * @see java.nio.channels.GatheringByteChannel#write(ByteBuffer[])
+   */
+  public long write(ByteBuffer[] buffers) throws IOException {
+    long written = 0;
+    for (ByteBuffer buffer : buffers) {
+      int n = write(buffer);
+      if (n < 0) {
+        return written == 0 ? -1 : written;
+      }
+      written += n;
+      if (buffer.hasRemaining()) {
+        break;
+      }
+    }
+    return written;
+  }
 }
@@ -46,6 +46,12 @@ public class TServerSocket extends TServerTransport {
    */
   private int clientTimeout_ = 0;
 
+  /**
+   * Size of the stream buffers of client sockets from accept, or 0 for the
+   * TSocket default
+   */
+  private int clientBufferSize_ = 0;
+
   /**
    * Creates a server socket from underlying socket object
    */
@@ -80,14 +86,35 @@ public class TServerSocket extends TServerTransport {
   }
 
   public TServerSocket(InetSocketAddress bindAddr, int clientTimeout) throws TTransportException {
+    this(bindAddr, clientTimeout, 0, 0);
+  }
+
+  /**
+   * Creates a server socket with a listen backlog of its own, whose client
+   * sockets have stream buffers of the given size.
+   *
+   * @param backlog          How many connections the OS may hold for accept,
+   *                         or 0 for its default
+   * @param clientBufferSize Size of the stream buffers of each client socket,
+   *                         in bytes, or 0 for the TSocket default
+   */
+  public TServerSocket(InetSocketAddress bindAddr, int clientTimeout, int backlog, int clientBufferSize)
+      throws TTransportException {
+    if (backlog < 0) {
+      throw new IllegalArgumentException("backlog must be non-negative.");
+    }
+    if (clientBufferSize < 0) {
+      throw new IllegalArgumentException("clientBufferSize must be non-negative.");
+    }
     clientTimeout_ = clientTimeout;
+    clientBufferSize_ = clientBufferSize;
     try {
       // Make server socket
       serverSocket_ = new ServerSocket();
       // Prevent 2MSL delay problem on server restarts
       serverSocket_.setReuseAddress(true);
       // Bind to listening port
-      serverSocket_.bind(bindAddr);
+      serverSocket_.bind(bindAddr, backlog);
     } catch (IOException ioe) {
       serverSocket_ = null;
       throw new TTransportException("Could not create ServerSocket on address " + bindAddr.toString() + ".");
@@ -111,7 +138,7 @@ public class TServerSocket extends TServerTransport {
     }
     try {
       Socket result = serverSocket_.accept();
-      TSocket result2 = new TSocket(result);
+      TSocket result2 = clientBufferSize_ > 0 ? new TSocket(result, clientBufferSize_) : new TSocket(result);
       result2.setTimeout(clientTimeout_);
       return result2;
     } catch (IOException iox) {
@@ -57,6 +57,17 @@ public class TSocket extends TIOStreamTransport {
    */
   private int timeout_ = 0;
 
+  /**
+   * Size of the buffers for the socket's streams, unless a constructor says
+   * otherwise.
+   */
+  private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+  /**
+   * Size of the buffers for the socket's streams
+   */
+  private int bufferSize_ = DEFAULT_BUFFER_SIZE;
+
   /**
    * Constructor that takes an already created socket.
    *
@@ -64,7 +75,23 @@ public class TSocket extends TIOStreamTransport {
    * @throws TTransportException if there is an error setting up the streams
    */
   public TSocket(Socket socket) throws TTransportException {
+    this(socket, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Constructor that takes an already created socket, and buffers its
+   * streams with buffers of the given size.
+   *
+   * @param socket     Already created socket object
+   * @param bufferSize Size of the input and output buffers, in bytes
+   * @throws TTransportException if there is an error setting up the streams
+   */
+  public TSocket(Socket socket, int bufferSize) throws TTransportException {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize must be positive.");
+    }
     socket_ = socket;
+    bufferSize_ = bufferSize;
     try {
       socket_.setSoLinger(false, 0);
       socket_.setTcpNoDelay(true);
@@ -74,8 +101,8 @@ public class TSocket extends TIOStreamTransport {
 
     if (isOpen()) {
       try {
-        inputStream_ = new BufferedInputStream(socket_.getInputStream(), 1024);
-        outputStream_ = new BufferedOutputStream(socket_.getOutputStream(), 1024);
+        inputStream_ = new BufferedInputStream(socket_.getInputStream(), bufferSize_);
+        outputStream_ = new BufferedOutputStream(socket_.getOutputStream(), bufferSize_);
       } catch (IOException iox) {
         close();
         throw new TTransportException(TTransportException.NOT_OPEN, iox);
@@ -178,8 +205,8 @@ public class TSocket extends TIOStreamTransport {
 
     try {
       socket_.connect(new InetSocketAddress(host_, port_), timeout_);
-      inputStream_ = new BufferedInputStream(socket_.getInputStream(), 1024);
-      outputStream_ = new BufferedOutputStream(socket_.getOutputStream(), 1024);
+      inputStream_ = new BufferedInputStream(socket_.getInputStream(), bufferSize_);
+      outputStream_ = new BufferedOutputStream(socket_.getOutputStream(), bufferSize_);
     } catch (IOException iox) {
       close();
       throw new TTransportException(TTransportException.NOT_OPEN, iox);
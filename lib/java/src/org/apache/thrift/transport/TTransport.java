@@ -19,6 +19,8 @@
 
 package org.apache.thrift.transport;
 
+import java.nio.ByteBuffer;
+
 /**
  * Generic class that encapsulates the I/O layer. This is basically a thin
  * wrapper around the combined functionality of Java input/output streams.
@@ -158,4 +160,55 @@ public abstract class TTransport {
    * @param len
    */
   public void consumeBuffer(int len) {}
+
+  /**
+   * Access the transport's underlying ByteBuffer directly, for transports
+   * whose data may not live in a byte[] (for instance direct buffers). The
+   * bytes between the buffer's position and limit are the unread data;
+   * advancing the position consumes them. If this transport is not backed by
+   * a ByteBuffer, return null.
+   * @return the underlying ByteBuffer, or null
+   */
+  public ByteBuffer getByteBuffer() {
+    return null;
+  }
+
+  /**
+   * Make room for len more bytes in the underlying write buffer, so an
+   * encoder can put them into getWriteBuffer() directly, starting at
+   * getWriteBufferPosition(), and then call commitWriteBuffer(). If this is
+   * not a buffered transport, return false; the bytes must then be written
+   * with write().
+   * @param len number of bytes to make room for
+   * @return true if there is room for len bytes in the write buffer
+   */
+  public boolean reserveWriteBuffer(int len) {
+    return false;
+  }
+
+  /**
+   * Access the underlying write buffer directly. Only valid after
+   * reserveWriteBuffer() returned true, and only until the next write.
+   * @return the underlying write buffer, or null if this is not a buffered
+   * transport
+   */
+  public byte[] getWriteBuffer() {
+    return null;
+  }
+
+  /**
+   * Return the index within the write buffer that specifies the next spot
+   * that should be written to.
+   * @return index within the write buffer of the next byte to write
+   */
+  public int getWriteBufferPosition() {
+    return 0;
+  }
+
+  /**
+   * Mark len bytes, put into the write buffer after a call to
+   * reserveWriteBuffer(), as written.
+   * @param len
+   */
+  public void commitWriteBuffer(int len) {}
 }
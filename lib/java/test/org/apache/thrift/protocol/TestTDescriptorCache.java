@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.protocol;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TMemoryBuffer;
+
+public class TestTDescriptorCache extends TestCase {
+  public void testSameContentsSameInstance() {
+    TDescriptorCache cache = new TDescriptorCache();
+    TField field = cache.field(TType.I32, (short)1);
+    assertSame(field, cache.field(TType.I32, (short)1));
+    assertEquals(TType.I32, field.type);
+    assertEquals(1, field.id);
+
+    TField other = cache.field(TType.STRING, (short)1);
+    assertNotSame(field, other);
+    assertEquals(TType.STRING, other.type);
+    // handing out a different descriptor leaves the first one as it was
+    assertEquals(TType.I32, field.type);
+
+    TList list = cache.list(TType.I64, 3);
+    assertSame(list, cache.list(TType.I64, 3));
+    assertEquals(4, cache.list(TType.I64, 4).size);
+    assertEquals(3, list.size);
+
+    TSet set = cache.set(TType.BYTE, 0);
+    assertSame(set, cache.set(TType.BYTE, 0));
+
+    TMap map = cache.map(TType.STRING, TType.DOUBLE, 2);
+    assertSame(map, cache.map(TType.STRING, TType.DOUBLE, 2));
+    TMap swapped = cache.map(TType.DOUBLE, TType.STRING, 2);
+    assertEquals(TType.DOUBLE, swapped.keyType);
+    assertEquals(TType.STRING, map.keyType);
+  }
+
+  public void testProtocolsReuseDescriptors() throws TException {
+    checkReused(new TBinaryProtocol.Factory(false, true, 0, true));
+    checkReused(new TCompactProtocol.Factory(true));
+  }
+
+  private void checkReused(TProtocolFactory factory) throws TException {
+    TMemoryBuffer buf = new TMemoryBuffer(0);
+    TProtocol out = factory.getProtocol(buf);
+    for (int i = 0; i < 2; i++) {
+      out.writeStructBegin(new TStruct());
+      out.writeFieldBegin(new TField("list", TType.LIST, (short)1));
+      out.writeListBegin(new TList(TType.I32, 1));
+      out.writeI32(i);
+      out.writeListEnd();
+      out.writeFieldEnd();
+      out.writeFieldStop();
+      out.writeStructEnd();
+    }
+
+    TProtocol in = factory.getProtocol(buf);
+    in.readStructBegin();
+    TField field = in.readFieldBegin();
+    TList list = in.readListBegin();
+    assertEquals(0, in.readI32());
+    in.readListEnd();
+    in.readFieldEnd();
+    assertEquals(TType.STOP, in.readFieldBegin().type);
+    in.readStructEnd();
+
+    in.readStructBegin();
+    assertSame(field, in.readFieldBegin());
+    assertSame(list, in.readListBegin());
+    assertEquals(1, in.readI32());
+    assertEquals(TType.LIST, field.type);
+    assertEquals(1, field.id);
+    assertEquals(1, list.size);
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.transport.TByteBuffer;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+
+import thrift.test.CachedStrings;
+
+public class TestTStringCache extends TestCase {
+  private static byte[] utf8(String s) throws Exception {
+    return s.getBytes("UTF-8");
+  }
+
+  public void testHitReturnsSameInstance() throws Exception {
+    TStringCache cache = new TStringCache(16, 64);
+    byte[] a = utf8("xxcaf\u00e9");
+    byte[] b = utf8("caf\u00e9");
+
+    String first = cache.get(a, 2, b.length);
+    assertEquals("caf\u00e9", first);
+    assertSame(first, cache.get(b, 0, b.length));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0.5, cache.getHitRate(), 0.0);
+
+    // the cache keeps its own copy of the bytes
+    b[0] = 'C';
+    assertEquals("Caf\u00e9", cache.get(b, 0, b.length));
+  }
+
+  public void testLongStringsNotCached() throws Exception {
+    TStringCache cache = new TStringCache(16, 4);
+    byte[] b = utf8("hello");
+    String first = cache.get(b, 0, b.length);
+    assertEquals("hello", first);
+    assertNotSame(first, cache.get(b, 0, b.length));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(0, cache.getMissCount());
+    assertEquals(0.0, cache.getHitRate(), 0.0);
+
+    // four chars, but five bytes
+    String s = "\u00e9abc";
+    assertSame(s, cache.intern(s));
+    String copy = new String(s);
+    assertSame(copy, cache.intern(copy));
+    assertEquals(0, cache.getMissCount());
+  }
+
+  public void testCollisionReplacesSlot() throws Exception {
+    // a single slot, so every string collides
+    TStringCache cache = new TStringCache(1, 64);
+    byte[] a = utf8("alpha");
+    byte[] b = utf8("beta");
+    String alpha = cache.get(a, 0, a.length);
+    assertEquals("beta", cache.get(b, 0, b.length));
+    String again = cache.get(a, 0, a.length);
+    assertEquals("alpha", again);
+    assertNotSame(alpha, again);
+    assertEquals(0, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+  }
+
+  public void testIntern() throws Exception {
+    TStringCache cache = new TStringCache();
+    String s = new String("us-east-1");
+    assertSame(s, cache.intern(s));
+    assertSame(s, cache.intern(new String("us-east-1")));
+    byte[] b = utf8("us-east-1");
+    assertSame(s, cache.get(b, 0, b.length));
+    assertEquals(2, cache.getHitCount());
+  }
+
+  public void testByteBuffer() throws Exception {
+    TStringCache cache = new TStringCache(16, 8);
+    byte[] b = utf8("caf\u00e9");
+    ByteBuffer direct = ByteBuffer.allocateDirect(32);
+    direct.put((byte)0).put(b).put(utf8("much too long")).flip();
+    direct.get();
+
+    String first = cache.get(direct, b.length);
+    assertEquals("caf\u00e9", first);
+    assertEquals(1 + b.length, direct.position());
+    assertSame(first, cache.get(b, 0, b.length));
+
+    direct.position(1);
+    assertSame(first, cache.get(direct, b.length));
+    assertEquals(1 + b.length, direct.position());
+    assertEquals(2, cache.getHitCount());
+
+    assertEquals("much too long", cache.get(direct, 13));
+    assertEquals(direct.limit(), direct.position());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testBadArguments() {
+    try {
+      new TStringCache(0, 64);
+      fail("should have thrown");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      new TStringCache(16, -1);
+      fail("should have thrown");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testBinaryProtocol() throws Exception {
+    TStringCache cache = new TStringCache();
+    TProtocolFactory factory = new TBinaryProtocol.Factory(false, true, 0, false, cache);
+    checkProtocol(factory, cache);
+  }
+
+  public void testCompactProtocol() throws Exception {
+    TStringCache cache = new TStringCache();
+    TProtocolFactory factory = new TCompactProtocol.Factory(false, cache);
+    checkProtocol(factory, cache);
+  }
+
+  private void checkProtocol(TProtocolFactory factory, TStringCache cache) throws Exception {
+    TMemoryBuffer buf = new TMemoryBuffer(64);
+    TProtocol proto = factory.getProtocol(buf);
+    proto.writeString("\u65e5\u672c");
+    proto.writeString("\u65e5\u672c");
+
+    String first = proto.readString();
+    assertEquals("\u65e5\u672c", first);
+    assertSame(first, proto.readString());
+    assertEquals(1, cache.getHitCount());
+
+    // the unbuffered path goes through the cache as well
+    TMemoryBuffer out = new TMemoryBuffer(64);
+    TProtocol writer = factory.getProtocol(out);
+    writer.writeString("\u65e5\u672c");
+    TProtocol reader = factory.getProtocol(
+        new TIOStreamTransport(new ByteArrayInputStream(out.getArray(), 0, out.length())));
+    assertSame(first, reader.readString());
+
+    // and so does reading from a direct buffer
+    ByteBuffer direct = ByteBuffer.allocateDirect(out.length());
+    direct.put(out.getArray(), 0, out.length()).flip();
+    assertSame(first, factory.getProtocol(new TByteBuffer(direct)).readString());
+  }
+
+  public void testCachedStringUsesDefault() throws Exception {
+    TMemoryBuffer buf = new TMemoryBuffer(64);
+    TProtocol proto = new TBinaryProtocol(buf);
+    proto.writeString("cached-default");
+    proto.writeString("cached-default");
+    proto.writeString("cached-default");
+
+    String first = proto.readCachedString();
+    assertEquals("cached-default", first);
+    assertSame(first, proto.readCachedString());
+    // plain reads don't touch it
+    assertNotSame(first, proto.readString());
+    assertSame(first, TStringCache.getDefault().intern(new String("cached-default")));
+  }
+
+  public void testDecoratorAndJson() throws Exception {
+    TStringCache cache = TStringCache.getDefault();
+    TMemoryBuffer buf = new TMemoryBuffer(64);
+    TProtocol proto = new TJSONProtocol(buf);
+    proto.writeString("json-cached");
+    proto.writeString("json-cached");
+
+    TProtocol decorated = new TProtocolDecorator(proto) {};
+    String first = decorated.readCachedString();
+    assertEquals("json-cached", first);
+    assertSame(first, decorated.readCachedString());
+    assertSame(first, cache.intern(new String("json-cached")));
+  }
+
+  public void testGeneratedStructs() throws Exception {
+    CachedStrings written = new CachedStrings("per-field", "per-type", "via-typedef", "uncached");
+    TProtocolFactory[] factories = new TProtocolFactory[] {
+        new TBinaryProtocol.Factory(), new TCompactProtocol.Factory(), new TTupleProtocol.Factory()};
+    for (TProtocolFactory factory : factories) {
+      byte[] bytes = new TSerializer(factory).serialize(written);
+      CachedStrings first = new CachedStrings();
+      new TDeserializer(factory).deserialize(first, bytes);
+      CachedStrings second = new CachedStrings();
+      new TDeserializer(factory).deserialize(second, bytes);
+
+      assertEquals(written, first);
+      // annotated on the field, on the type, and on a typedef's type
+      assertSame(first.getPer_field(), second.getPer_field());
+      assertSame(first.getPer_type(), second.getPer_type());
+      assertSame(first.getVia_typedef(), second.getVia_typedef());
+      assertNotSame(first.getUncached(), second.getUncached());
+    }
+  }
+}
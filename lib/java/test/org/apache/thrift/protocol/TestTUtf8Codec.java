@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+
+public class TestTUtf8Codec extends TestCase {
+  private static final String[] STRINGS = new String[] {
+    "",
+    "getServerStatus",
+    "caf\u00e9 cr\u00e8me br\u00fbl\u00e9e",
+    "\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8",
+    "mixed \u00e9 \u4e2d \ud83d\ude00 end",
+    "\ud800",
+    "lone \udc00 low",
+    "high at end \ud83d",
+    "\u007f\u0080\u07ff\u0800\uffff",
+    // long enough to be left to the JDK
+    "a longer string with caf\u00e9, \u65e5\u672c\u8a9e and \ud83d\ude00 in it, \ud800 too",
+  };
+
+  public void testEncodeMatchesJdk() throws Exception {
+    for (String s : STRINGS) {
+      byte[] expected = s.getBytes("UTF-8");
+      assertEquals(s, expected.length, TUtf8Codec.encodedLength(s));
+      assertTrue(s, Arrays.equals(expected, TUtf8Codec.encode(s)));
+
+      // at an offset, into a larger buffer
+      byte[] buf = new byte[expected.length + 3];
+      assertEquals(expected.length + 2, TUtf8Codec.encode(s, buf, 2));
+      byte[] slice = new byte[expected.length];
+      System.arraycopy(buf, 2, slice, 0, slice.length);
+      assertTrue(s, Arrays.equals(expected, slice));
+    }
+  }
+
+  public void testDecodeMatchesJdk() throws Exception {
+    for (String s : STRINGS) {
+      byte[] bytes = s.getBytes("UTF-8");
+      byte[] buf = new byte[bytes.length + 2];
+      System.arraycopy(bytes, 0, buf, 1, bytes.length);
+      assertEquals(new String(bytes, "UTF-8"), TUtf8Codec.decode(buf, 1, bytes.length));
+    }
+  }
+
+  public void testDecodeMalformedMatchesJdk() throws Exception {
+    byte[][] malformed = new byte[][] {
+      {(byte)0x80},
+      {'a', (byte)0xc3},
+      {(byte)0xc0, (byte)0x80},
+      {(byte)0xe0, (byte)0x80, (byte)0x80},
+      {(byte)0xed, (byte)0xa0, (byte)0x80},
+      {(byte)0xf4, (byte)0x90, (byte)0x80, (byte)0x80},
+      {(byte)0xe6, (byte)0x97, 'x'},
+      {(byte)0xff, 'y'},
+    };
+    for (byte[] bytes : malformed) {
+      assertEquals(Arrays.toString(bytes), new String(bytes, "UTF-8"), TUtf8Codec.decode(bytes, 0, bytes.length));
+    }
+  }
+
+  public void testProtocolsRoundTrip() throws Exception {
+    TProtocolFactory[] factories = new TProtocolFactory[] {
+      new TBinaryProtocol.Factory(), new TCompactProtocol.Factory(), new TJSONProtocol.Factory() };
+    for (TProtocolFactory factory : factories) {
+      // encoded into the transport's write buffer
+      TMemoryBuffer buf = new TMemoryBuffer(1);
+      TProtocol proto = factory.getProtocol(buf);
+      for (String s : STRINGS) {
+        proto.writeString(s);
+      }
+      for (String s : STRINGS) {
+        assertEquals(new String(s.getBytes("UTF-8"), "UTF-8"), proto.readString());
+      }
+
+      // through write(), and read back without direct buffer access
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      proto = factory.getProtocol(new TIOStreamTransport(out));
+      for (String s : STRINGS) {
+        proto.writeString(s);
+      }
+      proto = factory.getProtocol(new TIOStreamTransport(new ByteArrayInputStream(out.toByteArray())));
+      for (String s : STRINGS) {
+        assertEquals(new String(s.getBytes("UTF-8"), "UTF-8"), proto.readString());
+      }
+    }
+  }
+}
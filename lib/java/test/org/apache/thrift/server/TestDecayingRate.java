@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import junit.framework.TestCase;
+
+public class TestDecayingRate extends TestCase {
+  private static final double DELTA = 1e-6;
+
+  public void testSteadyRateConverges() {
+    DecayingRate rate = new DecayingRate(1000, 0, 0);
+    long count = 0;
+    for (long millis = 100; millis <= 10000; millis += 100) {
+      count += 500;
+      rate.sample(millis, count);
+    }
+    // 500 every 100 ms
+    assertEquals(5000, rate.get(10000, count), 1);
+  }
+
+  public void testSampleWeighsByElapsedTime() {
+    DecayingRate rate = new DecayingRate(1000, 0, 0);
+    rate.sample(1000, 1000);
+    // a second at 1000/s moves the average 1 - 1/e of the way from 0
+    assertEquals(1000 * (1 - Math.exp(-1)), rate.get(1000, 1000), DELTA);
+
+    // a short sample only nudges it
+    double before = rate.get(1000, 1000);
+    rate.sample(1010, 1000 + 100);
+    double weight = 1 - Math.exp(-0.01);
+    assertEquals(before + weight * (10000 - before), rate.get(1010, 1100), DELTA);
+  }
+
+  public void testBurstFadesOut() {
+    DecayingRate rate = new DecayingRate(1000, 0, 0);
+    rate.sample(100, 100000);
+    double burst = rate.get(100, 100000);
+    assertTrue(burst > 0);
+    // nothing since, and not even sampled, as on a selector thread that has
+    // gone quiet
+    double later = rate.get(3100, 100000);
+    assertTrue(later < burst * Math.exp(-2.9));
+    assertTrue(later > 0);
+  }
+
+  public void testGetDoesNotRecord() {
+    DecayingRate rate = new DecayingRate(1000, 0, 0);
+    rate.sample(500, 500);
+    double sampled = rate.get(500, 500);
+    rate.get(1000, 100000);
+    assertEquals(sampled, rate.get(500, 500), DELTA);
+    assertEquals(500, rate.getLastSampleMillis());
+  }
+
+  public void testSamplesOutOfOrderAreIgnored() {
+    DecayingRate rate = new DecayingRate(1000, 0, 0);
+    rate.sample(500, 500);
+    double sampled = rate.get(500, 500);
+    rate.sample(400, 100000);
+    rate.sample(500, 100000);
+    assertEquals(sampled, rate.get(500, 500), DELTA);
+  }
+
+  public void testBadArguments() {
+    try {
+      new DecayingRate(0, 0, 0);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
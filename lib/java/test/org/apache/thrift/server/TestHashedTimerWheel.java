@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestHashedTimerWheel extends TestCase {
+  private final List<String> expired = new ArrayList<String>();
+
+  private class Named extends HashedTimerWheel.Timeout {
+    private final String name;
+
+    Named(String name) {
+      this.name = name;
+    }
+
+    protected void expired(long nowMillis) {
+      expired.add(name);
+    }
+  }
+
+  public void testExpiresInOrderOfTicks() {
+    HashedTimerWheel wheel = new HashedTimerWheel(10, 8, 0);
+    wheel.schedule(new Named("a"), 25);
+    wheel.schedule(new Named("b"), 15);
+    assertEquals(2, wheel.size());
+
+    assertEquals(0, wheel.expire(9));
+    // due within tick 1, but not yet
+    assertEquals(0, wheel.expire(14));
+    assertEquals(1, wheel.expire(20));
+    assertEquals("[b]", expired.toString());
+    assertEquals(0, wheel.expire(29));
+    assertEquals(1, wheel.expire(30));
+    assertEquals("[b, a]", expired.toString());
+    assertEquals(0, wheel.size());
+  }
+
+  public void testLaterRoundsWait() {
+    HashedTimerWheel wheel = new HashedTimerWheel(10, 8, 0);
+    // shares a slot with tick 1, but is a whole turn of the wheel later
+    Named far = new Named("far");
+    wheel.schedule(far, 95);
+    assertEquals(0, wheel.expire(85));
+    assertTrue(far.isScheduled());
+    assertEquals(1, wheel.expire(100));
+    assertFalse(far.isScheduled());
+  }
+
+  public void testCancelAndReschedule() {
+    HashedTimerWheel wheel = new HashedTimerWheel(10, 8, 0);
+    Named a = new Named("a");
+    Named b = new Named("b");
+    wheel.schedule(a, 15);
+    wheel.schedule(b, 15);
+    wheel.cancel(a);
+    wheel.cancel(a);
+    assertEquals(1, wheel.size());
+
+    // moving a scheduled timeout takes it out of its old slot
+    wheel.schedule(b, 45);
+    assertEquals(1, wheel.size());
+    assertEquals(0, wheel.expire(20));
+    assertEquals(1, wheel.expire(50));
+    assertEquals("[b]", expired.toString());
+  }
+
+  public void testPastDeadlineExpiresOnNextTick() {
+    HashedTimerWheel wheel = new HashedTimerWheel(10, 8, 100);
+    wheel.schedule(new Named("late"), 50);
+    assertEquals(1, wheel.expire(110));
+  }
+
+  public void testLongGapCoversWholeWheel() {
+    HashedTimerWheel wheel = new HashedTimerWheel(10, 8, 0);
+    for (int i = 1; i <= 20; i++) {
+      wheel.schedule(new Named("t" + i), i * 7);
+    }
+    assertEquals(20, wheel.expire(10000));
+    assertEquals(0, wheel.size());
+  }
+
+  public void testCallbackMayReschedule() {
+    final HashedTimerWheel wheel = new HashedTimerWheel(10, 8, 0);
+    HashedTimerWheel.Timeout again = new HashedTimerWheel.Timeout() {
+      protected void expired(long nowMillis) {
+        expired.add("again");
+        if (expired.size() < 3) {
+          wheel.schedule(this, nowMillis + 20);
+        }
+      }
+    };
+    wheel.schedule(again, 10);
+    for (long now = 0; now <= 200; now += 10) {
+      wheel.expire(now);
+    }
+    assertEquals(3, expired.size());
+  }
+
+  public void testMillisToNextTick() {
+    HashedTimerWheel wheel = new HashedTimerWheel(10, 8, 0);
+    assertEquals(0, wheel.millisToNextTick(3));
+    wheel.schedule(new Named("a"), 100);
+    assertEquals(7, wheel.millisToNextTick(3));
+  }
+}
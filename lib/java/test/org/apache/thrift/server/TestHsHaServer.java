@@ -19,12 +19,47 @@
 package org.apache.thrift.server;
 
 import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.server.THsHaServer.Args;
 import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import thrift.test.ThriftTest;
 
 public class TestHsHaServer extends TestNonblockingServer {
+  private THsHaServer lastServer;
+
   protected TServer getServer(TProcessor processor, TNonblockingServerSocket socket, TProtocolFactory protoFactory) {
-    return new THsHaServer(new Args(socket).processor(processor).protocolFactory(protoFactory));
+    lastServer = new THsHaServer(new Args(socket).processor(processor).protocolFactory(protoFactory));
+    return lastServer;
+  }
+
+  public void testSelectorMetrics() throws Exception {
+    TProtocolFactory protoFactory = new TBinaryProtocol.Factory();
+    startServer(new ThriftTest.Processor(new TestHandler()), protoFactory);
+
+    TSocket socket = new TSocket(HOST, PORT);
+    socket.setTimeout(SOCKET_TIMEOUT);
+    TTransport transport = getClientTransport(socket);
+    ThriftTest.Client client = new ThriftTest.Client(protoFactory.getProtocol(transport));
+    open(transport);
+
+    int numCalls = 100;
+    for (int i = 0; i < numCalls; i++) {
+      client.testI32(i);
+    }
+    transport.close();
+
+    // every response is handed back to the selector by a worker thread, and
+    // never needs more than one wakeup to get there.
+    long changes = lastServer.getSelectInterestChangeCount();
+    assertTrue(changes >= numCalls);
+    assertTrue(lastServer.getSelectorWakeupCount() <= changes);
+    assertTrue(lastServer.getSelectorWakeupCount() + lastServer.getSuppressedSelectorWakeupCount() >= numCalls);
+    assertTrue(lastServer.getSelectLoopCount() > 0);
+
+    stopServer();
   }
 }
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+
+import thrift.test.ThriftTest;
+
+/**
+ * Runs the HsHa server tests with the test handler behind
+ * ThriftTest.AsyncProcessor, every call being answered from a thread other
+ * than the worker that started it.
+ */
+public class TestHsHaServerAsync extends TestHsHaServer {
+  private static final ExecutorService ANSWERING_THREADS = Executors.newCachedThreadPool();
+
+  @Override
+  protected TServer getServer(TProcessor processor, TNonblockingServerSocket socket, TProtocolFactory protoFactory) {
+    if (processor instanceof ThriftTest.Processor) {
+      processor = new ThriftTest.AsyncProcessor<ThriftTest.AsyncHandler>(asyncHandler(new TestHandler()));
+    }
+    return super.getServer(processor, socket, protoFactory);
+  }
+
+  /**
+   * An AsyncHandler that calls the same method of handler on another thread.
+   */
+  private static ThriftTest.AsyncHandler asyncHandler(final ThriftTest.Iface handler) {
+    return (ThriftTest.AsyncHandler) Proxy.newProxyInstance(ThriftTest.class.getClassLoader(),
+        new Class[] {ThriftTest.AsyncHandler.class}, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        // the last argument is the resultHandler
+        int numArgs = args.length - 1;
+        Class<?>[] argTypes = new Class<?>[numArgs];
+        System.arraycopy(method.getParameterTypes(), 0, argTypes, 0, numArgs);
+        final Object[] targetArgs = new Object[numArgs];
+        System.arraycopy(args, 0, targetArgs, 0, numArgs);
+        final Method target = ThriftTest.Iface.class.getMethod(method.getName(), argTypes);
+        final AsyncMethodCallback resultHandler = (AsyncMethodCallback) args[numArgs];
+        ANSWERING_THREADS.execute(new Runnable() {
+          public void run() {
+            try {
+              resultHandler.onComplete(target.invoke(handler, targetArgs));
+            } catch (InvocationTargetException e) {
+              resultHandler.onError((Exception) e.getCause());
+            } catch (IllegalAccessException e) {
+              resultHandler.onError(e);
+            }
+          }
+        });
+        return null;
+      }
+    });
+  }
+}
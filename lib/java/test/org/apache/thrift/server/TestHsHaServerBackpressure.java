@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.server.THsHaServer.Args;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import thrift.test.ThriftTest;
+
+/**
+ * Runs the server tests with little buffer memory to go around, so that
+ * connections regularly have to wait for each other.
+ */
+public class TestHsHaServerBackpressure extends TestNonblockingServer {
+  private static final long MAX_READ_BUFFER_BYTES = 64 * 1024;
+  private static final int NUM_CLIENTS = 8;
+  private static final int STRING_SIZE = 20 * 1024;
+  private static final long MAX_BUFFER_BYTES_PER_CONNECTION = 3000;
+  private static final int PAYLOAD_SIZE = 2000;
+
+  /**
+   * Answers every call with an empty result. Calls of "block" wait for the
+   * latch first.
+   */
+  private static class BlockingProcessor implements TProcessor {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final AtomicInteger calls = new AtomicInteger(0);
+
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+      TMessage msg = in.readMessageBegin();
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+      calls.incrementAndGet();
+      if (msg.name.equals("block")) {
+        try {
+          latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {}
+      }
+
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+      out.writeStructBegin(new TStruct("result"));
+      out.writeFieldStop();
+      out.writeStructEnd();
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      return true;
+    }
+  }
+
+  private THsHaServer lastServer;
+
+  protected TServer getServer(TProcessor processor, TNonblockingServerSocket socket, TProtocolFactory protoFactory) {
+    Args args = new Args(socket).processor(processor).protocolFactory(protoFactory);
+    args.maxReadBufferBytes = MAX_READ_BUFFER_BYTES;
+    lastServer = new THsHaServer(args);
+    return lastServer;
+  }
+
+  public void testConnectionsWaitForMemory() throws Exception {
+    final TProtocolFactory protoFactory = new TBinaryProtocol.Factory();
+    startServer(new ThriftTest.Processor(new TestHandler()), protoFactory);
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < STRING_SIZE; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    final String big = sb.toString();
+
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    List<Thread> clients = new ArrayList<Thread>();
+    for (int i = 0; i < NUM_CLIENTS; i++) {
+      Thread client = new Thread() {
+        public void run() {
+          try {
+            TSocket socket = new TSocket(HOST, PORT);
+            socket.setTimeout(SOCKET_TIMEOUT);
+            TTransport transport = getClientTransport(socket);
+            open(transport);
+            ThriftTest.Client client = new ThriftTest.Client(protoFactory.getProtocol(transport));
+            for (int j = 0; j < 50; j++) {
+              assertEquals(big, client.testString(big));
+            }
+            transport.close();
+          } catch (Throwable t) {
+            synchronized (failures) {
+              failures.add(t);
+            }
+          }
+        }
+      };
+      client.start();
+      clients.add(client);
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+    assertEquals(failures.toString(), 0, failures.size());
+
+    // everything has been given back, and nobody is left waiting
+    Thread.sleep(100);
+    assertEquals(0, lastServer.getBufferBytesAllocated());
+    assertEquals(0, lastServer.getMemoryWaiterCount());
+    assertTrue(lastServer.getThrottledCount() > 0);
+
+    stopServer();
+  }
+
+  private static void send(TProtocol protocol, String method, int seqid, String payload) throws TException {
+    protocol.writeMessageBegin(new TMessage(method, TMessageType.CALL, seqid));
+    protocol.writeStructBegin(new TStruct("args"));
+    protocol.writeFieldBegin(new TField("payload", TType.STRING, (short)1));
+    protocol.writeString(payload);
+    protocol.writeFieldEnd();
+    protocol.writeFieldStop();
+    protocol.writeStructEnd();
+    protocol.writeMessageEnd();
+    protocol.getTransport().flush();
+  }
+
+  private static void receive(TProtocol protocol, int seqid) throws TException {
+    TMessage msg = protocol.readMessageBegin();
+    assertEquals(TMessageType.REPLY, msg.type);
+    assertEquals(seqid, msg.seqid);
+    TProtocolUtil.skip(protocol, TType.STRUCT);
+    protocol.readMessageEnd();
+  }
+
+  private static TProtocol connect() throws TException {
+    TSocket socket = new TSocket(HOST, PORT);
+    socket.setTimeout(SOCKET_TIMEOUT * 5);
+    TTransport transport = new TFramedTransport(socket);
+    transport.open();
+    return new TBinaryProtocol(transport);
+  }
+
+  public void testConnectionLimit() throws Exception {
+    BlockingProcessor processor = new BlockingProcessor();
+    final THsHaServer server = new THsHaServer(new Args(getServerSocket()).processor(processor)
+        .workerThreads(2).pipelineDepth(4).maxBufferBytesPerConnection(MAX_BUFFER_BYTES_PER_CONNECTION));
+    Thread serveThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serveThread.start();
+    TProtocol greedy = null;
+    TProtocol other = null;
+    try {
+      for (int i = 0; i < 100 && !server.isServing(); i++) {
+        Thread.sleep(10);
+      }
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < PAYLOAD_SIZE; i++) {
+        sb.append('x');
+      }
+      String payload = sb.toString();
+
+      // the first call holds on to its frame, and the second one would take
+      // the connection over its limit, so it isn't read
+      greedy = connect();
+      send(greedy, "block", 0, payload);
+      send(greedy, "block", 1, payload);
+      for (int i = 0; i < 500 && (server.getConnectionThrottledCount() == 0 || processor.calls.get() == 0); i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, server.getConnectionThrottledCount());
+      assertEquals(1, processor.calls.get());
+
+      // other connections are still served in the meantime
+      other = connect();
+      send(other, "fast", 0, payload);
+      receive(other, 0);
+      assertEquals(2, processor.calls.get());
+      assertEquals(0, server.getThrottledCount());
+
+      // once the first call has been answered, the second one is read
+      processor.latch.countDown();
+      receive(greedy, 0);
+      receive(greedy, 1);
+      assertEquals(3, processor.calls.get());
+    } finally {
+      processor.latch.countDown();
+      if (greedy != null) {
+        greedy.getTransport().close();
+      }
+      if (other != null) {
+        other.getTransport().close();
+      }
+      server.stop();
+      serveThread.join();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.MethodLatencyRecorder.MethodLatencies;
+import org.apache.thrift.server.THsHaServer.Args;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import thrift.test.ThriftTest;
+
+/**
+ * Runs the server tests with an event listener recording every call.
+ */
+public class TestHsHaServerEvents extends TestNonblockingServer {
+  private MethodLatencyRecorder recorder;
+
+  protected TServer getServer(TProcessor processor, TNonblockingServerSocket socket, TProtocolFactory protoFactory) {
+    recorder = new MethodLatencyRecorder();
+    return new THsHaServer(new Args(socket).processor(processor).protocolFactory(protoFactory)
+        .eventListener(recorder));
+  }
+
+  public void testRecordsCalls() throws Exception {
+    TProtocolFactory protoFactory = new TBinaryProtocol.Factory();
+    startServer(new ThriftTest.Processor(new TestHandler()), protoFactory);
+
+    TSocket socket = new TSocket(HOST, PORT);
+    socket.setTimeout(SOCKET_TIMEOUT);
+    TTransport transport = getClientTransport(socket);
+    open(transport);
+    ThriftTest.Client client = new ThriftTest.Client(protoFactory.getProtocol(transport));
+
+    int numCalls = 100;
+    for (int i = 0; i < numCalls; i++) {
+      assertEquals(i, client.testI32(i));
+    }
+    client.testVoid();
+    assertEquals(1, recorder.getOpenConnectionCount());
+
+    MethodLatencies testI32 = recorder.getLatencies("testI32");
+    assertEquals(numCalls, testI32.getReadTimes().getCount());
+    assertEquals(numCalls, testI32.getQueueTimes().getCount());
+    assertEquals(numCalls, testI32.getHandlerTimes().getCount());
+    assertEquals(numCalls, testI32.getWriteTimes().getCount());
+    assertEquals(0, testI32.getFailureCount());
+    assertEquals(1, recorder.getLatencies("testVoid").getHandlerTimes().getCount());
+
+    transport.close();
+    Thread.sleep(100);
+    assertEquals(0, recorder.getOpenConnectionCount());
+    stopServer();
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.THybridServer.Args;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import thrift.test.ThriftTest;
+
+/**
+ * Runs the server tests against THybridServer, unframed.
+ */
+public class TestHybridServer extends ServerTestBase {
+  private Thread serverThread;
+  private THybridServer server;
+
+  @Override
+  public void startServer(final TProcessor processor, final TProtocolFactory protoFactory) throws Exception {
+    serverThread = new Thread() {
+      public void run() {
+        try {
+          server = new THybridServer(new Args(new TNonblockingServerSocket(PORT)).processor(processor)
+              .protocolFactory(protoFactory).workerThreads(2));
+          server.serve();
+        } catch (Exception e) {
+          e.printStackTrace();
+          fail();
+        }
+      }
+    };
+    serverThread.start();
+    Thread.sleep(1000);
+  }
+
+  @Override
+  public void stopServer() throws Exception {
+    server.stop();
+    try {
+      serverThread.join();
+    } catch (InterruptedException e) {}
+  }
+
+  @Override
+  public TTransport getClientTransport(TTransport underlyingTransport) throws Exception {
+    return underlyingTransport;
+  }
+
+  public void testIdleConnectionsHoldNoWorker() throws Exception {
+    TProtocolFactory protoFactory = new TBinaryProtocol.Factory();
+    startServer(new ThriftTest.Processor(new TestHandler()), protoFactory);
+
+    // more connections than worker threads, each used in turn
+    int numClients = 10;
+    ThriftTest.Client[] clients = new ThriftTest.Client[numClients];
+    TTransport[] transports = new TTransport[numClients];
+    for (int i = 0; i < numClients; i++) {
+      TSocket socket = new TSocket(HOST, PORT);
+      socket.setTimeout(SOCKET_TIMEOUT);
+      transports[i] = getClientTransport(socket);
+      open(transports[i]);
+      clients[i] = new ThriftTest.Client(protoFactory.getProtocol(transports[i]));
+    }
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < numClients; i++) {
+        assertEquals(i, clients[i].testI32(i));
+      }
+    }
+    Thread.sleep(100);
+    assertEquals(numClients, server.getParkedConnectionCount());
+    assertEquals(0, server.getBusyConnectionCount());
+
+    for (TTransport transport : transports) {
+      transport.close();
+    }
+    stopServer();
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TestInlineExecutionPolicy extends TestCase {
+  private static final long MICROS = TimeUnit.MICROSECONDS.toNanos(1);
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  public void testDeclaredMethods() {
+    InlineExecutionPolicy policy = new InlineExecutionPolicy(Collections.singleton("cheap"), 0, 5 * MILLIS);
+    assertTrue(policy.isInline("cheap"));
+    assertFalse(policy.isInline("other"));
+    assertFalse(policy.isInline(null));
+    // not learning without a threshold
+    assertFalse(policy.isLearning("other"));
+    assertEquals(Collections.singleton("cheap"), policy.getInlineMethods());
+  }
+
+  public void testLearnsCheapMethods() {
+    InlineExecutionPolicy policy = new InlineExecutionPolicy(Collections.<String>emptySet(), 50 * MICROS, 5 * MILLIS);
+    assertTrue(policy.isLearning("cheap"));
+    for (int i = 0; i < InlineExecutionPolicy.LEARNING_SAMPLES - 1; i++) {
+      policy.recordPooled("cheap", 10 * MICROS);
+      policy.recordPooled("slow", 2 * MILLIS);
+    }
+    assertFalse(policy.isInline("cheap"));
+
+    policy.recordPooled("cheap", 10 * MICROS);
+    policy.recordPooled("slow", 2 * MILLIS);
+    assertTrue(policy.isInline("cheap"));
+    assertFalse(policy.isLearning("cheap"));
+    assertFalse(policy.isInline("slow"));
+    assertTrue(policy.isLearning("slow"));
+  }
+
+  public void testDemotesSlowInlineCalls() {
+    InlineExecutionPolicy policy = new InlineExecutionPolicy(Collections.singleton("cheap"), 50 * MICROS, 5 * MILLIS);
+    policy.recordInline("cheap", 1 * MILLIS);
+    assertTrue(policy.isInline("cheap"));
+
+    policy.recordInline("cheap", 6 * MILLIS);
+    assertFalse(policy.isInline("cheap"));
+    assertEquals(2, policy.getInlineCount());
+    assertEquals(1, policy.getDemotionCount());
+
+    // demoted for good, even though it would look cheap again
+    assertFalse(policy.isLearning("cheap"));
+    for (int i = 0; i < InlineExecutionPolicy.LEARNING_SAMPLES; i++) {
+      policy.recordPooled("cheap", 1 * MICROS);
+    }
+    assertFalse(policy.isInline("cheap"));
+  }
+
+  public void testTracksBoundedNumberOfMethods() {
+    InlineExecutionPolicy policy = new InlineExecutionPolicy(Collections.<String>emptySet(), 50 * MICROS, 5 * MILLIS);
+    for (int i = 0; i < InlineExecutionPolicy.MAX_TRACKED_METHODS; i++) {
+      policy.recordPooled("method" + i, 1 * MICROS);
+    }
+    assertFalse(policy.isLearning("oneTooMany"));
+    policy.recordPooled("oneTooMany", 1 * MICROS);
+    assertFalse(policy.isInline("oneTooMany"));
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import junit.framework.TestCase;
+
+public class TestLatencyHistogram extends TestCase {
+  public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMeanNanos());
+    assertEquals(0, histogram.getPercentileNanos(99));
+  }
+
+  public void testBucketsAreContiguous() {
+    long[] values = {0, 1, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE};
+    for (long value : values) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+      if (index > 0) {
+        assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+      }
+      // no wider than 1/16th of the value
+      assertTrue(LatencyHistogram.bucketUpperBound(index) - value <= value / 16);
+    }
+    for (long value = 0; value < 100000; value++) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+      assertTrue(index == 0 || value > LatencyHistogram.bucketUpperBound(index - 1));
+    }
+  }
+
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500500, histogram.getMeanNanos());
+    assertEquals(1000000, histogram.getMaxNanos());
+    assertWithin(500000, histogram.getPercentileNanos(50));
+    assertWithin(990000, histogram.getPercentileNanos(99));
+    assertEquals(1000000, histogram.getPercentileNanos(100));
+    assertWithin(1000, histogram.getPercentileNanos(0));
+  }
+
+  public void testAdd() {
+    LatencyHistogram a = new LatencyHistogram();
+    LatencyHistogram b = new LatencyHistogram();
+    a.record(10);
+    b.record(20);
+    b.record(5000);
+    a.add(b);
+    assertEquals(3, a.getCount());
+    assertEquals(5000, a.getMaxNanos());
+    assertEquals(20, a.getPercentileNanos(50));
+  }
+
+  public void testSnapshot() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(100);
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    histogram.record(5000);
+    assertEquals(1, snapshot.getCount());
+    assertEquals(100, snapshot.getMaxNanos());
+    assertEquals(2, histogram.getCount());
+  }
+
+  public void testSnapshotAndReset() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(100);
+    histogram.record(300);
+    LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+    assertEquals(2, snapshot.getCount());
+    assertEquals(200, snapshot.getMeanNanos());
+    assertEquals(300, snapshot.getMaxNanos());
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMaxNanos());
+
+    histogram.record(50);
+    assertEquals(50, histogram.snapshotAndReset().getPercentileNanos(100));
+  }
+
+  public void testRejectsBadPercentile() {
+    try {
+      new LatencyHistogram().getPercentileNanos(101);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("expected about " + expected + " but was " + actual,
+        actual >= expected && actual <= expected + expected / 16);
+  }
+}
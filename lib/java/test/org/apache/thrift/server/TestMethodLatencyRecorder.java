@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import org.apache.thrift.server.MethodLatencyRecorder.MethodLatencies;
+
+import junit.framework.TestCase;
+
+public class TestMethodLatencyRecorder extends TestCase {
+  public void testRecordsByMethod() {
+    MethodLatencyRecorder recorder = new MethodLatencyRecorder();
+    recorder.connectionOpened(null);
+    recorder.invokeStarted(null, "ping", 100, 200);
+    recorder.invokeFinished(null, "ping", 300, true);
+    recorder.responseWritten(null, "ping", 10, 400);
+    recorder.invokeStarted(null, "fail", 1, 2);
+    recorder.invokeFinished(null, "fail", 3, false);
+    assertEquals(1, recorder.getOpenConnectionCount());
+
+    MethodLatencies ping = recorder.getLatencies("ping");
+    assertEquals(100, ping.getReadTimes().getMaxNanos());
+    assertEquals(200, ping.getQueueTimes().getMaxNanos());
+    assertEquals(300, ping.getHandlerTimes().getMaxNanos());
+    assertEquals(400, ping.getWriteTimes().getMaxNanos());
+    assertEquals(0, ping.getFailureCount());
+
+    MethodLatencies fail = recorder.getLatencies("fail");
+    assertEquals(1, fail.getHandlerTimes().getCount());
+    assertEquals(0, fail.getWriteTimes().getCount());
+    assertEquals(1, fail.getFailureCount());
+
+    assertNull(recorder.getLatencies("other"));
+    assertEquals(2, recorder.getLatencies().size());
+
+    recorder.connectionClosed(null);
+    assertEquals(0, recorder.getOpenConnectionCount());
+  }
+
+  public void testBoundsMethods() {
+    MethodLatencyRecorder recorder = new MethodLatencyRecorder(2);
+    for (int i = 0; i < 5; i++) {
+      recorder.invokeStarted(null, "method" + i, 0, 0);
+      recorder.invokeFinished(null, "method" + i, 0, true);
+    }
+    assertNotNull(recorder.getLatencies("method1"));
+    assertNull(recorder.getLatencies("method2"));
+    assertEquals(3, recorder.getLatencies(MethodLatencyRecorder.OTHER_METHODS).getHandlerTimes().getCount());
+    assertEquals(3, recorder.getLatencies().size());
+  }
+
+  public void testRejectedResponsesNotRecorded() {
+    MethodLatencyRecorder recorder = new MethodLatencyRecorder();
+    recorder.responseWritten(null, null, 10, 400);
+    assertTrue(recorder.getLatencies().isEmpty());
+  }
+}
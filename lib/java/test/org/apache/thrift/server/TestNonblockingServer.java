@@ -41,14 +41,17 @@ public class TestNonblockingServer extends ServerTestBase {
     return new TNonblockingServer(new Args(socket).processor(processor).protocolFactory(protoFactory));
   }
 
+  protected TNonblockingServerSocket getServerSocket() throws TTransportException {
+    return new TNonblockingServerSocket(PORT);
+  }
+
   @Override
   public void startServer(final TProcessor processor, final TProtocolFactory protoFactory) throws Exception {
     serverThread = new Thread() {
       public void run() {
         try {
           // Transport
-          TNonblockingServerSocket tServerSocket =
-            new TNonblockingServerSocket(PORT);
+          TNonblockingServerSocket tServerSocket = getServerSocket();
 
           server = getServer(processor, tServerSocket, protoFactory);
 
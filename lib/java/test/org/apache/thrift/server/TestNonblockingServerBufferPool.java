@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+
+/**
+ * Runs real servers on a buffer pool, and checks that every frame they take
+ * from it is handed back exactly once.
+ */
+public class TestNonblockingServerBufferPool extends TestCase {
+  private static final int PORT = 9092;
+  private static final int NUM_CLIENTS = 4;
+  private static final int NUM_CALLS = 50;
+
+  /**
+   * Keeps track of which buffers are out.
+   */
+  private static class CountingPool implements ByteBufferPool {
+    private final SizeClassedByteBufferPool pool = new SizeClassedByteBufferPool();
+    private final Map<ByteBuffer, Boolean> out = new IdentityHashMap<ByteBuffer, Boolean>();
+    private int acquired = 0;
+    private int released = 0;
+    private int unknown = 0;
+
+    public synchronized ByteBuffer acquire(int size) {
+      ByteBuffer buffer = pool.acquire(size);
+      out.put(buffer, Boolean.TRUE);
+      acquired++;
+      return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+      if (out.remove(buffer) == null) {
+        unknown++;
+      }
+      released++;
+      pool.release(buffer);
+    }
+
+    public synchronized int getOutstanding() {
+      return out.size();
+    }
+  }
+
+  /**
+   * Echoes the string argument back.
+   */
+  private static class EchoProcessor implements TProcessor {
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+      TMessage msg = in.readMessageBegin();
+      in.readStructBegin();
+      in.readFieldBegin();
+      String payload = in.readString();
+      in.readFieldEnd();
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readStructEnd();
+      in.readMessageEnd();
+
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+      out.writeStructBegin(new TStruct("result"));
+      out.writeFieldBegin(new TField("success", TType.STRING, (short)0));
+      out.writeString(payload);
+      out.writeFieldEnd();
+      out.writeFieldStop();
+      out.writeStructEnd();
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      return true;
+    }
+  }
+
+  private static void send(TProtocol protocol, int seqid, String payload) throws TException {
+    protocol.writeMessageBegin(new TMessage("echo", TMessageType.CALL, seqid));
+    protocol.writeStructBegin(new TStruct("args"));
+    protocol.writeFieldBegin(new TField("payload", TType.STRING, (short)1));
+    protocol.writeString(payload);
+    protocol.writeFieldEnd();
+    protocol.writeFieldStop();
+    protocol.writeStructEnd();
+    protocol.writeMessageEnd();
+    protocol.getTransport().flush();
+  }
+
+  private static String receive(TProtocol protocol, int seqid) throws TException {
+    TMessage msg = protocol.readMessageBegin();
+    assertEquals(seqid, msg.seqid);
+    protocol.readStructBegin();
+    protocol.readFieldBegin();
+    String payload = protocol.readString();
+    protocol.readFieldEnd();
+    TProtocolUtil.skip(protocol, TType.STRUCT);
+    protocol.readStructEnd();
+    protocol.readMessageEnd();
+    return payload;
+  }
+
+  private static TProtocol connect() throws TException {
+    TSocket socket = new TSocket("localhost", PORT);
+    socket.setTimeout(5000);
+    TFramedTransport transport = new TFramedTransport(socket);
+    transport.open();
+    return new TBinaryProtocol(transport);
+  }
+
+  private void checkFramesReturned(final TServer server, CountingPool pool) throws Exception {
+    Thread serveThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serveThread.start();
+    List<TProtocol> clients = new ArrayList<TProtocol>();
+    try {
+      for (int i = 0; i < 100 && !server.isServing(); i++) {
+        Thread.sleep(10);
+      }
+      for (int i = 0; i < NUM_CLIENTS; i++) {
+        clients.add(connect());
+      }
+      // frames of different sizes, so several size classes are used
+      for (int call = 0; call < NUM_CALLS; call++) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < call * 100; i++) {
+          sb.append('x');
+        }
+        String payload = sb.toString();
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+          send(clients.get(i), call, payload);
+        }
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+          assertEquals(payload, receive(clients.get(i), call));
+        }
+      }
+
+      // a client that goes away without reading its answer
+      TProtocol abandoned = connect();
+      send(abandoned, 0, "never read");
+      abandoned.getTransport().close();
+
+      // and one that goes away halfway through sending a frame
+      Socket partial = new Socket("localhost", PORT);
+      DataOutputStream out = new DataOutputStream(partial.getOutputStream());
+      out.writeInt(1000);
+      out.write(new byte[100]);
+      out.flush();
+      partial.close();
+
+      for (int i = 0; i < NUM_CLIENTS; i++) {
+        clients.get(i).getTransport().close();
+      }
+      clients.clear();
+      for (int i = 0; i < 500 && pool.getOutstanding() > 0; i++) {
+        Thread.sleep(10);
+      }
+    } finally {
+      for (TProtocol client : clients) {
+        client.getTransport().close();
+      }
+      server.stop();
+      serveThread.join();
+    }
+
+    synchronized (pool) {
+      assertTrue(pool.acquired >= NUM_CLIENTS * NUM_CALLS);
+      assertEquals(0, pool.unknown);
+      assertEquals(pool.acquired, pool.released);
+      assertEquals(0, pool.getOutstanding());
+    }
+  }
+
+  public void testHsHaServer() throws Exception {
+    CountingPool pool = new CountingPool();
+    checkFramesReturned(new THsHaServer(new THsHaServer.Args(new TNonblockingServerSocket(PORT))
+        .processor(new EchoProcessor()).bufferPool(pool)), pool);
+  }
+
+  public void testThreadedSelectorServer() throws Exception {
+    CountingPool pool = new CountingPool();
+    checkFramesReturned(new TThreadedSelectorServer(new TThreadedSelectorServer.Args(new TNonblockingServerSocket(PORT))
+        .processor(new EchoProcessor()).bufferPool(pool)), pool);
+  }
+
+  public void testPipelinedThreadedSelectorServer() throws Exception {
+    CountingPool pool = new CountingPool();
+    checkFramesReturned(new TThreadedSelectorServer(new TThreadedSelectorServer.Args(new TNonblockingServerSocket(PORT))
+        .processor(new EchoProcessor()).bufferPool(pool).pipelineDepth(4)), pool);
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+
+/**
+ * Runs real servers with a single worker thread and a cap on how long a
+ * request may wait for it, and checks that a request stuck behind a slow one
+ * is answered with an overload error instead of being processed.
+ */
+public class TestNonblockingServerQueueDelay extends TestCase {
+  private static final int PORT = 9091;
+  private static final int MAX_QUEUE_DELAY_MILLIS = 50;
+
+  /**
+   * Answers every call with an empty reply. Calls of "block" wait for the
+   * latch first.
+   */
+  private static class BlockingProcessor implements TProcessor {
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile int calls = 0;
+
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+      TMessage msg = in.readMessageBegin();
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+      calls++;
+      if (msg.name.equals("block")) {
+        entered.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+      out.writeStructBegin(new TStruct("result"));
+      out.writeFieldStop();
+      out.writeStructEnd();
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      return true;
+    }
+  }
+
+  private static TProtocol connect() throws TException {
+    TSocket socket = new TSocket("localhost", PORT);
+    socket.setTimeout(5000);
+    TFramedTransport transport = new TFramedTransport(socket);
+    transport.open();
+    return new TBinaryProtocol(transport);
+  }
+
+  private static void send(TProtocol protocol, String method, int seqid) throws TException {
+    protocol.writeMessageBegin(new TMessage(method, TMessageType.CALL, seqid));
+    protocol.writeStructBegin(new TStruct("args"));
+    protocol.writeFieldStop();
+    protocol.writeStructEnd();
+    protocol.writeMessageEnd();
+    protocol.getTransport().flush();
+  }
+
+  private static void receiveReply(TProtocol protocol, int seqid) throws TException {
+    TMessage msg = protocol.readMessageBegin();
+    assertEquals(TMessageType.REPLY, msg.type);
+    assertEquals(seqid, msg.seqid);
+    TProtocolUtil.skip(protocol, TType.STRUCT);
+    protocol.readMessageEnd();
+  }
+
+  private static void receiveOverloaded(TProtocol protocol, int seqid) throws TException {
+    TMessage msg = protocol.readMessageBegin();
+    assertEquals(TMessageType.EXCEPTION, msg.type);
+    assertEquals(seqid, msg.seqid);
+    TApplicationException x = TApplicationException.read(protocol);
+    protocol.readMessageEnd();
+    assertEquals(TApplicationException.INTERNAL_ERROR, x.getType());
+    assertTrue(x.getMessage(), x.getMessage().startsWith("Server overloaded"));
+  }
+
+  private void checkStaleRequestIsShed(final AbstractNonblockingServer server, BlockingProcessor processor)
+      throws Exception {
+    Thread serveThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serveThread.start();
+    TProtocol slow = null;
+    TProtocol stale = null;
+    try {
+      for (int i = 0; i < 100 && !server.isServing(); i++) {
+        Thread.sleep(10);
+      }
+
+      // the only worker is taken
+      slow = connect();
+      send(slow, "block", 0);
+      assertTrue(processor.entered.await(5, TimeUnit.SECONDS));
+
+      // so this request waits in the queue for longer than it may
+      stale = connect();
+      send(stale, "fast", 1);
+      Thread.sleep(2 * MAX_QUEUE_DELAY_MILLIS);
+      assertEquals(0, server.getShedInvocationCount());
+
+      processor.release.countDown();
+      receiveReply(slow, 0);
+      receiveOverloaded(stale, 1);
+      assertEquals(1, server.getShedInvocationCount());
+      assertEquals(1, processor.calls);
+
+      // the connection is still good, and a request that doesn't wait goes
+      // through
+      send(stale, "fast", 2);
+      receiveReply(stale, 2);
+      assertEquals(1, server.getShedInvocationCount());
+      assertEquals(2, processor.calls);
+    } finally {
+      processor.release.countDown();
+      if (slow != null) {
+        slow.getTransport().close();
+      }
+      if (stale != null) {
+        stale.getTransport().close();
+      }
+      server.stop();
+      serveThread.join();
+    }
+  }
+
+  public void testHsHaServer() throws Exception {
+    BlockingProcessor processor = new BlockingProcessor();
+    checkStaleRequestIsShed(new THsHaServer(new THsHaServer.Args(new TNonblockingServerSocket(PORT))
+        .processor(processor).workerThreads(1)
+        .maxQueueDelayVal(MAX_QUEUE_DELAY_MILLIS).maxQueueDelayUnit(TimeUnit.MILLISECONDS)), processor);
+  }
+
+  public void testThreadedSelectorServer() throws Exception {
+    BlockingProcessor processor = new BlockingProcessor();
+    checkStaleRequestIsShed(new TThreadedSelectorServer(new TThreadedSelectorServer.Args(new TNonblockingServerSocket(PORT))
+        .processor(processor).workerThreads(1)
+        .maxQueueDelayVal(MAX_QUEUE_DELAY_MILLIS).maxQueueDelayUnit(TimeUnit.MILLISECONDS)), processor);
+  }
+
+  public void testPipelinedThreadedSelectorServer() throws Exception {
+    BlockingProcessor processor = new BlockingProcessor();
+    checkStaleRequestIsShed(new TThreadedSelectorServer(new TThreadedSelectorServer.Args(new TNonblockingServerSocket(PORT))
+        .processor(processor).workerThreads(1).pipelineDepth(4)
+        .maxQueueDelayVal(MAX_QUEUE_DELAY_MILLIS).maxQueueDelayUnit(TimeUnit.MILLISECONDS)), processor);
+  }
+}
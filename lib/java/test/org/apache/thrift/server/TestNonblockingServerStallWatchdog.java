@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.AbstractNonblockingServer.SelectorStall;
+import org.apache.thrift.server.TNonblockingServer.Args;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import thrift.test.ThriftTest;
+
+/**
+ * Runs the server tests with the stall watchdog on. TNonblockingServer runs
+ * handlers on its select thread, so a slow handler stalls it.
+ */
+public class TestNonblockingServerStallWatchdog extends TestNonblockingServer {
+  private static final int STALL_THRESHOLD_MILLIS = 200;
+
+  private TNonblockingServer lastServer;
+
+  protected TServer getServer(TProcessor processor, TNonblockingServerSocket socket, TProtocolFactory protoFactory) {
+    lastServer = new TNonblockingServer(new Args(socket).processor(processor).protocolFactory(protoFactory)
+        .stallThresholdVal(STALL_THRESHOLD_MILLIS).stallThresholdUnit(TimeUnit.MILLISECONDS));
+    return lastServer;
+  }
+
+  public void testReportsStalls() throws Exception {
+    TProtocolFactory protoFactory = new TBinaryProtocol.Factory();
+    startServer(new ThriftTest.Processor(new TestHandler()), protoFactory);
+
+    TSocket socket = new TSocket(HOST, PORT);
+    socket.setTimeout(SOCKET_TIMEOUT * 3);
+    TTransport transport = getClientTransport(socket);
+    open(transport);
+    ThriftTest.Client client = new ThriftTest.Client(protoFactory.getProtocol(transport));
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, client.testI32(i));
+    }
+    assertEquals(0, lastServer.getSelectorStallCount());
+    assertNull(lastServer.getLastSelectorStall());
+
+    // sleeps for a second on the select thread
+    client.testOneway(1);
+    assertEquals(1, client.testI32(1));
+
+    assertEquals(1, lastServer.getSelectorStallCount());
+    SelectorStall stall = lastServer.getLastSelectorStall();
+    assertTrue(stall.getStalledNanos() >= TimeUnit.MILLISECONDS.toNanos(STALL_THRESHOLD_MILLIS));
+    assertNotNull(stall.getConnection());
+    boolean inHandler = false;
+    for (StackTraceElement frame : stall.getStackTrace()) {
+      inHandler |= frame.getMethodName().equals("testOneway");
+    }
+    assertTrue(inHandler);
+
+    LatencyHistogram loopTimes = lastServer.getSelectLoopTimes();
+    assertTrue(loopTimes.getCount() > 100);
+    assertTrue(loopTimes.getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(900));
+    assertTrue(loopTimes.getPercentileNanos(50) < TimeUnit.MILLISECONDS.toNanos(STALL_THRESHOLD_MILLIS));
+    assertTrue(lastServer.getReadyKeyCount() > 100);
+
+    transport.close();
+    stopServer();
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TestPriorityInvocationQueue extends TestCase {
+  private static class Task implements Runnable {
+    public void run() {
+    }
+  }
+
+  private static Runnable task(int priority) {
+    return new PriorityInvocationQueue.PrioritizedRunnable(new Task(), priority);
+  }
+
+  public void testHigherClassesFirst() {
+    PriorityInvocationQueue queue = new PriorityInvocationQueue(3, 1, 0);
+    Runnable low = task(2);
+    Runnable normal = new Task();
+    Runnable high = task(0);
+    queue.offer(low);
+    queue.offer(normal);
+    queue.offer(high);
+    assertEquals(3, queue.size());
+    assertEquals(1, queue.size(1));
+
+    assertSame(high, queue.peek());
+    assertSame(high, queue.poll());
+    assertSame(normal, queue.poll());
+    assertSame(low, queue.poll());
+    assertNull(queue.poll());
+    assertEquals(0, queue.getAgedCount());
+  }
+
+  public void testFifoWithinClass() {
+    PriorityInvocationQueue queue = new PriorityInvocationQueue(3, 1, 0);
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for (int i = 0; i < 5; i++) {
+      Runnable t = task(1);
+      tasks.add(t);
+      queue.offer(t);
+    }
+    for (Runnable t : tasks) {
+      assertSame(t, queue.poll());
+    }
+  }
+
+  public void testOutOfRangePriorityIsClamped() {
+    PriorityInvocationQueue queue = new PriorityInvocationQueue(3, 1, 0);
+    queue.offer(task(7));
+    queue.offer(task(-1));
+    assertEquals(1, queue.size(0));
+    assertEquals(1, queue.size(2));
+  }
+
+  public void testAgedTasksGoAhead() throws Exception {
+    PriorityInvocationQueue queue = new PriorityInvocationQueue(3, 1, TimeUnit.MILLISECONDS.toNanos(50));
+    Runnable low = task(2);
+    queue.offer(low);
+    Thread.sleep(100);
+    Runnable high = task(0);
+    queue.offer(high);
+
+    assertSame(low, queue.poll());
+    assertEquals(1, queue.getAgedCount());
+    assertSame(high, queue.poll());
+  }
+
+  public void testTakeWaitsForTask() throws Exception {
+    final PriorityInvocationQueue queue = new PriorityInvocationQueue(3, 1, 0);
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+    final Runnable t = task(2);
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+        }
+        queue.offer(t);
+      }
+    }.start();
+    assertSame(t, queue.take());
+  }
+
+  public void testRemoveAndDrain() {
+    PriorityInvocationQueue queue = new PriorityInvocationQueue(3, 1, 0);
+    Runnable a = task(2);
+    Runnable b = task(0);
+    Runnable c = task(1);
+    queue.offer(a);
+    queue.offer(b);
+    queue.offer(c);
+
+    assertTrue(queue.remove(c));
+    assertFalse(queue.remove(c));
+    assertEquals(2, queue.size());
+
+    List<Runnable> drained = new ArrayList<Runnable>();
+    assertEquals(2, queue.drainTo(drained));
+    assertSame(b, drained.get(0));
+    assertSame(a, drained.get(1));
+    assertTrue(queue.isEmpty());
+  }
+
+  public void testBadArgs() {
+    try {
+      new PriorityInvocationQueue(0, 0, 0);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      new PriorityInvocationQueue(3, 3, 0);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TestQueueDelayController extends TestCase {
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  public void testMaxDelay() {
+    QueueDelayController controller = new QueueDelayController(0, 100 * MS, 50 * MS);
+    assertFalse(controller.shouldShed(10 * MS));
+    assertFalse(controller.shouldShed(50 * MS));
+    assertTrue(controller.shouldShed(51 * MS));
+    assertEquals(1, controller.getShedCount());
+    assertFalse(controller.isOverloaded());
+  }
+
+  public void testStandingQueueIsShed() throws Exception {
+    QueueDelayController controller = new QueueDelayController(2 * MS, 10 * MS, 0);
+    // every request in the first interval waited longer than the target
+    assertFalse(controller.shouldShed(5 * MS));
+    assertFalse(controller.shouldShed(3 * MS));
+    assertFalse(controller.isOverloaded());
+    Thread.sleep(15);
+
+    // so from the next one on, requests that waited more than twice the
+    // target are turned away
+    assertTrue(controller.shouldShed(5 * MS));
+    assertTrue(controller.isOverloaded());
+    assertFalse(controller.shouldShed(3 * MS));
+    assertEquals(1, controller.getShedCount());
+  }
+
+  public void testBurstIsNotShed() throws Exception {
+    QueueDelayController controller = new QueueDelayController(2 * MS, 10 * MS, 0);
+    // long waits, but the queue drains now and then
+    for (int i = 0; i < 3; i++) {
+      assertFalse(controller.shouldShed(50 * MS));
+      assertFalse(controller.shouldShed(1 * MS));
+      Thread.sleep(15);
+    }
+    assertFalse(controller.shouldShed(50 * MS));
+    assertFalse(controller.isOverloaded());
+    assertEquals(0, controller.getShedCount());
+  }
+
+  public void testRecovers() throws Exception {
+    QueueDelayController controller = new QueueDelayController(2 * MS, 10 * MS, 0);
+    controller.shouldShed(5 * MS);
+    Thread.sleep(15);
+    controller.shouldShed(5 * MS);
+    assertTrue(controller.isOverloaded());
+
+    controller.shouldShed(0);
+    Thread.sleep(15);
+    controller.shouldShed(0);
+    assertFalse(controller.isOverloaded());
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class TestSizeClassedByteBufferPool extends TestCase {
+  public void testRoundsUpToSizeClass() {
+    SizeClassedByteBufferPool pool = new SizeClassedByteBufferPool(64, 1024, 4, false);
+    ByteBuffer b = pool.acquire(100);
+    assertEquals(0, b.position());
+    assertEquals(100, b.limit());
+    assertEquals(128, b.capacity());
+
+    // smaller than the smallest class
+    assertEquals(64, pool.acquire(1).capacity());
+  }
+
+  public void testRecycles() {
+    SizeClassedByteBufferPool pool = new SizeClassedByteBufferPool(64, 1024, 4, false);
+    ByteBuffer b = pool.acquire(100);
+    b.put((byte)1);
+    pool.release(b);
+    assertEquals(1, pool.getIdleBufferCount());
+
+    // any size in the same class gets the same buffer back, reset
+    ByteBuffer again = pool.acquire(65);
+    assertSame(b, again);
+    assertEquals(0, again.position());
+    assertEquals(65, again.limit());
+    assertEquals(1, pool.getHitCount());
+    assertEquals(1, pool.getMissCount());
+    assertEquals(0, pool.getIdleBufferCount());
+  }
+
+  public void testOversizedNotPooled() {
+    SizeClassedByteBufferPool pool = new SizeClassedByteBufferPool(64, 1024, 4, false);
+    ByteBuffer big = pool.acquire(5000);
+    assertEquals(5000, big.capacity());
+    pool.release(big);
+    assertEquals(0, pool.getIdleBufferCount());
+    assertEquals(1, pool.getDiscardCount());
+
+    // buffers that don't match a class exactly are refused too
+    pool.release(ByteBuffer.allocate(100));
+    assertEquals(2, pool.getDiscardCount());
+  }
+
+  public void testBoundedPerClass() {
+    SizeClassedByteBufferPool pool = new SizeClassedByteBufferPool(64, 1024, 2, false);
+    ByteBuffer a = pool.acquire(64);
+    ByteBuffer b = pool.acquire(64);
+    ByteBuffer c = pool.acquire(64);
+    pool.release(a);
+    pool.release(b);
+    pool.release(c);
+    assertEquals(2, pool.getIdleBufferCount());
+    assertEquals(1, pool.getDiscardCount());
+  }
+
+  public void testDirect() {
+    SizeClassedByteBufferPool pool = new SizeClassedByteBufferPool(64, 1024, 2, true);
+    ByteBuffer b = pool.acquire(64);
+    assertTrue(b.isDirect());
+    pool.release(b);
+    assertEquals(1, pool.getIdleBufferCount());
+
+    // heap buffers don't belong in a direct pool
+    pool.release(ByteBuffer.allocate(64));
+    assertEquals(1, pool.getIdleBufferCount());
+  }
+}
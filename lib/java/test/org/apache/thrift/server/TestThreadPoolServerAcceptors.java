@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.server.TThreadPoolServer.Args;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TServerTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+public class TestThreadPoolServerAcceptors extends TestCase {
+  private static final int PORT = 9096;
+  private static final int OTHER_PORT = 9097;
+  private static final int ACCEPTORS = 3;
+
+  /**
+   * Answers every call with the name of the method that was called.
+   */
+  private static class MethodNameProcessor implements TProcessor {
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+      TMessage msg = in.readMessageBegin();
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+      out.writeStructBegin(new TStruct("result"));
+      out.writeFieldBegin(new TField("success", TType.STRING, (short)0));
+      out.writeString(msg.name);
+      out.writeFieldEnd();
+      out.writeFieldStop();
+      out.writeStructEnd();
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      return true;
+    }
+  }
+
+  /**
+   * A server transport that can't listen.
+   */
+  private static class BrokenServerTransport extends TServerTransport {
+    public void listen() throws TTransportException {
+      throw new TTransportException("can't listen");
+    }
+
+    protected TTransport acceptImpl() throws TTransportException {
+      throw new TTransportException("not listening");
+    }
+
+    public void close() {}
+  }
+
+  private TThreadPoolServer server;
+  private Thread serveThread;
+
+  private void serve(final TThreadPoolServer server) throws InterruptedException {
+    this.server = server;
+    serveThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serveThread.start();
+    for (int i = 0; i < 100 && !server.isServing(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(server.isServing());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (serveThread != null && serveThread.isAlive()) {
+      server.stop();
+      serveThread.join(10000);
+    }
+  }
+
+  private static String call(int port, String method) throws TException {
+    TSocket socket = new TSocket("localhost", port);
+    socket.setTimeout(5000);
+    socket.open();
+    try {
+      TProtocol protocol = new TBinaryProtocol(socket);
+      protocol.writeMessageBegin(new TMessage(method, TMessageType.CALL, 1));
+      protocol.writeStructBegin(new TStruct("args"));
+      protocol.writeFieldStop();
+      protocol.writeStructEnd();
+      protocol.writeMessageEnd();
+      protocol.getTransport().flush();
+
+      TMessage msg = protocol.readMessageBegin();
+      assertEquals(TMessageType.REPLY, msg.type);
+      protocol.readStructBegin();
+      protocol.readFieldBegin();
+      String result = protocol.readString();
+      protocol.readFieldEnd();
+      assertEquals(TType.STOP, protocol.readFieldBegin().type);
+      protocol.readStructEnd();
+      protocol.readMessageEnd();
+      return result;
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static int countAcceptorThreads() {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.isAlive() && thread.getName().startsWith("TThreadPoolServer-acceptor-")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static boolean isListening(int port) {
+    try {
+      new Socket("localhost", port).close();
+      return true;
+    } catch (java.io.IOException e) {
+      return false;
+    }
+  }
+
+  public void testServesEveryTransport() throws Exception {
+    TServerSocket main = new TServerSocket(new InetSocketAddress(PORT), 0, 128, 16 * 1024);
+    TServerSocket other = new TServerSocket(OTHER_PORT);
+    serve(new TThreadPoolServer(new Args(main).processor(new MethodNameProcessor())
+        .acceptorThreads(ACCEPTORS).additionalServerTransport(other)));
+
+    // the serve() thread is one of the main transport's acceptors
+    for (int i = 0; i < 100 && countAcceptorThreads() < 2 * ACCEPTORS - 1; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(2 * ACCEPTORS - 1, countAcceptorThreads());
+    for (int i = 0; i < 10; i++) {
+      assertEquals("main" + i, call(PORT, "main" + i));
+      assertEquals("other" + i, call(OTHER_PORT, "other" + i));
+    }
+
+    server.stop();
+    serveThread.join(10000);
+    assertFalse(serveThread.isAlive());
+    assertFalse(server.isServing());
+    assertEquals(0, countAcceptorThreads());
+    assertFalse(isListening(PORT));
+    assertFalse(isListening(OTHER_PORT));
+  }
+
+  public void testListenFailureClosesTransports() throws Exception {
+    TServerSocket main = new TServerSocket(PORT);
+    server = new TThreadPoolServer(new Args(main).processor(new MethodNameProcessor())
+        .additionalServerTransport(new BrokenServerTransport()));
+    assertTrue(isListening(PORT));
+
+    // returns right away, without having accepted anything
+    server.serve();
+    assertFalse(server.isServing());
+    assertFalse(isListening(PORT));
+  }
+
+  public void testBadArguments() throws Exception {
+    try {
+      new TThreadPoolServer(new Args(new BrokenServerTransport()).acceptorThreads(0));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {}
+
+    try {
+      new TServerSocket(new InetSocketAddress(PORT), 0, -1, 0);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {}
+
+    try {
+      new TSocket(new Socket(), 0);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {}
+  }
+}
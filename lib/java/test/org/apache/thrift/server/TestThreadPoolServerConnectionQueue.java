@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.server.TThreadPoolServer.Args;
+
+public class TestThreadPoolServerConnectionQueue extends TestCase {
+  private static ThreadPoolExecutor newExecutor(int minWorkers, int maxWorkers, int maxQueued) {
+    return (ThreadPoolExecutor) TThreadPoolServer.createDefaultExecutorService(new Args(null)
+        .minWorkerThreads(minWorkers).maxWorkerThreads(maxWorkers).maxQueuedConnections(maxQueued));
+  }
+
+  private static Runnable waitFor(final CountDownLatch latch) {
+    return new Runnable() {
+      public void run() {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {}
+      }
+    };
+  }
+
+  public void testStartsWorkersBeforeQueueing() throws Exception {
+    ThreadPoolExecutor executor = newExecutor(1, 3, 2);
+    CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i < 3; i++) {
+      executor.execute(waitFor(release));
+    }
+    assertEquals(3, executor.getPoolSize());
+    assertEquals(0, executor.getQueue().size());
+
+    executor.execute(waitFor(release));
+    executor.execute(waitFor(release));
+    assertEquals(3, executor.getPoolSize());
+    assertEquals(2, executor.getQueue().size());
+
+    try {
+      executor.execute(waitFor(release));
+      fail("queue should have been full");
+    } catch (RejectedExecutionException e) {}
+
+    release.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(5, executor.getCompletedTaskCount());
+  }
+
+  public void testReusesIdleWorkers() throws Exception {
+    ThreadPoolExecutor executor = newExecutor(1, 3, 2);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute(waitFor(release));
+    release.countDown();
+    for (int i = 0; i < 100 && executor.getCompletedTaskCount() < 1; i++) {
+      Thread.sleep(10);
+    }
+
+    // the idle worker takes it, rather than another being started
+    CountDownLatch second = new CountDownLatch(1);
+    executor.execute(waitFor(second));
+    assertEquals(1, executor.getPoolSize());
+    second.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  public void testValidatesArgs() {
+    try {
+      new TThreadPoolServer(new Args(null).maxQueuedConnections(-1));
+      fail();
+    } catch (IllegalArgumentException e) {}
+    try {
+      new TThreadPoolServer(new Args(null).queueTimeoutVal(-1));
+      fail();
+    } catch (IllegalArgumentException e) {}
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.server.TThreadPoolServer.Args;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+public class TestThreadPoolServerEvents extends TestCase {
+  private static final int PORT = 9094;
+  private static final long IDLE_MILLIS = 1000;
+  private static final long HEADER_GAP_MILLIS = 200;
+
+  /**
+   * Answers every call with an empty reply, except for oneway calls.
+   */
+  private static class EmptyProcessor implements TProcessor {
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+      TMessage msg = in.readMessageBegin();
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+      if (msg.type == TMessageType.ONEWAY) {
+        return true;
+      }
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+      out.writeStructBegin(new TStruct("result"));
+      out.writeFieldStop();
+      out.writeStructEnd();
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      return true;
+    }
+  }
+
+  /**
+   * Writes down every event, and how long the last request took to read.
+   */
+  private static class RecordingListener implements TServerEventListener {
+    private final List<String> events = new ArrayList<String>();
+    private long readNanos = -1;
+
+    public synchronized void connectionOpened(TTransport connection) {
+      events.add("opened");
+    }
+
+    public synchronized void connectionClosed(TTransport connection) {
+      events.add("closed");
+      notifyAll();
+    }
+
+    public synchronized void frameRead(TTransport connection, int bytes, long readNanos) {
+      events.add("read");
+      this.readNanos = readNanos;
+    }
+
+    public synchronized void invokeStarted(TTransport connection, String method, long readNanos, long queuedNanos) {
+      events.add("started " + method);
+    }
+
+    public synchronized void invokeFinished(TTransport connection, String method, long handlerNanos, boolean success) {
+      events.add("finished " + method + " " + success);
+    }
+
+    public synchronized void responseWritten(TTransport connection, String method, int bytes, long writeNanos) {
+      events.add("written " + method);
+    }
+
+    public synchronized List<String> awaitClosed() throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!events.contains("closed") && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+      return new ArrayList<String>(events);
+    }
+  }
+
+  private final RecordingListener listener = new RecordingListener();
+  private TThreadPoolServer server;
+  private Thread serveThread;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new TThreadPoolServer(new Args(new TServerSocket(PORT)).processor(new EmptyProcessor())
+        .eventListener(listener));
+    serveThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serveThread.start();
+    for (int i = 0; i < 100 && !server.isServing(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(server.isServing());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+    serveThread.join(10000);
+  }
+
+  private static byte[] message(String method, byte type) throws TException {
+    TMemoryBuffer buffer = new TMemoryBuffer(64);
+    TProtocol protocol = new TBinaryProtocol(buffer);
+    protocol.writeMessageBegin(new TMessage(method, type, 1));
+    protocol.writeStructBegin(new TStruct("args"));
+    protocol.writeFieldStop();
+    protocol.writeStructEnd();
+    protocol.writeMessageEnd();
+    byte[] bytes = new byte[buffer.length()];
+    System.arraycopy(buffer.getArray(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  private static void receive(TSocket socket, String method) throws TException {
+    TProtocol protocol = new TBinaryProtocol(socket);
+    TMessage msg = protocol.readMessageBegin();
+    assertEquals(method, msg.name);
+    assertEquals(TMessageType.REPLY, msg.type);
+    TProtocolUtil.skip(protocol, TType.STRUCT);
+    protocol.readMessageEnd();
+  }
+
+  public void testReportsCalls() throws Exception {
+    TSocket socket = new TSocket("localhost", PORT);
+    socket.setTimeout(5000);
+    socket.open();
+    try {
+      socket.write(message("first", TMessageType.CALL));
+      socket.flush();
+      receive(socket, "first");
+      socket.write(message("second", TMessageType.ONEWAY));
+      socket.flush();
+    } finally {
+      socket.close();
+    }
+
+    List<String> events = listener.awaitClosed();
+    String[] expected = {
+        "opened",
+        "read", "started first", "finished first true", "written first",
+        "read", "started second", "finished second true",
+        "closed"};
+    assertEquals(Arrays.asList(expected), events);
+  }
+
+  public void testReadTimeCoversHeaderButNotIdleTime() throws Exception {
+    byte[] request = message("slow", TMessageType.CALL);
+    TSocket socket = new TSocket("localhost", PORT);
+    socket.setTimeout(5000);
+    socket.open();
+    try {
+      // the server waits for the request, which doesn't count as reading it
+      Thread.sleep(IDLE_MILLIS);
+      // then the message header arrives in two parts
+      socket.write(request, 0, 4);
+      socket.flush();
+      Thread.sleep(HEADER_GAP_MILLIS);
+      socket.write(request, 4, request.length - 4);
+      socket.flush();
+      receive(socket, "slow");
+    } finally {
+      socket.close();
+    }
+
+    listener.awaitClosed();
+    long readMillis = TimeUnit.NANOSECONDS.toMillis(listener.readNanos);
+    assertTrue("read took " + readMillis + " ms", readMillis >= HEADER_GAP_MILLIS / 2);
+    assertTrue("read took " + readMillis + " ms", readMillis < IDLE_MILLIS);
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.server.TThreadPoolServer.Args;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TSocket;
+
+public class TestThreadPoolServerOverload extends TestCase {
+  private static final int PORT = 9095;
+
+  /**
+   * Holds its worker thread until released, then answers with an empty reply.
+   */
+  private static class BlockingProcessor implements TProcessor {
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+      TMessage msg = in.readMessageBegin();
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+
+      entered.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+      out.writeStructBegin(new TStruct("result"));
+      out.writeFieldStop();
+      out.writeStructEnd();
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      return true;
+    }
+  }
+
+  private final BlockingProcessor processor = new BlockingProcessor();
+  private TThreadPoolServer server;
+  private Thread serveThread;
+  private TSocket busy;
+
+  private void serve(final TThreadPoolServer server) throws InterruptedException {
+    this.server = server;
+    serveThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serveThread.start();
+    for (int i = 0; i < 100 && !server.isServing(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(server.isServing());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    processor.release.countDown();
+    if (busy != null) {
+      busy.close();
+    }
+    if (serveThread != null && serveThread.isAlive()) {
+      server.stop();
+      serveThread.join(10000);
+    }
+  }
+
+  private static TSocket send(String method) throws TException {
+    TSocket socket = new TSocket("localhost", PORT);
+    socket.setTimeout(5000);
+    socket.open();
+    TProtocol protocol = new TBinaryProtocol(socket);
+    protocol.writeMessageBegin(new TMessage(method, TMessageType.CALL, 1));
+    protocol.writeStructBegin(new TStruct("args"));
+    protocol.writeFieldStop();
+    protocol.writeStructEnd();
+    protocol.writeMessageEnd();
+    protocol.getTransport().flush();
+    return socket;
+  }
+
+  private static void assertOverloaded(TSocket socket) throws TException {
+    try {
+      TProtocol protocol = new TBinaryProtocol(socket);
+      TMessage msg = protocol.readMessageBegin();
+      assertEquals("turnedAway", msg.name);
+      assertEquals(TMessageType.EXCEPTION, msg.type);
+      TApplicationException x = TApplicationException.read(protocol);
+      protocol.readMessageEnd();
+      assertEquals(TApplicationException.INTERNAL_ERROR, x.getType());
+      assertTrue(x.getMessage(), x.getMessage().startsWith("Server overloaded"));
+    } finally {
+      socket.close();
+    }
+  }
+
+  private void occupyWorker() throws Exception {
+    busy = send("block");
+    assertTrue(processor.entered.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testRejectedConnectionIsAnswered() throws Exception {
+    serve(new TThreadPoolServer(new Args(new TServerSocket(PORT)).processor(processor)
+        .minWorkerThreads(1).maxWorkerThreads(1)));
+    occupyWorker();
+
+    assertOverloaded(send("turnedAway"));
+    assertEquals(1, server.getRejectedConnectionCount());
+    assertEquals(0, server.getQueueTimeoutCount());
+  }
+
+  public void testQueueTimeoutIsAnswered() throws Exception {
+    serve(new TThreadPoolServer(new Args(new TServerSocket(PORT)).processor(processor)
+        .minWorkerThreads(1).maxWorkerThreads(1).maxQueuedConnections(4)
+        .queueTimeoutVal(50).queueTimeoutUnit(TimeUnit.MILLISECONDS)));
+    occupyWorker();
+
+    // queued behind the busy worker for longer than the queue timeout
+    TSocket late = send("turnedAway");
+    Thread.sleep(200);
+    assertEquals(0, server.getRejectedConnectionCount());
+    // the worker moves on to the queued connection once it's done with this one
+    processor.release.countDown();
+    busy.close();
+
+    assertOverloaded(late);
+    assertEquals(1, server.getQueueTimeoutCount());
+    assertEquals(1, server.getRejectedConnectionCount());
+  }
+
+  public void testBadArguments() throws Exception {
+    TServerSocket socket = new TServerSocket(PORT);
+    try {
+      new TThreadPoolServer(new Args(socket).rejectorThreads(0));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+    } finally {
+      socket.close();
+    }
+  }
+}
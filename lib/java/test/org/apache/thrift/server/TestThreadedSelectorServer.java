@@ -18,13 +18,130 @@
  */
 package org.apache.thrift.server;
 
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.server.TThreadedSelectorServer.Args;
 import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+import thrift.test.ThriftTest;
 
 public class TestThreadedSelectorServer extends TestNonblockingServer {
   protected TServer getServer(TProcessor processor, TNonblockingServerSocket socket, TProtocolFactory protoFactory) {
     return new TThreadedSelectorServer(new Args(socket).processor(processor).protocolFactory(protoFactory));
   }
+
+  public void testTimeouts() throws Exception {
+    final TThreadedSelectorServer server = new TThreadedSelectorServer(new Args(getServerSocket())
+        .processor(new ThriftTest.Processor(new TestHandler()))
+        .readTimeoutVal(200).readTimeoutUnit(TimeUnit.MILLISECONDS)
+        .idleTimeoutVal(500).idleTimeoutUnit(TimeUnit.MILLISECONDS));
+    Thread serveThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serveThread.start();
+    try {
+      for (int i = 0; i < 100 && !server.isServing(); i++) {
+        Thread.sleep(10);
+      }
+
+      // a connection that stops halfway through a frame is closed once the
+      // read timeout is up
+      Socket stalled = new Socket(HOST, PORT);
+      stalled.setSoTimeout(SOCKET_TIMEOUT * 3);
+      DataOutputStream out = new DataOutputStream(stalled.getOutputStream());
+      out.writeInt(100);
+      out.write(new byte[10]);
+      out.flush();
+      assertEquals(-1, stalled.getInputStream().read());
+      stalled.close();
+      assertEquals(1, server.getReadTimeoutCount());
+      assertEquals(0, server.getIdleTimeoutCount());
+
+      // a connection that never sends anything is closed once the idle
+      // timeout is up
+      Socket idle = new Socket(HOST, PORT);
+      idle.setSoTimeout(SOCKET_TIMEOUT * 3);
+      long start = System.currentTimeMillis();
+      assertEquals(-1, idle.getInputStream().read());
+      assertTrue(System.currentTimeMillis() - start >= 400);
+      idle.close();
+      assertEquals(1, server.getIdleTimeoutCount());
+      assertEquals(1, server.getReadTimeoutCount());
+    } finally {
+      server.stop();
+      serveThread.join();
+    }
+  }
+
+  private ThriftTest.Client connect(TProtocolFactory protoFactory) throws Exception {
+    TSocket socket = new TSocket(HOST, PORT);
+    socket.setTimeout(SOCKET_TIMEOUT * 3);
+    TTransport transport = getClientTransport(socket);
+    open(transport);
+    return new ThriftTest.Client(protoFactory.getProtocol(transport));
+  }
+
+  public void testDrain() throws Exception {
+    TProtocolFactory protoFactory = new TBinaryProtocol.Factory();
+    final TThreadedSelectorServer server = new TThreadedSelectorServer(new Args(getServerSocket())
+        .processor(new ThriftTest.Processor(new TestHandler())).protocolFactory(protoFactory));
+    Thread serveThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serveThread.start();
+    try {
+      for (int i = 0; i < 100 && !server.isServing(); i++) {
+        Thread.sleep(10);
+      }
+
+      ThriftTest.Client idle = connect(protoFactory);
+      assertEquals(1, idle.testI32(1));
+      ThriftTest.Client busy = connect(protoFactory);
+      assertEquals(2, busy.testI32(2));
+      assertEquals(2, server.getOpenConnectionCount());
+
+      // keeps the busy connection's handler going for a second
+      busy.testOneway(1);
+      final boolean[] drained = new boolean[1];
+      Thread drainer = new Thread() {
+        public void run() {
+          drained[0] = server.drain(10, TimeUnit.SECONDS);
+        }
+      };
+      drainer.start();
+      Thread.sleep(200);
+      assertTrue(server.isDraining());
+
+      try {
+        idle.testI32(3);
+        fail("idle connection should have been closed");
+      } catch (TTransportException e) {}
+
+      // a request that arrives while the connection is busy is still answered
+      assertEquals(4, busy.testI32(4));
+
+      drainer.join();
+      assertTrue(drained[0]);
+      assertEquals(0, server.getOpenConnectionCount());
+      try {
+        connect(protoFactory).testI32(5);
+        fail("server should not accept connections once drained");
+      } catch (TTransportException e) {}
+    } finally {
+      server.stop();
+      serveThread.join();
+    }
+  }
 }
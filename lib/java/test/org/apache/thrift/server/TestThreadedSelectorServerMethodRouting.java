@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.server.TThreadedSelectorServer.Args;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Checks that on a pipelined connection, the executor chosen for a request
+ * by its method is the one that processes that request.
+ */
+public class TestThreadedSelectorServerMethodRouting extends TestCase {
+  private static final int PORT = 9098;
+  private static final int PIPELINE_DEPTH = 4;
+
+  /**
+   * Answers every call with the name of the thread that processed it. Calls
+   * of "block" wait for the latch first.
+   */
+  private static class ThreadNameProcessor implements TProcessor {
+    private final CountDownLatch latch;
+
+    ThreadNameProcessor(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+      TMessage msg = in.readMessageBegin();
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+      if (msg.name.equals("block")) {
+        try {
+          latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {}
+      }
+
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+      out.writeStructBegin(new TStruct("result"));
+      out.writeFieldBegin(new TField("success", TType.STRING, (short)0));
+      out.writeString(Thread.currentThread().getName());
+      out.writeFieldEnd();
+      out.writeFieldStop();
+      out.writeStructEnd();
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      return true;
+    }
+  }
+
+  /**
+   * A single thread, which queues tasks only if asked to.
+   */
+  private ThreadPoolExecutor newExecutor(final String name, boolean queued) {
+    BlockingQueue<Runnable> queue = queued ? new LinkedBlockingQueue<Runnable>() : new SynchronousQueue<Runnable>();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue,
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            return new Thread(r, name);
+          }
+        });
+    executors.add(executor);
+    return executor;
+  }
+
+  private final List<ExecutorService> executors = new ArrayList<ExecutorService>();
+  private TThreadedSelectorServer server;
+  private Thread serverThread;
+  private TTransport transport;
+  private TProtocol protocol;
+
+  private void start(Args args) throws Exception {
+    server = new TThreadedSelectorServer(args.pipelineDepth(PIPELINE_DEPTH));
+    serverThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serverThread.start();
+    for (int i = 0; i < 100 && !server.isServing(); i++) {
+      Thread.sleep(10);
+    }
+
+    TSocket socket = new TSocket("localhost", PORT);
+    socket.setTimeout(10000);
+    transport = new TFramedTransport(socket);
+    transport.open();
+    protocol = new TBinaryProtocol(transport);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (transport != null) {
+      transport.close();
+    }
+    if (server != null) {
+      server.stop();
+      // serve() only closes the server socket on its way out
+      serverThread.join();
+    }
+    // the server leaves the methods' executors running
+    for (ExecutorService executor : executors) {
+      executor.shutdownNow();
+    }
+  }
+
+  private void send(String method, int seqid) throws TException {
+    protocol.writeMessageBegin(new TMessage(method, TMessageType.CALL, seqid));
+    protocol.writeStructBegin(new TStruct("args"));
+    protocol.writeFieldStop();
+    protocol.writeStructEnd();
+    protocol.writeMessageEnd();
+    transport.flush();
+  }
+
+  /**
+   * Read the next response, returning the name of the thread that processed
+   * the call, or the message of the exception it was answered with.
+   */
+  private String receive(int seqid) throws TException {
+    TMessage msg = protocol.readMessageBegin();
+    assertEquals(seqid, msg.seqid);
+    if (msg.type == TMessageType.EXCEPTION) {
+      TApplicationException x = TApplicationException.read(protocol);
+      protocol.readMessageEnd();
+      return x.getMessage();
+    }
+    String result = null;
+    protocol.readStructBegin();
+    while (true) {
+      TField field = protocol.readFieldBegin();
+      if (field.type == TType.STOP) {
+        break;
+      }
+      result = protocol.readString();
+      protocol.readFieldEnd();
+    }
+    protocol.readStructEnd();
+    protocol.readMessageEnd();
+    return result;
+  }
+
+  private static void awaitCompleted(ThreadPoolExecutor executor, int tasks) throws InterruptedException {
+    for (int i = 0; i < 500 && executor.getCompletedTaskCount() < tasks; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(tasks, executor.getCompletedTaskCount());
+  }
+
+  public void testMethodExecutorRunsItsOwnRequest() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    ThreadPoolExecutor workers = newExecutor("worker", true);
+    ThreadPoolExecutor slow = newExecutor("slow-executor", false);
+    start(new Args(new TNonblockingServerSocket(PORT)).processor(new ThreadNameProcessor(latch))
+        .executorService(workers).methodExecutor("slow", slow));
+
+    // the only worker is held up by the first call, so the second is still
+    // waiting when the third is read
+    send("block", 0);
+    send("fast", 1);
+    send("slow", 2);
+    awaitCompleted(slow, 1);
+    latch.countDown();
+
+    assertEquals("worker", receive(0));
+    assertEquals("worker", receive(1));
+    assertEquals("slow-executor", receive(2));
+
+    // the method's executor belongs to the caller, so it outlives the server
+    server.stop();
+    serverThread.join();
+    server = null;
+    assertFalse(slow.isShutdown());
+  }
+
+  public void testRejectionAnswersTheRejectedRequest() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    ThreadPoolExecutor workers = newExecutor("worker", true);
+    ThreadPoolExecutor blocking = newExecutor("block-executor", false);
+    start(new Args(new TNonblockingServerSocket(PORT)).processor(new ThreadNameProcessor(latch))
+        .executorService(workers).methodExecutor("block", blocking));
+
+    // the executor for "block" takes one call at a time, so the second one
+    // is turned away while the call in between goes to the workers
+    send("block", 0);
+    send("fast", 1);
+    send("block", 2);
+    awaitCompleted(workers, 1);
+    latch.countDown();
+
+    assertEquals("block-executor", receive(0));
+    assertEquals("worker", receive(1));
+    assertEquals("Too many concurrent calls to block", receive(2));
+    assertEquals(1, blocking.getCompletedTaskCount());
+  }
+
+  public void testInlineRunsItsOwnRequest() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    ThreadPoolExecutor workers = newExecutor("worker", true);
+    start(new Args(new TNonblockingServerSocket(PORT)).processor(new ThreadNameProcessor(latch))
+        .executorService(workers).inlineMethod("inline"));
+
+    // the inline call is run right away on the selector thread, although
+    // the one before it is still waiting for the worker
+    send("block", 0);
+    send("queued", 1);
+    send("inline", 2);
+    for (int i = 0; i < 500 && server.getInlineInvocationCount() < 1; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, server.getInlineInvocationCount());
+    assertEquals(0, workers.getCompletedTaskCount());
+    latch.countDown();
+
+    assertEquals("worker", receive(0));
+    assertEquals("worker", receive(1));
+    assertFalse("worker".equals(receive(2)));
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.server.TThreadedSelectorServer.Args;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+public class TestThreadedSelectorServerOutOfOrder extends TestThreadedSelectorServerPipelined {
+  /**
+   * Answers every call with an empty result. Calls of "slow" wait for the
+   * latch first.
+   */
+  private static class SlowProcessor implements TProcessor {
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+      TMessage msg = in.readMessageBegin();
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+      if (msg.name.equals("slow")) {
+        try {
+          latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {}
+      }
+
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+      out.writeStructBegin(new TStruct("result"));
+      out.writeFieldStop();
+      out.writeStructEnd();
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      return true;
+    }
+  }
+
+  protected TServer getServer(TProcessor processor, TNonblockingServerSocket socket, TProtocolFactory protoFactory) {
+    return new TThreadedSelectorServer(new Args(socket).processor(processor).protocolFactory(protoFactory)
+        .pipelineDepth(PIPELINE_DEPTH).outOfOrderResponses(true));
+  }
+
+  protected boolean isOrdered() {
+    return false;
+  }
+
+  private static void send(TProtocol protocol, String method, int seqid) throws TException {
+    protocol.writeMessageBegin(new TMessage(method, TMessageType.CALL, seqid));
+    protocol.writeStructBegin(new TStruct("args"));
+    protocol.writeFieldStop();
+    protocol.writeStructEnd();
+    protocol.writeMessageEnd();
+    protocol.getTransport().flush();
+  }
+
+  private static int receive(TProtocol protocol) throws TException {
+    TMessage msg = protocol.readMessageBegin();
+    assertEquals(TMessageType.REPLY, msg.type);
+    TProtocolUtil.skip(protocol, TType.STRUCT);
+    protocol.readMessageEnd();
+    return msg.seqid;
+  }
+
+  /**
+   * A fast call pipelined behind a slow one on the same connection is
+   * answered first.
+   */
+  public void testFastResponseOvertakesSlow() throws Exception {
+    SlowProcessor processor = new SlowProcessor();
+    final TThreadedSelectorServer server = new TThreadedSelectorServer(new Args(getServerSocket())
+        .processor(processor).workerThreads(2).pipelineDepth(PIPELINE_DEPTH).outOfOrderResponses(true));
+    Thread serveThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serveThread.start();
+    TTransport transport = null;
+    try {
+      for (int i = 0; i < 100 && !server.isServing(); i++) {
+        Thread.sleep(10);
+      }
+      TSocket socket = new TSocket(HOST, PORT);
+      socket.setTimeout(SOCKET_TIMEOUT * 5);
+      transport = new TFramedTransport(socket);
+      transport.open();
+      TProtocol protocol = new TBinaryProtocol(transport);
+
+      send(protocol, "slow", 0);
+      send(protocol, "fast", 1);
+      assertEquals(1, receive(protocol));
+      processor.latch.countDown();
+      assertEquals(0, receive(protocol));
+    } finally {
+      processor.latch.countDown();
+      if (transport != null) {
+        transport.close();
+      }
+      server.stop();
+      serveThread.join();
+    }
+  }
+
+  public void testRequiresPipelining() throws Exception {
+    Args args = new Args(new TNonblockingServerSocket(PORT)).outOfOrderResponses(true);
+    try {
+      args.validate();
+      fail("out of order responses without pipelining should be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    } finally {
+      args.serverTransport.close();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.TThreadedSelectorServer.Args;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import thrift.test.ThriftTest;
+
+public class TestThreadedSelectorServerPipelined extends TestNonblockingServer {
+  protected static final int PIPELINE_DEPTH = 4;
+
+  protected TServer getServer(TProcessor processor, TNonblockingServerSocket socket, TProtocolFactory protoFactory) {
+    return new TThreadedSelectorServer(new Args(socket).processor(processor).protocolFactory(protoFactory)
+        .pipelineDepth(PIPELINE_DEPTH));
+  }
+
+  /**
+   * Whether responses are expected in the order the requests were sent.
+   */
+  protected boolean isOrdered() {
+    return true;
+  }
+
+  /**
+   * Send a batch of requests without waiting for responses, and check that
+   * each one is answered exactly once.
+   */
+  public void testPipelinedRequests() throws Exception {
+    TProtocolFactory protoFactory = new TBinaryProtocol.Factory();
+    startServer(new ThriftTest.Processor(new TestHandler()), protoFactory);
+
+    TSocket socket = new TSocket(HOST, PORT);
+    socket.setTimeout(SOCKET_TIMEOUT);
+    TTransport transport = getClientTransport(socket);
+    TProtocol protocol = protoFactory.getProtocol(transport);
+    open(transport);
+
+    int numRequests = PIPELINE_DEPTH * 3;
+    for (int i = 0; i < numRequests; i++) {
+      protocol.writeMessageBegin(new TMessage("testString", TMessageType.CALL, i));
+      new ThriftTest.testString_args("request " + i).write(protocol);
+      protocol.writeMessageEnd();
+      transport.flush();
+    }
+
+    Set<Integer> answered = new HashSet<Integer>();
+    for (int i = 0; i < numRequests; i++) {
+      TMessage msg = protocol.readMessageBegin();
+      assertEquals(TMessageType.REPLY, msg.type);
+      if (isOrdered()) {
+        assertEquals(i, msg.seqid);
+      }
+      assertTrue(answered.add(msg.seqid));
+      ThriftTest.testString_result result = new ThriftTest.testString_result();
+      result.read(protocol);
+      protocol.readMessageEnd();
+      assertEquals("request " + msg.seqid, result.success);
+    }
+    assertEquals(numRequests, answered.size());
+
+    transport.close();
+    stopServer();
+  }
+}
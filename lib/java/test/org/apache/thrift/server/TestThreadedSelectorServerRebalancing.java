@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.server.TThreadedSelectorServer.Args;
+import org.apache.thrift.server.TThreadedSelectorServer.MigrationPlan;
+import org.apache.thrift.server.TThreadedSelectorServer.SelectorThreadLoad;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+
+public class TestThreadedSelectorServerRebalancing extends TestCase {
+  private static final int PORT = 9093;
+
+  public void testMovesHalfTheDifference() {
+    MigrationPlan plan = TThreadedSelectorServer.planMigration(
+        new double[] {10, 0, 4}, new int[] {10, 0, 4});
+    assertEquals(0, plan.from);
+    assertEquals(1, plan.to);
+    assertEquals(5, plan.count);
+  }
+
+  public void testEstimatesLoadPerConnection() {
+    // 8000 bytes/s over 4 connections is 2000 per connection, and half the
+    // difference of 6000 is 3000, so one connection moves
+    MigrationPlan plan = TThreadedSelectorServer.planMigration(
+        new double[] {2000, 8000}, new int[] {10, 4});
+    assertEquals(1, plan.from);
+    assertEquals(0, plan.to);
+    assertEquals(1, plan.count);
+  }
+
+  public void testMovesAtMostHalfTheConnections() {
+    // a single connection carrying all the load can't be split
+    assertNull(TThreadedSelectorServer.planMigration(new double[] {100000, 0}, new int[] {1, 0}));
+    MigrationPlan plan = TThreadedSelectorServer.planMigration(
+        new double[] {0, 100000}, new int[] {0, 3});
+    assertEquals(1, plan.count);
+  }
+
+  public void testLeavesBalancedThreadsAlone() {
+    assertNull(TThreadedSelectorServer.planMigration(new double[] {10, 9}, new int[] {10, 9}));
+    assertNull(TThreadedSelectorServer.planMigration(new double[] {5, 5, 5}, new int[] {5, 5, 5}));
+    assertNull(TThreadedSelectorServer.planMigration(new double[] {7}, new int[] {7}));
+    assertNull(TThreadedSelectorServer.planMigration(new double[0], new int[0]));
+  }
+
+  public void testTiesGoToTheFirstThread() {
+    MigrationPlan plan = TThreadedSelectorServer.planMigration(
+        new double[] {10, 0, 10, 0}, new int[] {10, 0, 10, 0});
+    assertEquals(0, plan.from);
+    assertEquals(1, plan.to);
+  }
+
+  /**
+   * Answers every call with an empty reply.
+   */
+  private static class EmptyProcessor implements TProcessor {
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+      TMessage msg = in.readMessageBegin();
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+      out.writeStructBegin(new TStruct("result"));
+      out.writeFieldStop();
+      out.writeStructEnd();
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      return true;
+    }
+  }
+
+  private static void call(TProtocol protocol, int seqid) throws TException {
+    protocol.writeMessageBegin(new TMessage("ping", TMessageType.CALL, seqid));
+    protocol.writeStructBegin(new TStruct("args"));
+    protocol.writeFieldStop();
+    protocol.writeStructEnd();
+    protocol.writeMessageEnd();
+    protocol.getTransport().flush();
+    TMessage msg = protocol.readMessageBegin();
+    assertEquals(seqid, msg.seqid);
+    TProtocolUtil.skip(protocol, TType.STRUCT);
+    protocol.readMessageEnd();
+  }
+
+  private static int[] sortedConnectionCounts(TThreadedSelectorServer server) {
+    List<SelectorThreadLoad> loads = server.getSelectorThreadLoads();
+    int[] counts = new int[loads.size()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = loads.get(i).getConnectionCount();
+    }
+    Arrays.sort(counts);
+    return counts;
+  }
+
+  private static long migratedAwayCount(TThreadedSelectorServer server) {
+    long migrated = 0;
+    for (SelectorThreadLoad load : server.getSelectorThreadLoads()) {
+      migrated += load.getMigratedAwayCount();
+    }
+    return migrated;
+  }
+
+  /**
+   * Leave all the remaining connections on one selector thread, rebalance,
+   * and check that half of them get moved and keep working.
+   */
+  public void testIdleConnectionsAreMoved() throws Exception {
+    // no rebalance thread; the test rebalances by hand
+    final TThreadedSelectorServer server = new TThreadedSelectorServer(
+        new Args(new TNonblockingServerSocket(PORT)).processor(new EmptyProcessor()).selectorThreads(2));
+    Thread serveThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serveThread.start();
+    List<TProtocol> clients = new ArrayList<TProtocol>();
+    try {
+      for (int i = 0; i < 100 && !server.isServing(); i++) {
+        Thread.sleep(10);
+      }
+      for (int i = 0; i < 20; i++) {
+        TSocket socket = new TSocket("localhost", PORT);
+        socket.setTimeout(5000);
+        TFramedTransport transport = new TFramedTransport(socket);
+        transport.open();
+        clients.add(new TBinaryProtocol(transport));
+        call(clients.get(i), i);
+      }
+      assertTrue(Arrays.equals(new int[] {10, 10}, sortedConnectionCounts(server)));
+
+      // connections are handed out round robin, so this empties one thread,
+      // whichever one got the first connection
+      for (int i = 0; i < 20; i += 2) {
+        clients.get(i).getTransport().close();
+      }
+      for (int i = 0; i < 500 && server.getOpenConnectionCount() > 10; i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(Arrays.equals(new int[] {0, 10}, sortedConnectionCounts(server)));
+
+      server.rebalanceSelectorThreads();
+      for (int i = 0; i < 500 && migratedAwayCount(server) < 5; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(5, migratedAwayCount(server));
+      assertTrue(Arrays.equals(new int[] {5, 5}, sortedConnectionCounts(server)));
+
+      // balanced now, so nothing else moves
+      server.rebalanceSelectorThreads();
+      for (int i = 1; i < 20; i += 2) {
+        call(clients.get(i), i);
+      }
+      assertEquals(5, migratedAwayCount(server));
+    } finally {
+      for (TProtocol client : clients) {
+        client.getTransport().close();
+      }
+      server.stop();
+      serveThread.join();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.TThreadedSelectorServer.Args;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+import thrift.test.ThriftTest;
+
+/**
+ * Runs the server tests with every selector thread accepting on its own
+ * SO_REUSEPORT socket. Where SO_REUSEPORT isn't available this falls back to
+ * the single accept thread, so the tests still cover the plain server.
+ */
+public class TestThreadedSelectorServerReusePort extends TestNonblockingServer {
+  private static final int SELECTOR_THREADS = 4;
+
+  @Override
+  protected TNonblockingServerSocket getServerSocket() throws TTransportException {
+    return new TNonblockingServerSocket(new InetSocketAddress(PORT), 0,
+        TNonblockingServerSocket.isReusePortSupported());
+  }
+
+  protected TServer getServer(TProcessor processor, TNonblockingServerSocket socket, TProtocolFactory protoFactory) {
+    return new TThreadedSelectorServer(new Args(socket).processor(processor).protocolFactory(protoFactory)
+        .selectorThreads(SELECTOR_THREADS).acceptOnSelectorThreads(socket.isReusePort()));
+  }
+
+  public void testManyConnections() throws Exception {
+    TProtocolFactory protoFactory = new TBinaryProtocol.Factory();
+    startServer(new ThriftTest.Processor(new TestHandler()), protoFactory);
+
+    for (int i = 0; i < 100; i++) {
+      TSocket socket = new TSocket(HOST, PORT);
+      socket.setTimeout(SOCKET_TIMEOUT);
+      TTransport transport = getClientTransport(socket);
+      open(transport);
+      ThriftTest.Client client = new ThriftTest.Client(protoFactory.getProtocol(transport));
+      assertEquals(i, client.testI32(i));
+      transport.close();
+    }
+
+    stopServer();
+  }
+
+  public void testSiblingRequiresReusePort() throws Exception {
+    TNonblockingServerSocket socket = new TNonblockingServerSocket(new InetSocketAddress(0), 0, false);
+    try {
+      socket.newReusePortSibling();
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    } finally {
+      socket.close();
+    }
+  }
+
+  public void testArgsRequireReusePortSocket() throws Exception {
+    TNonblockingServerSocket socket = new TNonblockingServerSocket(new InetSocketAddress(0), 0, false);
+    try {
+      new TThreadedSelectorServer(new Args(socket).acceptOnSelectorThreads(true));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    } finally {
+      socket.close();
+    }
+  }
+
+  public void testSiblingsClosedWhenStartFails() throws Exception {
+    if (!TNonblockingServerSocket.isReusePortSupported()) {
+      return;
+    }
+    final List<TNonblockingServerSocket> siblings = new ArrayList<TNonblockingServerSocket>();
+    // binds the first sibling, then fails to bind the second
+    TNonblockingServerSocket socket = new TNonblockingServerSocket(new InetSocketAddress(0), 0, true) {
+      @Override
+      public TNonblockingServerSocket newReusePortSibling() throws TTransportException {
+        if (!siblings.isEmpty()) {
+          throw new TTransportException("no more siblings");
+        }
+        TNonblockingServerSocket sibling = super.newReusePortSibling();
+        siblings.add(sibling);
+        return sibling;
+      }
+    };
+    try {
+      TThreadedSelectorServer server = new TThreadedSelectorServer(new Args(socket)
+          .processor(new ThriftTest.Processor(new TestHandler()))
+          .selectorThreads(SELECTOR_THREADS).acceptOnSelectorThreads(true));
+      server.serve();
+      assertFalse(server.isServing());
+      assertEquals(1, siblings.size());
+      assertEquals(-1, siblings.get(0).getPort());
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TServerSocket;
+
+public class TestVirtualThreads extends TestCase {
+  private static final int PORT = 9099;
+
+  public void testThreadPerTaskExecutor() throws Exception {
+    if (!VirtualThreads.isSupported()) {
+      try {
+        VirtualThreads.newThreadPerTaskExecutor("test-");
+        fail("expected UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+      }
+      return;
+    }
+
+    ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("test-");
+    Future<Thread> thread = executor.submit(new Callable<Thread>() {
+      public Thread call() {
+        return Thread.currentThread();
+      }
+    });
+    assertTrue(thread.get().getName().startsWith("test-"));
+    assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread.get()));
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+  }
+
+  public void testArgsValidation() throws Exception {
+    TThreadPoolServer.Args args = new TThreadPoolServer.Args(new TServerSocket(PORT)).useVirtualThreads(true);
+    if (VirtualThreads.isSupported()) {
+      // the executor would be ignored
+      args.executorService(VirtualThreads.newThreadPerTaskExecutor("test-"));
+    }
+    try {
+      new TThreadPoolServer(args);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+    } finally {
+      args.serverTransport.close();
+    }
+
+    TNonblockingServerSocket socket = new TNonblockingServerSocket(PORT);
+    try {
+      new TThreadedSelectorServer(new TThreadedSelectorServer.Args(socket).useVirtualThreads(true)
+          .methodPriority("testVoid", TThreadedSelectorServer.Args.MethodPriority.HIGH));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMap;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+import thrift.test.Doubles;
+
+/**
+ * Measures how many bytes deserializing a struct allocates, with protocols
+ * that allocate a new descriptor for every field and with protocols that
+ * reuse their descriptors. Besides the generated Doubles struct, a
+ * hand-written reader in the style of generated code reads a struct of eight
+ * doubles, a list of lists of i32s and a map it skips, so containers are
+ * covered too. Needs a JVM that can count the bytes a thread allocates.
+ */
+public class DescriptorAllocationBenchmark {
+  private static final int WARMUP_READS = 1000000;
+  private static final int READS = 1000000;
+
+  private static final int NUM_DOUBLES = 8;
+  private static final int NUM_LISTS = 3;
+  private static final int LIST_SIZE = 4;
+  private static final int MAP_SIZE = 4;
+
+  /**
+   * Writes a struct and reads it back, over and over.
+   */
+  private static abstract class Reader {
+    abstract void write(TProtocol proto) throws TException;
+
+    abstract void read(TProtocol proto) throws TException;
+  }
+
+  private static class StructReader extends Reader {
+    private final TBase struct;
+    private final TBase target;
+
+    StructReader(TBase struct) {
+      this.struct = struct;
+      target = struct.deepCopy();
+    }
+
+    void write(TProtocol proto) throws TException {
+      struct.write(proto);
+    }
+
+    void read(TProtocol proto) throws TException {
+      target.read(proto);
+    }
+  }
+
+  /**
+   * Reads the way generated code does, with the descriptors of nested
+   * containers read while the outer one's are still in use.
+   */
+  private static class ContainerReader extends Reader {
+    private final double[] doubles = new double[NUM_DOUBLES];
+    private final int[][] lists = new int[NUM_LISTS][LIST_SIZE];
+
+    void write(TProtocol proto) throws TException {
+      proto.writeStructBegin(new TStruct("Containers"));
+      for (short i = 0; i < NUM_DOUBLES; i++) {
+        proto.writeFieldBegin(new TField("d" + i, TType.DOUBLE, (short)(i + 1)));
+        proto.writeDouble(i / 3.0);
+        proto.writeFieldEnd();
+      }
+      proto.writeFieldBegin(new TField("lists", TType.LIST, (short)(NUM_DOUBLES + 1)));
+      proto.writeListBegin(new TList(TType.LIST, NUM_LISTS));
+      for (int i = 0; i < NUM_LISTS; i++) {
+        proto.writeListBegin(new TList(TType.I32, LIST_SIZE));
+        for (int j = 0; j < LIST_SIZE; j++) {
+          proto.writeI32(i * LIST_SIZE + j);
+        }
+        proto.writeListEnd();
+      }
+      proto.writeListEnd();
+      proto.writeFieldEnd();
+      proto.writeFieldBegin(new TField("skipped", TType.MAP, (short)(NUM_DOUBLES + 2)));
+      proto.writeMapBegin(new TMap(TType.I32, TType.DOUBLE, MAP_SIZE));
+      for (int i = 0; i < MAP_SIZE; i++) {
+        proto.writeI32(i);
+        proto.writeDouble(i);
+      }
+      proto.writeMapEnd();
+      proto.writeFieldEnd();
+      proto.writeFieldStop();
+      proto.writeStructEnd();
+    }
+
+    void read(TProtocol proto) throws TException {
+      proto.readStructBegin();
+      while (true) {
+        TField field = proto.readFieldBegin();
+        if (field.type == TType.STOP) {
+          break;
+        }
+        if (field.type == TType.DOUBLE && field.id <= NUM_DOUBLES) {
+          doubles[field.id - 1] = proto.readDouble();
+        } else if (field.type == TType.LIST && field.id == NUM_DOUBLES + 1) {
+          TList outer = proto.readListBegin();
+          for (int i = 0; i < outer.size; i++) {
+            TList inner = proto.readListBegin();
+            for (int j = 0; j < inner.size; j++) {
+              lists[i][j] = proto.readI32();
+            }
+            proto.readListEnd();
+          }
+          proto.readListEnd();
+        } else {
+          TProtocolUtil.skip(proto, field.type);
+        }
+        proto.readFieldEnd();
+      }
+      proto.readStructEnd();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Doubles doubles = new Doubles(Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+        1.0 / 3, 1e300, 1e-300, 0.0, -0.0);
+    runAll("Doubles", new StructReader(doubles));
+    runAll("containers", new ContainerReader());
+  }
+
+  private static void runAll(String name, Reader reader) throws Exception {
+    run(name + ", binary", new TBinaryProtocol.Factory(), reader);
+    run(name + ", binary, reusing descriptors", new TBinaryProtocol.Factory(false, true, 0, true), reader);
+    run(name + ", compact", new TCompactProtocol.Factory(), reader);
+    run(name + ", compact, reusing descriptors", new TCompactProtocol.Factory(true), reader);
+  }
+
+  private static void run(String name, TProtocolFactory factory, Reader reader) throws Exception {
+    TMemoryBuffer buf = new TMemoryBuffer(0);
+    reader.write(factory.getProtocol(buf));
+    byte[] serialized = buf.getArray();
+    int length = buf.length();
+
+    TMemoryInputTransport trans = new TMemoryInputTransport();
+    TProtocol proto = factory.getProtocol(trans);
+    for (int i = 0; i < WARMUP_READS; i++) {
+      trans.reset(serialized, 0, length);
+      reader.read(proto);
+    }
+
+    long startBytes = allocatedBytes();
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < READS; i++) {
+      trans.reset(serialized, 0, length);
+      reader.read(proto);
+    }
+    long endTime = System.currentTimeMillis();
+    long bytes = allocatedBytes() - startBytes;
+
+    System.out.println(name + ": " + (bytes / READS) + " bytes allocated per read, "
+        + (endTime - startTime) + " ms for " + READS + " reads");
+  }
+
+  /**
+   * Bytes allocated by this thread so far, from the HotSpot extension of
+   * ThreadMXBean.
+   */
+  private static long allocatedBytes() throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Method method = Class.forName("com.sun.management.ThreadMXBean")
+        .getMethod("getThreadAllocatedBytes", long.class);
+    return (Long) method.invoke(threads, Thread.currentThread().getId());
+  }
+}
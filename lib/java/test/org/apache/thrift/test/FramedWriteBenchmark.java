@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.test;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.thrift.transport.TFastFramedTransport;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Counts how many writes reach the socket for each framed message, with the
+ * socket's output buffered the same way TSocket buffers it. Every write that
+ * gets past the BufferedOutputStream would be a system call on a real socket.
+ */
+public class FramedWriteBenchmark {
+  private static final int HOW_MANY = 100000;
+  private static final int[] SIZES = new int[] { 100, 1000, 1021, 4096, 65536 };
+
+  private static class CountingOutputStream extends OutputStream {
+    long writes = 0;
+
+    @Override
+    public void write(int b) {
+      writes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      writes++;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (int size : SIZES) {
+      run("TFramedTransport", size, false);
+      run("TFastFramedTransport", size, true);
+    }
+  }
+
+  private static void run(String name, int size, boolean fast) throws IOException, Exception {
+    CountingOutputStream socket = new CountingOutputStream();
+    TTransport base = new TIOStreamTransport(new BufferedOutputStream(socket, 1024));
+    TTransport trans = fast ? new TFastFramedTransport(base) : new TFramedTransport(base);
+    byte[] payload = new byte[size];
+
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < HOW_MANY; i++) {
+      trans.write(payload);
+      trans.flush();
+    }
+    long endTime = System.currentTimeMillis();
+
+    System.out.println(name + " " + size + " byte messages: "
+        + ((double)socket.writes / HOW_MANY) + " writes per message, "
+        + (endTime - startTime) + " ms");
+  }
+}
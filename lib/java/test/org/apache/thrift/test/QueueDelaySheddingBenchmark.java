@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.thrift.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.server.THsHaServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Shows what shedding requests that waited too long for a worker thread does
+ * to latency under overload. A THsHaServer with a few worker threads and a
+ * handler that takes 10 ms is driven by many more clients than it can keep
+ * up with, each making one call after another. This runs once without any
+ * limit, once with maxQueueDelay and once with queueDelayTarget, and prints
+ * the latency percentiles of the calls that were answered, along with how
+ * many were shed. The seconds to run each for can be given, 10 by default.
+ */
+public class QueueDelaySheddingBenchmark {
+  private static final int PORT = 9091;
+  private static final int WORKER_THREADS = 2;
+  private static final int CLIENT_THREADS = 32;
+  private static final long HANDLER_MILLIS = 10;
+  private static final int MAX_QUEUE_DELAY_MILLIS = 50;
+  private static final int QUEUE_DELAY_TARGET_MILLIS = 5;
+
+  /**
+   * Takes HANDLER_MILLIS to answer each call with an empty reply.
+   */
+  private static class SlowProcessor implements TProcessor {
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+      TMessage msg = in.readMessageBegin();
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+      try {
+        Thread.sleep(HANDLER_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+      out.writeStructBegin(new TStruct("result"));
+      out.writeFieldStop();
+      out.writeStructEnd();
+      out.writeMessageEnd();
+      out.getTransport().flush();
+      return true;
+    }
+  }
+
+  /**
+   * What one client saw: the latencies of its answered calls, in
+   * microseconds, and how many of its calls were shed.
+   */
+  private static class ClientResult {
+    final long[] latencies;
+    final int answered;
+    final int shed;
+
+    ClientResult(long[] latencies, int answered, int shed) {
+      this.latencies = latencies;
+      this.answered = answered;
+      this.shed = shed;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+    run("no limit", new THsHaServer.Args(new TNonblockingServerSocket(PORT)), seconds);
+    run("maxQueueDelay " + MAX_QUEUE_DELAY_MILLIS + " ms", new THsHaServer.Args(new TNonblockingServerSocket(PORT))
+        .maxQueueDelayVal(MAX_QUEUE_DELAY_MILLIS).maxQueueDelayUnit(TimeUnit.MILLISECONDS), seconds);
+    run("queueDelayTarget " + QUEUE_DELAY_TARGET_MILLIS + " ms", new THsHaServer.Args(new TNonblockingServerSocket(PORT))
+        .queueDelayTargetVal(QUEUE_DELAY_TARGET_MILLIS).queueDelayTargetUnit(TimeUnit.MILLISECONDS), seconds);
+  }
+
+  private static void run(String name, THsHaServer.Args serverArgs, long seconds) throws Exception {
+    final THsHaServer server = new THsHaServer(serverArgs.processor(new SlowProcessor())
+        .workerThreads(WORKER_THREADS));
+    Thread serverThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serverThread.start();
+    while (!server.isServing()) {
+      Thread.sleep(10);
+    }
+
+    final long endTime = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+    ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+    List<Future<ClientResult>> futures = new ArrayList<Future<ClientResult>>();
+    for (int i = 0; i < CLIENT_THREADS; i++) {
+      futures.add(clients.submit(new Callable<ClientResult>() {
+        public ClientResult call() throws Exception {
+          TTransport transport = new TFramedTransport(new TSocket("localhost", PORT));
+          transport.open();
+          TProtocol protocol = new TBinaryProtocol(transport);
+          long[] latencies = new long[1024];
+          int answered = 0;
+          int shed = 0;
+          for (int seqid = 0; System.currentTimeMillis() < endTime; seqid++) {
+            long start = System.nanoTime();
+            if (makeCall(protocol, seqid)) {
+              if (answered == latencies.length) {
+                long[] grown = new long[answered * 2];
+                System.arraycopy(latencies, 0, grown, 0, answered);
+                latencies = grown;
+              }
+              latencies[answered++] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            } else {
+              shed++;
+            }
+          }
+          transport.close();
+          return new ClientResult(latencies, answered, shed);
+        }
+      }));
+    }
+
+    int answered = 0;
+    int shed = 0;
+    List<ClientResult> results = new ArrayList<ClientResult>();
+    for (Future<ClientResult> future : futures) {
+      ClientResult result = future.get();
+      results.add(result);
+      answered += result.answered;
+      shed += result.shed;
+    }
+    clients.shutdown();
+    server.stop();
+    serverThread.join();
+
+    long[] all = new long[answered];
+    int pos = 0;
+    for (ClientResult result : results) {
+      System.arraycopy(result.latencies, 0, all, pos, result.answered);
+      pos += result.answered;
+    }
+    Arrays.sort(all);
+    System.out.println(name + ": " + answered + " answered, " + shed + " shed, "
+        + "p50 " + percentileMillis(all, 50) + " ms, p99 " + percentileMillis(all, 99) + " ms, "
+        + "max " + percentileMillis(all, 100) + " ms");
+  }
+
+  /**
+   * Make one call, returning false if it was shed.
+   */
+  private static boolean makeCall(TProtocol protocol, int seqid) throws TException {
+    protocol.writeMessageBegin(new TMessage("slow", TMessageType.CALL, seqid));
+    protocol.writeStructBegin(new TStruct("args"));
+    protocol.writeFieldStop();
+    protocol.writeStructEnd();
+    protocol.writeMessageEnd();
+    protocol.getTransport().flush();
+
+    TMessage msg = protocol.readMessageBegin();
+    if (msg.type == TMessageType.EXCEPTION) {
+      TApplicationException x = TApplicationException.read(protocol);
+      protocol.readMessageEnd();
+      if (!x.getMessage().startsWith("Server overloaded")) {
+        throw x;
+      }
+      return false;
+    }
+    TProtocolUtil.skip(protocol, TType.STRUCT);
+    protocol.readMessageEnd();
+    return true;
+  }
+
+  private static String percentileMillis(long[] sorted, int percentile) {
+    if (sorted.length == 0) {
+      return "-";
+    }
+    int index = Math.min(sorted.length - 1, (int) ((long) sorted.length * percentile / 100));
+    return String.valueOf(sorted[index] / 1000.0);
+  }
+}
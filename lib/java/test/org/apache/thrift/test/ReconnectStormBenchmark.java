@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.ServerTestBase;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import thrift.test.ThriftTest;
+
+/**
+ * Measures how fast TThreadedSelectorServer takes on new connections when a
+ * lot of clients reconnect at once, such as after a deploy. Every client
+ * thread repeatedly connects over loopback, makes one call and disconnects.
+ * Runs once with the single accept thread, and once with the selector threads
+ * accepting on their own SO_REUSEPORT sockets, if the platform supports it.
+ */
+public class ReconnectStormBenchmark {
+  private static final int PORT = 9097;
+  private static final int SELECTOR_THREADS = 4;
+  private static final int CLIENT_THREADS = 64;
+  private static final int CONNECTS_PER_CLIENT = 500;
+
+  public static void main(String[] args) throws Exception {
+    run(false);
+    if (TNonblockingServerSocket.isReusePortSupported()) {
+      run(true);
+    } else {
+      System.out.println("SO_REUSEPORT is not supported here, skipping the multi-acceptor run");
+    }
+  }
+
+  private static void run(boolean reusePort) throws Exception {
+    TNonblockingServerSocket socket = new TNonblockingServerSocket(new InetSocketAddress(PORT), 0, reusePort);
+    final TServer server = new TThreadedSelectorServer(new TThreadedSelectorServer.Args(socket)
+        .processor(new ThriftTest.Processor(new ServerTestBase.TestHandler()))
+        .selectorThreads(SELECTOR_THREADS)
+        .acceptOnSelectorThreads(reusePort));
+    Thread serverThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serverThread.start();
+    while (!server.isServing()) {
+      Thread.sleep(10);
+    }
+
+    ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+    List<Future<Object>> results = new ArrayList<Future<Object>>();
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < CLIENT_THREADS; i++) {
+      results.add(clients.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          for (int j = 0; j < CONNECTS_PER_CLIENT; j++) {
+            TTransport transport = new TFramedTransport(new TSocket("localhost", PORT));
+            transport.open();
+            new ThriftTest.Client(new TBinaryProtocol(transport)).testI32(j);
+            transport.close();
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Object> result : results) {
+      result.get();
+    }
+    long endTime = System.currentTimeMillis();
+    clients.shutdown();
+
+    server.stop();
+    serverThread.join();
+
+    int connects = CLIENT_THREADS * CONNECTS_PER_CLIENT;
+    System.out.println((reusePort ? "SO_REUSEPORT acceptors: " : "single accept thread: ")
+        + connects + " connects in " + (endTime - startTime) + " ms, "
+        + (connects * 1000L / Math.max(1, endTime - startTime)) + " connects/s");
+  }
+}
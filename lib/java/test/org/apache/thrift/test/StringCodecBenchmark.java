@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.test;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.AutoExpandingBufferWriteTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+/**
+ * Measures writeString and readString throughput for ASCII, Latin-1 and CJK
+ * payloads, reporting the best of several rounds. Pass a substring of a case name to run only the matching cases
+ * in this JVM, so the JIT doesn't see the others.
+ */
+public class StringCodecBenchmark {
+  private static final int HOW_MANY = 1000000;
+  private static final int BATCH = 1000;
+  private static final int ROUNDS = 10;
+
+  private static final String[][] PAYLOADS = new String[][] {
+    {"ascii-short", "getServerStatus"},
+    {"ascii-long", repeat("The quick brown fox jumps over the lazy dog. ", 5)},
+    {"latin1-short", "Gr\u00fc\u00dfe aus K\u00f6ln"},
+    {"latin1-long", repeat("Gr\u00fc\u00dfe aus K\u00f6ln, ca\u00f1\u00f3n, cr\u00e8me ", 5)},
+    {"cjk-short", "\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8"},
+    {"cjk-long", repeat("\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8\u3068\u4e2d\u6587\u6587\u672c", 5)},
+  };
+
+  public static void main(String[] args) throws Exception {
+    String filter = args.length > 0 ? args[0] : "";
+    TProtocolFactory[] factories = new TProtocolFactory[] {
+        new TBinaryProtocol.Factory(), new TCompactProtocol.Factory() };
+    for (TProtocolFactory factory : factories) {
+      for (String[] payload : PAYLOADS) {
+        String name = factory.getClass().getEnclosingClass().getSimpleName() + " " + payload[0];
+        if (name.indexOf(filter) >= 0) {
+          run(name, factory, payload[1]);
+        }
+      }
+    }
+  }
+
+  private static void run(String name, TProtocolFactory factory, String str) throws TException {
+    AutoExpandingBufferWriteTransport out = new AutoExpandingBufferWriteTransport(1024, 1.5);
+    TProtocol writer = factory.getProtocol(out);
+    TMemoryInputTransport in = new TMemoryInputTransport();
+    TProtocol reader = factory.getProtocol(in);
+
+    long bestWrite = Long.MAX_VALUE;
+    long bestRead = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long writeTime = 0;
+      long readTime = 0;
+      int length = 0;
+      for (int i = 0; i < HOW_MANY / BATCH; i++) {
+        out.reset();
+        long start = System.nanoTime();
+        for (int j = 0; j < BATCH; j++) {
+          writer.writeString(str);
+        }
+        long mid = System.nanoTime();
+        in.reset(out.getBuf().array(), 0, out.getPos());
+        for (int j = 0; j < BATCH; j++) {
+          length += reader.readString().length();
+        }
+        readTime += System.nanoTime() - mid;
+        writeTime += mid - start;
+      }
+      if (length != str.length() * HOW_MANY) {
+        throw new IllegalStateException("round trip lost characters");
+      }
+      bestWrite = Math.min(bestWrite, writeTime);
+      bestRead = Math.min(bestRead, readTime);
+    }
+
+    System.out.println(name + " (" + str.length() + " chars): write "
+        + (bestWrite / HOW_MANY) + " ns, read " + (bestRead / HOW_MANY) + " ns");
+  }
+
+  private static String repeat(String s, int times) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.ServerTestBase;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.server.VirtualThreads;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import thrift.test.ThriftTest;
+
+/**
+ * Compares TThreadPoolServer on pooled platform threads with one virtual
+ * thread per connection. Opens the given number of connections (10000 by
+ * default) and keeps them open, then measures how fast a few busy clients
+ * get their calls through while the rest sit idle, and how many platform
+ * threads the server needed for it. The open file limit has to allow twice
+ * the number of connections. To check that connections don't pin their
+ * carrier threads, run with -Djdk.tracePinnedThreads=full on Java 21-23.
+ */
+public class VirtualThreadBenchmark {
+  private static final int PORT = 9098;
+  private static final int BUSY_CLIENTS = 32;
+  private static final int CALLS_PER_CLIENT = 2000;
+
+  public static void main(String[] args) throws Exception {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    run(false, connections);
+    if (VirtualThreads.isSupported()) {
+      run(true, connections);
+    } else {
+      System.out.println("virtual threads are not supported here, skipping the virtual thread run");
+    }
+  }
+
+  private static void run(boolean virtual, int connections) throws Exception {
+    final TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(new TServerSocket(PORT))
+        .processor(new ThriftTest.Processor(new ServerTestBase.TestHandler()))
+        .useVirtualThreads(virtual));
+    Thread serverThread = new Thread() {
+      public void run() {
+        server.serve();
+      }
+    };
+    serverThread.start();
+    while (!server.isServing()) {
+      Thread.sleep(10);
+    }
+
+    List<TTransport> idle = new ArrayList<TTransport>();
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < connections; i++) {
+      TTransport transport = new TSocket("localhost", PORT);
+      transport.open();
+      idle.add(transport);
+    }
+    long connectTime = System.currentTimeMillis() - startTime;
+
+    ExecutorService clients = Executors.newFixedThreadPool(BUSY_CLIENTS);
+    List<Future<Object>> results = new ArrayList<Future<Object>>();
+    startTime = System.currentTimeMillis();
+    for (int i = 0; i < BUSY_CLIENTS; i++) {
+      results.add(clients.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          TTransport transport = new TSocket("localhost", PORT);
+          transport.open();
+          ThriftTest.Client client = new ThriftTest.Client(new TBinaryProtocol(transport));
+          for (int j = 0; j < CALLS_PER_CLIENT; j++) {
+            client.testI32(j);
+          }
+          transport.close();
+          return null;
+        }
+      }));
+    }
+    for (Future<Object> result : results) {
+      result.get();
+    }
+    long callTime = System.currentTimeMillis() - startTime;
+    clients.shutdown();
+    int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+    for (TTransport transport : idle) {
+      transport.close();
+    }
+    server.stop();
+    serverThread.join();
+
+    int calls = BUSY_CLIENTS * CALLS_PER_CLIENT;
+    System.out.println((virtual ? "virtual threads: " : "platform threads: ")
+        + connections + " connections in " + connectTime + " ms, "
+        + calls + " calls in " + callTime + " ms, "
+        + (calls * 1000L / Math.max(1, callTime)) + " calls/s, "
+        + threads + " live platform threads");
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.test;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.AutoExpandingBufferWriteTransport;
+import org.apache.thrift.transport.TFastFramedTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Measures how fast each protocol encodes primitives, once into a transport
+ * that lets it encode straight into the write buffer, and once through a
+ * wrapper that hides the buffer so every value is copied in with write().
+ *
+ * Every case shares the same call sites, so the JIT sees them all; pass a
+ * substring of a case name to run only the matching cases in this JVM.
+ */
+public class WriteThroughputBenchmark {
+  private static final int HOW_MANY = 10000;
+  private static final int VALUES_PER_MESSAGE = 100;
+  private static final int ROUNDS = 5;
+
+  /**
+   * Passes writes on to the underlying transport, if there is one, without
+   * exposing its write buffer.
+   */
+  private static class CopyingTransport extends TTransport {
+    private final TTransport trans;
+
+    public CopyingTransport(TTransport underlying) {
+      trans = underlying;
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public boolean isOpen() {return true;}
+
+    @Override
+    public void open() throws TTransportException {}
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+      return 0;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+      if (trans != null) {
+        trans.write(buf, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws TTransportException {
+      if (trans != null) {
+        trans.flush();
+      }
+    }
+  }
+
+  private static String filter = "";
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0) {
+      filter = args[0];
+    }
+    TProtocolFactory[] factories = new TProtocolFactory[] {
+        new TBinaryProtocol.Factory(), new TCompactProtocol.Factory() };
+    for (int round = 0; round < ROUNDS; round++) {
+      for (TProtocolFactory factory : factories) {
+        String name = factory.getClass().getEnclosingClass().getSimpleName();
+        AutoExpandingBufferWriteTransport buffer = new AutoExpandingBufferWriteTransport(1024, 1.5);
+        run(name + " AutoExpandingBufferWriteTransport direct", factory.getProtocol(buffer), buffer);
+        run(name + " AutoExpandingBufferWriteTransport copied", factory.getProtocol(new CopyingTransport(buffer)), buffer);
+
+        TTransport framed = new TFastFramedTransport(new CopyingTransport(null));
+        run(name + " TFastFramedTransport direct", factory.getProtocol(framed), framed);
+        run(name + " TFastFramedTransport copied", factory.getProtocol(new CopyingTransport(framed)), framed);
+      }
+    }
+  }
+
+  private static void run(String name, TProtocol proto, TTransport trans) throws TException {
+    if (name.indexOf(filter) < 0) {
+      return;
+    }
+    long startTime = System.nanoTime();
+    for (int i = 0; i < HOW_MANY; i++) {
+      for (int j = 0; j < VALUES_PER_MESSAGE; j++) {
+        proto.writeByte((byte)j);
+        proto.writeI16((short)(j * 31));
+        proto.writeI32(j * 1000003);
+        proto.writeI64(j * 1000000007L);
+        proto.writeDouble(j / 7.0);
+      }
+      if (trans instanceof AutoExpandingBufferWriteTransport) {
+        ((AutoExpandingBufferWriteTransport)trans).reset();
+      } else {
+        trans.flush();
+      }
+    }
+    long elapsed = System.nanoTime() - startTime;
+    long values = (long)HOW_MANY * VALUES_PER_MESSAGE * 5;
+
+    System.out.println(name + ": " + (values * 1000 / elapsed) + " M values/s");
+  }
+}
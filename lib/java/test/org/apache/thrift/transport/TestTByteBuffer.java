@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+
+public class TestTByteBuffer extends TestCase {
+  public void testHeapBuffer() throws Exception {
+    byte[] input_buf = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+    ByteBuffer bb = ByteBuffer.wrap(input_buf, 2, 6).slice();
+    TByteBuffer trans = new TByteBuffer(bb);
+    assertSame(input_buf, trans.getBuffer());
+    assertEquals(2, trans.getBufferPosition());
+    assertEquals(6, trans.getBytesRemainingInBuffer());
+
+    byte[] buf1 = new byte[4];
+    trans.readAll(buf1, 0, 4);
+    assertTrue(Arrays.equals(new byte[]{3, 4, 5, 6}, buf1));
+    assertEquals(6, trans.getBufferPosition());
+
+    trans.consumeBuffer(1);
+    assertEquals(1, trans.getBytesRemainingInBuffer());
+    assertEquals(5, bb.position());
+  }
+
+  public void testDirectBuffer() throws Exception {
+    ByteBuffer bb = ByteBuffer.allocateDirect(10);
+    bb.put(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+    bb.flip();
+    TByteBuffer trans = new TByteBuffer(bb);
+    assertNull(trans.getBuffer());
+    assertEquals(-1, trans.getBytesRemainingInBuffer());
+    assertSame(bb, trans.getByteBuffer());
+
+    byte[] buf1 = new byte[4];
+    trans.readAll(buf1, 0, 4);
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3, 4}, buf1));
+    assertEquals(6, bb.remaining());
+
+    try {
+      trans.readAll(new byte[7], 0, 7);
+      fail("should have thrown an exception");
+    } catch (TTransportException e) {
+      // yay
+    }
+  }
+
+  public void testWriteOverflow() throws Exception {
+    TByteBuffer trans = new TByteBuffer(ByteBuffer.allocate(3));
+    trans.write(new byte[]{1, 2});
+    try {
+      trans.write(new byte[]{3, 4});
+      fail("should have thrown an exception");
+    } catch (TTransportException e) {
+      // yay
+    }
+  }
+
+  public void testBinaryProtocolOverDirectBuffer() throws Exception {
+    checkProtocolOverDirectBuffer(new TBinaryProtocol.Factory());
+  }
+
+  public void testCompactProtocolOverDirectBuffer() throws Exception {
+    checkProtocolOverDirectBuffer(new TCompactProtocol.Factory());
+  }
+
+  private void checkProtocolOverDirectBuffer(TProtocolFactory factory) throws Exception {
+    ByteBuffer bb = ByteBuffer.allocateDirect(256);
+    TProtocol out = factory.getProtocol(new TByteBuffer(bb));
+    out.writeByte((byte)-7);
+    out.writeI16((short)-1234);
+    out.writeI32(Integer.MIN_VALUE);
+    out.writeI64(0x0102030405060708L);
+    out.writeDouble(Math.PI);
+    out.writeString("h\u00e9llo");
+    out.writeBinary(ByteBuffer.wrap(new byte[]{9, 8, 7}));
+    out.writeI32(42);
+    bb.flip();
+
+    TProtocol in = factory.getProtocol(new TByteBuffer(bb));
+    assertEquals((byte)-7, in.readByte());
+    assertEquals((short)-1234, in.readI16());
+    assertEquals(Integer.MIN_VALUE, in.readI32());
+    assertEquals(0x0102030405060708L, in.readI64());
+    assertEquals(Math.PI, in.readDouble());
+    assertEquals("h\u00e9llo", in.readString());
+    ByteBuffer bin = in.readBinary();
+    assertEquals(3, bin.remaining());
+    assertEquals(9, bin.get(bin.position()));
+    assertEquals(42, in.readI32());
+    assertEquals(0, bb.remaining());
+  }
+}
@@ -87,11 +87,11 @@ public class TestTFramedTransport extends TestCase {
     assertEquals(0, countingTrans.writeCount);
 
     trans.flush();
-    assertEquals(2, countingTrans.writeCount);
+    assertEquals(1, countingTrans.writeCount);
 
     trans.write(byteSequence(0, 245));
     trans.flush();
-    assertEquals(4, countingTrans.writeCount);
+    assertEquals(2, countingTrans.writeCount);
 
     DataInputStream din = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
     assertEquals(256, din.readInt());
@@ -106,6 +106,29 @@ public class TestTFramedTransport extends TestCase {
     assertTrue(Arrays.equals(byteSequence(0,245), buf));
   }
 
+  public void testLargeFrameIsOneWrite() throws TTransportException, IOException {
+    // the way TSocket buffers its output: frames bigger than the buffer
+    // go straight through, so the header must not be written separately.
+    final int[] streamWrites = new int[1];
+    ByteArrayOutputStream baos = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        streamWrites[0]++;
+        super.write(b, off, len);
+      }
+    };
+    TTransport trans = getTransport(new TIOStreamTransport(new BufferedOutputStream(baos, 1024)));
+
+    byte[] payload = new byte[4000];
+    trans.write(payload);
+    trans.flush();
+    assertEquals(1, streamWrites[0]);
+
+    DataInputStream din = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    assertEquals(4000, din.readInt());
+    assertEquals(4000, din.available());
+  }
+
   public void testDirectRead() throws IOException, TTransportException {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     DataOutputStream dos = new DataOutputStream(baos);
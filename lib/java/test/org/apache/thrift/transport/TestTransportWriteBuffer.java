@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.thrift.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+
+public class TestTransportWriteBuffer extends TestCase {
+
+  public void testMemoryBuffer() throws Exception {
+    TMemoryBuffer trans = new TMemoryBuffer(1);
+    trans.write(new byte[]{1});
+    assertTrue(trans.reserveWriteBuffer(3));
+    int pos = trans.getWriteBufferPosition();
+    assertEquals(1, pos);
+    byte[] buf = trans.getWriteBuffer();
+    assertTrue(buf.length >= 4);
+    buf[pos] = 2;
+    buf[pos + 1] = 3;
+    trans.commitWriteBuffer(2);
+    trans.write(new byte[]{4});
+    assertEquals(4, trans.length());
+    byte[] written = new byte[4];
+    trans.readAll(written, 0, 4);
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3, 4}, written));
+  }
+
+  public void testAutoExpandingBufferWriteTransport() throws Exception {
+    AutoExpandingBufferWriteTransport trans = new AutoExpandingBufferWriteTransport(1, 1.5);
+    assertTrue(trans.reserveWriteBuffer(8));
+    assertTrue(trans.getWriteBuffer().length >= 8);
+    assertEquals(0, trans.getWriteBufferPosition());
+    trans.getWriteBuffer()[0] = 5;
+    trans.commitWriteBuffer(1);
+    assertEquals(1, trans.getPos());
+    assertEquals(5, trans.getBuf().array()[0]);
+  }
+
+  public void testUnbufferedTransportDeclines() throws Exception {
+    TTransport trans = new TIOStreamTransport(new ByteArrayOutputStream());
+    assertFalse(trans.reserveWriteBuffer(1));
+    assertNull(trans.getWriteBuffer());
+  }
+
+  public void testFramedTransports() throws Exception {
+    checkFramed(new TMemoryBuffer(16), false);
+    checkFramed(new TMemoryBuffer(16), true);
+  }
+
+  private void checkFramed(TMemoryBuffer underlying, boolean fast) throws Exception {
+    TTransport trans = fast ? new TFastFramedTransport(underlying, 4) : new TFramedTransport(underlying);
+    trans.write(new byte[]{1});
+    assertTrue(trans.reserveWriteBuffer(100));
+    int pos = trans.getWriteBufferPosition();
+    byte[] buf = trans.getWriteBuffer();
+    assertTrue(buf.length >= pos + 100);
+    buf[pos] = 2;
+    trans.commitWriteBuffer(1);
+    trans.flush();
+
+    byte[] frame = new byte[6];
+    underlying.readAll(frame, 0, 6);
+    assertTrue(Arrays.equals(new byte[]{0, 0, 0, 2, 1, 2}, frame));
+  }
+
+  /**
+   * Protocols must produce the same bytes whether they encode into the
+   * transport's buffer or go through write().
+   */
+  public void testProtocolsEncodeSameBytes() throws Exception {
+    checkSameBytes(new TBinaryProtocol.Factory());
+    checkSameBytes(new TCompactProtocol.Factory());
+  }
+
+  private void checkSameBytes(TProtocolFactory factory) throws Exception {
+    TMemoryBuffer direct = new TMemoryBuffer(1);
+    TMemoryBuffer copied = new TMemoryBuffer(1);
+    WriteCountingTransport counting = new WriteCountingTransport(copied);
+    writeAll(factory.getProtocol(direct));
+    writeAll(factory.getProtocol(counting));
+
+    assertTrue(counting.writeCount > 0);
+    assertEquals(copied.length(), direct.length());
+    byte[] a = new byte[direct.length()];
+    byte[] b = new byte[copied.length()];
+    direct.readAll(a, 0, a.length);
+    copied.readAll(b, 0, b.length);
+    assertTrue(Arrays.equals(b, a));
+  }
+
+  private void writeAll(TProtocol proto) throws Exception {
+    long[] values = new long[]{0, 1, -1, 127, 128, -129, Short.MAX_VALUE, Short.MIN_VALUE,
+        Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+    proto.writeStructBegin(new TStruct("s"));
+    short id = 1;
+    for (long v : values) {
+      proto.writeFieldBegin(new TField("b", TType.BYTE, id++));
+      proto.writeByte((byte)v);
+      proto.writeFieldEnd();
+      proto.writeFieldBegin(new TField("i16", TType.I16, id++));
+      proto.writeI16((short)v);
+      proto.writeFieldEnd();
+      proto.writeFieldBegin(new TField("i32", TType.I32, id++));
+      proto.writeI32((int)v);
+      proto.writeFieldEnd();
+      proto.writeFieldBegin(new TField("i64", TType.I64, id++));
+      proto.writeI64(v);
+      proto.writeFieldEnd();
+      proto.writeFieldBegin(new TField("d", TType.DOUBLE, id++));
+      proto.writeDouble(v / 3.0);
+      proto.writeFieldEnd();
+    }
+    proto.writeFieldStop();
+    proto.writeStructEnd();
+  }
+}
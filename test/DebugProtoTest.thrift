@@ -364,4 +364,12 @@ struct TupleProtocolTestStruct {
   optional i32 field10;
   optional i32 field11;
   optional i32 field12;
-}
\ No newline at end of file
+}
+typedef string (java.string_cache = "true") CachedString
+
+struct CachedStrings {
+  1: string per_field (java.string_cache = "true"),
+  2: string (java.string_cache = "true") per_type,
+  3: CachedString via_typedef,
+  4: string uncached,
+}